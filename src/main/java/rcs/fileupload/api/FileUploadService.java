@@ -41,6 +41,12 @@ public class FileUploadService {
                 Resource.class);
     }
 
+    public ResponseEntity<Resource> getFileRequest(String filename, String size) {
+        return restTemplate.getForEntity(
+                createUrl("/fileupload/api/files/" + filename + "?size=" + size),
+                Resource.class);
+    }
+
     public ResponseEntity<FileUploadRecord> uploadFileRequest(LoginCredentials creds, String filename) {
         return authService.login(creds)
                 .map(authToken -> {
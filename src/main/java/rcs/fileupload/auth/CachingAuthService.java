@@ -0,0 +1,89 @@
+package rcs.fileupload.auth;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.http.ResponseEntity;
+import rcs.auth.api.AuthService;
+import rcs.auth.api.models.AuthenticatedUser;
+import rcs.auth.api.models.LoginCredentials;
+
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * Remembers which user a token belongs to, so most requests are authenticated without calling the auth service.
+ * Tokens the auth service rejected are remembered for a shorter time. Concurrent requests with the same token
+ * share one call, and failed calls aren't remembered. A logout or revoked token is only noticed once its entry
+ * has expired.
+ * Every call is forwarded to the given auth service.
+ */
+public class CachingAuthService extends AuthService {
+
+    private final AuthService authService;
+    private final Cache<String, Optional<AuthenticatedUser>> users;
+
+    public CachingAuthService(
+            AuthService authService,
+            Duration ttl,
+            Duration negativeTtl,
+            long maxSize,
+            MeterRegistry meterRegistry) {
+        super(null, null);
+        this.authService = authService;
+        this.users = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfter(new Expiry<String, Optional<AuthenticatedUser>>() {
+                    @Override
+                    public long expireAfterCreate(String token, Optional<AuthenticatedUser> user, long currentTime) {
+                        return (user.isPresent() ? ttl : negativeTtl).toNanos();
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(
+                            String token, Optional<AuthenticatedUser> user, long currentTime, long currentDuration) {
+                        return expireAfterCreate(token, user, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(
+                            String token, Optional<AuthenticatedUser> user, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .executor(Runnable::run)
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, users, "fileupload.auth");
+    }
+
+    @Override
+    public Optional<AuthenticatedUser> authenticate(String authToken) {
+        if (authToken == null) {
+            return authService.authenticate(null);
+        }
+        return users.get(authToken, authService::authenticate);
+    }
+
+    @Override
+    public Optional<String> login(LoginCredentials credentials) {
+        return authService.login(credentials);
+    }
+
+    @Override
+    public ResponseEntity<Void> register(LoginCredentials credentials) {
+        return authService.register(credentials);
+    }
+
+    @Override
+    public ResponseEntity<Void> delete(LoginCredentials credentials, String authToken) {
+        ResponseEntity<Void> response = authService.delete(credentials, authToken);
+        if (authToken != null) {
+            users.invalidate(authToken);
+        }
+        return response;
+    }
+}
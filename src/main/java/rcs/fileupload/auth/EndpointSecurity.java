@@ -27,6 +27,14 @@ public class EndpointSecurity {
                 .orElse(false);
     }
 
+    public boolean isUploader(ServletRequest request, String filename) {
+        return authUtils.tryGetLoggedInUser(request)
+                .map(user -> repository.findById(filename)
+                        .map(record -> record.getUsername().equals(user.getUsername()))
+                        .orElse(false))
+                .orElse(false);
+    }
+
     private boolean isOwnerOfFile(String username, String filename) {
         return repository.findByName(filename).getUsername().equals(username);
     }
@@ -1,13 +1,25 @@
 package rcs.fileupload.config;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.web.client.RestTemplate;
 import rcs.auth.api.AuthService;
 import rcs.auth.api.AuthUtils;
 import rcs.auth.api.AuthenticationFilter;
 import rcs.auth.api.RequestAuthenticationService;
+import rcs.fileupload.auth.CachingAuthService;
+import rcs.fileupload.controllers.utils.OffHeapResourceHttpMessageConverter;
+import rcs.fileupload.controllers.utils.PublicReadHeadersFilter;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
 
 @Configuration
 public class AppConfig {
@@ -15,9 +27,39 @@ public class AppConfig {
     @Value("${services.auth.baseUrl}")
     private String authServiceBaseUrl;
 
+    @Value("${services.auth.maxConnections:50}")
+    private int authServiceMaxConnections;
+
+    @Value("${services.auth.connectTimeout:1s}")
+    private Duration authServiceConnectTimeout;
+
+    @Value("${services.auth.readTimeout:2s}")
+    private Duration authServiceReadTimeout;
+
+    @Value("${services.auth.cache.ttl:30s}")
+    private Duration authCacheTtl;
+
+    @Value("${services.auth.cache.negativeTtl:5s}")
+    private Duration authCacheNegativeTtl;
+
+    @Value("${services.auth.cache.maxSize:10000}")
+    private long authCacheMaxSize;
+
+    /**
+     * Authenticated tokens are cached, unless services.auth.cache.ttl is 0
+     */
     @Bean
-    public AuthService authService() {
-        return new AuthService(authServiceBaseUrl, restTemplate());
+    public AuthService authService(MeterRegistry meterRegistry) {
+        AuthService authService = new AuthService(authServiceBaseUrl, restTemplate());
+        if (authCacheTtl.isZero()) {
+            return authService;
+        }
+        return new CachingAuthService(
+                authService,
+                authCacheTtl,
+                authCacheNegativeTtl,
+                authCacheMaxSize,
+                meterRegistry);
     }
 
     @Bean
@@ -26,12 +68,58 @@ public class AppConfig {
     }
 
     @Bean
-    public AuthenticationFilter getAuthenticationFilter() {
-        return new AuthenticationFilter(new RequestAuthenticationService(authService()));
+    public AuthenticationFilter getAuthenticationFilter(AuthService authService) {
+        return new AuthenticationFilter(new RequestAuthenticationService(authService));
+    }
+
+    /**
+     * The filter only runs as part of the security filter chain, not also as a servlet filter for every request
+     */
+    @Bean
+    public FilterRegistrationBean<AuthenticationFilter> authenticationFilterRegistration(
+            AuthenticationFilter authenticationFilter) {
+        FilterRegistrationBean<AuthenticationFilter> registration = new FilterRegistrationBean<>(authenticationFilter);
+        registration.setEnabled(false);
+        return registration;
+    }
+
+    /**
+     * Public reads skip Spring Security, see {@link WebSecurityConfig}, so they get its content sniffing
+     * and framing headers from this filter instead
+     */
+    @Bean
+    public FilterRegistrationBean<PublicReadHeadersFilter> publicReadHeadersFilterRegistration() {
+        FilterRegistrationBean<PublicReadHeadersFilter> registration = new FilterRegistrationBean<>(new PublicReadHeadersFilter());
+        registration.addUrlPatterns("/api/files", "/api/files/*");
+        return registration;
+    }
+
+    /**
+     * Picked up by Spring Boot ahead of the default converters, so it gets to write cached files
+     */
+    @Bean
+    public OffHeapResourceHttpMessageConverter offHeapResourceHttpMessageConverter() {
+        return new OffHeapResourceHttpMessageConverter();
     }
 
+    /**
+     * Keeps connections to the auth service open between requests, and bounds how long a request
+     * waits for one, to connect and for the response
+     */
     @Bean
     public RestTemplate restTemplate() {
-        return new RestTemplate();
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(authServiceMaxConnections);
+        connectionManager.setDefaultMaxPerRoute(authServiceMaxConnections);
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectionRequestTimeout((int) authServiceConnectTimeout.toMillis())
+                .setConnectTimeout((int) authServiceConnectTimeout.toMillis())
+                .setSocketTimeout((int) authServiceReadTimeout.toMillis())
+                .build();
+        return new RestTemplate(new HttpComponentsClientHttpRequestFactory(HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .evictIdleConnections(30, TimeUnit.SECONDS)
+                .build()));
     }
 }
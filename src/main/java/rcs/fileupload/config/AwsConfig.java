@@ -4,6 +4,10 @@ import lombok.Getter;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.PropertySource;
+import org.springframework.util.unit.DataSize;
+import rcs.fileupload.services.S3FileStorageService;
+
+import java.time.Duration;
 
 @Configuration
 @PropertySource("file:${app.properties}")
@@ -21,4 +25,25 @@ public class AwsConfig {
 
     @Value("${amazon.aws.s3.bucket:#{null}}")
     private String bucket;
+
+    @Value("${amazon.aws.s3.downloadMode:stream}")
+    private S3FileStorageService.DownloadMode downloadMode;
+
+    @Value("${amazon.aws.s3.presignedUrlExpiration:5m}")
+    private Duration presignedUrlExpiration;
+
+    @Value("${amazon.aws.s3.uploadMode:single}")
+    private S3FileStorageService.UploadMode uploadMode;
+
+    @Value("${amazon.aws.s3.multipartThreshold:16MB}")
+    private DataSize multipartThreshold;
+
+    @Value("${amazon.aws.s3.multipartPartSize:8MB}")
+    private DataSize multipartPartSize;
+
+    @Value("${amazon.aws.s3.uploadThreads:10}")
+    private int uploadThreads;
+
+    @Value("${amazon.aws.s3.maxErrorRetry:5}")
+    private int maxErrorRetry;
 }
@@ -1,23 +1,42 @@
 package rcs.fileupload.config;
 
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
 import rcs.fileupload.services.FileStorageService;
 import rcs.fileupload.services.LocalStorageService;
+import rcs.fileupload.services.MemoryCachedStorageService;
+import rcs.fileupload.services.OffHeapCache;
 import rcs.fileupload.services.S3FileStorageService;
+import rcs.fileupload.services.S3MultipartUploader;
+import rcs.fileupload.services.TieredStorageService;
+import rcs.fileupload.services.TransformCache;
+import rcs.fileupload.services.UploadStaging;
 import rcs.fileupload.services.utils.FileFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.PropertySource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.util.unit.DataSize;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.stream.Collectors;
 
 @Configuration
 @PropertySource("file:${app.properties}")
@@ -29,10 +48,137 @@ public class StorageConfig {
     @Value("${local.storage.dir:#{null}}")
     private Optional<String> storageDir;
 
+    @Value("${local.storage.shardDepth:2}")
+    private int storageShardDepth;
+
+    @Value("${storage.cache.dir:#{systemProperties['java.io.tmpdir']}/fileupload-storage-cache}")
+    private String storageCacheDir;
+
+    @Value("${storage.cache.maxSize:0}")
+    private DataSize storageCacheMaxSize;
+
+    @Value("${storage.cache.maxObjectSize:100MB}")
+    private DataSize storageCacheMaxObjectSize;
+
+    @Value("${storage.cache.keepOnWrite:false}")
+    private boolean storageCacheKeepOnWrite;
+
+    @Value("${storage.cache.deleteDelay:1m}")
+    private Duration storageCacheDeleteDelay;
+
+    @Value("${storage.memory.maxSize:0}")
+    private DataSize storageMemoryMaxSize;
+
+    @Value("${storage.memory.maxEntrySize:256KB}")
+    private DataSize storageMemoryMaxEntrySize;
+
+    @Value("${uploads.staging.dir:#{systemProperties['java.io.tmpdir']}/fileupload-uploads}")
+    private String uploadStagingDir;
+
+    @Value("${uploads.maxLength:1GB}")
+    private DataSize maxUploadLength;
+
+    @Value("${uploads.workers:4}")
+    private int uploadWorkers;
+
+    @Value("${uploads.queueCapacity:100}")
+    private int uploadQueueCapacity;
+
+    @Value("${transform.cache.dir:#{systemProperties['java.io.tmpdir']}/fileupload-transforms}")
+    private String transformCacheDir;
+
+    @Value("${transform.cache.maxSize:1GB}")
+    private DataSize transformCacheMaxSize;
+
+    @Value("${variants.workers:#{T(java.lang.Runtime).getRuntime().availableProcessors()}}")
+    private int variantWorkers;
+
+    @Value("${variants.queueCapacity:100}")
+    private int variantQueueCapacity;
+
     @Bean
-    public FileStorageService imageStorageService() {
-        return storageDir.map(dir -> (FileStorageService) new LocalStorageService(dir, fileFactory()))
-                .orElseGet(() -> new S3FileStorageService(s3client(awsConfig), awsConfig.getBucket()));
+    public FileStorageService imageStorageService(MeterRegistry meterRegistry) throws IOException {
+        FileStorageService storage = storage(meterRegistry);
+        if (storageMemoryMaxSize.toBytes() == 0) {
+            return storage;
+        }
+        return new MemoryCachedStorageService(
+                storage,
+                new OffHeapCache(
+                        storageMemoryMaxSize.toBytes(),
+                        (int) storageMemoryMaxEntrySize.toBytes(),
+                        meterRegistry));
+    }
+
+    private FileStorageService storage(MeterRegistry meterRegistry) throws IOException {
+        if (storageDir.isPresent()) {
+            return new LocalStorageService(
+                    Arrays.stream(storageDir.get().split(",")).map(String::trim).collect(Collectors.toList()),
+                    storageShardDepth,
+                    fileFactory());
+        }
+
+        AmazonS3 s3client = s3client(awsConfig);
+        FileStorageService s3storage = new S3FileStorageService(
+                s3client,
+                awsConfig.getBucket(),
+                awsConfig.getDownloadMode(),
+                awsConfig.getPresignedUrlExpiration(),
+                awsConfig.getUploadMode() == S3FileStorageService.UploadMode.multipart
+                        ? s3MultipartUploader(s3client, awsConfig)
+                        : null);
+        if (storageCacheMaxSize.toBytes() == 0) {
+            return s3storage;
+        }
+        return new TieredStorageService(
+                s3storage,
+                Path.of(storageCacheDir),
+                storageCacheMaxSize.toBytes(),
+                storageCacheMaxObjectSize.toBytes(),
+                storageCacheKeepOnWrite,
+                storageCacheDeleteDelay,
+                meterRegistry);
+    }
+
+    @Bean
+    public UploadStaging uploadStaging() {
+        return new UploadStaging(Path.of(uploadStagingDir), maxUploadLength.toBytes());
+    }
+
+    @Bean
+    public TransformCache transformCache() throws IOException {
+        return new TransformCache(Path.of(transformCacheDir), transformCacheMaxSize.toBytes());
+    }
+
+    /**
+     * Pushes staged uploads to storage in async upload mode. When the queue is full the submitting
+     * request thread stores the file itself, and pending work is drained on shutdown.
+     */
+    @Bean
+    public ThreadPoolTaskExecutor uploadExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix("upload-");
+        executor.setCorePoolSize(uploadWorkers);
+        executor.setMaxPoolSize(uploadWorkers);
+        executor.setQueueCapacity(uploadQueueCapacity);
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        executor.setAwaitTerminationSeconds(60);
+        return executor;
+    }
+
+    /**
+     * Generates image variants; resizing is CPU bound, so there is a worker per core by default.
+     * Submissions are rejected when the queue is full, and queued work is dropped on shutdown.
+     */
+    @Bean
+    public ThreadPoolTaskExecutor variantExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix("variant-");
+        executor.setCorePoolSize(variantWorkers);
+        executor.setMaxPoolSize(variantWorkers);
+        executor.setQueueCapacity(variantQueueCapacity);
+        return executor;
     }
 
     public FileFactory fileFactory() {
@@ -42,9 +188,27 @@ public class StorageConfig {
     public AmazonS3 s3client(AwsConfig config) {
         AWSCredentialsProvider credentials = new AWSStaticCredentialsProvider(
                 new BasicAWSCredentials(config.getAccessKey(), config.getSecretKey()));
+        ClientConfiguration clientConfiguration = new ClientConfiguration()
+                .withMaxConnections(Math.max(ClientConfiguration.DEFAULT_MAX_CONNECTIONS, 2 * config.getUploadThreads()))
+                .withMaxErrorRetry(config.getMaxErrorRetry());
         return AmazonS3ClientBuilder.standard()
                 .withRegion(Regions.fromName(config.getRegion()))
                 .withCredentials(credentials)
+                .withClientConfiguration(clientConfiguration)
                 .build();
     }
+
+    public S3MultipartUploader s3MultipartUploader(AmazonS3 s3client, AwsConfig config) {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("s3-upload-");
+        threadFactory.setDaemon(true);
+        return new S3MultipartUploader(
+                TransferManagerBuilder.standard()
+                        .withS3Client(s3client)
+                        .withExecutorFactory(() -> Executors.newFixedThreadPool(config.getUploadThreads(), threadFactory))
+                        .withMultipartUploadThreshold(config.getMultipartThreshold().toBytes())
+                        .withMinimumUploadPartSize(config.getMultipartPartSize().toBytes())
+                        .build(),
+                config.getMultipartThreshold().toBytes(),
+                Math.max(1, config.getUploadThreads() / 2));
+    }
 }
@@ -5,8 +5,10 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.HttpMethod;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
+import org.springframework.security.config.annotation.web.builders.WebSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
+import org.springframework.security.config.http.SessionCreationPolicy;
 import org.springframework.security.web.authentication.www.BasicAuthenticationFilter;
 import rcs.auth.api.AuthenticationFilter;
 
@@ -20,26 +22,44 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
     @Autowired
     private AuthenticationFilter authenticationFilter;
 
+    /**
+     * Public reads skip Spring Security altogether: they get their own empty filter chain, so no
+     * authentication, session lookup or security context is done for them
+     */
+    @Override
+    public void configure(WebSecurity web) {
+        web.ignoring()
+                .antMatchers(HttpMethod.GET, "/api/files", "/api/files/{name}")
+                .antMatchers(HttpMethod.GET, "/api/files/{name}/record", "/api/files/{name}/events");
+    }
+
     @Override
     protected void configure(HttpSecurity http) throws Exception {
         http.csrf()
                 .disable()
                 .exceptionHandling()
                 .and()
+                .sessionManagement()
+                .sessionCreationPolicy(SessionCreationPolicy.STATELESS)
+                .and()
                 .authorizeRequests()
 
-                .antMatchers(HttpMethod.GET, "/api/files")
-                .permitAll()
-
-                .antMatchers(HttpMethod.GET, "/api/files/{name}")
-                .permitAll()
+                .antMatchers(HttpMethod.POST, "/api/files", "/api/files/batch", "/api/files/delete")
+                .access("@endpointSecurity.isLoggedIn(request)")
 
-                .antMatchers(HttpMethod.POST, "/api/files")
+                // bulk deletes are authorized per file, against the records they read
+                .antMatchers(HttpMethod.DELETE, "/api/files")
                 .access("@endpointSecurity.isLoggedIn(request)")
 
                 .antMatchers(HttpMethod.DELETE, "/api/files/{name}")
                 .access("@endpointSecurity.canDeleteFile(request, #name)")
 
+                .antMatchers(HttpMethod.POST, "/api/uploads")
+                .access("@endpointSecurity.isLoggedIn(request)")
+
+                .antMatchers("/api/uploads/{name}")
+                .access("@endpointSecurity.isUploader(request, #name)")
+
                 .and()
                 .addFilterBefore(authenticationFilter, BasicAuthenticationFilter.class)
                 .formLogin()
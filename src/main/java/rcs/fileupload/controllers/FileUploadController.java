@@ -1,22 +1,62 @@
 package rcs.fileupload.controllers;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import rcs.fileupload.controllers.utils.Sendfile;
+import rcs.fileupload.models.FileDeleteSummary;
 import rcs.fileupload.models.FileUploadRecord;
+import rcs.fileupload.models.FileUploadRecordsFilter;
+import rcs.fileupload.models.FileUploadRecordsPage;
+import rcs.fileupload.models.FileUploadResult;
 import rcs.fileupload.services.FileUploadService;
+import rcs.fileupload.services.ImageTransformService;
+import rcs.fileupload.services.ImageTransformation;
+import rcs.fileupload.services.ImageVariantService;
+import rcs.fileupload.services.MeteredResource;
+import rcs.fileupload.services.StagedUpload;
+import rcs.fileupload.services.exceptions.FileNotFoundException;
+import rcs.fileupload.services.exceptions.InvalidDeleteException;
+import rcs.fileupload.services.exceptions.InvalidTransformationException;
+import rcs.fileupload.services.exceptions.InvalidUploadException;
 import lombok.SneakyThrows;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadBase;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.Resource;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
-import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+import org.springframework.util.unit.DataSize;
 import rcs.auth.api.AuthUtils;
+import rcs.auth.api.models.AuthenticatedUser;
 
 import javax.activation.MimetypesFileTypeMap;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
 
 @RestController
 @RequestMapping("/api/files")
@@ -24,46 +64,282 @@ public class FileUploadController {
 
     private static final MimetypesFileTypeMap mimeTypesMap = new MimetypesFileTypeMap();
 
+    public static final String nextCursorHeader = "X-Next-Cursor";
+    public static final String ndjson = "application/x-ndjson";
+    public static final String filePart = "file";
+
     private FileUploadService fileUploadService;
+    private ImageTransformService imageTransformService;
     private AuthUtils authUtils;
+    private ObjectWriter exportWriter;
+    private ServletFileUpload multipartParser;
+    private ServletFileUpload batchMultipartParser;
+    private long maxRequestSize;
+    private long maxBatchRequestSize;
+    private int maxBatchFiles;
+    private int maxDeleteFiles;
 
-    public FileUploadController(FileUploadService fileUploadService, AuthUtils authUtils) {
+    public FileUploadController(
+            FileUploadService fileUploadService,
+            ImageTransformService imageTransformService,
+            AuthUtils authUtils,
+            ObjectMapper objectMapper,
+            @Value("${spring.servlet.multipart.max-request-size}") DataSize maxRequestSize,
+            @Value("${uploads.batch.maxRequestSize:100MB}") DataSize maxBatchRequestSize,
+            @Value("${uploads.batch.maxFiles:200}") int maxBatchFiles,
+            @Value("${deletes.batch.maxFiles:1000}") int maxDeleteFiles) {
         this.fileUploadService = fileUploadService;
+        this.imageTransformService = imageTransformService;
         this.authUtils = authUtils;
+        // flushing is left to the servlet output buffer so records go out in socket-sized chunks
+        this.exportWriter = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        // a body without a length is only measured as it is read, so the parsers enforce the limits too
+        this.multipartParser = new ServletFileUpload();
+        this.multipartParser.setHeaderEncoding(StandardCharsets.UTF_8.name());
+        this.multipartParser.setSizeMax(maxRequestSize.toBytes());
+        this.batchMultipartParser = new ServletFileUpload();
+        this.batchMultipartParser.setHeaderEncoding(StandardCharsets.UTF_8.name());
+        this.batchMultipartParser.setSizeMax(maxBatchRequestSize.toBytes());
+        this.maxRequestSize = maxRequestSize.toBytes();
+        this.maxBatchRequestSize = maxBatchRequestSize.toBytes();
+        this.maxBatchFiles = maxBatchFiles;
+        this.maxDeleteFiles = maxDeleteFiles;
     }
 
     @GetMapping
-    public ResponseEntity<List<FileUploadRecord>> getFiles() {
-        List<FileUploadRecord> files = fileUploadService.getFiles();
-        return ResponseEntity.ok()
-                .contentType(MediaType.APPLICATION_JSON)
-                .body(files);
+    public ResponseEntity<List<FileUploadRecord>> getFiles(
+            @RequestParam(required = false) String username,
+            @RequestParam(required = false) String type,
+            @RequestParam(required = false) FileUploadRecord.UploadStatus status,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "100") int limit) {
+        FileUploadRecordsPage page = fileUploadService.getFiles(
+                new FileUploadRecordsFilter(username, type, status), cursor, limit);
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON);
+        if (page.getNextCursor() != null) {
+            response.header(nextCursorHeader, page.getNextCursor());
+        }
+        return response.body(page.getRecords());
+    }
+
+    /**
+     * Writes every matching record as newline-delimited JSON while it is read from the database cursor,
+     * so memory use doesn't depend on the size of the catalog
+     */
+    @GetMapping(produces = ndjson)
+    public void exportFiles(
+            @RequestParam(required = false) String username,
+            @RequestParam(required = false) String type,
+            @RequestParam(required = false) FileUploadRecord.UploadStatus status,
+            HttpServletResponse response) throws IOException {
+        response.setContentType(ndjson);
+        try (Stream<FileUploadRecord> records = fileUploadService.streamFiles(
+                     new FileUploadRecordsFilter(username, type, status));
+             JsonGenerator generator = exportWriter.getFactory().createGenerator(response.getOutputStream())) {
+            generator.setRootValueSeparator(null);
+            Iterator<FileUploadRecord> iterator = records.iterator();
+            boolean first = true;
+            while (iterator.hasNext()) {
+                exportWriter.writeValue(generator, iterator.next());
+                generator.writeRaw('\n');
+                if (first) {
+                    // send the headers and first record right away
+                    generator.flush();
+                    first = false;
+                }
+            }
+        }
     }
 
+    /**
+     * Validators are checked against the record looked up here before touching storage, so revalidations are
+     * answered without reading the file; they are only sent for succeeded uploads. When storage offloads downloads, clients are redirected to it. Local files
+     * are handed to the container's sendfile when it supports it, anything else (and multi-range requests)
+     * goes through Spring's Resource handling, which serves range requests as 206 responses.
+     * Images can be requested resized with one of the configured sizes, or transformed on the fly.
+     */
     @GetMapping("/{name}")
-    public ResponseEntity<Resource> getFile(@PathVariable String name) throws IOException {
-        Resource resource = fileUploadService.getFile(name);
-        String contentType = mimeTypesMap.getContentType(resource.getFilename());
+    public ResponseEntity<Resource> getFile(
+            @PathVariable String name,
+            @RequestParam(required = false) String size,
+            @RequestParam(required = false) Integer width,
+            @RequestParam(required = false) Integer height,
+            @RequestParam(required = false) String crop,
+            @RequestParam(required = false) String format,
+            @RequestParam(required = false) Integer quality,
+            ServletWebRequest request) throws IOException {
+        Optional<FileUploadRecord> record = fileUploadService.getFileRecord(name);
+        Optional<ImageTransformation> transformation = record.flatMap(found -> imageTransformService.getTransformation(
+                found.getType(), width, height, crop, format, quality));
+        if (transformation.isPresent() && size != null) {
+            throw new InvalidTransformationException("size can't be combined with other transformations");
+        }
+        String key = fileUploadService.getFileKey(name, record, size);
+        boolean variant = size != null && key.equals(ImageVariantService.getKey(name, size));
+        // only a succeeded upload has settled content to validate against
+        Optional<FileUploadRecord> succeeded = record
+                .filter(found -> FileUploadRecord.UploadStatus.succeeded.equals(found.getUploadStatus()));
+        String eTag = succeeded.map(FileUploadRecord::getContentHash)
+                .map(hash -> "\"" + hash
+                        + (variant ? "-" + size : "")
+                        + transformation.map(applied -> "-" + applied.getId()).orElse("")
+                        + "\"")
+                .orElse(null);
+        long lastModified = succeeded.map(FileUploadRecord::getDateUploaded)
+                .map(date -> date.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli())
+                .orElse(-1L);
+
+        // also sets the ETag and Last-Modified response headers
+        if (request.checkNotModified(eTag, lastModified)) {
+            return null;
+        }
+
+        if (transformation.isPresent()) {
+            if (succeeded.isEmpty()) {
+                throw new FileNotFoundException(name);
+            }
+            return ResponseEntity.ok()
+                    .contentType(MediaType.parseMediaType(transformation.get().getType()))
+                    .body(imageTransformService.transform(record.get(), transformation.get()));
+        }
+
+        Optional<URL> redirectUrl = fileUploadService.getFileRedirectUrl(key);
+        if (redirectUrl.isPresent()) {
+            if (record.isEmpty()) {
+                throw new FileNotFoundException(name);
+            }
+            return ResponseEntity.status(HttpStatus.FOUND)
+                    .location(getUri(redirectUrl.get().toString()))
+                    .build();
+        }
+
+        Resource resource = fileUploadService.getFile(key);
+        if (resource instanceof Closeable) {
+            // after the response is written, whether or not its body was read
+            RequestContextHolder.currentRequestAttributes().registerDestructionCallback(
+                    Closeable.class.getName(), () -> closeQuietly((Closeable) resource), RequestAttributes.SCOPE_REQUEST);
+        }
+        // variants and shared content are encoded like the upload, but their keys have no file extension
+        MediaType contentType = MediaType.parseMediaType(key.equals(name)
+                ? mimeTypesMap.getContentType(resource.getFilename())
+                : record.get().getType());
+
+        if (resource.isFile()) {
+            Optional<ResponseEntity<Resource>> sendfileResponse =
+                    Sendfile.tryPrepare(request.getRequest(), resource.getFile(), contentType);
+            if (sendfileResponse.isPresent()) {
+                // the container writes the body from the file, so it never goes through the resource's stream
+                if (resource instanceof MeteredResource && !HttpMethod.HEAD.matches(request.getRequest().getMethod())) {
+                    ((MeteredResource) resource).served(sendfileResponse.get().getHeaders().getContentLength());
+                }
+                return sendfileResponse.get();
+            }
+        }
+
         return ResponseEntity.ok()
-                .contentType(MediaType.parseMediaType(contentType))
+                .contentType(contentType)
                 .body(resource);
     }
 
+    /**
+     * Parses the multipart body as a stream and pipes the file part straight into storage,
+     * so the upload is neither buffered in memory nor spooled to a temp file by the container
+     */
     @PostMapping
-    public ResponseEntity<FileUploadRecord> uploadFile(
-            @RequestParam("file") MultipartFile file,
-            HttpServletRequest request) {
-        return authUtils.tryGetLoggedInUser(request)
-                .map(user -> fileUploadService.uploadFile(user, file, LocalDateTime.now()))
-                .map(record -> {
-                    boolean created = record.getUploadStatus().equals(FileUploadRecord.UploadStatus.succeeded);
-                    return (created
-                            ? ResponseEntity.created(getUri(record.getUrl()))
-                            : ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR))
-                            .contentType(MediaType.APPLICATION_JSON)
-                            .body(record);
-                })
-                .orElse(ResponseEntity.status(HttpStatus.UNAUTHORIZED).build());
+    public ResponseEntity<FileUploadRecord> uploadFile(HttpServletRequest request) throws IOException {
+        Optional<AuthenticatedUser> user = authUtils.tryGetLoggedInUser(request);
+        if (user.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+        }
+        if (!ServletFileUpload.isMultipartContent(request)) {
+            throw new InvalidUploadException("Expected a multipart/form-data request");
+        }
+        if (request.getContentLengthLong() > maxRequestSize) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).build();
+        }
+
+        try {
+            FileItemIterator parts = multipartParser.getItemIterator(request);
+            while (parts.hasNext()) {
+                FileItemStream part = parts.next();
+                if (!part.isFormField() && filePart.equals(part.getFieldName())) {
+                    try (InputStream content = part.openStream()) {
+                        FileUploadRecord record = fileUploadService.uploadFile(
+                                user.get(), part.getName(), part.getContentType(), content, LocalDateTime.now());
+                        return toResponse(record)
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .body(record);
+                    }
+                }
+            }
+        } catch (FileUploadBase.SizeLimitExceededException e) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).build();
+        } catch (FileUploadException e) {
+            throw new InvalidUploadException(e.getMessage());
+        } catch (FileUploadBase.FileUploadIOException e) {
+            // the limit was exceeded while a part was being read
+            if (e.getCause() instanceof FileUploadBase.SizeLimitExceededException) {
+                return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).build();
+            }
+            throw e;
+        }
+
+        throw new InvalidUploadException("Missing the " + filePart + " part");
+    }
+
+    /**
+     * Uploads every file part of the request. Parts arrive one after the other, so each is staged as it is read;
+     * the files are then uploaded together, see {@link FileUploadService#uploadFiles}.
+     * Files are accepted or rejected one by one, so the response lists the status of each.
+     */
+    @PostMapping("/batch")
+    public ResponseEntity<List<FileUploadResult>> uploadFiles(HttpServletRequest request) throws IOException {
+        Optional<AuthenticatedUser> user = authUtils.tryGetLoggedInUser(request);
+        if (user.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+        }
+        if (!ServletFileUpload.isMultipartContent(request)) {
+            throw new InvalidUploadException("Expected a multipart/form-data request");
+        }
+        if (request.getContentLengthLong() > maxBatchRequestSize) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).build();
+        }
+
+        List<StagedUpload> staged = new ArrayList<>();
+        try {
+            FileItemIterator parts = batchMultipartParser.getItemIterator(request);
+            while (parts.hasNext()) {
+                FileItemStream part = parts.next();
+                if (part.isFormField() || !filePart.equals(part.getFieldName())) {
+                    continue;
+                }
+                if (staged.size() == maxBatchFiles) {
+                    throw new InvalidUploadException("A batch can't have more than " + maxBatchFiles + " files");
+                }
+                try (InputStream content = part.openStream()) {
+                    staged.add(fileUploadService.stageBatchFile(part.getName(), part.getContentType(), content));
+                }
+            }
+            if (staged.isEmpty()) {
+                throw new InvalidUploadException("Missing the " + filePart + " parts");
+            }
+            return ResponseEntity.ok()
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .body(fileUploadService.uploadFiles(user.get(), staged, LocalDateTime.now()));
+        } catch (FileUploadBase.SizeLimitExceededException e) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).build();
+        } catch (FileUploadException e) {
+            throw new InvalidUploadException(e.getMessage());
+        } catch (FileUploadBase.FileUploadIOException e) {
+            // the limit was exceeded while a part was being read
+            if (e.getCause() instanceof FileUploadBase.SizeLimitExceededException) {
+                return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).build();
+            }
+            throw e;
+        } finally {
+            fileUploadService.discardStaged(staged);
+        }
     }
 
     @DeleteMapping("/{name}")
@@ -73,8 +349,80 @@ public class FileUploadController {
                 .build();
     }
 
+    /**
+     * Deletes the named files that the user may delete: their own, or any file for an admin.
+     * Files are deleted or rejected one by one, so the response lists the status of each.
+     */
+    @PostMapping("/delete")
+    public ResponseEntity<List<FileUploadResult>> deleteFiles(
+            @RequestBody List<String> names,
+            HttpServletRequest request) {
+        Optional<AuthenticatedUser> user = authUtils.tryGetLoggedInUser(request);
+        if (user.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+        }
+        if (names.isEmpty() || names.size() > maxDeleteFiles) {
+            throw new InvalidDeleteException("Expected between 1 and " + maxDeleteFiles + " names");
+        }
+        String owner = authUtils.isAdmin(user.get()) ? null : user.get().getUsername();
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(fileUploadService.deleteFiles(names, owner));
+    }
+
+    /**
+     * Deletes the files of a user whose name starts with the prefix, as many per call as a bulk delete by name.
+     * Users may only delete their own files, which is the default; an admin must give a user, a prefix or both.
+     */
+    @DeleteMapping
+    public ResponseEntity<FileDeleteSummary> deleteFilesOf(
+            @RequestParam(required = false) String username,
+            @RequestParam(required = false) String prefix,
+            HttpServletRequest request) {
+        Optional<AuthenticatedUser> user = authUtils.tryGetLoggedInUser(request);
+        if (user.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+        }
+        prefix = prefix == null || prefix.isEmpty() ? null : prefix;
+        if (!authUtils.isAdmin(user.get())) {
+            if (username != null && !username.equals(user.get().getUsername())) {
+                return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+            }
+            username = user.get().getUsername();
+        } else if (username == null && prefix == null) {
+            throw new InvalidDeleteException("Expected the username or the prefix of the files to delete");
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(fileUploadService.deleteFilesOf(username, prefix, maxDeleteFiles));
+    }
+
+    private ResponseEntity.BodyBuilder toResponse(FileUploadRecord record) {
+        switch (record.getUploadStatus()) {
+            case succeeded:
+                return ResponseEntity.created(getUri(record.getUrl()));
+            case pending:
+                // stored asynchronously, the client can follow the record until it is done
+                return ResponseEntity.accepted()
+                        .location(ServletUriComponentsBuilder.fromCurrentContextPath()
+                                .path("/api/files/{name}/record")
+                                .buildAndExpand(record.getName())
+                                .toUri());
+            default:
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
     @SneakyThrows
     private URI getUri(String url) {
         return new URI(url);
     }
+
+    private static void closeQuietly(Closeable resource) {
+        try {
+            resource.close();
+        } catch (IOException e) {
+            // the response is already written
+        }
+    }
 }
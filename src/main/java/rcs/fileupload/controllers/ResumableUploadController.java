@@ -0,0 +1,125 @@
+package rcs.fileupload.controllers;
+
+import rcs.fileupload.models.FileUploadRecord;
+import rcs.fileupload.services.FileUploadService;
+import rcs.fileupload.services.exceptions.FileNotFoundException;
+import lombok.SneakyThrows;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+import rcs.auth.api.AuthUtils;
+import rcs.auth.api.models.AuthenticatedUser;
+
+import javax.activation.MimetypesFileTypeMap;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.net.URI;
+import java.time.LocalDateTime;
+import java.util.Optional;
+
+/**
+ * Resumable uploads in the style of tus: create an upload with its length, PATCH chunks at the current offset
+ * (HEAD tells where to resume from after a failure), and the file is stored once the last chunk arrives
+ */
+@RestController
+@RequestMapping("/api/uploads")
+public class ResumableUploadController {
+
+    private static final MimetypesFileTypeMap mimeTypesMap = new MimetypesFileTypeMap();
+
+    public static final String uploadLengthHeader = "Upload-Length";
+    public static final String uploadOffsetHeader = "Upload-Offset";
+    public static final String offsetOctetStream = "application/offset+octet-stream";
+
+    private FileUploadService fileUploadService;
+    private AuthUtils authUtils;
+
+    public ResumableUploadController(FileUploadService fileUploadService, AuthUtils authUtils) {
+        this.fileUploadService = fileUploadService;
+        this.authUtils = authUtils;
+    }
+
+    @PostMapping
+    public ResponseEntity<FileUploadRecord> createUpload(
+            @RequestParam String name,
+            @RequestParam(required = false) String type,
+            @RequestHeader(uploadLengthHeader) long length,
+            HttpServletRequest request) throws IOException {
+        Optional<AuthenticatedUser> user = authUtils.tryGetLoggedInUser(request);
+        if (user.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+        }
+
+        FileUploadRecord record = fileUploadService.createUpload(
+                user.get(),
+                name,
+                type != null ? type : mimeTypesMap.getContentType(name),
+                length,
+                LocalDateTime.now());
+        URI location = ServletUriComponentsBuilder.fromCurrentRequestUri()
+                .path("/{name}")
+                .buildAndExpand(name)
+                .toUri();
+        return toResponse(record, ResponseEntity.created(location));
+    }
+
+    @RequestMapping(path = "/{name}", method = RequestMethod.HEAD)
+    public ResponseEntity<Void> getUploadOffset(@PathVariable String name) throws IOException {
+        FileUploadRecord record = fileUploadService.getUpload(name)
+                .orElseThrow(() -> new FileNotFoundException(name));
+        return ResponseEntity.ok()
+                .cacheControl(CacheControl.noStore())
+                .header(uploadOffsetHeader, String.valueOf(record.getUploadOffset()))
+                .header(uploadLengthHeader, String.valueOf(record.getSize()))
+                .build();
+    }
+
+    @PatchMapping(path = "/{name}", consumes = offsetOctetStream)
+    public ResponseEntity<FileUploadRecord> appendToUpload(
+            @PathVariable String name,
+            @RequestHeader(uploadOffsetHeader) long offset,
+            @RequestHeader(HttpHeaders.CONTENT_LENGTH) long contentLength,
+            HttpServletRequest request) throws IOException {
+        FileUploadRecord record = fileUploadService.appendToUpload(
+                name, offset, contentLength, request.getInputStream());
+        return toResponse(record, ResponseEntity.ok());
+    }
+
+    @DeleteMapping("/{name}")
+    public ResponseEntity<Void> cancelUpload(@PathVariable String name) throws IOException {
+        fileUploadService.cancelUpload(name);
+        return ResponseEntity.status(HttpStatus.NO_CONTENT)
+                .build();
+    }
+
+    private ResponseEntity<FileUploadRecord> toResponse(FileUploadRecord record, ResponseEntity.BodyBuilder inProgress) {
+        ResponseEntity.BodyBuilder response;
+        switch (record.getUploadStatus()) {
+            case succeeded:
+                response = ResponseEntity.created(getUri(record.getUrl()));
+                break;
+            case failed:
+                response = ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR);
+                break;
+            default:
+                boolean received = record.getUploadOffset() != null && record.getUploadOffset().equals(record.getSize());
+                // every byte is in and the file is being stored asynchronously
+                response = received ? ResponseEntity.accepted() : inProgress;
+        }
+        if (record.getUploadOffset() != null) {
+            response.header(uploadOffsetHeader, String.valueOf(record.getUploadOffset()));
+        }
+        return response
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(record);
+    }
+
+    @SneakyThrows
+    private URI getUri(String url) {
+        return new URI(url);
+    }
+}
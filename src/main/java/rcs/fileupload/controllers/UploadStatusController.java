@@ -0,0 +1,171 @@
+package rcs.fileupload.controllers;
+
+import rcs.fileupload.models.FileUploadRecord;
+import rcs.fileupload.services.FileUploadService;
+import rcs.fileupload.services.UploadStatusChangedEvent;
+import rcs.fileupload.services.exceptions.FileNotFoundException;
+import rcs.fileupload.services.exceptions.TooManySubscribersException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.CacheControl;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lets clients follow an upload until it leaves the pending state, either by polling its record
+ * or by subscribing to a stream of server-sent events. Status changes made on this instance are sent
+ * right away; uploads stored by other instances are caught by polling the subscribed records.
+ * Streams are open to anyone, so their number is capped per upload and in total.
+ */
+@RestController
+@RequestMapping("/api/files/{name}")
+public class UploadStatusController {
+
+    public static final String statusEvent = "status";
+
+    private final Map<String, Set<SseEmitter>> subscribers = new ConcurrentHashMap<>();
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+
+    private FileUploadService fileUploadService;
+    private long eventsTimeout;
+    private int maxSubscribers;
+    private int maxSubscribersPerUpload;
+
+    public UploadStatusController(
+            FileUploadService fileUploadService,
+            @Value("${uploads.events.timeout:5m}") Duration eventsTimeout,
+            @Value("${uploads.events.maxSubscribers:10000}") int maxSubscribers,
+            @Value("${uploads.events.maxSubscribersPerUpload:100}") int maxSubscribersPerUpload) {
+        this.fileUploadService = fileUploadService;
+        this.eventsTimeout = eventsTimeout.toMillis();
+        this.maxSubscribers = maxSubscribers;
+        this.maxSubscribersPerUpload = maxSubscribersPerUpload;
+    }
+
+    @GetMapping("/record")
+    public ResponseEntity<FileUploadRecord> getRecord(@PathVariable String name) throws FileNotFoundException {
+        FileUploadRecord record = fileUploadService.getFileRecordWithUrl(name)
+                .orElseThrow(() -> new FileNotFoundException(name));
+        return ResponseEntity.ok()
+                .cacheControl(CacheControl.noCache())
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(record);
+    }
+
+    /**
+     * Sends the current record right away, then the final one when the upload completes.
+     * Answers 503 once too many streams are open.
+     */
+    @GetMapping(path = "/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamStatus(@PathVariable String name) throws FileNotFoundException {
+        SseEmitter emitter = new SseEmitter(eventsTimeout);
+
+        // subscribe before reading the record so a status change in between isn't missed
+        subscribe(name, emitter);
+        emitter.onCompletion(() -> unsubscribe(name, emitter));
+        emitter.onTimeout(() -> unsubscribe(name, emitter));
+
+        FileUploadRecord record = fileUploadService.getFileRecordWithUrl(name).orElse(null);
+        if (record == null) {
+            unsubscribe(name, emitter);
+            throw new FileNotFoundException(name);
+        }
+
+        send(emitter, record);
+        if (record.getUploadStatus() != FileUploadRecord.UploadStatus.pending) {
+            unsubscribe(name, emitter);
+            emitter.complete();
+        }
+        return emitter;
+    }
+
+    @EventListener
+    public void onStatusChanged(UploadStatusChangedEvent event) {
+        FileUploadRecord record = event.getRecord();
+        unsubscribeAll(record.getName()).forEach(emitter -> {
+            send(emitter, record);
+            emitter.complete();
+        });
+    }
+
+    /**
+     * Reads every subscribed record in one query; those no longer pending are sent, and streams of uploads
+     * that were deleted are closed
+     */
+    @Scheduled(fixedDelayString = "${uploads.events.pollInterval:PT2S}")
+    public void pollSubscribed() {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        Set<String> names = Set.copyOf(subscribers.keySet());
+        Set<String> found = new HashSet<>();
+        for (FileUploadRecord record : fileUploadService.getFileRecords(names)) {
+            found.add(record.getName());
+            if (record.getUploadStatus() != FileUploadRecord.UploadStatus.pending) {
+                onStatusChanged(new UploadStatusChangedEvent(record));
+            }
+        }
+        names.stream()
+                .filter(name -> !found.contains(name))
+                .forEach(name -> unsubscribeAll(name).forEach(SseEmitter::complete));
+    }
+
+    private void subscribe(String name, SseEmitter emitter) {
+        if (subscriberCount.incrementAndGet() > maxSubscribers) {
+            subscriberCount.decrementAndGet();
+            throw new TooManySubscribersException(name);
+        }
+        subscribers.compute(name, (key, emitters) -> {
+            Set<SseEmitter> subscribed = emitters != null ? emitters : ConcurrentHashMap.newKeySet();
+            if (subscribed.size() >= maxSubscribersPerUpload) {
+                subscriberCount.decrementAndGet();
+                throw new TooManySubscribersException(name);
+            }
+            subscribed.add(emitter);
+            return subscribed;
+        });
+    }
+
+    private void unsubscribe(String name, SseEmitter emitter) {
+        subscribers.computeIfPresent(name, (key, emitters) -> {
+            if (emitters.remove(emitter)) {
+                subscriberCount.decrementAndGet();
+            }
+            return emitters.isEmpty() ? null : emitters;
+        });
+    }
+
+    private Set<SseEmitter> unsubscribeAll(String name) {
+        Set<SseEmitter> emitters = subscribers.remove(name);
+        if (emitters == null) {
+            return Set.of();
+        }
+        subscriberCount.addAndGet(-emitters.size());
+        return emitters;
+    }
+
+    private static void send(SseEmitter emitter, FileUploadRecord record) {
+        try {
+            emitter.send(SseEmitter.event()
+                    .name(statusEvent)
+                    .data(record, MediaType.APPLICATION_JSON));
+        } catch (IOException | IllegalStateException e) {
+            // the client went away or the emitter was already completed by a concurrent status change
+            emitter.completeWithError(e);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package rcs.fileupload.controllers.utils;
+
+import org.apache.catalina.connector.CoyoteOutputStream;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.server.ServletServerHttpResponse;
+import rcs.fileupload.services.OffHeapResource;
+
+import javax.servlet.ServletResponse;
+import javax.servlet.ServletResponseWrapper;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes files cached in direct memory by handing their buffers to Tomcat's output stream, so serving them
+ * doesn't copy the content into heap arrays first. On other containers the content goes through a
+ * regular channel over the response stream. Range requests are still served by Spring's Resource handling.
+ */
+public class OffHeapResourceHttpMessageConverter extends AbstractHttpMessageConverter<OffHeapResource> {
+
+    public OffHeapResourceHttpMessageConverter() {
+        super(MediaType.ALL);
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return OffHeapResource.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    public boolean canRead(Class<?> clazz, MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected OffHeapResource readInternal(Class<? extends OffHeapResource> clazz, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("Cached files can't be read from requests", inputMessage);
+    }
+
+    @Override
+    protected Long getContentLength(OffHeapResource resource, MediaType contentType) throws IOException {
+        return resource.contentLength();
+    }
+
+    @Override
+    protected void writeInternal(OffHeapResource resource, HttpOutputMessage outputMessage) throws IOException {
+        OutputStream body = outputMessage.getBody();
+        if (outputMessage instanceof ServletServerHttpResponse) {
+            ServletResponse response = ((ServletServerHttpResponse) outputMessage).getServletResponse();
+            Object containerStream = unwrap(response).getOutputStream();
+            if (containerStream instanceof CoyoteOutputStream) {
+                // filters may wrap the response to act on commit, so it is committed through them first
+                response.flushBuffer();
+                resource.writeTo(new CoyoteChannel((CoyoteOutputStream) containerStream));
+                return;
+            }
+        }
+        resource.writeTo(Channels.newChannel(body));
+    }
+
+    private static ServletResponse unwrap(ServletResponse response) {
+        while (response instanceof ServletResponseWrapper) {
+            response = ((ServletResponseWrapper) response).getResponse();
+        }
+        return response;
+    }
+
+    private static class CoyoteChannel implements WritableByteChannel {
+
+        private final CoyoteOutputStream out;
+        private boolean open = true;
+
+        CoyoteChannel(CoyoteOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            // blocks until the container has taken all of it
+            int length = source.remaining();
+            out.write(source);
+            source.position(source.limit());
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package rcs.fileupload.controllers.utils;
+
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.File;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Hands local files to the servlet container's sendfile support (Tomcat NIO/NIO2/APR connectors),
+ * which moves the bytes from the page cache to the socket with FileChannel.transferTo after the
+ * handler returns, instead of copying them through a heap buffer.
+ */
+public final class Sendfile {
+
+    static final String supportAttribute = "org.apache.tomcat.sendfile.support";
+    static final String filenameAttribute = "org.apache.tomcat.sendfile.filename";
+    static final String startAttribute = "org.apache.tomcat.sendfile.start";
+    static final String endAttribute = "org.apache.tomcat.sendfile.end";
+
+    private Sendfile() { }
+
+    public static boolean isSupported(HttpServletRequest request) {
+        return Boolean.TRUE.equals(request.getAttribute(supportAttribute));
+    }
+
+    /**
+     * @return a response without a body, which the container fills in from the file;
+     * empty if the container can't send the file or the request has to go through the regular
+     * Resource handling (multiple or unsatisfiable ranges)
+     */
+    public static Optional<ResponseEntity<Resource>> tryPrepare(
+            HttpServletRequest request,
+            File file,
+            MediaType contentType) {
+
+        if (!isSupported(request)) {
+            return Optional.empty();
+        }
+
+        List<HttpRange> ranges;
+        try {
+            ranges = HttpRange.parseRanges(request.getHeader(HttpHeaders.RANGE));
+        } catch (IllegalArgumentException e) {
+            return Optional.empty();
+        }
+        if (ranges.size() > 1) {
+            return Optional.empty();
+        }
+
+        long length = file.length();
+        long start = 0;
+        long end = length; // exclusive
+        ResponseEntity.BodyBuilder response;
+        if (ranges.isEmpty()) {
+            response = ResponseEntity.ok();
+        } else {
+            HttpRange range = ranges.get(0);
+            start = range.getRangeStart(length);
+            if (start >= length) {
+                return Optional.empty();
+            }
+            end = Math.min(range.getRangeEnd(length), length - 1) + 1;
+            response = ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                    .header(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + (end - 1) + "/" + length);
+        }
+
+        if (!HttpMethod.HEAD.matches(request.getMethod())) {
+            request.setAttribute(filenameAttribute, file.getAbsolutePath());
+            request.setAttribute(startAttribute, start);
+            request.setAttribute(endAttribute, end);
+        }
+
+        return Optional.of(response
+                .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                .contentType(contentType)
+                .contentLength(end - start)
+                .build());
+    }
+}
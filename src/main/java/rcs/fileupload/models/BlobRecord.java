@@ -0,0 +1,40 @@
+package rcs.fileupload.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+
+import java.time.LocalDateTime;
+
+/**
+ * Content stored once under its hash and shared by every upload with the same bytes
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+public class BlobRecord {
+
+    public static final class Fields {
+        public static final String hash = "hash";
+        public static final String size = "size";
+        public static final String refCount = "refCount";
+        public static final String status = "status";
+        public static final String dateModified = "dateModified";
+    }
+
+    public enum BlobStatus {
+        pending, // referenced, but not known to be written yet
+        stored,
+        deleting // no references left, new references wait until the content is gone
+    }
+
+    @Id
+    private String hash;
+    private Long size;
+    private int refCount;
+    private BlobStatus status;
+    private LocalDateTime dateModified;
+}
@@ -0,0 +1,18 @@
+package rcs.fileupload.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * The outcome of deleting the files of a user, which may be too many to list one by one
+ */
+@Getter
+@AllArgsConstructor
+public class FileDeleteSummary {
+
+    private long deleted;
+    private List<String> failed; // the files that couldn't be deleted and were left in place
+    private boolean more; // whether more files matched than one call deletes
+}
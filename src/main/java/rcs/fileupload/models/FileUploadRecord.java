@@ -1,5 +1,6 @@
 package rcs.fileupload.models;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
@@ -8,6 +9,7 @@ import org.springframework.data.annotation.Id;
 import org.springframework.data.annotation.Transient;
 
 import java.time.LocalDateTime;
+import java.util.List;
 
 @Getter
 @Setter
@@ -17,7 +19,15 @@ public class FileUploadRecord {
 
     public static final class Fields {
         public static final String name = "name";
+        public static final String type = "type";
+        public static final String username = "username";
+        public static final String dateUploaded = "dateUploaded";
         public static final String uploadStatus = "uploadStatus";
+        public static final String size = "size";
+        public static final String contentHash = "contentHash";
+        public static final String uploadOffset = "uploadOffset";
+        public static final String variants = "variants";
+        public static final String blob = "blob";
     }
 
     public enum UploadStatus {
@@ -32,6 +42,31 @@ public class FileUploadRecord {
     private String username;
     private LocalDateTime dateUploaded;
     private UploadStatus uploadStatus;
+    private Long size;
+    private String contentHash; // hex sha-256 of the content, used as the strong ETag
+    private Long uploadOffset; // bytes received so far by a resumable upload, null for one-shot uploads
+    private List<String> variants; // resized image sizes that can be requested with ?size=
+    @JsonIgnore
+    private String blob; // storage key of the shared content in content-addressed mode, null otherwise
     @Transient
     private String url;
+
+    public FileUploadRecord(
+            String name,
+            String type,
+            String username,
+            LocalDateTime dateUploaded,
+            UploadStatus uploadStatus,
+            String url) {
+        this(name, type, username, dateUploaded, uploadStatus, null, null, null, null, null, url);
+    }
+
+    /**
+     * @return the key the content of the upload is stored under
+     */
+    @JsonIgnore
+    @Transient
+    public String getStorageKey() {
+        return blob == null ? name : blob;
+    }
 }
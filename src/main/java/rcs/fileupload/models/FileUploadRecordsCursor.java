@@ -0,0 +1,48 @@
+package rcs.fileupload.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.Optional;
+
+/**
+ * Position of the last record of a page in (dateUploaded desc, name desc) order.
+ * Serialized as an opaque url-safe token so clients don't depend on its structure.
+ */
+@Getter
+@AllArgsConstructor
+public class FileUploadRecordsCursor {
+
+    private static final char separator = '|';
+
+    private LocalDateTime dateUploaded;
+    private String name;
+
+    public static FileUploadRecordsCursor after(FileUploadRecord record) {
+        return new FileUploadRecordsCursor(record.getDateUploaded(), record.getName());
+    }
+
+    public static Optional<FileUploadRecordsCursor> tryDecode(String token) {
+        try {
+            String decoded = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            int separatorIndex = decoded.indexOf(separator);
+            if (separatorIndex < 0) {
+                return Optional.empty();
+            }
+            return Optional.of(new FileUploadRecordsCursor(
+                    LocalDateTime.parse(decoded.substring(0, separatorIndex)),
+                    decoded.substring(separatorIndex + 1)));
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            return Optional.empty();
+        }
+    }
+
+    public String encode() {
+        String raw = dateUploaded.toString() + separator + name;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,18 @@
+package rcs.fileupload.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Optional equality filters for listing records; null fields are ignored
+ */
+@Getter
+@AllArgsConstructor
+public class FileUploadRecordsFilter {
+
+    public static final FileUploadRecordsFilter none = new FileUploadRecordsFilter(null, null, null);
+
+    private String username;
+    private String type;
+    private FileUploadRecord.UploadStatus uploadStatus;
+}
@@ -0,0 +1,14 @@
+package rcs.fileupload.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+@Getter
+@AllArgsConstructor
+public class FileUploadRecordsPage {
+
+    private List<FileUploadRecord> records;
+    private String nextCursor; // null on the last page
+}
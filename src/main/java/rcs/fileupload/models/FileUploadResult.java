@@ -0,0 +1,17 @@
+package rcs.fileupload.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * The outcome of one file of a batch upload or delete
+ */
+@Getter
+@AllArgsConstructor
+public class FileUploadResult {
+
+    private String name;
+    private int status; // the http status the file would have gotten on its own
+    private String error; // null unless the file was rejected or couldn't be stored
+    private FileUploadRecord record; // null if the file was rejected or deleted
+}
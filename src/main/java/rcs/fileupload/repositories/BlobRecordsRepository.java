@@ -0,0 +1,7 @@
+package rcs.fileupload.repositories;
+
+import rcs.fileupload.models.BlobRecord;
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+public interface BlobRecordsRepository extends MongoRepository<BlobRecord, String>, BlobRecordsRepositoryCustom {
+}
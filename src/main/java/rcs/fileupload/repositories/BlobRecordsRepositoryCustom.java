@@ -0,0 +1,21 @@
+package rcs.fileupload.repositories;
+
+import rcs.fileupload.models.BlobRecord;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+public interface BlobRecordsRepositoryCustom {
+    Optional<BlobRecord> acquire(String hash, long size);
+    void markStored(String hash);
+    BlobRecord release(String hash);
+    boolean markDeleting(String hash, LocalDateTime staleBefore);
+    void deleteIfDeleting(String hash);
+    List<BlobRecord> findStaleDeleting(LocalDateTime modifiedBefore);
+    Set<String> findReferenced(Collection<String> hashes);
+    List<BlobRecord> findStaleReferenced(Collection<String> hashes, LocalDateTime modifiedBefore);
+    boolean markUnreferenced(String hash, LocalDateTime dateModified);
+}
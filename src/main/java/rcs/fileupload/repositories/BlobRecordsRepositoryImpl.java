@@ -0,0 +1,181 @@
+package rcs.fileupload.repositories;
+
+import rcs.fileupload.models.BlobRecord;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Repository;
+
+import javax.annotation.PostConstruct;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+@Repository
+public class BlobRecordsRepositoryImpl implements BlobRecordsRepositoryCustom {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    public BlobRecordsRepositoryImpl(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    /**
+     * Lets the reconciler find interrupted deletions without scanning every blob
+     */
+    @PostConstruct
+    public void ensureIndexes() {
+        mongoTemplate.indexOps(BlobRecord.class).ensureIndex(new Index()
+                .on(BlobRecord.Fields.status, Sort.Direction.ASC)
+                .on(BlobRecord.Fields.dateModified, Sort.Direction.ASC));
+    }
+
+    /**
+     * Adds a reference, creating the record for new content. Content that is being deleted can't be
+     * referenced: the upsert then collides with the deleting record and nothing is returned, so the caller
+     * can retry once the deletion is done.
+     */
+    @Override
+    public Optional<BlobRecord> acquire(String hash, long size) {
+        try {
+            return Optional.of(mongoTemplate.findAndModify(
+                    Query.query(Criteria.where(BlobRecord.Fields.hash).is(hash))
+                            .addCriteria(Criteria.where(BlobRecord.Fields.status).ne(BlobRecord.BlobStatus.deleting)),
+                    new Update()
+                            .inc(BlobRecord.Fields.refCount, 1)
+                            .set(BlobRecord.Fields.dateModified, LocalDateTime.now())
+                            .setOnInsert(BlobRecord.Fields.size, size)
+                            .setOnInsert(BlobRecord.Fields.status, BlobRecord.BlobStatus.pending),
+                    FindAndModifyOptions.options().upsert(true).returnNew(true),
+                    BlobRecord.class));
+        } catch (DuplicateKeyException e) {
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public void markStored(String hash) {
+        mongoTemplate.updateFirst(
+                Query.query(Criteria.where(BlobRecord.Fields.hash).is(hash))
+                        .addCriteria(Criteria.where(BlobRecord.Fields.status).is(BlobRecord.BlobStatus.pending)),
+                Update.update(BlobRecord.Fields.status, BlobRecord.BlobStatus.stored),
+                BlobRecord.class);
+    }
+
+    /**
+     * @return the record with the reference removed, null if there is no record for the hash
+     */
+    @Override
+    public BlobRecord release(String hash) {
+        return mongoTemplate.findAndModify(
+                Query.query(Criteria.where(BlobRecord.Fields.hash).is(hash)),
+                new Update()
+                        .inc(BlobRecord.Fields.refCount, -1)
+                        .set(BlobRecord.Fields.dateModified, LocalDateTime.now()),
+                FindAndModifyOptions.options().returnNew(true),
+                BlobRecord.class);
+    }
+
+    /**
+     * Claims unreferenced content for deletion, or content without a record at all, which blocks new references
+     * until {@link #deleteIfDeleting} is called. A deletion that was claimed before staleBefore is taken over.
+     *
+     * @return whether the caller may delete the content
+     */
+    @Override
+    public boolean markDeleting(String hash, LocalDateTime staleBefore) {
+        Criteria unreferenced = Criteria.where(BlobRecord.Fields.refCount).lte(0)
+                .and(BlobRecord.Fields.status).ne(BlobRecord.BlobStatus.deleting);
+        Criteria claimable = staleBefore == null
+                ? unreferenced
+                : new Criteria().orOperator(
+                        unreferenced,
+                        Criteria.where(BlobRecord.Fields.status).is(BlobRecord.BlobStatus.deleting)
+                                .and(BlobRecord.Fields.dateModified).lt(staleBefore));
+        try {
+            mongoTemplate.upsert(
+                    Query.query(Criteria.where(BlobRecord.Fields.hash).is(hash)).addCriteria(claimable),
+                    new Update()
+                            .set(BlobRecord.Fields.status, BlobRecord.BlobStatus.deleting)
+                            .set(BlobRecord.Fields.dateModified, LocalDateTime.now())
+                            .setOnInsert(BlobRecord.Fields.refCount, 0),
+                    BlobRecord.class);
+            return true;
+        } catch (DuplicateKeyException e) {
+            // the record exists, but is referenced or already being deleted
+            return false;
+        }
+    }
+
+    @Override
+    public void deleteIfDeleting(String hash) {
+        mongoTemplate.remove(
+                Query.query(Criteria.where(BlobRecord.Fields.hash).is(hash))
+                        .addCriteria(Criteria.where(BlobRecord.Fields.status).is(BlobRecord.BlobStatus.deleting)),
+                BlobRecord.class);
+    }
+
+    @Override
+    public List<BlobRecord> findStaleDeleting(LocalDateTime modifiedBefore) {
+        return mongoTemplate.find(
+                Query.query(Criteria.where(BlobRecord.Fields.status).is(BlobRecord.BlobStatus.deleting))
+                        .addCriteria(Criteria.where(BlobRecord.Fields.dateModified).lt(modifiedBefore)),
+                BlobRecord.class);
+    }
+
+    /**
+     * @return the hashes among the given ones that are referenced by at least one upload
+     */
+    @Override
+    public Set<String> findReferenced(Collection<String> hashes) {
+        Query query = Query.query(Criteria.where(BlobRecord.Fields.hash).in(hashes))
+                .addCriteria(Criteria.where(BlobRecord.Fields.refCount).gt(0))
+                .addCriteria(Criteria.where(BlobRecord.Fields.status).ne(BlobRecord.BlobStatus.deleting));
+        query.fields().include(BlobRecord.Fields.hash);
+        return mongoTemplate.find(query, BlobRecord.class).stream()
+                .map(BlobRecord::getHash)
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * @return the records among the given hashes that are referenced, and whose references haven't changed
+     * since modifiedBefore
+     */
+    @Override
+    public List<BlobRecord> findStaleReferenced(Collection<String> hashes, LocalDateTime modifiedBefore) {
+        return mongoTemplate.find(
+                Query.query(Criteria.where(BlobRecord.Fields.hash).in(hashes))
+                        .addCriteria(Criteria.where(BlobRecord.Fields.refCount).gt(0))
+                        .addCriteria(Criteria.where(BlobRecord.Fields.status).ne(BlobRecord.BlobStatus.deleting))
+                        .addCriteria(Criteria.where(BlobRecord.Fields.dateModified).lt(modifiedBefore)),
+                BlobRecord.class);
+    }
+
+    /**
+     * Drops every reference, unless the record changed since it was read with the given dateModified,
+     * e.g. because an upload took a reference in the meantime
+     *
+     * @return whether the references were dropped
+     */
+    @Override
+    public boolean markUnreferenced(String hash, LocalDateTime dateModified) {
+        return mongoTemplate.updateFirst(
+                Query.query(Criteria.where(BlobRecord.Fields.hash).is(hash))
+                        .addCriteria(Criteria.where(BlobRecord.Fields.dateModified).is(dateModified))
+                        .addCriteria(Criteria.where(BlobRecord.Fields.refCount).gt(0))
+                        .addCriteria(Criteria.where(BlobRecord.Fields.status).ne(BlobRecord.BlobStatus.deleting)),
+                Update.update(BlobRecord.Fields.refCount, 0),
+                BlobRecord.class)
+                .getModifiedCount() > 0;
+    }
+}
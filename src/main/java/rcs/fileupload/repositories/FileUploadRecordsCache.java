@@ -0,0 +1,152 @@
+package rcs.fileupload.repositories;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterDeleteEvent;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.data.mongodb.core.messaging.ChangeStreamRequest;
+import org.springframework.data.mongodb.core.messaging.DefaultMessageListenerContainer;
+import org.springframework.data.mongodb.core.messaging.MessageListenerContainer;
+import org.springframework.stereotype.Component;
+import rcs.fileupload.models.FileUploadRecord;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Optional;
+
+/**
+ * Records by name, so ownership checks and downloads don't query the database every time.
+ * Writes through the repository drop the record they change: the custom updates do it themselves, and saves
+ * and deletes are seen here as mapping events. Changes made by other instances are picked up from a change
+ * stream when enabled (it needs a replica set), otherwise they show within the ttl.
+ * Callers get their own copy of a record, so they may modify it.
+ */
+@Component
+public class FileUploadRecordsCache extends AbstractMongoEventListener<FileUploadRecord> {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileUploadRecordsCache.class);
+
+    private final MongoTemplate mongoTemplate;
+    private final boolean changeStreams;
+    private final Cache<String, FileUploadRecord> records;
+    private MessageListenerContainer changeListener;
+
+    public FileUploadRecordsCache(
+            MongoTemplate mongoTemplate,
+            @Value("${records.cache.maxSize:10000}") long maxSize,
+            @Value("${records.cache.ttl:1m}") Duration ttl,
+            @Value("${records.cache.changeStreams:false}") boolean changeStreams,
+            MeterRegistry meterRegistry) {
+        this.mongoTemplate = mongoTemplate;
+        this.changeStreams = changeStreams;
+        this.records = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                .executor(Runnable::run)
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, records, "fileupload.records");
+    }
+
+    @PostConstruct
+    public void listenToChanges() {
+        if (!changeStreams) {
+            return;
+        }
+        changeListener = new DefaultMessageListenerContainer(mongoTemplate);
+        changeListener.register(
+                ChangeStreamRequest.builder(message -> invalidate(message.getRaw().getDocumentKey()))
+                        .collection(mongoTemplate.getCollectionName(FileUploadRecord.class))
+                        .build(),
+                Document.class,
+                e -> {
+                    // changes may have been missed
+                    logger.warn("Record change stream failed with error message: {}", e.getMessage());
+                    records.invalidateAll();
+                });
+        changeListener.start();
+    }
+
+    @PreDestroy
+    public void stopListening() {
+        if (changeListener != null) {
+            changeListener.stop();
+        }
+    }
+
+    /**
+     * Records that don't exist aren't cached, so a new upload is found right away
+     */
+    public Optional<FileUploadRecord> findById(String name) {
+        return Optional.ofNullable(records.get(name, key -> mongoTemplate.findById(key, FileUploadRecord.class)))
+                .map(FileUploadRecordsCache::copy);
+    }
+
+    /**
+     * @return the record if it is cached, without querying the database
+     */
+    public Optional<FileUploadRecord> getIfPresent(String name) {
+        return Optional.ofNullable(records.getIfPresent(name)).map(FileUploadRecordsCache::copy);
+    }
+
+    public void invalidate(String name) {
+        records.invalidate(name);
+    }
+
+    @Override
+    public void onAfterSave(AfterSaveEvent<FileUploadRecord> event) {
+        invalidate(event.getSource().getName());
+    }
+
+    @Override
+    public void onAfterDelete(AfterDeleteEvent<FileUploadRecord> event) {
+        Object name = event.getSource().get("_id");
+        Object names = name instanceof Document ? ((Document) name).get("$in") : null;
+        if (name instanceof String) {
+            invalidate((String) name);
+        } else if (names instanceof Collection) {
+            // a delete of many records by name
+            ((Collection<?>) names).forEach(key -> invalidate(String.valueOf(key)));
+        } else {
+            records.invalidateAll();
+        }
+    }
+
+    private void invalidate(BsonDocument documentKey) {
+        BsonValue name = documentKey == null ? null : documentKey.get("_id");
+        if (name != null && name.isString()) {
+            invalidate(name.asString().getValue());
+        } else {
+            records.invalidateAll();
+        }
+    }
+
+    private static FileUploadRecord copy(FileUploadRecord record) {
+        return new FileUploadRecord(
+                record.getName(),
+                record.getType(),
+                record.getUsername(),
+                record.getDateUploaded(),
+                record.getUploadStatus(),
+                record.getSize(),
+                record.getContentHash(),
+                record.getUploadOffset(),
+                record.getVariants() == null ? null : new ArrayList<>(record.getVariants()),
+                record.getBlob(),
+                record.getUrl());
+    }
+}
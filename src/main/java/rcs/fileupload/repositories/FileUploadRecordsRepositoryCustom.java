@@ -1,9 +1,36 @@
 package rcs.fileupload.repositories;
 
 import rcs.fileupload.models.FileUploadRecord;
+import rcs.fileupload.models.FileUploadRecordsCursor;
+import rcs.fileupload.models.FileUploadRecordsFilter;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Stream;
 
 public interface FileUploadRecordsRepositoryCustom {
 
-    FileUploadRecord updateStatus(String name, FileUploadRecord.UploadStatus uploadStatus);
-    boolean isPendingOrSucceeded(String name);
+    Optional<FileUploadRecord> findCachedById(String name);
+
+    FileUploadRecord updateStatusIfPending(FileUploadRecord record, FileUploadRecord.UploadStatus uploadStatus);
+    FileUploadRecord updateStatusIfPending(FileUploadRecord record, FileUploadRecord.UploadStatus uploadStatus, long size, String contentHash);
+    List<FileUploadRecord> updateStatusIfPending(List<FileUploadRecord> updated);
+    FileUploadRecord completeIfPending(FileUploadRecord record, String contentHash);
+    boolean deleteIfReceiving(FileUploadRecord record);
+    boolean reserve(FileUploadRecord record);
+    List<Boolean> reserveAll(List<FileUploadRecord> records);
+    void updateUploadOffset(String name, long uploadOffset);
+    List<FileUploadRecord> findPage(FileUploadRecordsFilter filter, FileUploadRecordsCursor after, int limit);
+    Stream<FileUploadRecord> streamAll(FileUploadRecordsFilter filter);
+    Stream<FileUploadRecord> streamByOwner(String username, String prefix);
+    Stream<FileUploadRecord> streamStalePending(LocalDateTime uploadedBefore, LocalDateTime resumableUploadedBefore);
+    boolean expirePending(FileUploadRecord record);
+    boolean failIfSucceeded(FileUploadRecord record);
+    Set<String> findLiveNames(Collection<String> names);
+    Set<String> findBlobsInUse(Collection<String> blobs);
+    boolean updateVariants(String name, LocalDateTime dateUploaded, List<String> variants);
+    long deleteAllByNames(Collection<String> names, String username);
 }
@@ -1,41 +1,441 @@
 package rcs.fileupload.repositories;
 
 import rcs.fileupload.models.FileUploadRecord;
+import rcs.fileupload.models.FileUploadRecordsCursor;
+import rcs.fileupload.models.FileUploadRecordsFilter;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexOperations;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.StreamUtils;
 import org.springframework.stereotype.Repository;
 
+import javax.annotation.PostConstruct;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
 import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Repository
 public class FileUploadRecordsRepositoryImpl implements FileUploadRecordsRepositoryCustom {
 
+    // listing order; name is the id so it breaks ties between records uploaded at the same instant
+    private static final Sort pageSort = Sort.by(
+            Sort.Order.desc(FileUploadRecord.Fields.dateUploaded),
+            Sort.Order.desc(FileUploadRecord.Fields.name));
+
+    private static final int streamBatchSize = 1000;
+
     @Autowired
     private MongoTemplate mongoTemplate;
 
-    public FileUploadRecordsRepositoryImpl(MongoTemplate mongoTemplate) {
+    @Autowired
+    private FileUploadRecordsCache cache;
+
+    @Autowired
+    private FileUploadRecordsWriteBatcher batcher;
+
+    public FileUploadRecordsRepositoryImpl(
+            MongoTemplate mongoTemplate,
+            FileUploadRecordsCache cache,
+            FileUploadRecordsWriteBatcher batcher) {
         this.mongoTemplate = mongoTemplate;
+        this.cache = cache;
+        this.batcher = batcher;
+    }
+
+    /**
+     * Each listing filter gets a compound index ending in the page sort,
+     * so a page is a bounded index range scan regardless of collection size
+     */
+    @PostConstruct
+    public void ensureIndexes() {
+        IndexOperations indexOps = mongoTemplate.indexOps(FileUploadRecord.class);
+        indexOps.ensureIndex(pageIndex());
+        indexOps.ensureIndex(pageIndex(FileUploadRecord.Fields.username));
+        indexOps.ensureIndex(pageIndex(FileUploadRecord.Fields.type));
+        indexOps.ensureIndex(pageIndex(FileUploadRecord.Fields.uploadStatus));
+        // only uploads in content-addressed mode point to a blob
+        indexOps.ensureIndex(new Index().on(FileUploadRecord.Fields.blob, Sort.Direction.ASC).sparse());
+    }
+
+    @Override
+    public Optional<FileUploadRecord> findCachedById(String name) {
+        return cache.findById(name);
+    }
+
+    /**
+     * Only ever moves the offset forward, so a slow request can't overwrite the progress of a later one
+     */
+    @Override
+    public void updateUploadOffset(String name, long uploadOffset) {
+        mongoTemplate.updateFirst(
+                Query.query(Criteria.where(FileUploadRecord.Fields.name).is(name))
+                        .addCriteria(Criteria.where(FileUploadRecord.Fields.uploadOffset).lt(uploadOffset)),
+                Update.update(FileUploadRecord.Fields.uploadOffset, uploadOffset),
+                FileUploadRecord.class);
+        cache.invalidate(name);
     }
 
+    /**
+     * Sets the final status of an upload only if it is still the same pending upload, so an upload that was
+     * expired (and possibly replaced by a new one under the same name) in the meantime is left alone
+     *
+     * @return the updated record, null if the upload is no longer pending
+     */
     @Override
-    public FileUploadRecord updateStatus(String name, FileUploadRecord.UploadStatus uploadStatus) {
-        return mongoTemplate.findAndModify(
-                Query.query(Criteria.where(FileUploadRecord.Fields.name).is(name)),
+    public FileUploadRecord updateStatusIfPending(FileUploadRecord record, FileUploadRecord.UploadStatus uploadStatus) {
+        return updateIfPending(
+                record,
                 Update.update(FileUploadRecord.Fields.uploadStatus, uploadStatus),
+                withStatus(record, uploadStatus, record.getSize(), record.getContentHash()));
+    }
+
+    @Override
+    public FileUploadRecord updateStatusIfPending(
+            FileUploadRecord record,
+            FileUploadRecord.UploadStatus uploadStatus,
+            long size,
+            String contentHash) {
+        return updateIfPending(
+                record,
+                Update.update(FileUploadRecord.Fields.uploadStatus, uploadStatus)
+                        .set(FileUploadRecord.Fields.size, size)
+                        .set(FileUploadRecord.Fields.contentHash, contentHash),
+                withStatus(record, uploadStatus, size, contentHash));
+    }
+
+    /**
+     * Sets the final status, size, content hash and blob of many pending uploads in one bulk write
+     *
+     * @param updated the records as they should be left
+     * @return the updated records in order, null for uploads that are no longer pending
+     */
+    @Override
+    public List<FileUploadRecord> updateStatusIfPending(List<FileUploadRecord> updated) {
+        try {
+            return batcher.updateAll(updated, FileUploadRecordsRepositoryImpl::pendingUploadQuery, record -> {
+                Update update = Update.update(FileUploadRecord.Fields.uploadStatus, record.getUploadStatus())
+                        .set(FileUploadRecord.Fields.size, record.getSize())
+                        .set(FileUploadRecord.Fields.contentHash, record.getContentHash());
+                return record.getBlob() == null ? update : update.set(FileUploadRecord.Fields.blob, record.getBlob());
+            });
+        } finally {
+            updated.forEach(record -> cache.invalidate(record.getName()));
+        }
+    }
+
+    /**
+     * Sets the content hash of a fully received resumable upload, only once and only if it is still the same
+     * pending upload, so concurrent requests that both delivered the last byte don't both store it
+     *
+     * @return the updated record, null if it was already completed or is no longer pending
+     */
+    @Override
+    public FileUploadRecord completeIfPending(FileUploadRecord record, String contentHash) {
+        return invalidating(record.getName(), mongoTemplate.findAndModify(
+                pendingUploadQuery(record).addCriteria(Criteria.where(FileUploadRecord.Fields.contentHash).is(null)),
+                Update.update(FileUploadRecord.Fields.contentHash, contentHash),
                 FindAndModifyOptions.options().returnNew(true),
-                FileUploadRecord.class);
+                FileUploadRecord.class));
+    }
+
+    /**
+     * Deletes a resumable upload only while it is still the same pending upload and its content hasn't been
+     * set by {@link #completeIfPending}, so a cancel that races the last chunk doesn't drop a completed upload
+     *
+     * @return whether the record was deleted
+     */
+    @Override
+    public boolean deleteIfReceiving(FileUploadRecord record) {
+        try {
+            return mongoTemplate.remove(
+                    pendingUploadQuery(record)
+                            .addCriteria(Criteria.where(FileUploadRecord.Fields.uploadOffset).ne(null))
+                            .addCriteria(Criteria.where(FileUploadRecord.Fields.contentHash).is(null)),
+                    FileUploadRecord.class)
+                    .getDeletedCount() > 0;
+        } finally {
+            cache.invalidate(record.getName());
+        }
+    }
+
+    /**
+     * Claims the name for a new upload in a single round trip: the record is inserted, or replaces a failed
+     * upload, unless a pending or succeeded upload has the name, in which case the insert collides with it.
+     * The record cache isn't consulted, since another instance may have failed or deleted the upload it holds.
+     *
+     * @return whether the name was claimed
+     */
+    @Override
+    public boolean reserve(FileUploadRecord record) {
+        Query claimable = claimableQuery(record.getName());
+        try {
+            if (batcher.isEnabled()) {
+                return batcher.reserve(claimable, record);
+            }
+            mongoTemplate.findAndReplace(claimable, record, FindAndReplaceOptions.options().upsert());
+            return true;
+        } catch (DuplicateKeyException e) {
+            return false;
+        } finally {
+            cache.invalidate(record.getName());
+        }
+    }
+
+    /**
+     * Claims the names of many uploads in one bulk write, like {@link #reserve}
+     *
+     * @return whether each name was claimed, in order
+     */
+    @Override
+    public List<Boolean> reserveAll(List<FileUploadRecord> records) {
+        try {
+            return batcher.reserveAll(records, record -> claimableQuery(record.getName()));
+        } finally {
+            records.forEach(record -> cache.invalidate(record.getName()));
+        }
+    }
+
+    @Override
+    public List<FileUploadRecord> findPage(FileUploadRecordsFilter filter, FileUploadRecordsCursor after, int limit) {
+        Query query = filterQuery(filter).with(pageSort).limit(limit);
+        if (after != null) {
+            query.addCriteria(new Criteria().orOperator(
+                    Criteria.where(FileUploadRecord.Fields.dateUploaded).lt(after.getDateUploaded()),
+                    Criteria.where(FileUploadRecord.Fields.dateUploaded).is(after.getDateUploaded())
+                            .and(FileUploadRecord.Fields.name).lt(after.getName())));
+        }
+
+        return mongoTemplate.find(query, FileUploadRecord.class);
+    }
+
+    /**
+     * Reads through a server-side cursor; callers must close the stream to release it
+     */
+    @Override
+    public Stream<FileUploadRecord> streamAll(FileUploadRecordsFilter filter) {
+        Query query = filterQuery(filter).with(pageSort).cursorBatchSize(streamBatchSize);
+        return StreamUtils.createStreamFromIterator(mongoTemplate.stream(query, FileUploadRecord.class));
+    }
+
+    /**
+     * Records of the user, or of every user if null, whose name starts with the prefix, or any name if null.
+     * The prefix is an anchored literal regex on the id, so it is a range scan of the id index.
+     */
+    @Override
+    public Stream<FileUploadRecord> streamByOwner(String username, String prefix) {
+        Query query = new Query().cursorBatchSize(streamBatchSize);
+        if (username != null) {
+            query.addCriteria(Criteria.where(FileUploadRecord.Fields.username).is(username));
+        }
+        if (prefix != null) {
+            query.addCriteria(Criteria.where(FileUploadRecord.Fields.name).regex("^" + escapeRegex(prefix)));
+        }
+        return StreamUtils.createStreamFromIterator(mongoTemplate.stream(query, FileUploadRecord.class));
+    }
+
+    /**
+     * Pending records older than the cutoffs; resumable uploads get their own, longer, cutoff
+     */
+    @Override
+    public Stream<FileUploadRecord> streamStalePending(
+            LocalDateTime uploadedBefore,
+            LocalDateTime resumableUploadedBefore) {
+        Query query = Query.query(Criteria.where(FileUploadRecord.Fields.uploadStatus).is(FileUploadRecord.UploadStatus.pending))
+                .addCriteria(new Criteria().orOperator(
+                        Criteria.where(FileUploadRecord.Fields.uploadOffset).is(null)
+                                .and(FileUploadRecord.Fields.dateUploaded).lt(uploadedBefore),
+                        Criteria.where(FileUploadRecord.Fields.uploadOffset).ne(null)
+                                .and(FileUploadRecord.Fields.dateUploaded).lt(resumableUploadedBefore)))
+                .cursorBatchSize(streamBatchSize);
+        return StreamUtils.createStreamFromIterator(mongoTemplate.stream(query, FileUploadRecord.class));
+    }
+
+    /**
+     * Fails the record only if it is still the same pending upload, so an upload that finished
+     * (or a new upload under the same name) in the meantime is left alone
+     */
+    @Override
+    public boolean expirePending(FileUploadRecord record) {
+        boolean expired = mongoTemplate.updateFirst(
+                Query.query(Criteria.where(FileUploadRecord.Fields.name).is(record.getName()))
+                        .addCriteria(Criteria.where(FileUploadRecord.Fields.uploadStatus).is(FileUploadRecord.UploadStatus.pending))
+                        .addCriteria(Criteria.where(FileUploadRecord.Fields.dateUploaded).is(record.getDateUploaded())),
+                Update.update(FileUploadRecord.Fields.uploadStatus, FileUploadRecord.UploadStatus.failed),
+                FileUploadRecord.class)
+                .getModifiedCount() > 0;
+        cache.invalidate(record.getName());
+        return expired;
+    }
+
+    /**
+     * Fails an upload whose content couldn't be put in place after it was marked succeeded, only if it is
+     * still the same upload
+     */
+    @Override
+    public boolean failIfSucceeded(FileUploadRecord record) {
+        boolean failed = mongoTemplate.updateFirst(
+                Query.query(Criteria.where(FileUploadRecord.Fields.name).is(record.getName()))
+                        .addCriteria(Criteria.where(FileUploadRecord.Fields.uploadStatus).is(FileUploadRecord.UploadStatus.succeeded))
+                        .addCriteria(Criteria.where(FileUploadRecord.Fields.dateUploaded).is(record.getDateUploaded())),
+                Update.update(FileUploadRecord.Fields.uploadStatus, FileUploadRecord.UploadStatus.failed),
+                FileUploadRecord.class)
+                .getModifiedCount() > 0;
+        cache.invalidate(record.getName());
+        return failed;
+    }
+
+    /**
+     * @return the names among the given ones that belong to a pending or succeeded upload
+     */
+    @Override
+    public Set<String> findLiveNames(Collection<String> names) {
+        Query query = Query.query(Criteria.where(FileUploadRecord.Fields.name).in(names))
+                .addCriteria(Criteria.where(FileUploadRecord.Fields.uploadStatus)
+                        .in(FileUploadRecord.UploadStatus.pending, FileUploadRecord.UploadStatus.succeeded));
+        query.fields().include(FileUploadRecord.Fields.name);
+        return mongoTemplate.find(query, FileUploadRecord.class).stream()
+                .map(FileUploadRecord::getName)
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * @return the blob keys among the given ones that at least one upload points to
+     */
+    @Override
+    public Set<String> findBlobsInUse(Collection<String> blobs) {
+        return new HashSet<>(mongoTemplate.findDistinct(
+                Query.query(Criteria.where(FileUploadRecord.Fields.blob).in(blobs)),
+                FileUploadRecord.Fields.blob,
+                FileUploadRecord.class,
+                String.class));
     }
 
+    /**
+     * Records the generated image variants, only if the upload still exists and hasn't been replaced
+     */
     @Override
-    public boolean isPendingOrSucceeded(String name) {
-        return mongoTemplate.exists(
+    public boolean updateVariants(String name, LocalDateTime dateUploaded, List<String> variants) {
+        boolean updated = mongoTemplate.updateFirst(
                 Query.query(Criteria.where(FileUploadRecord.Fields.name).is(name))
-                        .addCriteria(Criteria.where(FileUploadRecord.Fields.uploadStatus)
-                                .in(Set.of(FileUploadRecord.UploadStatus.pending, FileUploadRecord.UploadStatus.succeeded))),
-                FileUploadRecord.class);
+                        .addCriteria(Criteria.where(FileUploadRecord.Fields.uploadStatus).is(FileUploadRecord.UploadStatus.succeeded))
+                        .addCriteria(Criteria.where(FileUploadRecord.Fields.dateUploaded).is(dateUploaded)),
+                Update.update(FileUploadRecord.Fields.variants, variants),
+                FileUploadRecord.class)
+                .getModifiedCount() > 0;
+        cache.invalidate(name);
+        return updated;
+    }
+
+    /**
+     * Deletes the records in one round trip, only those of the user unless it is null
+     *
+     * @return how many records were deleted
+     */
+    @Override
+    public long deleteAllByNames(Collection<String> names, String username) {
+        Query query = Query.query(Criteria.where(FileUploadRecord.Fields.name).in(names));
+        if (username != null) {
+            query.addCriteria(Criteria.where(FileUploadRecord.Fields.username).is(username));
+        }
+        try {
+            return mongoTemplate.remove(query, FileUploadRecord.class).getDeletedCount();
+        } finally {
+            names.forEach(cache::invalidate);
+        }
+    }
+
+    private FileUploadRecord invalidating(String name, FileUploadRecord updated) {
+        cache.invalidate(name);
+        return updated;
+    }
+
+    /**
+     * Batched updates can't return the record, so the updated record is built here
+     */
+    private FileUploadRecord updateIfPending(FileUploadRecord record, Update update, FileUploadRecord updated) {
+        Query query = pendingUploadQuery(record);
+        return invalidating(record.getName(), batcher.isEnabled()
+                ? batcher.updateFirst(query, update, updated)
+                : mongoTemplate.findAndModify(
+                        query, update, FindAndModifyOptions.options().returnNew(true), FileUploadRecord.class));
+    }
+
+    private static FileUploadRecord withStatus(
+            FileUploadRecord record,
+            FileUploadRecord.UploadStatus uploadStatus,
+            Long size,
+            String contentHash) {
+        return new FileUploadRecord(
+                record.getName(),
+                record.getType(),
+                record.getUsername(),
+                record.getDateUploaded(),
+                uploadStatus,
+                size,
+                contentHash,
+                record.getUploadOffset(),
+                record.getVariants(),
+                record.getBlob(),
+                null);
+    }
+
+    /**
+     * Matches the record of the name only if the name is free to be claimed
+     */
+    private static Query claimableQuery(String name) {
+        return Query.query(Criteria.where(FileUploadRecord.Fields.name).is(name))
+                .addCriteria(Criteria.where(FileUploadRecord.Fields.uploadStatus)
+                        .nin(FileUploadRecord.UploadStatus.pending, FileUploadRecord.UploadStatus.succeeded));
+    }
+
+    private static Query pendingUploadQuery(FileUploadRecord record) {
+        return Query.query(Criteria.where(FileUploadRecord.Fields.name).is(record.getName()))
+                .addCriteria(Criteria.where(FileUploadRecord.Fields.uploadStatus).is(FileUploadRecord.UploadStatus.pending))
+                .addCriteria(Criteria.where(FileUploadRecord.Fields.dateUploaded).is(record.getDateUploaded()));
+    }
+
+    private static Query filterQuery(FileUploadRecordsFilter filter) {
+        Query query = new Query();
+        if (filter.getUsername() != null) {
+            query.addCriteria(Criteria.where(FileUploadRecord.Fields.username).is(filter.getUsername()));
+        }
+        if (filter.getType() != null) {
+            query.addCriteria(Criteria.where(FileUploadRecord.Fields.type).is(filter.getType()));
+        }
+        if (filter.getUploadStatus() != null) {
+            query.addCriteria(Criteria.where(FileUploadRecord.Fields.uploadStatus).is(filter.getUploadStatus()));
+        }
+        return query;
+    }
+
+    /**
+     * Escapes the regex metacharacters, rather than quoting with \Q...\E, so the server still sees a literal
+     * prefix it can turn into index bounds
+     */
+    private static String escapeRegex(String literal) {
+        return literal.replaceAll("[\\\\^$.|?*+()\\[\\]{}]", "\\\\$0");
+    }
+
+    private static Index pageIndex(String... equalityFields) {
+        Index index = new Index();
+        for (String field : equalityFields) {
+            index.on(field, Sort.Direction.ASC);
+        }
+        return index
+                .on(FileUploadRecord.Fields.dateUploaded, Sort.Direction.DESC)
+                .on(FileUploadRecord.Fields.name, Sort.Direction.DESC);
     }
 }
@@ -0,0 +1,348 @@
+package rcs.fileupload.repositories;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.mongodb.UncategorizedMongoDbException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+import rcs.fileupload.models.FileUploadRecord;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Groups the record writes of concurrent uploads into bulk writes. Reservations and status updates are queued,
+ * and a single writer sends what is queued as one unordered bulk write once maxSize writes are waiting, or
+ * maxDelay after the first one. Callers block until their bulk write is acknowledged, so an upload still only
+ * completes once its record is written.
+ */
+@Component
+public class FileUploadRecordsWriteBatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileUploadRecordsWriteBatcher.class);
+
+    private static final long idlePollMillis = 100;
+
+    private final MongoTemplate mongoTemplate;
+    private final boolean enabled;
+    private final int maxSize;
+    private final Duration maxDelay;
+    private final DistributionSummary batchSizes;
+
+    private final BlockingQueue<Write<?>> queue = new LinkedBlockingQueue<>();
+    // writes are only queued while running, so none is left behind when the writer stops; guarded by runningLock
+    private final Object runningLock = new Object();
+    private volatile boolean running;
+    private Thread writer;
+
+    public FileUploadRecordsWriteBatcher(
+            MongoTemplate mongoTemplate,
+            @Value("${records.batch.enabled:false}") boolean enabled,
+            @Value("${records.batch.maxSize:500}") int maxSize,
+            @Value("${records.batch.maxDelay:2ms}") Duration maxDelay,
+            MeterRegistry meterRegistry) {
+        this.mongoTemplate = mongoTemplate;
+        this.enabled = enabled;
+        this.maxSize = maxSize;
+        this.maxDelay = maxDelay;
+        this.batchSizes = DistributionSummary.builder("fileupload.records.batch.size")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public synchronized void start() {
+        if (!enabled || running) {
+            return;
+        }
+        running = true;
+        writer = new Thread(this::writeBatches, "records-batch-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Writes whatever is still queued before returning
+     */
+    @PreDestroy
+    public synchronized void stop() throws InterruptedException {
+        synchronized (runningLock) {
+            running = false;
+        }
+        if (writer != null) {
+            writer.join();
+            writer = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Inserts the record, or replaces the one matching the query
+     *
+     * @return false if the insert collided with an existing record
+     */
+    public boolean reserve(Query query, FileUploadRecord record) {
+        return submit(new Reservation(query, record));
+    }
+
+    /**
+     * @param updated the record as the update leaves it
+     * @return the updated record, null if the query matched no record
+     */
+    public FileUploadRecord updateFirst(Query query, Update update, FileUploadRecord updated) {
+        return submit(new StatusUpdate(query, update, updated));
+    }
+
+    /**
+     * Writes the reservations right away as one bulk write of their own, whether batching is enabled or not
+     *
+     * @return whether each record was inserted, in order
+     */
+    public List<Boolean> reserveAll(List<FileUploadRecord> records, Function<FileUploadRecord, Query> query) {
+        return writeAll(records.stream()
+                .map(record -> new Reservation(query.apply(record), record))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Writes the updates right away as one bulk write of their own, whether batching is enabled or not
+     *
+     * @param updated the records as the updates leave them
+     * @return the updated records in order, null for those the query didn't match
+     */
+    public List<FileUploadRecord> updateAll(
+            List<FileUploadRecord> updated,
+            Function<FileUploadRecord, Query> query,
+            Function<FileUploadRecord, Update> update) {
+        return writeAll(updated.stream()
+                .map(record -> new StatusUpdate(query.apply(record), update.apply(record), record))
+                .collect(Collectors.toList()));
+    }
+
+    private <T> List<T> writeAll(List<? extends Write<T>> writes) {
+        write(new ArrayList<>(writes));
+        return writes.stream()
+                .map(write -> await(write.result))
+                .collect(Collectors.toList());
+    }
+
+    private <T> T submit(Write<T> write) {
+        boolean queued;
+        synchronized (runningLock) {
+            queued = running && queue.add(write);
+        }
+        if (!queued) {
+            // not started, or stopped
+            write(List.of(write));
+        }
+        return await(write.result);
+    }
+
+    private static <T> T await(CompletableFuture<T> result) {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    private void writeBatches() {
+        List<Write<?>> batch = new ArrayList<>(maxSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Write<?> first = queue.poll(idlePollMillis, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + maxDelay.toNanos();
+                while (batch.size() < maxSize) {
+                    queue.drainTo(batch, maxSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= maxSize || remaining <= 0) {
+                        break;
+                    }
+                    Write<?> next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                write(batch);
+            } catch (InterruptedException e) {
+                logger.warn("Record batch writer interrupted, writing the queued writes and stopping");
+                synchronized (runningLock) {
+                    running = false;
+                }
+                queue.drainTo(batch);
+                write(batch);
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(List<Write<?>> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            writeBulk(batch);
+        } catch (RuntimeException e) {
+            logger.error("Failed to write a batch of {} records with error message: {}", batch.size(), e.getMessage());
+            // writes that were already completed keep their result
+            batch.forEach(write -> write.result.completeExceptionally(e));
+        }
+    }
+
+    private void writeBulk(List<Write<?>> batch) {
+        batchSizes.record(batch.size());
+        BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, FileUploadRecord.class);
+        batch.forEach(write -> write.addTo(bulkOps));
+
+        BulkWriteResult result;
+        Map<Integer, BulkWriteError> errors;
+        try {
+            result = bulkOps.execute();
+            errors = Map.of();
+        } catch (DataAccessException e) {
+            // per write errors, translated to a duplicate key error when there is one
+            if (!(e.getCause() instanceof MongoBulkWriteException)) {
+                throw e;
+            }
+            MongoBulkWriteException bulkWriteException = (MongoBulkWriteException) e.getCause();
+            result = bulkWriteException.getWriteResult();
+            errors = bulkWriteException.getWriteErrors().stream()
+                    .collect(Collectors.toMap(BulkWriteError::getIndex, Function.identity()));
+        }
+
+        int reserved = 0;
+        List<StatusUpdate> updates = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            Write<?> write = batch.get(i);
+            BulkWriteError error = errors.get(i);
+            if (write instanceof Reservation) {
+                Reservation reservation = (Reservation) write;
+                if (error == null) {
+                    reservation.result.complete(true);
+                    reserved++;
+                } else if (ErrorCategory.fromErrorCode(error.getCode()) == ErrorCategory.DUPLICATE_KEY) {
+                    reservation.result.complete(false);
+                } else {
+                    reservation.result.completeExceptionally(new UncategorizedMongoDbException(error.getMessage(), null));
+                }
+            } else if (error == null) {
+                updates.add((StatusUpdate) write);
+            } else {
+                write.result.completeExceptionally(new UncategorizedMongoDbException(error.getMessage(), null));
+            }
+        }
+
+        // reservations that didn't insert replaced a record, and are counted as matched too
+        int updatesMatched = result.getMatchedCount() - (reserved - result.getUpserts().size());
+        if (updatesMatched == updates.size()) {
+            updates.forEach(update -> update.result.complete(update.updated));
+        } else {
+            completeUnmatched(updates);
+        }
+    }
+
+    /**
+     * The result only counts matched updates, so the records are read back to tell which ones matched
+     */
+    private void completeUnmatched(List<StatusUpdate> updates) {
+        if (updates.isEmpty()) {
+            return;
+        }
+        Map<String, FileUploadRecord> stored = mongoTemplate.find(
+                Query.query(Criteria.where(FileUploadRecord.Fields.name)
+                        .in(updates.stream().map(update -> update.updated.getName()).collect(Collectors.toSet()))),
+                FileUploadRecord.class)
+                .stream()
+                .collect(Collectors.toMap(FileUploadRecord::getName, Function.identity()));
+        updates.forEach(update -> update.result.complete(
+                isUpdated(stored.get(update.updated.getName()), update.updated) ? update.updated : null));
+    }
+
+    private static boolean isUpdated(FileUploadRecord stored, FileUploadRecord updated) {
+        return stored != null
+                && stored.getUploadStatus() == updated.getUploadStatus()
+                && stored.getDateUploaded() != null
+                && updated.getDateUploaded() != null
+                // mongo dates have millisecond precision
+                && stored.getDateUploaded().equals(updated.getDateUploaded().truncatedTo(ChronoUnit.MILLIS))
+                && Objects.equals(stored.getContentHash(), updated.getContentHash());
+    }
+
+    private abstract static class Write<T> {
+
+        final CompletableFuture<T> result = new CompletableFuture<>();
+
+        abstract void addTo(BulkOperations bulkOps);
+    }
+
+    private static class Reservation extends Write<Boolean> {
+
+        private final Query query;
+        private final FileUploadRecord record;
+
+        Reservation(Query query, FileUploadRecord record) {
+            this.query = query;
+            this.record = record;
+        }
+
+        @Override
+        void addTo(BulkOperations bulkOps) {
+            bulkOps.replaceOne(query, record, FindAndReplaceOptions.options().upsert());
+        }
+    }
+
+    private static class StatusUpdate extends Write<FileUploadRecord> {
+
+        private final Query query;
+        private final Update update;
+        private final FileUploadRecord updated;
+
+        StatusUpdate(Query query, Update update, FileUploadRecord updated) {
+            this.query = query;
+            this.update = update;
+            this.updated = updated;
+        }
+
+        @Override
+        void addTo(BulkOperations bulkOps) {
+            bulkOps.updateOne(query, update);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package rcs.fileupload.services;
+
+import rcs.fileupload.models.BlobRecord;
+import rcs.fileupload.repositories.BlobRecordsRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.LocalDateTime;
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+/**
+ * Content-addressed storage: every distinct content is written once under its hash and reference counted,
+ * so uploading the same bytes under another name only adds a reference, and the content is deleted
+ * with its last reference.
+ */
+@Service
+public class BlobStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(BlobStore.class);
+
+    public static final String keyPrefix = "blob~";
+
+    private static final Pattern hashPattern = Pattern.compile("[0-9a-f]{64}");
+    private static final int maxAcquireAttempts = 10;
+    private static final long acquireBackoffMillis = 100;
+
+    private BlobRecordsRepository blobRecordsRepository;
+    private FileStorageService fileStorageService;
+
+    public BlobStore(BlobRecordsRepository blobRecordsRepository, FileStorageService fileStorageService) {
+        this.blobRecordsRepository = blobRecordsRepository;
+        this.fileStorageService = fileStorageService;
+    }
+
+    public static String getKey(String hash) {
+        return keyPrefix + hash;
+    }
+
+    /**
+     * @return the hash of the content stored under the key, if it is the key of a blob
+     */
+    public static Optional<String> getHash(String key) {
+        return key.startsWith(keyPrefix) && hashPattern.matcher(key.substring(keyPrefix.length())).matches()
+                ? Optional.of(key.substring(keyPrefix.length()))
+                : Optional.empty();
+    }
+
+    /**
+     * Adds a reference to the content, writing it only if it isn't stored yet
+     *
+     * @param hash hex sha-256 of the content
+     * @return the key the content is stored under
+     */
+    public String store(String hash, File content, String type) throws IOException {
+        BlobRecord blob = acquire(hash, content.length());
+        String key = getKey(hash);
+        try {
+            if (!BlobRecord.BlobStatus.stored.equals(blob.getStatus())) {
+                // concurrent first uploads of the same content may both write it, which is harmless
+                fileStorageService.save(key, content, type);
+                blobRecordsRepository.markStored(hash);
+            }
+            return key;
+        } catch (IOException | RuntimeException e) {
+            release(key);
+            throw e;
+        }
+    }
+
+    /**
+     * Removes a reference, deleting the content when it was the last one
+     */
+    public void release(String key) {
+        String hash = getHash(key).orElseThrow(() -> new IllegalArgumentException(key + " is not the key of a blob"));
+        BlobRecord blob = blobRecordsRepository.release(hash);
+        if (blob != null && blob.getRefCount() <= 0) {
+            try {
+                deleteUnreferenced(hash, null);
+            } catch (IOException e) {
+                // left for the reconciler, which retries deletions that don't finish
+                logger.error("Failed to delete blob {} with error message: {}", hash, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Deletes content that no upload references, taking over deletions that were claimed before staleBefore
+     *
+     * @return whether the content was deleted
+     */
+    public boolean deleteUnreferenced(String hash, LocalDateTime staleBefore) throws IOException {
+        if (!blobRecordsRepository.markDeleting(hash, staleBefore)) {
+            return false;
+        }
+        fileStorageService.delete(getKey(hash));
+        blobRecordsRepository.deleteIfDeleting(hash);
+        return true;
+    }
+
+    private BlobRecord acquire(String hash, long size) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            Optional<BlobRecord> blob = blobRecordsRepository.acquire(hash, size);
+            if (blob.isPresent()) {
+                return blob.get();
+            }
+            if (attempt == maxAcquireAttempts) {
+                throw new IOException("Blob " + hash + " is still being deleted");
+            }
+            try {
+                Thread.sleep(acquireBackoffMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for blob " + hash + " to be deleted");
+            }
+        }
+    }
+}
@@ -1,13 +1,59 @@
 package rcs.fileupload.services;
 
 import org.springframework.core.io.Resource;
-import org.springframework.web.multipart.MultipartFile;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Stream;
 
 public interface FileStorageService {
 
-    void save(MultipartFile file) throws IOException;
+    /**
+     * Saves content as it is read, without buffering it in memory; partially written content is removed on failure
+     */
+    void save(String filename, InputStream content, String contentType) throws IOException;
+
+    /**
+     * Saves a complete local file, which the backend may move rather than copy
+     */
+    void save(String filename, File content, String contentType) throws IOException;
+
     void delete(String filename) throws IOException;
+
+    /**
+     * Deletes many files, in as few requests as the backend allows; a file that doesn't exist counts as deleted
+     *
+     * @return the filenames that couldn't be deleted
+     */
+    default Set<String> deleteAll(Collection<String> filenames) {
+        Set<String> failed = new HashSet<>();
+        for (String filename : filenames) {
+            try {
+                delete(filename);
+            } catch (IOException | RuntimeException e) {
+                failed.add(filename);
+            }
+        }
+        return failed;
+    }
+
     Resource load(String filename) throws IOException;
+
+    /**
+     * Lazily lists everything in storage; the caller must close the stream
+     */
+    Stream<StoredFile> list() throws IOException;
+
+    /**
+     * @return a url clients can download the file from directly, when the backend is set up to offload downloads
+     */
+    default Optional<URL> getRedirectUrl(String filename) {
+        return Optional.empty();
+    }
 }
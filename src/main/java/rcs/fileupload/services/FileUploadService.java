@@ -1,24 +1,57 @@
 package rcs.fileupload.services;
 
+import rcs.fileupload.models.FileDeleteSummary;
 import rcs.fileupload.models.FileUploadRecord;
+import rcs.fileupload.models.FileUploadRecordsCursor;
+import rcs.fileupload.models.FileUploadRecordsFilter;
+import rcs.fileupload.models.FileUploadRecordsPage;
+import rcs.fileupload.models.FileUploadResult;
 import rcs.fileupload.repositories.FileUploadRecordsRepository;
+import rcs.fileupload.services.exceptions.FileNotFoundException;
+import rcs.fileupload.services.exceptions.FileTooLargeException;
 import rcs.fileupload.services.exceptions.FileWithNameAlreadyExistsException;
+import rcs.fileupload.services.exceptions.InvalidCursorException;
+import rcs.fileupload.services.exceptions.InvalidUploadException;
+import rcs.fileupload.services.exceptions.InvalidVariantException;
+import rcs.fileupload.services.exceptions.NotAllowedToDeleteFileException;
+import rcs.fileupload.services.exceptions.UploadOffsetConflictException;
+import rcs.fileupload.services.utils.ContentHashes;
+import rcs.fileupload.services.utils.MeteredInputStream;
 import lombok.SneakyThrows;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.core.io.Resource;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
-import org.springframework.web.multipart.MultipartFile;
+import org.springframework.util.unit.DataSize;
 import rcs.auth.api.models.AuthenticatedUser;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Service
 @PropertySource("file:${app.properties}")
@@ -26,81 +59,704 @@ public class FileUploadService {
 
     private static final Logger logger = LoggerFactory.getLogger(FileUploadService.class);
 
+    public static final int maxPageSize = 1000;
+    // records deleted together when deleting by owner
+    private static final int deleteBatchSize = 1000;
+
     private FileUploadRecordsRepository fileUploadRecordsRepository;
     private FileStorageService fileStorageService;
+    private UploadStaging uploadStaging;
+    private ImageVariantService imageVariantService;
+    private BlobStore blobStore;
+    private TaskExecutor uploadExecutor;
+    private ApplicationEventPublisher eventPublisher;
+    private boolean async;
+    private boolean contentAddressed;
+    private long maxFileSize;
     private String baseUrl;
 
     public FileUploadService(
             FileUploadRecordsRepository fileUploadRecordsRepository,
             FileStorageService fileStorageService,
+            UploadStaging uploadStaging,
+            ImageVariantService imageVariantService,
+            BlobStore blobStore,
+            @Qualifier("uploadExecutor") TaskExecutor uploadExecutor,
+            ApplicationEventPublisher eventPublisher,
+            @Value("${uploads.async:false}") boolean async,
+            @Value("${storage.contentAddressed:false}") boolean contentAddressed,
+            @Value("${spring.servlet.multipart.max-file-size}") DataSize maxFileSize,
             @Value("${service.baseUrl}") String baseUrl) {
         this.fileUploadRecordsRepository = fileUploadRecordsRepository;
         this.fileStorageService = fileStorageService;
+        this.uploadStaging = uploadStaging;
+        this.imageVariantService = imageVariantService;
+        this.blobStore = blobStore;
+        this.uploadExecutor = uploadExecutor;
+        this.eventPublisher = eventPublisher;
+        this.async = async;
+        this.contentAddressed = contentAddressed;
+        this.maxFileSize = maxFileSize.toBytes();
         this.baseUrl = baseUrl;
     }
 
-    public List<FileUploadRecord> getFiles() {
-        return fileUploadRecordsRepository.findAll()
-                .stream()
-                .map(this::enrichWithUrl)
-                .collect(Collectors.toList());
+    public FileUploadRecordsPage getFiles(FileUploadRecordsFilter filter, String cursor, int limit) {
+        FileUploadRecordsCursor after = cursor == null
+                ? null
+                : FileUploadRecordsCursor.tryDecode(cursor).orElseThrow(() -> new InvalidCursorException(cursor));
+        int pageSize = Math.max(1, Math.min(limit, maxPageSize));
+
+        // fetch one extra record to find out whether there is a next page
+        List<FileUploadRecord> records = fileUploadRecordsRepository.findPage(filter, after, pageSize + 1);
+        String nextCursor = null;
+        if (records.size() > pageSize) {
+            records = records.subList(0, pageSize);
+            nextCursor = FileUploadRecordsCursor.after(records.get(pageSize - 1)).encode();
+        }
+
+        records.forEach(this::enrichWithUrl);
+        return new FileUploadRecordsPage(records, nextCursor);
+    }
+
+    /**
+     * Lazily streams every matching record; the caller must close the stream
+     */
+    public Stream<FileUploadRecord> streamFiles(FileUploadRecordsFilter filter) {
+        return fileUploadRecordsRepository.streamAll(filter)
+                .map(this::enrichWithUrl);
+    }
+
+    public Optional<FileUploadRecord> getFileRecord(String name) {
+        return fileUploadRecordsRepository.findCachedById(name);
+    }
+
+    /**
+     * The record as clients see it, with the url of a succeeded upload. The cache hands out copies,
+     * so the url is set on this caller's copy only.
+     */
+    public Optional<FileUploadRecord> getFileRecordWithUrl(String name) {
+        return fileUploadRecordsRepository.findCachedById(name)
+                .map(this::enrichWithUrl);
+    }
+
+    /**
+     * Reads the records from Mongo rather than the record cache, so changes made by other instances show right away
+     */
+    public List<FileUploadRecord> getFileRecords(Collection<String> names) {
+        List<FileUploadRecord> records = new ArrayList<>();
+        fileUploadRecordsRepository.findAllById(names).forEach(record -> records.add(enrichWithUrl(record)));
+        return records;
+    }
+
+    /**
+     * @return the storage key of the requested image variant, or of the original when no size is requested
+     * or that variant wasn't generated (the image is smaller, or generation hasn't finished)
+     */
+    public String getFileKey(String name, Optional<FileUploadRecord> record, String size) {
+        if (size == null) {
+            return record.map(FileUploadRecord::getStorageKey).orElse(name);
+        }
+        if (!imageVariantService.getSizes().contains(size)) {
+            throw new InvalidVariantException(size);
+        }
+        return record.map(FileUploadRecord::getVariants)
+                .filter(variants -> variants.contains(size))
+                .map(variants -> ImageVariantService.getKey(name, size))
+                .orElseGet(() -> record.map(FileUploadRecord::getStorageKey).orElse(name));
     }
 
     public Resource getFile(String name) throws IOException {
         return fileStorageService.load(name);
     }
 
-    @Transactional
-    public FileUploadRecord uploadFile(AuthenticatedUser user, MultipartFile file, LocalDateTime timestamp) {
-        String filename = file.getOriginalFilename();
+    public Optional<URL> getFileRedirectUrl(String name) {
+        return fileStorageService.getRedirectUrl(name);
+    }
 
+    /**
+     * Stages the content on local disk as it is read from the request, measuring its size and hash along the way.
+     * In async mode the record is then returned while still pending; a worker pushes the content to storage
+     * and publishes the final status. Otherwise the content is moved into place once the upload is marked
+     * succeeded, see {@link #promoteStaged}; in content-addressed mode it is stored under its hash instead.
+     * The name is claimed and the final status set with one conditional write each, so concurrent uploads
+     * of the same name can't both succeed.
+     */
+    public FileUploadRecord uploadFile(
+            AuthenticatedUser user,
+            String filename,
+            String type,
+            InputStream content,
+            LocalDateTime timestamp) throws IOException {
         // todo: create a directory per each user, decide what to do with clashing names
-        if (fileUploadRecordsRepository.isPendingOrSucceeded(filename)) {
-            throw new FileWithNameAlreadyExistsException(filename);
-        }
-
+        checkValidName(filename);
         FileUploadRecord record = new FileUploadRecord(
                 filename,
-                file.getContentType(),
+                type,
                 user.getUsername(),
                 timestamp,
                 FileUploadRecord.UploadStatus.pending,
                 null);
 
-        fileUploadRecordsRepository.save(record);
+        if (!fileUploadRecordsRepository.reserve(record)) {
+            throw new FileWithNameAlreadyExistsException(filename);
+        }
 
-        FileUploadRecord.UploadStatus uploadStatus;
+        MeteredInputStream meteredContent = new MeteredInputStream(content, maxFileSize);
         try {
-            fileStorageService.save(file);
-            uploadStatus = FileUploadRecord.UploadStatus.succeeded;
+            uploadStaging.stage(filename, meteredContent);
+            if (async || contentAddressed) {
+                FileUploadRecord received = fileUploadRecordsRepository.updateStatusIfPending(
+                        record, FileUploadRecord.UploadStatus.pending, meteredContent.getSize(), meteredContent.getContentHash());
+                if (received == null) {
+                    deleteStaged(filename);
+                    return finished(record, null);
+                }
+                return storeStaged(received);
+            }
+        } catch (FileTooLargeException e) {
+            fileUploadRecordsRepository.updateStatusIfPending(record, FileUploadRecord.UploadStatus.failed);
+            throw e;
         } catch (Exception e) {
             logger.error("Failed to save file {} with error message: {}", filename, e.getMessage());
-            uploadStatus = FileUploadRecord.UploadStatus.failed;
+            return finished(record, fileUploadRecordsRepository.updateStatusIfPending(record, FileUploadRecord.UploadStatus.failed));
+        }
+        return promoteStaged(record, meteredContent.getSize(), meteredContent.getContentHash());
+    }
+
+    /**
+     * Stages one file of a batch upload, under a key of its own since its name isn't claimed yet
+     *
+     * @return the staged file, without a key if it was too large
+     */
+    public StagedUpload stageBatchFile(String filename, String type, InputStream content) throws IOException {
+        String key = UUID.randomUUID().toString();
+        MeteredInputStream meteredContent = new MeteredInputStream(content, maxFileSize);
+        try {
+            uploadStaging.stage(key, meteredContent);
+        } catch (FileTooLargeException e) {
+            return new StagedUpload(filename, type, null, meteredContent.getSize(), null);
+        }
+        return new StagedUpload(filename, type, key, meteredContent.getSize(), meteredContent.getContentHash());
+    }
+
+    /**
+     * Deletes what is left staged of a batch upload
+     */
+    public void discardStaged(List<StagedUpload> files) {
+        for (StagedUpload file : files) {
+            if (file.getKey() == null) {
+                continue;
+            }
+            try {
+                uploadStaging.delete(file.getKey());
+            } catch (IOException e) {
+                logger.warn("Failed to delete staged file {} with error message: {}", file.getName(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Uploads staged files together: their names are claimed in one bulk write, their content is stored
+     * in parallel on the upload workers, and their final statuses are set in one bulk write.
+     * In async mode the files are left to the workers and returned while still pending.
+     *
+     * @return the result of each file, in order
+     */
+    public List<FileUploadResult> uploadFiles(AuthenticatedUser user, List<StagedUpload> files, LocalDateTime timestamp) {
+        FileUploadResult[] results = new FileUploadResult[files.size()];
+        List<Integer> accepted = new ArrayList<>();
+        List<FileUploadRecord> records = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            StagedUpload file = files.get(i);
+            if (file.getKey() == null) {
+                results[i] = rejected(file.getName(), HttpStatus.PAYLOAD_TOO_LARGE, new FileTooLargeException(maxFileSize));
+                continue;
+            }
+            try {
+                checkValidName(file.getName());
+            } catch (InvalidUploadException e) {
+                results[i] = rejected(file.getName(), HttpStatus.BAD_REQUEST, e);
+                continue;
+            }
+            accepted.add(i);
+            records.add(new FileUploadRecord(
+                    file.getName(),
+                    file.getType(),
+                    user.getUsername(),
+                    timestamp,
+                    FileUploadRecord.UploadStatus.pending,
+                    file.getSize(),
+                    file.getContentHash(),
+                    null,
+                    null,
+                    null,
+                    null));
+        }
+
+        List<Boolean> reserved = fileUploadRecordsRepository.reserveAll(records);
+        List<Integer> claimed = new ArrayList<>();
+        List<FileUploadRecord> claimedRecords = new ArrayList<>();
+        List<FileUploadRecord> notStaged = new ArrayList<>();
+        for (int j = 0; j < records.size(); j++) {
+            int i = accepted.get(j);
+            FileUploadRecord record = records.get(j);
+            if (!reserved.get(j)) {
+                results[i] = rejected(record.getName(), HttpStatus.CONFLICT, new FileWithNameAlreadyExistsException(record.getName()));
+                continue;
+            }
+            try {
+                // the name is claimed, so the content can be staged under it like any other upload
+                uploadStaging.move(files.get(i).getKey(), record.getName());
+                claimed.add(i);
+                claimedRecords.add(record);
+            } catch (IOException e) {
+                logger.error("Failed to stage file {} with error message: {}", record.getName(), e.getMessage());
+                record.setUploadStatus(FileUploadRecord.UploadStatus.failed);
+                notStaged.add(record);
+                results[i] = new FileUploadResult(record.getName(), HttpStatus.INTERNAL_SERVER_ERROR.value(), e.getMessage(), record);
+            }
         }
+        if (!notStaged.isEmpty()) {
+            fileUploadRecordsRepository.updateStatusIfPending(notStaged);
+        }
+
+        if (claimed.isEmpty()) {
+            return List.of(results);
+        }
+        if (async) {
+            for (int k = 0; k < claimed.size(); k++) {
+                results[claimed.get(k)] = result(storeAsync(claimedRecords.get(k)));
+            }
+            return List.of(results);
+        }
+
+        List<CompletableFuture<FileUploadRecord>> stored = claimedRecords.stream()
+                .map(record -> CompletableFuture.supplyAsync(() -> storeContent(record).applyTo(record), uploadExecutor))
+                .collect(Collectors.toList());
+        List<FileUploadRecord> updated = fileUploadRecordsRepository.updateStatusIfPending(stored.stream()
+                .map(CompletableFuture::join)
+                .collect(Collectors.toList()));
+        for (int k = 0; k < claimed.size(); k++) {
+            FileUploadRecord record = updated.get(k);
+            if (record == null) {
+                FileUploadRecord expired = stored.get(k).join();
+                logger.warn("Upload {} expired while its content was being stored", expired.getName());
+                if (expired.getBlob() != null) {
+                    blobStore.release(expired.getBlob());
+                }
+                expired.setUploadStatus(FileUploadRecord.UploadStatus.failed);
+                record = expired;
+            } else {
+                published(record);
+            }
+            results[claimed.get(k)] = result(enrichWithUrl(record));
+        }
+        return List.of(results);
+    }
+
+    /**
+     * Starts a resumable upload; the record stays pending with its declared size until every byte has arrived
+     */
+    public FileUploadRecord createUpload(
+            AuthenticatedUser user,
+            String filename,
+            String type,
+            long length,
+            LocalDateTime timestamp) throws IOException {
+        if (length < 0 || length > uploadStaging.getMaxUploadLength()) {
+            throw new InvalidUploadException(
+                    "Upload length must be between 0 and " + uploadStaging.getMaxUploadLength() + " bytes");
+        }
+        checkValidName(filename);
+        FileUploadRecord record = new FileUploadRecord(
+                filename,
+                type,
+                user.getUsername(),
+                timestamp,
+                FileUploadRecord.UploadStatus.pending,
+                length,
+                null,
+                0L,
+                null,
+                null,
+                null);
+        if (!fileUploadRecordsRepository.reserve(record)) {
+            throw new FileWithNameAlreadyExistsException(filename);
+        }
+        try {
+            uploadStaging.create(filename);
+        } catch (IOException e) {
+            fileUploadRecordsRepository.updateStatusIfPending(record, FileUploadRecord.UploadStatus.failed);
+            throw e;
+        }
+
+        return length == 0 ? completeUpload(record) : record;
+    }
+
+    /**
+     * @return the pending upload with its current offset, empty once its staged content is gone
+     * (e.g. after it was completed and stored)
+     */
+    public Optional<FileUploadRecord> getUpload(String filename) throws IOException {
+        Optional<FileUploadRecord> record = fileUploadRecordsRepository.findById(filename)
+                .filter(FileUploadService::isResumableUpload);
+        if (record.isPresent()) {
+            try {
+                record.get().setUploadOffset(uploadStaging.length(filename));
+            } catch (NoSuchFileException e) {
+                return Optional.empty();
+            }
+        }
+        return record;
+    }
+
+    /**
+     * Appends a chunk that starts at the current offset. The upload is completed, hashed and handed
+     * to storage as soon as the last byte arrives.
+     */
+    public FileUploadRecord appendToUpload(String filename, long offset, long chunkLength, InputStream chunk)
+            throws IOException {
+        FileUploadRecord record = getUpload(filename)
+                .orElseThrow(() -> new FileNotFoundException(filename));
+        if (record.getUploadOffset() != offset) {
+            throw new UploadOffsetConflictException(filename, offset);
+        }
+        if (chunkLength < 0 || offset + chunkLength > record.getSize()) {
+            throw new InvalidUploadException("Chunk exceeds the upload length of " + record.getSize() + " bytes");
+        }
+
+        long uploadOffset = offset + uploadStaging.append(filename, offset, chunk, chunkLength);
+        fileUploadRecordsRepository.updateUploadOffset(filename, uploadOffset);
+        record.setUploadOffset(uploadOffset);
+
+        return uploadOffset == record.getSize() ? completeUpload(record) : record;
+    }
 
-        return enrichWithUrl(fileUploadRecordsRepository.updateStatus(filename, uploadStatus));
+    /**
+     * Cancels a resumable upload that is still receiving chunks; finished uploads are deleted with {@link #deleteFile}
+     */
+    public void cancelUpload(String filename) throws IOException {
+        FileUploadRecord record = fileUploadRecordsRepository.findById(filename)
+                .filter(FileUploadService::isResumableUpload)
+                .orElseThrow(() -> new FileNotFoundException(filename));
+        // completed, expired or cancelled in the meantime
+        if (!fileUploadRecordsRepository.deleteIfReceiving(record)) {
+            throw new FileNotFoundException(filename);
+        }
+        uploadStaging.delete(filename);
     }
 
+    /**
+     * Shared content is only deleted with its last reference, and only after the record is gone,
+     * so no record is ever left pointing at deleted content
+     */
     @Transactional
     public void deleteFile(String filename) throws IOException {
-        fileStorageService.delete(filename);
+        Optional<FileUploadRecord> record = fileUploadRecordsRepository.findById(filename);
+        Optional<String> blob = record.map(FileUploadRecord::getBlob);
+        if (blob.isEmpty()) {
+            fileStorageService.delete(filename);
+        }
+        record.ifPresent(imageVariantService::deleteVariants);
         fileUploadRecordsRepository.deleteById(filename);
+        blob.ifPresent(blobStore::release);
+    }
+
+    /**
+     * Deletes the named files: they are found and authorized with one query, and deleted together, see
+     * {@link #deleteRecords}
+     *
+     * @param owner the user whose files may be deleted, null if any file may be
+     * @return the result of each name, in order
+     */
+    public List<FileUploadResult> deleteFiles(List<String> names, String owner) {
+        Map<String, FileUploadRecord> records = new HashMap<>();
+        fileUploadRecordsRepository.findAllById(names).forEach(record -> records.put(record.getName(), record));
+        List<FileUploadRecord> allowed = names.stream()
+                .distinct()
+                .map(records::get)
+                .filter(record -> record != null && (owner == null || owner.equals(record.getUsername())))
+                .collect(Collectors.toList());
+        Set<String> deleted = deleteRecords(allowed, owner);
+
+        return names.stream()
+                .map(name -> {
+                    FileUploadRecord record = records.get(name);
+                    if (record == null) {
+                        return rejected(name, HttpStatus.NOT_FOUND, new FileNotFoundException(name));
+                    }
+                    if (owner != null && !owner.equals(record.getUsername())) {
+                        return rejected(name, HttpStatus.FORBIDDEN, new NotAllowedToDeleteFileException(owner, name));
+                    }
+                    return deleted(name, deleted);
+                })
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Deletes up to limit files of the user whose name starts with the prefix; a null user or prefix matches any.
+     * The records are read through a cursor and deleted a batch at a time. Files that couldn't be deleted
+     * are left in place, so deleting every file takes repeating the call while there are more and some
+     * were deleted.
+     */
+    public FileDeleteSummary deleteFilesOf(String username, String prefix, int limit) {
+        long deleted = 0;
+        List<String> failed = new ArrayList<>();
+        boolean more;
+        try (Stream<FileUploadRecord> records = fileUploadRecordsRepository.streamByOwner(username, prefix)) {
+            Iterator<FileUploadRecord> iterator = records.iterator();
+            List<FileUploadRecord> batch = new ArrayList<>(Math.min(limit, deleteBatchSize));
+            int read = 0;
+            while (read < limit && iterator.hasNext()) {
+                batch.add(iterator.next());
+                read++;
+                if (batch.size() == deleteBatchSize || read == limit || !iterator.hasNext()) {
+                    Set<String> names = deleteRecords(batch, username);
+                    deleted += names.size();
+                    batch.stream()
+                            .map(FileUploadRecord::getName)
+                            .filter(name -> !names.contains(name))
+                            .forEach(failed::add);
+                    batch.clear();
+                }
+            }
+            more = iterator.hasNext();
+        }
+        return new FileDeleteSummary(deleted, failed, more);
+    }
+
+    /**
+     * Deletes like {@link #deleteFile}, but for many files at once: their content in as few storage requests
+     * as the backend allows, then their variants, then their records with one delete. Files whose content
+     * couldn't be deleted keep their record, so no record is left pointing at missing content.
+     *
+     * @param owner only records of this user are deleted, unless it is null
+     * @return the names of the deleted files
+     */
+    private Set<String> deleteRecords(List<FileUploadRecord> records, String owner) {
+        if (records.isEmpty()) {
+            return Set.of();
+        }
+        Set<String> failed = fileStorageService.deleteAll(records.stream()
+                .filter(record -> record.getBlob() == null)
+                .map(FileUploadRecord::getName)
+                .collect(Collectors.toList()));
+        if (!failed.isEmpty()) {
+            logger.error("Failed to delete {} of {} files from storage, e.g. {}", failed.size(), records.size(), failed.iterator().next());
+        }
+        List<FileUploadRecord> deletable = records.stream()
+                .filter(record -> !failed.contains(record.getName()))
+                .collect(Collectors.toList());
+        imageVariantService.deleteVariants(deletable);
+        Set<String> names = deletable.stream()
+                .map(FileUploadRecord::getName)
+                .collect(Collectors.toSet());
+        fileUploadRecordsRepository.deleteAllByNames(names, owner);
+        deletable.stream()
+                .map(FileUploadRecord::getBlob)
+                .filter(Objects::nonNull)
+                .forEach(blobStore::release);
+        return names;
+    }
+
+    /**
+     * Several requests can deliver the last byte (e.g. a retried or empty final chunk); only the one that sets
+     * the content hash stores the upload, the others return it as it is
+     */
+    private FileUploadRecord completeUpload(FileUploadRecord record) throws IOException {
+        String contentHash;
+        try (InputStream content = Files.newInputStream(uploadStaging.get(record.getName()).toPath())) {
+            contentHash = ContentHashes.sha256(content);
+        } catch (NoSuchFileException e) {
+            // another request already stored it
+            return enrichWithUrl(record);
+        }
+        FileUploadRecord completed = fileUploadRecordsRepository.completeIfPending(record, contentHash);
+        return completed == null ? enrichWithUrl(record) : storeStaged(completed);
+    }
+
+    /**
+     * Hands a fully staged upload to storage, on a worker in async mode
+     */
+    private FileUploadRecord storeStaged(FileUploadRecord record) {
+        return async ? storeAsync(record) : store(record);
+    }
+
+    /**
+     * When the workers are saturated the caller stores the upload itself, which throttles clients instead of
+     * failing them; the caller then gets the stored record rather than the pending one
+     */
+    private FileUploadRecord storeAsync(FileUploadRecord record) {
+        CompletableFuture<FileUploadRecord> stored = CompletableFuture.supplyAsync(() -> store(record), uploadExecutor);
+        return stored.isDone() ? stored.join() : enrichWithUrl(record);
+    }
+
+    /**
+     * Marks a staged upload succeeded and only then moves its content into place, so an upload that expired
+     * while it was being received never overwrites the content of a newer upload under the same name.
+     * Content that can't be moved into place fails the upload again.
+     */
+    private FileUploadRecord promoteStaged(FileUploadRecord record, long size, String contentHash) {
+        String filename = record.getName();
+        FileUploadRecord updated = fileUploadRecordsRepository.updateStatusIfPending(
+                record, FileUploadRecord.UploadStatus.succeeded, size, contentHash);
+        if (updated != null) {
+            try {
+                fileStorageService.save(filename, uploadStaging.get(filename), record.getType());
+            } catch (Exception e) {
+                logger.error("Failed to save file {} with error message: {}", filename, e.getMessage());
+                fileUploadRecordsRepository.failIfSucceeded(updated);
+                updated.setUploadStatus(FileUploadRecord.UploadStatus.failed);
+            }
+        }
+
+        deleteStaged(filename);
+        return finished(record, updated);
+    }
+
+    /**
+     * @param updated the record with its final status, null if the upload expired in the meantime
+     */
+    private FileUploadRecord finished(FileUploadRecord record, FileUploadRecord updated) {
+        if (updated == null) {
+            logger.warn("Upload {} expired while its content was being stored", record.getName());
+            record.setUploadStatus(FileUploadRecord.UploadStatus.failed);
+            return enrichWithUrl(record);
+        }
+        return published(updated);
+    }
+
+    /**
+     * Stores a staged upload and sets its final status only if it is still the same pending upload, so one that
+     * expired (or was deleted) in the meantime isn't brought back; shared content stored for it is released
+     */
+    private FileUploadRecord store(FileUploadRecord record) {
+        if (!contentAddressed) {
+            return promoteStaged(record, record.getSize(), record.getContentHash());
+        }
+        StoredContent content = storeContent(record);
+        FileUploadRecord stored = fileUploadRecordsRepository.updateStatusIfPending(List.of(content.applyTo(record))).get(0);
+        if (stored == null && content.blob != null) {
+            blobStore.release(content.blob);
+        }
+        return finished(record, stored);
+    }
+
+    /**
+     * Stores a staged upload and deletes it from staging, without updating its record
+     */
+    private StoredContent storeContent(FileUploadRecord record) {
+        String filename = record.getName();
+        StoredContent content = new StoredContent();
+        try {
+            if (contentAddressed) {
+                content.blob = blobStore.store(record.getContentHash(), uploadStaging.get(filename), record.getType());
+            } else {
+                fileStorageService.save(filename, uploadStaging.get(filename), record.getType());
+            }
+            content.uploadStatus = FileUploadRecord.UploadStatus.succeeded;
+        } catch (Exception e) {
+            logger.error("Failed to save file {} with error message: {}", filename, e.getMessage());
+            content.uploadStatus = FileUploadRecord.UploadStatus.failed;
+        }
+
+        deleteStaged(filename);
+        return content;
+    }
+
+    private void deleteStaged(String filename) {
+        try {
+            uploadStaging.delete(filename);
+        } catch (IOException e) {
+            logger.warn("Failed to delete staged upload {} with error message: {}", filename, e.getMessage());
+        }
+    }
+
+    private FileUploadRecord published(FileUploadRecord record) {
+        enrichWithUrl(record);
+        eventPublisher.publishEvent(new UploadStatusChangedEvent(record));
+        return record;
+    }
+
+    /**
+     * Names are used as storage keys, so they must be a single path segment
+     */
+    private void checkValidName(String filename) {
+        if (filename.isEmpty() || filename.equals(".") || filename.equals("..")
+                || filename.contains("/") || filename.contains("\\")) {
+            throw new InvalidUploadException("File names can't be empty, . or .., nor contain / or \\");
+        }
+        if (filename.startsWith(BlobStore.keyPrefix)) {
+            throw new InvalidUploadException(
+                    "File names starting with " + BlobStore.keyPrefix + " are reserved for stored content");
+        }
+        if (imageVariantService.getOriginalName(filename).isPresent()) {
+            throw new InvalidUploadException(
+                    "File names ending in " + ImageVariantService.keySeparator + "<size> are reserved for image variants");
+        }
+    }
+
+    private static FileUploadResult result(FileUploadRecord record) {
+        switch (record.getUploadStatus()) {
+            case succeeded:
+                return new FileUploadResult(record.getName(), HttpStatus.CREATED.value(), null, record);
+            case pending:
+                return new FileUploadResult(record.getName(), HttpStatus.ACCEPTED.value(), null, record);
+            default:
+                return new FileUploadResult(
+                        record.getName(), HttpStatus.INTERNAL_SERVER_ERROR.value(), "Failed to store the file", record);
+        }
+    }
+
+    private static FileUploadResult deleted(String filename, Set<String> deleted) {
+        return deleted.contains(filename)
+                ? new FileUploadResult(filename, HttpStatus.NO_CONTENT.value(), null, null)
+                : new FileUploadResult(filename, HttpStatus.INTERNAL_SERVER_ERROR.value(), "Failed to delete the file", null);
+    }
+
+    private static FileUploadResult rejected(String filename, HttpStatus status, Exception e) {
+        return new FileUploadResult(filename, status.value(), e.getMessage(), null);
+    }
+
+    private static boolean isResumableUpload(FileUploadRecord record) {
+        return record.getUploadOffset() != null
+                && FileUploadRecord.UploadStatus.pending.equals(record.getUploadStatus());
     }
 
     private FileUploadRecord enrichWithUrl(FileUploadRecord fileUploadRecord) {
-        return new FileUploadRecord(
-                fileUploadRecord.getName(),
-                fileUploadRecord.getType(),
-                fileUploadRecord.getUsername(),
-                fileUploadRecord.getDateUploaded(),
-                fileUploadRecord.getUploadStatus(),
-                FileUploadRecord.UploadStatus.succeeded.equals(fileUploadRecord.getUploadStatus())
-                        ? buildUrl(fileUploadRecord.getName())
-                        : null);
+        // records are freshly read from the repository, so set the url in place rather than copying each one
+        fileUploadRecord.setUrl(FileUploadRecord.UploadStatus.succeeded.equals(fileUploadRecord.getUploadStatus())
+                ? buildUrl(fileUploadRecord.getName())
+                : null);
+        return fileUploadRecord;
     }
 
     @SneakyThrows
     private String buildUrl(String name) {
         return baseUrl + "/fileupload/api/files/" + URLEncoder.encode(name, "UTF-8");
     }
-}
\ No newline at end of file
+
+    private static class StoredContent {
+
+        private FileUploadRecord.UploadStatus uploadStatus;
+        private String blob; // the shared content in content-addressed mode
+
+        /**
+         * @return a copy of the pending record as storing it should leave it
+         */
+        FileUploadRecord applyTo(FileUploadRecord record) {
+            return new FileUploadRecord(
+                    record.getName(),
+                    record.getType(),
+                    record.getUsername(),
+                    record.getDateUploaded(),
+                    uploadStatus,
+                    record.getSize(),
+                    record.getContentHash(),
+                    record.getUploadOffset(),
+                    record.getVariants(),
+                    blob,
+                    null);
+        }
+    }
+}
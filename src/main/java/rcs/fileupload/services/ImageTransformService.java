@@ -0,0 +1,192 @@
+package rcs.fileupload.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import rcs.fileupload.models.FileUploadRecord;
+import rcs.fileupload.services.exceptions.InvalidTransformationException;
+import rcs.fileupload.services.utils.Images;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies on-the-fly transformations to stored images. Results are cached by upload, content and normalized
+ * parameters, and concurrent requests for the same result wait for a single decode and encode.
+ * Decodes run on request threads, so only a few at a time are let through to bound cpu and memory.
+ */
+@Service
+@PropertySource("file:${app.properties}")
+public class ImageTransformService {
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private FileStorageService fileStorageService;
+    private TransformCache transformCache;
+    private int maxDimension;
+    private Semaphore workers;
+
+    private ConcurrentMap<String, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+
+    private Counter cacheHits;
+    private Counter cacheMisses;
+    private Counter coalesced;
+    private Timer cpuTimer;
+
+    public ImageTransformService(
+            FileStorageService fileStorageService,
+            TransformCache transformCache,
+            MeterRegistry meterRegistry,
+            @Value("${transform.maxDimension:4096}") int maxDimension,
+            @Value("${transform.workers:#{T(java.lang.Runtime).getRuntime().availableProcessors()}}") int workers) {
+        this.fileStorageService = fileStorageService;
+        this.transformCache = transformCache;
+        this.maxDimension = maxDimension;
+        this.workers = new Semaphore(workers);
+
+        this.cacheHits = meterRegistry.counter("fileupload.transform.cache", "result", "hit");
+        this.cacheMisses = meterRegistry.counter("fileupload.transform.cache", "result", "miss");
+        this.coalesced = meterRegistry.counter("fileupload.transform.cache", "result", "coalesced");
+        this.cpuTimer = meterRegistry.timer("fileupload.transform.cpu");
+        Gauge.builder("fileupload.transform.cache.size", transformCache, TransformCache::size)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    public Optional<ImageTransformation> getTransformation(
+            String originalType,
+            Integer width,
+            Integer height,
+            String crop,
+            String format,
+            Integer quality) {
+        return ImageTransformation.of(originalType, width, height, crop, format, quality, maxDimension);
+    }
+
+    public Resource transform(FileUploadRecord record, ImageTransformation transformation) throws IOException {
+        if (!Images.canRead(record.getType())) {
+            throw new InvalidTransformationException("Can't transform files of type " + record.getType());
+        }
+
+        // the content hash keeps a re-uploaded file from being served the previous upload's results
+        String key = record.getName() + '\n' + record.getContentHash() + '\n' + transformation.getKey();
+        Optional<InputStream> cached = transformCache.open(key);
+        if (cached.isPresent()) {
+            cacheHits.increment();
+            return new InputStreamResource(cached.get());
+        }
+
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        CompletableFuture<byte[]> running = inFlight.putIfAbsent(key, result);
+        if (running != null) {
+            coalesced.increment();
+            return new ByteArrayResource(await(running));
+        }
+
+        try {
+            // another request may have finished the same transformation since the cache was checked
+            Optional<InputStream> finished = transformCache.open(key);
+            byte[] transformed;
+            if (finished.isPresent()) {
+                cacheHits.increment();
+                try (InputStream content = finished.get()) {
+                    transformed = content.readAllBytes();
+                }
+            } else {
+                cacheMisses.increment();
+                transformed = applyBounded(record, transformation);
+                transformCache.put(key, transformed);
+            }
+            result.complete(transformed);
+            return new ByteArrayResource(transformed);
+        } catch (IOException | RuntimeException e) {
+            result.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, result);
+        }
+    }
+
+    private byte[] applyBounded(FileUploadRecord record, ImageTransformation transformation) throws IOException {
+        try {
+            workers.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to transform " + record.getName());
+        }
+        try {
+            return apply(record, transformation);
+        } finally {
+            workers.release();
+        }
+    }
+
+    private byte[] apply(FileUploadRecord record, ImageTransformation transformation) throws IOException {
+        // -1 when the JVM doesn't measure thread cpu time
+        long cpuStart = threads.getCurrentThreadCpuTime();
+        try {
+            int boundWidth = transformation.getWidth() == null ? maxDimension : transformation.getWidth();
+            int boundHeight = transformation.getHeight() == null ? maxDimension : transformation.getHeight();
+
+            BufferedImage image;
+            try (InputStream content = fileStorageService.load(record.getStorageKey()).getInputStream()) {
+                image = Images.read(content, transformation.getCrop(), Math.max(boundWidth, boundHeight));
+            } catch (IllegalArgumentException e) {
+                throw new InvalidTransformationException(e.getMessage());
+            }
+            if (image == null) {
+                throw new InvalidTransformationException(record.getName() + " can't be decoded as an image");
+            }
+
+            // fit within the bounds, keeping the aspect ratio and never upscaling
+            double ratio = Math.min(1, Math.min(
+                    (double) boundWidth / image.getWidth(),
+                    (double) boundHeight / image.getHeight()));
+            BufferedImage transformed = Images.scale(
+                    image,
+                    Math.max(1, (int) Math.round(image.getWidth() * ratio)),
+                    Math.max(1, (int) Math.round(image.getHeight() * ratio)),
+                    Images.hasAlpha(transformation.getType()));
+            return Images.encode(
+                    transformed,
+                    transformation.getType(),
+                    transformation.getQuality() == null ? 1 : transformation.getQuality() / 100f);
+        } finally {
+            if (cpuStart != -1) {
+                cpuTimer.record(threads.getCurrentThreadCpuTime() - cpuStart, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private static byte[] await(CompletableFuture<byte[]> running) throws IOException {
+        try {
+            return running.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package rcs.fileupload.services;
+
+import rcs.fileupload.services.exceptions.InvalidTransformationException;
+import rcs.fileupload.services.utils.ContentHashes;
+import rcs.fileupload.services.utils.Images;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.awt.Rectangle;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Optional;
+
+/**
+ * Crop, then resize to fit within width and/or height (never upscaling), then encode as type.
+ * Parameters are validated and normalized on creation, so equivalent requests share a key.
+ */
+@Getter
+@AllArgsConstructor
+public class ImageTransformation {
+
+    public static final int defaultQuality = 85;
+
+    private final Rectangle crop; // in pixels of the original, null for the whole image
+    private final Integer width;
+    private final Integer height;
+    private final String type;
+    private final Integer quality; // 1 to 100, only set for jpeg
+
+    /**
+     * @param crop x,y,width,height
+     * @param format image subtype such as jpeg or png, the type of the original by default
+     * @return empty if no transformation is requested
+     */
+    public static Optional<ImageTransformation> of(
+            String originalType,
+            Integer width,
+            Integer height,
+            String crop,
+            String format,
+            Integer quality,
+            int maxDimension) {
+        if (width == null && height == null && crop == null && format == null && quality == null) {
+            return Optional.empty();
+        }
+
+        checkDimension("width", width, maxDimension);
+        checkDimension("height", height, maxDimension);
+
+        if (format != null) {
+            format = format.toLowerCase(Locale.ROOT);
+        }
+        String type = format == null ? originalType : "image/" + ("jpg".equals(format) ? "jpeg" : format);
+        if (!Images.canWrite(type)) {
+            throw new InvalidTransformationException("Can't encode images as " + (format == null ? originalType : format));
+        }
+
+        if (quality != null && (quality < 1 || quality > 100)) {
+            throw new InvalidTransformationException("quality must be between 1 and 100");
+        }
+
+        return Optional.of(new ImageTransformation(
+                crop == null ? null : parseCrop(crop),
+                width,
+                height,
+                type,
+                Images.jpeg.equals(type) ? (quality == null ? defaultQuality : quality) : null));
+    }
+
+    public String getKey() {
+        return "crop=" + (crop == null ? "" : crop.x + "," + crop.y + "," + crop.width + "," + crop.height)
+                + ";width=" + (width == null ? "" : width)
+                + ";height=" + (height == null ? "" : height)
+                + ";type=" + type
+                + ";quality=" + (quality == null ? "" : quality);
+    }
+
+    /**
+     * @return a short digest of the key, to tell results apart in validators
+     */
+    public String getId() {
+        return ContentHashes.toHex(ContentHashes.newDigest().digest(getKey().getBytes(StandardCharsets.UTF_8)))
+                .substring(0, 16);
+    }
+
+    private static Rectangle parseCrop(String crop) {
+        String[] values = crop.split(",");
+        if (values.length == 4) {
+            try {
+                Rectangle rectangle = new Rectangle(
+                        Integer.parseInt(values[0].trim()),
+                        Integer.parseInt(values[1].trim()),
+                        Integer.parseInt(values[2].trim()),
+                        Integer.parseInt(values[3].trim()));
+                if (rectangle.x >= 0 && rectangle.y >= 0 && !rectangle.isEmpty()) {
+                    return rectangle;
+                }
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+        }
+        throw new InvalidTransformationException("crop must be x,y,width,height with a positive width and height");
+    }
+
+    private static void checkDimension(String name, Integer value, int maxDimension) {
+        if (value != null && (value < 1 || value > maxDimension)) {
+            throw new InvalidTransformationException(name + " must be between 1 and " + maxDimension);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package rcs.fileupload.services;
+
+import rcs.fileupload.models.FileUploadRecord;
+import rcs.fileupload.repositories.FileUploadRecordsRepository;
+import rcs.fileupload.services.utils.Images;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.stereotype.Service;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Generates resized copies of uploaded images so listing views don't have to download the originals.
+ * Each configured size bounds the longest side of its variant; variants are stored next to the original
+ * under derived keys and recorded on the upload once they are all written.
+ */
+@Service
+@PropertySource("file:${app.properties}")
+public class ImageVariantService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImageVariantService.class);
+
+    public static final char keySeparator = '~';
+
+    private static final float jpegQuality = 0.85f;
+
+    private FileUploadRecordsRepository fileUploadRecordsRepository;
+    private FileStorageService fileStorageService;
+    private TaskExecutor variantExecutor;
+    private Map<String, Integer> sizes;
+    private int largestSize;
+
+    public ImageVariantService(
+            FileUploadRecordsRepository fileUploadRecordsRepository,
+            FileStorageService fileStorageService,
+            @Qualifier("variantExecutor") TaskExecutor variantExecutor,
+            @Value("#{${variants.sizes:{thumbnail:200,medium:800,large:1600}}}") Map<String, Integer> sizes) {
+        this.fileUploadRecordsRepository = fileUploadRecordsRepository;
+        this.fileStorageService = fileStorageService;
+        this.variantExecutor = variantExecutor;
+        // largest first, so each variant is scaled down from the previous one instead of from the original
+        this.sizes = new LinkedHashMap<>();
+        sizes.entrySet().stream()
+                .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
+                .forEach(size -> this.sizes.put(size.getKey(), size.getValue()));
+        this.largestSize = this.sizes.values().stream().findFirst().orElse(0);
+    }
+
+    public Set<String> getSizes() {
+        return sizes.keySet();
+    }
+
+    public static String getKey(String name, String size) {
+        return name + keySeparator + size;
+    }
+
+    /**
+     * @return the name of the upload the key belongs to, if it is the key of a variant
+     */
+    public Optional<String> getOriginalName(String key) {
+        int separator = key.lastIndexOf(keySeparator);
+        return separator > 0 && sizes.containsKey(key.substring(separator + 1))
+                ? Optional.of(key.substring(0, separator))
+                : Optional.empty();
+    }
+
+    /**
+     * Only types that can be both decoded and encoded get variants, each in the format of its original
+     */
+    public boolean isSupported(String type) {
+        return !sizes.isEmpty() && Images.canRead(type) && Images.canWrite(type);
+    }
+
+    /**
+     * Queues variant generation for every image that was stored successfully. When the workers are saturated
+     * the image is skipped and served at its original size.
+     */
+    @EventListener
+    public void onStatusChanged(UploadStatusChangedEvent event) {
+        FileUploadRecord record = event.getRecord();
+        if (FileUploadRecord.UploadStatus.succeeded.equals(record.getUploadStatus()) && isSupported(record.getType())) {
+            try {
+                variantExecutor.execute(() -> generate(record));
+            } catch (TaskRejectedException e) {
+                logger.warn("Skipped image variants of {}, the variant workers are saturated", record.getName());
+            }
+        }
+    }
+
+    public void deleteVariants(FileUploadRecord record) {
+        if (record.getVariants() != null) {
+            deleteVariants(record.getName(), record.getVariants());
+        }
+    }
+
+    /**
+     * Deletes the variants of many uploads together, see {@link FileStorageService#deleteAll}
+     */
+    public void deleteVariants(List<FileUploadRecord> records) {
+        List<String> keys = records.stream()
+                .filter(record -> record.getVariants() != null)
+                .flatMap(record -> record.getVariants().stream().map(size -> getKey(record.getName(), size)))
+                .collect(Collectors.toList());
+        if (keys.isEmpty()) {
+            return;
+        }
+        Set<String> failed = fileStorageService.deleteAll(keys);
+        if (!failed.isEmpty()) {
+            logger.warn("Failed to delete {} image variants, e.g. {}", failed.size(), failed.iterator().next());
+        }
+    }
+
+    void generate(FileUploadRecord record) {
+        String name = record.getName();
+        List<String> generated = new ArrayList<>();
+        try {
+            BufferedImage image;
+            try (InputStream content = fileStorageService.load(record.getStorageKey()).getInputStream()) {
+                image = Images.read(content, null, largestSize);
+            }
+            if (image == null) {
+                logger.warn("Skipped image variants of {}, its content could not be decoded", name);
+                return;
+            }
+            for (Map.Entry<String, Integer> size : sizes.entrySet()) {
+                // never upscale, smaller images are served at their original size
+                if (Math.max(image.getWidth(), image.getHeight()) <= size.getValue()) {
+                    continue;
+                }
+                double ratio = (double) size.getValue() / Math.max(image.getWidth(), image.getHeight());
+                image = Images.scale(
+                        image,
+                        Math.max(1, (int) Math.round(image.getWidth() * ratio)),
+                        Math.max(1, (int) Math.round(image.getHeight() * ratio)),
+                        Images.hasAlpha(record.getType()));
+                fileStorageService.save(
+                        getKey(name, size.getKey()),
+                        new ByteArrayInputStream(Images.encode(image, record.getType(), jpegQuality)),
+                        record.getType());
+                generated.add(size.getKey());
+            }
+        } catch (Exception e) {
+            logger.error("Failed to generate image variants of {} with error message: {}", name, e.getMessage());
+        }
+
+        if (!generated.isEmpty() && !fileUploadRecordsRepository.updateVariants(name, record.getDateUploaded(), generated)) {
+            // the upload was deleted or replaced in the meantime
+            deleteVariants(name, generated);
+        }
+    }
+
+    private void deleteVariants(String name, List<String> variants) {
+        for (String size : variants) {
+            try {
+                fileStorageService.delete(getKey(name, size));
+            } catch (Exception e) {
+                logger.warn("Failed to delete image variant {} of {} with error message: {}", size, name, e.getMessage());
+            }
+        }
+    }
+}
@@ -1,53 +1,228 @@
 package rcs.fileupload.services;
 
 import rcs.fileupload.services.exceptions.FileNotFoundException;
+import rcs.fileupload.services.utils.ConsistentHash;
+import rcs.fileupload.services.utils.ContentHashes;
 import rcs.fileupload.services.utils.FileFactory;
+import lombok.SneakyThrows;
 import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
-import org.springframework.web.multipart.MultipartFile;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+/**
+ * Stores files under one or more root directories, typically one per disk. Each file is placed on a root by
+ * consistent hashing of its name, and in nested subdirectories named after the hash, so no directory grows
+ * beyond a few thousand entries. Files that aren't where their name places them, because roots were added
+ * or they predate sharding, are still found by probing the other locations when the expected one misses.
+ */
 public class LocalStorageService implements FileStorageService {
 
-    private String storageDir;
+    private static final int replicas = 100;
+    private static final int deletesPerRoot = 4;
+    private static final String partialSuffix = ".partial";
+
+    private List<String> storageDirs;
+    private int shardDepth;
     private FileFactory fileFactory;
+    private ConsistentHash<String> placement;
+    private ExecutorService deleter;
 
-    public LocalStorageService(String storageDir, FileFactory fileFactory) {
-        this.storageDir = storageDir;
+    /**
+     * @param shardDepth levels of subdirectories, each fanning out to 256, 0 for a flat layout
+     */
+    public LocalStorageService(List<String> storageDirs, int shardDepth, FileFactory fileFactory) {
+        this.storageDirs = storageDirs;
+        this.shardDepth = shardDepth;
         this.fileFactory = fileFactory;
+        this.placement = new ConsistentHash<>(storageDirs, replicas);
+
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("storage-delete-");
+        threadFactory.setDaemon(true);
+        this.deleter = Executors.newFixedThreadPool(deletesPerRoot * storageDirs.size(), threadFactory);
     }
 
+    /**
+     * Writes next to the file and moves into place once complete, so readers never see partial content
+     * and a failed save leaves the previous file as it was
+     */
     @Override
-    public void save(MultipartFile file) throws IOException {
-        file.transferTo(newFile(file.getOriginalFilename()));
+    public void save(String filename, InputStream content, String contentType) throws IOException {
+        Path target = placeFile(filename).toPath();
+        Path partial = Files.createTempFile(target.getParent(), ".", partialSuffix);
+        try {
+            Files.copy(content, partial, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        }
     }
 
+    /**
+     * Renames the file into place. A file on another filesystem (e.g. the staging dir) can't be renamed,
+     * so it is copied next to the target first, like {@link #save(String, InputStream, String)} does.
+     */
+    @Override
+    public void save(String filename, File content, String contentType) throws IOException {
+        Path target = placeFile(filename).toPath();
+        try {
+            Files.move(content.toPath(), target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            try (InputStream copied = Files.newInputStream(content.toPath())) {
+                save(filename, copied, contentType);
+            }
+            Files.delete(content.toPath());
+        }
+    }
+
+    /**
+     * Also deletes copies left in other locations, so a file that was stored again after the roots changed
+     * doesn't come back
+     */
     @Override
     public void delete(String filename) throws IOException {
-        File file = newFile(filename);
-        boolean deleted = file.delete() || !file.exists();
-        if (!deleted) {
-            throw new IOException("Failed to delete " + filename);
+        checkPlainName(filename);
+        for (String path : buildFilePaths(filename)) {
+            File file = fileFactory.newFile(path);
+            boolean deleted = file.delete() || !file.exists();
+            if (!deleted) {
+                throw new IOException("Failed to delete " + filename);
+            }
+        }
+    }
+
+    /**
+     * Files are unlinked in parallel by a few workers per root, so deletes on different disks overlap.
+     * Every file is attempted, and any failure only fails its own file.
+     */
+    @Override
+    public Set<String> deleteAll(Collection<String> filenames) {
+        Map<String, CompletableFuture<Boolean>> deletes = new LinkedHashMap<>();
+        for (String filename : filenames) {
+            deletes.put(filename, CompletableFuture.supplyAsync(() -> tryDelete(filename), deleter));
         }
+        return deletes.entrySet().stream()
+                .filter(delete -> !delete.getValue().join())
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toSet());
     }
 
     @Override
     public Resource load(String filename) throws IOException {
-        File file = newFile(filename);
-        if (file.exists()) {
-            return new FileSystemResource(file);
-        } else {
+        if (!isPlainName(filename)) {
             throw new FileNotFoundException(filename);
         }
+        for (String path : buildFilePaths(filename)) {
+            File file = fileFactory.newFile(path);
+            if (file.exists()) {
+                return new FileSystemResource(file);
+            }
+        }
+        throw new FileNotFoundException(filename);
     }
 
-    private File newFile(String filename) {
-        return fileFactory.newFile(buildFilePath(filename));
+    @Override
+    public Stream<StoredFile> list() throws IOException {
+        return storageDirs.stream()
+                .flatMap(this::walk)
+                .filter(Files::isRegularFile)
+                .filter(path -> !isPartial(path))
+                .map(LocalStorageService::toStoredFile);
+    }
+
+    public void close() {
+        deleter.shutdown();
+    }
+
+    private boolean tryDelete(String filename) {
+        try {
+            delete(filename);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
     }
 
-    private String buildFilePath(String filename) {
-        return storageDir + "/" + filename;
+    @SneakyThrows
+    private Stream<Path> walk(String storageDir) {
+        return Files.walk(Path.of(storageDir), shardDepth + 1);
+    }
+
+    @SneakyThrows
+    private static StoredFile toStoredFile(Path path) {
+        return new StoredFile(path.getFileName().toString(), Files.getLastModifiedTime(path).toInstant());
+    }
+
+    private File placeFile(String filename) throws IOException {
+        checkPlainName(filename);
+        File file = fileFactory.newFile(placement.get(filename) + "/" + buildShardedPath(filename));
+        Files.createDirectories(file.toPath().getParent());
+        return file;
+    }
+
+    private static boolean isPartial(Path path) {
+        String name = path.getFileName().toString();
+        return name.startsWith(".") && name.endsWith(partialSuffix);
+    }
+
+    private static void checkPlainName(String filename) throws IOException {
+        if (!isPlainName(filename)) {
+            throw new IOException("Invalid file name " + filename);
+        }
+    }
+
+    /**
+     * Names are user input, and are joined to the roots as paths: anything but a single path segment could
+     * reach outside of them, and nested files aren't listed anyway
+     */
+    private static boolean isPlainName(String filename) {
+        return !filename.isEmpty()
+                && !filename.equals(".")
+                && !filename.equals("..")
+                && !filename.contains("/")
+                && !filename.contains(File.separator);
+    }
+
+    /**
+     * @return where the file is placed first, then every other location it may have been stored in before
+     */
+    private Set<String> buildFilePaths(String filename) {
+        String shardedPath = buildShardedPath(filename);
+        Set<String> paths = new LinkedHashSet<>();
+        paths.add(placement.get(filename) + "/" + shardedPath);
+        for (String storageDir : storageDirs) {
+            paths.add(storageDir + "/" + shardedPath);
+            paths.add(storageDir + "/" + filename);
+        }
+        return paths;
+    }
+
+    private String buildShardedPath(String filename) {
+        String hash = ContentHashes.toHex(ContentHashes.newDigest().digest(filename.getBytes(StandardCharsets.UTF_8)));
+        StringBuilder path = new StringBuilder();
+        for (int level = 0; level < shardDepth; level++) {
+            path.append(hash, 2 * level, 2 * level + 2).append('/');
+        }
+        return path.append(filename).toString();
     }
 }
\ No newline at end of file
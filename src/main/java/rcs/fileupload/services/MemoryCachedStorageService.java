@@ -0,0 +1,141 @@
+package rcs.fileupload.services;
+
+import org.springframework.core.io.Resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+
+/**
+ * Serves small files from an {@link OffHeapCache}, loading them from the underlying storage on a miss.
+ * Saving or deleting a file drops its cached copy.
+ */
+public class MemoryCachedStorageService implements FileStorageService {
+
+    private final FileStorageService storage;
+    private final OffHeapCache cache;
+    private final ConcurrentHashMap<String, CompletableFuture<Boolean>> loads = new ConcurrentHashMap<>();
+
+    public MemoryCachedStorageService(FileStorageService storage, OffHeapCache cache) {
+        this.storage = storage;
+        this.cache = cache;
+    }
+
+    @Override
+    public void save(String filename, InputStream content, String contentType) throws IOException {
+        try {
+            storage.save(filename, content, contentType);
+        } finally {
+            invalidate(filename);
+        }
+    }
+
+    @Override
+    public void save(String filename, File content, String contentType) throws IOException {
+        try {
+            storage.save(filename, content, contentType);
+        } finally {
+            invalidate(filename);
+        }
+    }
+
+    @Override
+    public void delete(String filename) throws IOException {
+        try {
+            storage.delete(filename);
+        } finally {
+            invalidate(filename);
+        }
+    }
+
+    @Override
+    public Set<String> deleteAll(Collection<String> filenames) {
+        try {
+            return storage.deleteAll(filenames);
+        } finally {
+            filenames.forEach(this::invalidate);
+        }
+    }
+
+    /**
+     * Concurrent misses on the same file share one load from the underlying storage
+     */
+    @Override
+    public Resource load(String filename) throws IOException {
+        Optional<OffHeapCache.Entry> cached = cache.get(filename);
+        if (cached.isPresent()) {
+            cached.get().release();
+            return new OffHeapResource(cached.get(), filename, storage);
+        }
+
+        CompletableFuture<Boolean> load = new CompletableFuture<>();
+        CompletableFuture<Boolean> inflight = loads.putIfAbsent(filename, load);
+        if (inflight != null) {
+            return await(inflight) ? fromCache(filename) : storage.load(filename);
+        }
+
+        boolean cachedNow = false;
+        try {
+            Resource resource = storage.load(filename);
+            long length = resource.contentLength();
+            if (length > cache.getMaxEntrySize()) {
+                return resource;
+            }
+            try (InputStream content = resource.getInputStream()) {
+                cachedNow = cache.put(filename, content, length);
+            }
+            // a save or delete in the meantime took the load out, so what was read may be stale
+            if (!loads.remove(filename, load)) {
+                cache.invalidate(filename);
+                cachedNow = false;
+            }
+            return cachedNow ? fromCache(filename) : storage.load(filename);
+        } finally {
+            loads.remove(filename, load);
+            load.complete(cachedNow);
+        }
+    }
+
+    @Override
+    public Stream<StoredFile> list() throws IOException {
+        return storage.list();
+    }
+
+    @Override
+    public Optional<URL> getRedirectUrl(String filename) {
+        return storage.getRedirectUrl(filename);
+    }
+
+    private Resource fromCache(String filename) throws IOException {
+        Optional<OffHeapCache.Entry> entry = cache.get(filename);
+        if (entry.isEmpty()) {
+            return storage.load(filename);
+        }
+        entry.get().release();
+        return new OffHeapResource(entry.get(), filename, storage);
+    }
+
+    private void invalidate(String filename) {
+        loads.remove(filename);
+        cache.invalidate(filename);
+    }
+
+    private static boolean await(CompletableFuture<Boolean> load) throws IOException {
+        try {
+            return load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a load", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+}
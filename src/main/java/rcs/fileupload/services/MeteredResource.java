@@ -0,0 +1,12 @@
+package rcs.fileupload.services;
+
+import org.springframework.core.io.Resource;
+
+/**
+ * A resource that counts the bytes read from it. Bytes the container sends straight from its file
+ * never go through its stream, so whoever hands the file off reports them here.
+ */
+public interface MeteredResource extends Resource {
+
+    void served(long bytes);
+}
@@ -0,0 +1,198 @@
+package rcs.fileupload.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small files kept in direct memory, outside of the heap, so caching them adds no GC pressure.
+ * Memory is allocated in slabs that are cut into fixed size pages; an entry takes as many pages as it needs,
+ * and its pages go back to the free list once it has been evicted and no reader holds it any more.
+ * Which entries to keep is decided by Caffeine, weighed in pages.
+ */
+public class OffHeapCache {
+
+    static final int pageSize = 4096;
+    private static final int slabSize = 256 * pageSize;
+
+    private final long maxSize;
+    private final int maxEntrySize;
+    private final long maxAllocated;
+    private final Cache<String, Entry> entries;
+
+    // guarded by itself, like allocated
+    private final Deque<ByteBuffer> freePages = new ArrayDeque<>();
+    private long allocated;
+
+    /**
+     * @param maxSize memory kept by cached entries; up to one more entry of memory is allocated,
+     *                so a new entry fits before another is evicted to make room for it
+     */
+    public OffHeapCache(long maxSize, int maxEntrySize, MeterRegistry meterRegistry) {
+        this.maxSize = maxSize;
+        this.maxEntrySize = maxEntrySize;
+        this.maxAllocated = maxSize + maxEntrySize;
+        this.entries = Caffeine.newBuilder()
+                .maximumWeight(maxSize / pageSize)
+                .weigher((String key, Entry entry) -> entry.pages.length)
+                .removalListener((String key, Entry entry, RemovalCause cause) -> entry.release())
+                .executor(Runnable::run)
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, entries, "fileupload.storage.memory");
+        meterRegistry.gauge("fileupload.storage.memory.allocated", this, OffHeapCache::getAllocated);
+    }
+
+    public int getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    /**
+     * @return the entry, held for the caller until it calls {@link Entry#release()}
+     */
+    public Optional<Entry> get(String key) {
+        Entry entry = entries.getIfPresent(key);
+        return entry != null && entry.retain() ? Optional.of(entry) : Optional.empty();
+    }
+
+    /**
+     * Copies the content into pages; nothing is kept when it is larger than an entry may be,
+     * or all memory is held by readers
+     *
+     * @return whether the content was cached
+     */
+    public boolean put(String key, InputStream content, long length) throws IOException {
+        if (length > maxEntrySize || length > maxSize) {
+            return false;
+        }
+        int pageCount = (int) ((length + pageSize - 1) / pageSize);
+        Optional<ByteBuffer[]> pages = allocate(pageCount);
+        if (pages.isEmpty()) {
+            return false;
+        }
+
+        Entry entry = new Entry(pages.get(), (int) length);
+        try {
+            ReadableByteChannel channel = Channels.newChannel(content);
+            for (int i = 0; i < entry.pages.length; i++) {
+                ByteBuffer target = entry.pages[i].duplicate().limit(Math.min(pageSize, entry.length - i * pageSize));
+                while (target.hasRemaining()) {
+                    if (channel.read(target) < 0) {
+                        throw new IOException("Content of " + key + " is shorter than " + length + " bytes");
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            entry.release();
+            throw e;
+        }
+        entries.put(key, entry);
+        return true;
+    }
+
+    public void invalidate(String key) {
+        entries.invalidate(key);
+    }
+
+    public long getAllocated() {
+        synchronized (freePages) {
+            return allocated;
+        }
+    }
+
+    private Optional<ByteBuffer[]> allocate(int pageCount) {
+        synchronized (freePages) {
+            while (freePages.size() < pageCount && allocated < maxAllocated) {
+                int size = (int) Math.min(slabSize, roundToPages(maxAllocated - allocated));
+                ByteBuffer slab = ByteBuffer.allocateDirect(size);
+                for (int offset = 0; offset < size; offset += pageSize) {
+                    freePages.push(slab.duplicate().position(offset).limit(offset + pageSize).slice());
+                }
+                allocated += size;
+            }
+            if (freePages.size() < pageCount) {
+                return Optional.empty();
+            }
+            ByteBuffer[] pages = new ByteBuffer[pageCount];
+            for (int i = 0; i < pageCount; i++) {
+                pages[i] = freePages.pop();
+            }
+            return Optional.of(pages);
+        }
+    }
+
+    private void free(ByteBuffer[] pages) {
+        synchronized (freePages) {
+            for (ByteBuffer page : pages) {
+                freePages.push(page.clear());
+            }
+        }
+    }
+
+    private static long roundToPages(long size) {
+        return (size + pageSize - 1) / pageSize * pageSize;
+    }
+
+    /**
+     * Cached content; the cache holds one reference, and every reader another one
+     */
+    public class Entry {
+
+        private final ByteBuffer[] pages;
+        private final int length;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private Entry(ByteBuffer[] pages, int length) {
+            this.pages = pages;
+            this.length = length;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * @return read-only views of the content, with their own positions
+         */
+        public ByteBuffer[] getBuffers() {
+            ByteBuffer[] buffers = new ByteBuffer[pages.length];
+            for (int i = 0; i < pages.length; i++) {
+                buffers[i] = pages[i].asReadOnlyBuffer().clear().limit(Math.min(pageSize, length - i * pageSize));
+            }
+            return buffers;
+        }
+
+        /**
+         * @return false if the entry was already evicted and its pages may be reused
+         */
+        boolean retain() {
+            int current;
+            do {
+                current = references.get();
+                if (current == 0) {
+                    return false;
+                }
+            } while (!references.compareAndSet(current, current + 1));
+            return true;
+        }
+
+        public void release() {
+            if (references.decrementAndGet() == 0) {
+                free(pages);
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package rcs.fileupload.services;
+
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Serves an entry of the {@link OffHeapCache}. The entry is only held while it is being read, and if it was
+ * evicted in the meantime the content is read from storage instead, once for the life of this resource.
+ * The length is then taken from what storage returns; content that no longer matches a length already
+ * reported fails rather than being sent under the wrong Content-Length.
+ */
+public class OffHeapResource extends AbstractResource {
+
+    private final OffHeapCache.Entry entry;
+    private final String filename;
+    private final FileStorageService storage;
+    private Resource fallback;
+    private Long reportedLength;
+
+    public OffHeapResource(OffHeapCache.Entry entry, String filename, FileStorageService storage) {
+        this.entry = entry;
+        this.filename = filename;
+        this.storage = storage;
+    }
+
+    /**
+     * Writes the content straight from direct memory, so it is never copied into a heap array
+     */
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        if (!entry.retain()) {
+            try (InputStream content = fallback().getInputStream()) {
+                content.transferTo(Channels.newOutputStream(channel));
+            }
+            return;
+        }
+        try {
+            for (ByteBuffer buffer : entry.getBuffers()) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        } finally {
+            entry.release();
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (!entry.retain()) {
+            return fallback().getInputStream();
+        }
+        return new EntryInputStream(entry);
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public synchronized long contentLength() throws IOException {
+        if (reportedLength == null) {
+            if (entry.retain()) {
+                entry.release();
+                reportedLength = (long) entry.getLength();
+            } else {
+                reportedLength = fallback().contentLength();
+            }
+        }
+        return reportedLength;
+    }
+
+    @Override
+    public String getFilename() {
+        return filename;
+    }
+
+    @Override
+    public String getDescription() {
+        return "Cached file [" + filename + "]";
+    }
+
+    private synchronized Resource fallback() throws IOException {
+        if (fallback == null) {
+            fallback = storage.load(filename);
+        }
+        if (reportedLength != null && reportedLength != fallback.contentLength()) {
+            throw new IOException("Content of " + filename + " changed while it was being served");
+        }
+        return fallback;
+    }
+
+    /**
+     * Holds the entry until closed
+     */
+    private static class EntryInputStream extends InputStream {
+
+        private final OffHeapCache.Entry entry;
+        private final ByteBuffer[] buffers;
+        private int current;
+        private boolean closed;
+
+        EntryInputStream(OffHeapCache.Entry entry) {
+            this.entry = entry;
+            this.buffers = entry.getBuffers();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] target, int offset, int length) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (length == 0) {
+                return 0;
+            }
+            while (current < buffers.length && !buffers[current].hasRemaining()) {
+                current++;
+            }
+            if (current == buffers.length) {
+                return -1;
+            }
+            int read = Math.min(length, buffers[current].remaining());
+            buffers[current].get(target, offset, read);
+            return read;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                entry.release();
+            }
+        }
+    }
+}
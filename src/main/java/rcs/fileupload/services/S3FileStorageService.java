@@ -1,34 +1,100 @@
 package rcs.fileupload.services;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.HttpMethod;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.iterable.S3Objects;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import rcs.fileupload.services.exceptions.FileNotFoundException;
 import org.springframework.core.io.Resource;
-import org.springframework.core.io.UrlResource;
-import org.springframework.web.multipart.MultipartFile;
+import org.springframework.http.HttpStatus;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class S3FileStorageService implements FileStorageService {
 
-    protected static ObjectMetadata defaultObjectMetadata = new ObjectMetadata();
+    public enum DownloadMode {
+        stream,     // downloads are proxied through the app from a single GET
+        redirect    // downloads are redirected to a short-lived presigned url
+    }
+
+    public enum UploadMode {
+        single,     // one PUT per file
+        multipart   // parallel multipart uploads above a size threshold
+    }
+
+    private static final int listPageSize = 1000;
+    // the most keys a multi-object delete takes
+    private static final int deleteBatchSize = 1000;
 
     private AmazonS3 s3client;
     private String bucket;
+    private DownloadMode downloadMode;
+    private Duration presignedUrlExpiration;
+    private S3MultipartUploader multipartUploader; // null in single upload mode
 
     public S3FileStorageService(AmazonS3 s3client, String bucket) {
+        this(s3client, bucket, DownloadMode.stream, null, null);
+    }
+
+    public S3FileStorageService(
+            AmazonS3 s3client,
+            String bucket,
+            DownloadMode downloadMode,
+            Duration presignedUrlExpiration,
+            S3MultipartUploader multipartUploader) {
         this.s3client = s3client;
         this.bucket = bucket;
+        this.downloadMode = downloadMode;
+        this.presignedUrlExpiration = presignedUrlExpiration;
+        this.multipartUploader = multipartUploader;
     }
 
+    /**
+     * S3 needs the content length up front, otherwise the client buffers the whole stream in memory to work it out,
+     * so the content is staged to a temp file first. Uploading from a file also lets large files go up in parallel parts.
+     */
     @Override
-    public void save(MultipartFile file) throws IOException {
-        PutObjectRequest request =
-                new PutObjectRequest(bucket, file.getOriginalFilename(), file.getInputStream(), defaultObjectMetadata)
-                        .withCannedAcl(CannedAccessControlList.PublicRead);
-        s3client.putObject(request);
+    public void save(String filename, InputStream content, String contentType) throws IOException {
+        File staged = File.createTempFile("s3-upload-", null);
+        try {
+            Files.copy(content, staged.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            save(filename, staged, contentType);
+        } finally {
+            staged.delete();
+        }
+    }
+
+    @Override
+    public void save(String filename, File content, String contentType) throws IOException {
+        PutObjectRequest request = fileRequest(filename, content, contentType);
+        if (multipartUploader != null && multipartUploader.accepts(content.length())) {
+            multipartUploader.upload(request);
+        } else {
+            s3client.putObject(request);
+        }
     }
 
     @Override
@@ -36,11 +102,72 @@ public class S3FileStorageService implements FileStorageService {
         s3client.deleteObject(bucket, fileName);
     }
 
+    /**
+     * One multi-object delete per 1000 keys, in quiet mode so the response only lists the keys that failed
+     */
+    @Override
+    public Set<String> deleteAll(Collection<String> filenames) {
+        List<String> keys = new ArrayList<>(filenames);
+        Set<String> failed = new HashSet<>();
+        for (int from = 0; from < keys.size(); from += deleteBatchSize) {
+            List<String> batch = keys.subList(from, Math.min(keys.size(), from + deleteBatchSize));
+            DeleteObjectsRequest request = new DeleteObjectsRequest(bucket)
+                    .withKeys(batch.stream().map(DeleteObjectsRequest.KeyVersion::new).collect(Collectors.toList()))
+                    .withQuiet(true);
+            try {
+                s3client.deleteObjects(request);
+            } catch (MultiObjectDeleteException e) {
+                e.getErrors().forEach(error -> failed.add(error.getKey()));
+            } catch (AmazonClientException e) {
+                failed.addAll(batch);
+            }
+        }
+        return failed;
+    }
+
     @Override
     public Resource load(String filename) throws IOException {
-        if (!s3client.doesObjectExist(bucket, filename)) {
-            throw new FileNotFoundException(filename);
+        try {
+            return new S3ObjectResource(s3client, bucket, s3client.getObject(bucket, filename));
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == HttpStatus.NOT_FOUND.value()) {
+                throw new FileNotFoundException(filename);
+            }
+            throw e;
         }
-        return new UrlResource(s3client.getUrl(bucket, filename));
     }
-}
\ No newline at end of file
+
+    /**
+     * Objects are listed a page at a time as the stream is consumed
+     */
+    @Override
+    public Stream<StoredFile> list() {
+        return StreamSupport.stream(S3Objects.inBucket(s3client, bucket).withBatchSize(listPageSize).spliterator(), false)
+                .map(summary -> new StoredFile(summary.getKey(), summary.getLastModified().toInstant()));
+    }
+
+    /**
+     * Presigning is a local computation, so this costs no round-trip to S3
+     */
+    @Override
+    public Optional<URL> getRedirectUrl(String filename) {
+        if (downloadMode != DownloadMode.redirect) {
+            return Optional.empty();
+        }
+        Date expiration = Date.from(Instant.now().plus(presignedUrlExpiration));
+        return Optional.of(s3client.generatePresignedUrl(bucket, filename, expiration, HttpMethod.GET));
+    }
+
+    private PutObjectRequest fileRequest(String key, File content, String contentType) {
+        return new PutObjectRequest(bucket, key, content)
+                .withMetadata(metadata(content.length(), contentType))
+                .withCannedAcl(CannedAccessControlList.PublicRead);
+    }
+
+    private static ObjectMetadata metadata(long contentLength, String contentType) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(contentLength);
+        metadata.setContentType(contentType);
+        return metadata;
+    }
+}
@@ -0,0 +1,48 @@
+package rcs.fileupload.services;
+
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.transfer.TransferManager;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Uploads large files as parallel multipart uploads on the TransferManager's shared, bounded thread pool.
+ * Failed parts are retried by the S3 client's retry policy; since parts are read from a file they can be re-sent.
+ */
+public class S3MultipartUploader {
+
+    private final TransferManager transferManager;
+    private final long threshold;
+
+    // each multipart upload parks one pool thread while it waits for its parts,
+    // so capping concurrent uploads below the pool size keeps threads free for the parts themselves
+    private final Semaphore uploadPermits;
+
+    public S3MultipartUploader(TransferManager transferManager, long threshold, int maxConcurrentUploads) {
+        this.transferManager = transferManager;
+        this.threshold = threshold;
+        this.uploadPermits = new Semaphore(maxConcurrentUploads);
+    }
+
+    public boolean accepts(long contentLength) {
+        return contentLength >= threshold;
+    }
+
+    /**
+     * @param request must upload from a file, otherwise parts are sent serially
+     */
+    public void upload(PutObjectRequest request) throws InterruptedIOException {
+        try {
+            uploadPermits.acquire();
+            try {
+                transferManager.upload(request).waitForCompletion();
+            } finally {
+                uploadPermits.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while uploading " + request.getKey());
+        }
+    }
+}
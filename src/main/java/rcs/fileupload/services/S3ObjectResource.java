@@ -0,0 +1,153 @@
+package rcs.fileupload.services;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import org.springframework.core.io.AbstractResource;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Serves an object fetched with a single GET; content length and last-modified come from
+ * the response metadata, so no extra HEAD request is needed.
+ * The GET holds a pooled connection until its content is read, so close this once the response is written:
+ * content nobody read (HEAD, 416, errors) is aborted rather than left on the connection.
+ */
+public class S3ObjectResource extends AbstractResource implements Closeable {
+
+    private final AmazonS3 s3client;
+    private final String bucket;
+    private final String key;
+    private final long contentLength;
+    private final long lastModified;
+    private S3Object object;
+
+    public S3ObjectResource(AmazonS3 s3client, String bucket, S3Object object) {
+        this.s3client = s3client;
+        this.bucket = bucket;
+        this.key = object.getKey();
+        this.contentLength = object.getObjectMetadata().getContentLength();
+        this.lastModified = object.getObjectMetadata().getLastModified() == null
+                ? 0
+                : object.getObjectMetadata().getLastModified().getTime();
+        this.object = object;
+    }
+
+    /**
+     * The first call returns the stream already opened by the GET. Readers that need the content again
+     * (e.g. one per part of a multi-range response) get a ranged GET from the offset they first skip to,
+     * so they don't download what they skip.
+     */
+    @Override
+    public synchronized InputStream getInputStream() {
+        Content content = object != null
+                ? new Content(object.getObjectContent())
+                : new Content(null);
+        object = null;
+        return content;
+    }
+
+    /**
+     * Aborts the GET if its content was never handed out
+     */
+    @Override
+    public synchronized void close() {
+        if (object != null) {
+            object.getObjectContent().abort();
+            object = null;
+        }
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public long contentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public long lastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public String getFilename() {
+        return key;
+    }
+
+    @Override
+    public String getDescription() {
+        return "S3 object [" + bucket + "/" + key + "]";
+    }
+
+    /**
+     * Closing a partly read S3 stream drains the rest of the object, so one not read to the end is aborted instead
+     */
+    private class Content extends InputStream {
+
+        private S3ObjectInputStream stream;
+        private long position;
+
+        Content(S3ObjectInputStream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = open() ? stream.read() : -1;
+            if (read != -1) {
+                position++;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = open() ? stream.read(b, off, len) : -1;
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = stream != null
+                    ? stream.skip(n)
+                    : Math.max(0, Math.min(n, contentLength - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (stream == null) {
+                return;
+            }
+            if (position >= contentLength) {
+                stream.close();
+            } else {
+                stream.abort();
+            }
+        }
+
+        /**
+         * @return false if there is nothing left from where the reader skipped to
+         */
+        private boolean open() {
+            if (stream == null) {
+                if (position >= contentLength) {
+                    return false;
+                }
+                stream = s3client.getObject(new GetObjectRequest(bucket, key).withRange(position)).getObjectContent();
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package rcs.fileupload.services;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * A file of a batch upload, staged before its name is claimed
+ */
+@Getter
+@AllArgsConstructor
+public class StagedUpload {
+
+    private final String name;
+    private final String type;
+    private final String key; // staging key, null if the file was too large and wasn't staged
+    private final long size;
+    private final String contentHash;
+}
@@ -0,0 +1,254 @@
+package rcs.fileupload.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import rcs.fileupload.models.BlobRecord;
+import rcs.fileupload.models.FileUploadRecord;
+import rcs.fileupload.repositories.BlobRecordsRepository;
+import rcs.fileupload.repositories.FileUploadRecordsRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Periodically brings the catalog and storage back in line after crashes and partial failures:
+ * uploads stuck in pending are failed, which frees their names, and stored files that no pending or succeeded
+ * record points to, directly or as one of its image variants, are deleted, as is shared content that no upload
+ * references any more, including references left behind by uploads that never finished.
+ * Both sides are read as streams and checked a page at a time, so memory use doesn't depend on the size
+ * of the catalog or the bucket.
+ */
+@Service
+@PropertySource("file:${app.properties}")
+public class StorageReconciler {
+
+    private static final Logger logger = LoggerFactory.getLogger(StorageReconciler.class);
+
+    private static final int pageSize = 1000;
+
+    private FileUploadRecordsRepository fileUploadRecordsRepository;
+    private BlobRecordsRepository blobRecordsRepository;
+    private BlobStore blobStore;
+    private FileStorageService fileStorageService;
+    private UploadStaging uploadStaging;
+    private ImageVariantService imageVariantService;
+    private Duration pendingTimeout;
+    private Duration resumableTimeout;
+    private Duration orphanGracePeriod;
+
+    private Counter expiredUploads;
+    private Counter deletedOrphans;
+    private Counter failures;
+    private Timer pendingPassTimer;
+    private Timer orphanPassTimer;
+
+    private ExecutorService executor;
+
+    public StorageReconciler(
+            FileUploadRecordsRepository fileUploadRecordsRepository,
+            BlobRecordsRepository blobRecordsRepository,
+            BlobStore blobStore,
+            FileStorageService fileStorageService,
+            UploadStaging uploadStaging,
+            ImageVariantService imageVariantService,
+            MeterRegistry meterRegistry,
+            @Value("${reconciler.pendingTimeout:1h}") Duration pendingTimeout,
+            @Value("${reconciler.resumableTimeout:24h}") Duration resumableTimeout,
+            @Value("${reconciler.orphanGracePeriod:1h}") Duration orphanGracePeriod) {
+        this.fileUploadRecordsRepository = fileUploadRecordsRepository;
+        this.blobRecordsRepository = blobRecordsRepository;
+        this.blobStore = blobStore;
+        this.fileStorageService = fileStorageService;
+        this.uploadStaging = uploadStaging;
+        this.imageVariantService = imageVariantService;
+        this.pendingTimeout = pendingTimeout;
+        this.resumableTimeout = resumableTimeout;
+        this.orphanGracePeriod = orphanGracePeriod;
+
+        this.expiredUploads = meterRegistry.counter("fileupload.reconciler.expired");
+        this.deletedOrphans = meterRegistry.counter("fileupload.reconciler.orphans");
+        this.failures = meterRegistry.counter("fileupload.reconciler.failures");
+        this.pendingPassTimer = meterRegistry.timer("fileupload.reconciler.duration", "pass", "pending");
+        this.orphanPassTimer = meterRegistry.timer("fileupload.reconciler.duration", "pass", "orphans");
+
+        this.executor = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("reconciler-"));
+    }
+
+    /**
+     * Runs both passes in parallel; every change is conditional, so overlapping runs on other instances are harmless
+     */
+    @Scheduled(initialDelayString = "${reconciler.initialDelay:PT5M}", fixedDelayString = "${reconciler.interval:PT1H}")
+    public void reconcile() {
+        CompletableFuture<Void> pendingPass = CompletableFuture.runAsync(
+                () -> pendingPassTimer.record(() -> run("pending", this::expireStalePending)), executor);
+        orphanPassTimer.record(() -> run("orphans", this::deleteOrphans));
+        pendingPass.join();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    void expireStalePending() {
+        LocalDateTime now = LocalDateTime.now();
+        try (Stream<FileUploadRecord> stale = fileUploadRecordsRepository.streamStalePending(
+                now.minus(pendingTimeout), now.minus(resumableTimeout))) {
+            stale.forEach(record -> {
+                if (fileUploadRecordsRepository.expirePending(record)) {
+                    expiredUploads.increment();
+                    logger.info("Expired upload {} that was pending since {}", record.getName(), record.getDateUploaded());
+                    deleteStaged(record.getName());
+                }
+            });
+        }
+    }
+
+    void deleteOrphans() throws IOException {
+        // files written after this can belong to uploads whose records are newer than the page lookup
+        Instant modifiedBefore = Instant.now().minus(orphanGracePeriod);
+        LocalDateTime staleBefore = LocalDateTime.now().minus(orphanGracePeriod);
+        for (BlobRecord blob : blobRecordsRepository.findStaleDeleting(staleBefore)) {
+            // deletions that were interrupted before the record was removed
+            deleteBlob(blob.getHash(), staleBefore);
+        }
+        try (Stream<StoredFile> stored = fileStorageService.list()) {
+            Iterator<StoredFile> iterator = stored.iterator();
+            List<String> page = new ArrayList<>(pageSize);
+            while (iterator.hasNext()) {
+                StoredFile file = iterator.next();
+                if (file.getLastModified().isBefore(modifiedBefore)) {
+                    page.add(file.getName());
+                }
+                if (page.size() == pageSize || (!iterator.hasNext() && !page.isEmpty())) {
+                    deleteOrphans(page, staleBefore);
+                    page.clear();
+                }
+            }
+        }
+    }
+
+    private void deleteOrphans(List<String> keys, LocalDateTime staleBefore) {
+        Map<Boolean, List<String>> isBlob = keys.stream()
+                .collect(Collectors.partitioningBy(key -> BlobStore.getHash(key).isPresent()));
+
+        List<String> hashes = isBlob.get(true).stream()
+                .map(key -> BlobStore.getHash(key).get())
+                .collect(Collectors.toList());
+        Set<String> referenced = hashes.isEmpty() ? Set.of() : blobRecordsRepository.findReferenced(hashes);
+        Set<String> leaked = referenced.isEmpty() ? Set.of() : dropLeakedReferences(referenced, staleBefore);
+        hashes.stream()
+                .filter(hash -> !referenced.contains(hash) || leaked.contains(hash))
+                .forEach(hash -> deleteBlob(hash, staleBefore));
+
+        List<String> names = isBlob.get(false);
+        // image variants live as long as the upload they were generated from
+        Map<String, String> owners = names.stream()
+                .collect(Collectors.toMap(
+                        Function.identity(),
+                        name -> imageVariantService.getOriginalName(name).orElse(name)));
+        Set<String> live = fileUploadRecordsRepository.findLiveNames(new HashSet<>(owners.values()));
+        List<String> orphans = names.stream()
+                .filter(name -> !live.contains(owners.get(name)))
+                .collect(Collectors.toList());
+        for (String orphan : orphans) {
+            // a new upload may have claimed the name since the page was looked up, and the file it moved into
+            // place can keep an old modification time
+            if (!fileUploadRecordsRepository.findLiveNames(Set.of(owners.get(orphan))).isEmpty()) {
+                continue;
+            }
+            try {
+                fileStorageService.delete(orphan);
+                deletedOrphans.increment();
+                logger.info("Deleted orphaned file {}", orphan);
+            } catch (Exception e) {
+                failures.increment();
+                logger.error("Failed to delete orphaned file {} with error message: {}", orphan, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A reference is taken before the upload's record points to the content, so an upload that fails or crashes
+     * in between leaves one behind. Content that no record points to, and whose references haven't changed
+     * for the grace period, only has such references left.
+     *
+     * @return the hashes whose references were dropped
+     */
+    private Set<String> dropLeakedReferences(Collection<String> hashes, LocalDateTime staleBefore) {
+        List<BlobRecord> stale = blobRecordsRepository.findStaleReferenced(hashes, staleBefore);
+        if (stale.isEmpty()) {
+            return Set.of();
+        }
+        Set<String> inUse = fileUploadRecordsRepository.findBlobsInUse(stale.stream()
+                .map(blob -> BlobStore.getKey(blob.getHash()))
+                .collect(Collectors.toList()));
+        Set<String> leaked = new HashSet<>();
+        for (BlobRecord blob : stale) {
+            if (!inUse.contains(BlobStore.getKey(blob.getHash()))
+                    && blobRecordsRepository.markUnreferenced(blob.getHash(), blob.getDateModified())) {
+                logger.warn("Dropped {} leaked references to blob {}", blob.getRefCount(), blob.getHash());
+                leaked.add(blob.getHash());
+            }
+        }
+        return leaked;
+    }
+
+    private void deleteBlob(String hash, LocalDateTime staleBefore) {
+        try {
+            if (blobStore.deleteUnreferenced(hash, staleBefore)) {
+                deletedOrphans.increment();
+                logger.info("Deleted unreferenced blob {}", hash);
+            }
+        } catch (Exception e) {
+            failures.increment();
+            logger.error("Failed to delete unreferenced blob {} with error message: {}", hash, e.getMessage());
+        }
+    }
+
+    private void deleteStaged(String name) {
+        try {
+            uploadStaging.delete(name);
+        } catch (IOException e) {
+            failures.increment();
+            logger.error("Failed to delete staged upload {} with error message: {}", name, e.getMessage());
+        }
+    }
+
+    private void run(String pass, Pass action) {
+        try {
+            action.run();
+        } catch (Exception e) {
+            failures.increment();
+            logger.error("Reconciliation pass {} failed with error message: {}", pass, e.getMessage());
+        }
+    }
+
+    private interface Pass {
+        void run() throws Exception;
+    }
+}
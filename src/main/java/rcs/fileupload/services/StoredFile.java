@@ -0,0 +1,14 @@
+package rcs.fileupload.services;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.Instant;
+
+@Getter
+@AllArgsConstructor
+public class StoredFile {
+
+    private final String name;
+    private final Instant lastModified;
+}
@@ -0,0 +1,384 @@
+package rcs.fileupload.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Keeps copies of remote objects on a bounded local disk. Objects are admitted and evicted by Caffeine's
+ * W-TinyLFU policy, which keeps frequently read objects over ones that were only read once, so a skewed
+ * access pattern is mostly served locally. Writes go through to the remote storage, which stays the source of truth.
+ * Local hits are regular files, so the container can send them with sendfile.
+ */
+public class TieredStorageService implements FileStorageService {
+
+    private static final Logger logger = LoggerFactory.getLogger(TieredStorageService.class);
+
+    private final FileStorageService remote;
+    private final Path dir;
+    private final long maxObjectSize;
+    private final boolean keepOnWrite;
+    private final Duration deleteDelay;
+    private final Cache<String, Path> local;
+    private final ConcurrentHashMap<String, CompletableFuture<Path>> downloads = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService deleter;
+
+    private final Counter localBytes;
+    private final Counter remoteBytes;
+
+    /**
+     * @param maxObjectSize larger objects are streamed from the remote storage without being kept
+     * @param keepOnWrite whether saved objects are kept right away, rather than only once they are read
+     * @param deleteDelay evicted files are only deleted after this, so a file that was just handed out
+     *                    is still there when the response is written
+     */
+    public TieredStorageService(
+            FileStorageService remote,
+            Path dir,
+            long maxSize,
+            long maxObjectSize,
+            boolean keepOnWrite,
+            Duration deleteDelay,
+            MeterRegistry meterRegistry) throws IOException {
+        this.remote = remote;
+        this.dir = dir;
+        this.maxObjectSize = maxObjectSize;
+        this.keepOnWrite = keepOnWrite;
+        this.deleteDelay = deleteDelay;
+
+        Files.createDirectories(dir);
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("storage-cache-");
+        threadFactory.setDaemon(true);
+        this.deleter = Executors.newSingleThreadScheduledExecutor(threadFactory);
+
+        this.local = Caffeine.newBuilder()
+                // weighed in KiB, so objects larger than 2 GiB still have an int weight
+                .maximumWeight(maxSize / 1024)
+                .weigher((String name, Path file) -> (int) Math.min(Integer.MAX_VALUE, (file.toFile().length() + 1023) / 1024))
+                .removalListener((String name, Path file, RemovalCause cause) -> deleteLater(file))
+                .executor(Runnable::run)
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, local, "fileupload.storage.cache");
+        this.localBytes = meterRegistry.counter("fileupload.storage.served.bytes", "tier", "local");
+        this.remoteBytes = meterRegistry.counter("fileupload.storage.served.bytes", "tier", "remote");
+    }
+
+    /**
+     * The content is staged on the local tier for the remote save. It is only kept there with keepOnWrite,
+     * e.g. when new uploads are read right away to generate image variants; otherwise objects are admitted
+     * when they are read, so files written once and never read don't crowd out hot ones.
+     */
+    @Override
+    public void save(String filename, InputStream content, String contentType) throws IOException {
+        Path staged = Files.createTempFile(dir, null, null);
+        boolean kept = false;
+        try {
+            Files.copy(content, staged, StandardCopyOption.REPLACE_EXISTING);
+            remote.save(filename, staged.toFile(), contentType);
+            invalidate(filename);
+            if (keepOnWrite && Files.size(staged) <= maxObjectSize) {
+                local.put(filename, staged);
+                kept = true;
+            }
+        } finally {
+            if (!kept) {
+                Files.deleteIfExists(staged);
+            }
+        }
+    }
+
+    /**
+     * With keepOnWrite, the file is also copied to the local tier
+     */
+    @Override
+    public void save(String filename, File content, String contentType) throws IOException {
+        remote.save(filename, content, contentType);
+        invalidate(filename);
+        if (keepOnWrite && content.exists() && content.length() <= maxObjectSize) {
+            Path file = Files.createTempFile(dir, null, null);
+            try {
+                Files.copy(content.toPath(), file, StandardCopyOption.REPLACE_EXISTING);
+                local.put(filename, file);
+            } catch (IOException e) {
+                Files.deleteIfExists(file);
+                logger.warn("Failed to keep a local copy of {} with error message: {}", filename, e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void delete(String filename) throws IOException {
+        remote.delete(filename);
+        invalidate(filename);
+    }
+
+    @Override
+    public Set<String> deleteAll(Collection<String> filenames) {
+        Set<String> failed = remote.deleteAll(filenames);
+        filenames.forEach(this::invalidate);
+        return failed;
+    }
+
+    @Override
+    public Resource load(String filename) throws IOException {
+        Path file = local.getIfPresent(filename);
+        if (file != null) {
+            return new CachedFileResource(file, filename, localBytes);
+        }
+        return download(filename);
+    }
+
+    @Override
+    public Stream<StoredFile> list() throws IOException {
+        return remote.list();
+    }
+
+    @Override
+    public Optional<URL> getRedirectUrl(String filename) {
+        return remote.getRedirectUrl(filename);
+    }
+
+    public void close() {
+        deleter.shutdown();
+    }
+
+    /**
+     * Concurrent misses on the same object share one download
+     */
+    private Resource download(String filename) throws IOException {
+        CompletableFuture<Path> download = new CompletableFuture<>();
+        CompletableFuture<Path> inflight = downloads.putIfAbsent(filename, download);
+        if (inflight != null) {
+            Path file = await(inflight);
+            if (file == null) {
+                return remote.load(filename);
+            }
+            return new CachedFileResource(file, filename, localBytes);
+        }
+
+        Path file = null;
+        try {
+            Resource resource = remote.load(filename);
+            if (resource.contentLength() > maxObjectSize) {
+                downloads.remove(filename, download);
+                download.complete(null);
+                return new RemoteResource(resource, remoteBytes);
+            }
+            file = Files.createTempFile(dir, null, null);
+            try (InputStream content = resource.getInputStream()) {
+                Files.copy(content, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException e) {
+            downloads.remove(filename, download);
+            download.completeExceptionally(e);
+            if (file != null) {
+                Files.deleteIfExists(file);
+            }
+            throw e;
+        }
+
+        // a save or delete in the meantime took the download out, so it may be stale and isn't kept
+        if (downloads.remove(filename, download)) {
+            local.put(filename, file);
+        } else {
+            deleteLater(file);
+        }
+        download.complete(file);
+        return new CachedFileResource(file, filename, remoteBytes);
+    }
+
+    private void invalidate(String filename) {
+        downloads.remove(filename);
+        local.invalidate(filename);
+    }
+
+    private void deleteLater(Path file) {
+        deleter.schedule(() -> {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                logger.warn("Failed to delete cached file {} with error message: {}", file, e.getMessage());
+            }
+        }, deleteDelay.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private static Path await(CompletableFuture<Path> download) throws IOException {
+        try {
+            return download.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a download", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Local copies have generated names, but are served under the name of the object.
+     * Served bytes count towards the tier the content came from.
+     */
+    private static class CachedFileResource extends FileSystemResource implements MeteredResource {
+
+        private final String filename;
+        private final Counter servedBytes;
+
+        CachedFileResource(Path file, String filename, Counter servedBytes) {
+            super(file);
+            this.filename = filename;
+            this.servedBytes = servedBytes;
+        }
+
+        @Override
+        public String getFilename() {
+            return filename;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new CountingInputStream(super.getInputStream(), servedBytes);
+        }
+
+        @Override
+        public void served(long bytes) {
+            servedBytes.increment(bytes);
+        }
+    }
+
+    /**
+     * Objects too large to keep are streamed as they are; closing this closes the remote resource if it holds a connection
+     */
+    private static class RemoteResource extends AbstractResource implements MeteredResource, Closeable {
+
+        private final Resource resource;
+        private final Counter servedBytes;
+
+        RemoteResource(Resource resource, Counter servedBytes) {
+            this.resource = resource;
+            this.servedBytes = servedBytes;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new CountingInputStream(resource.getInputStream(), servedBytes);
+        }
+
+        @Override
+        public boolean exists() {
+            return resource.exists();
+        }
+
+        @Override
+        public boolean isFile() {
+            return resource.isFile();
+        }
+
+        @Override
+        public File getFile() throws IOException {
+            return resource.getFile();
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            return resource.contentLength();
+        }
+
+        @Override
+        public long lastModified() throws IOException {
+            return resource.lastModified();
+        }
+
+        @Override
+        public String getFilename() {
+            return resource.getFilename();
+        }
+
+        @Override
+        public String getDescription() {
+            return resource.getDescription();
+        }
+
+        @Override
+        public void served(long bytes) {
+            servedBytes.increment(bytes);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (resource instanceof Closeable) {
+                ((Closeable) resource).close();
+            }
+        }
+    }
+
+    /**
+     * Counts what is read, not what is skipped, so range requests only count the ranges sent
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        private final Counter servedBytes;
+
+        CountingInputStream(InputStream in, Counter servedBytes) {
+            super(in);
+            this.servedBytes = servedBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read != -1) {
+                servedBytes.increment();
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                servedBytes.increment(read);
+            }
+            return read;
+        }
+    }
+}
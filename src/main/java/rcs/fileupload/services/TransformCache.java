@@ -0,0 +1,93 @@
+package rcs.fileupload.services;
+
+import rcs.fileupload.services.utils.ContentHashes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * Least recently used image transformation results, kept as local files under a total size limit.
+ * Entries only live as long as the process: whatever is left in the directory is cleared on startup.
+ */
+public class TransformCache {
+
+    private final Path dir;
+    private final long maxSize;
+
+    // file name -> length, in access order so the eldest entry is the least recently used
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    public TransformCache(Path dir, long maxSize) throws IOException {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        Files.createDirectories(dir);
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * The file is opened while the entry is locked, so it stays readable even if it is evicted right after
+     */
+    public synchronized Optional<InputStream> open(String key) throws IOException {
+        String fileName = fileName(key);
+        if (entries.get(fileName) == null) {
+            return Optional.empty();
+        }
+        return Optional.of(Files.newInputStream(dir.resolve(fileName)));
+    }
+
+    /**
+     * Writes outside of the lock, then evicts least recently used entries until the cache fits its limit.
+     * Results larger than the whole cache are not kept.
+     */
+    public void put(String key, byte[] content) throws IOException {
+        if (content.length > maxSize) {
+            return;
+        }
+        String fileName = fileName(key);
+        Path temp = Files.createTempFile(dir, fileName, ".tmp");
+        try {
+            Files.write(temp, content);
+            synchronized (this) {
+                Files.move(temp, dir.resolve(fileName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Long replaced = entries.put(fileName, (long) content.length);
+                size += content.length - (replaced == null ? 0 : replaced);
+                evict();
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    private void evict() throws IOException {
+        Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+        while (size > maxSize && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            Files.deleteIfExists(dir.resolve(entry.getKey()));
+            size -= entry.getValue();
+            eldest.remove();
+        }
+    }
+
+    private static String fileName(String key) {
+        // keys hold user supplied names and parameters, so hash them into safe, fixed length file names
+        return ContentHashes.toHex(ContentHashes.newDigest().digest(key.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,133 @@
+package rcs.fileupload.services;
+
+import rcs.fileupload.services.exceptions.UploadOffsetConflictException;
+import rcs.fileupload.services.utils.ContentHashes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Local files that uploads wait in before they are handed to storage. Resumable uploads are appended to
+ * chunk by chunk until they are complete, and the size of the staged file is their authoritative offset.
+ */
+public class UploadStaging {
+
+    private static final int bufferSize = 64 * 1024;
+
+    private final Path dir;
+    private final long maxUploadLength;
+
+    public UploadStaging(Path dir, long maxUploadLength) {
+        this.dir = dir;
+        this.maxUploadLength = maxUploadLength;
+    }
+
+    public long getMaxUploadLength() {
+        return maxUploadLength;
+    }
+
+    public void create(String name) throws IOException {
+        Files.createDirectories(dir);
+        Files.write(path(name), new byte[0]);
+    }
+
+    /**
+     * Stages a complete upload, synced to disk so it survives a crash before it reaches storage
+     */
+    public void stage(String name, InputStream content) throws IOException {
+        Files.createDirectories(dir);
+        Path path = path(name);
+        try (FileChannel channel = FileChannel.open(
+                path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            byte[] buffer = new byte[bufferSize];
+            int read;
+            while ((read = content.read(buffer)) != -1) {
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                while (chunk.hasRemaining()) {
+                    channel.write(chunk);
+                }
+            }
+            channel.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+    }
+
+    public long length(String name) throws IOException {
+        return Files.size(path(name));
+    }
+
+    public File get(String name) {
+        return path(name).toFile();
+    }
+
+    /**
+     * Appends at most maxLength bytes of content, which must start at the end of the staged file.
+     * If the client goes away mid-chunk, whatever arrived is kept so the retry can resume from there.
+     *
+     * @return the number of bytes appended
+     */
+    public long append(String name, long offset, InputStream content, long maxLength) throws IOException {
+        try (FileChannel channel = FileChannel.open(path(name), StandardOpenOption.WRITE);
+             FileLock lock = tryLock(channel)) {
+            if (lock == null || channel.size() != offset) {
+                throw new UploadOffsetConflictException(name, offset);
+            }
+
+            byte[] buffer = new byte[(int) Math.min(bufferSize, Math.max(1, maxLength))];
+            long written = 0;
+            try {
+                int read;
+                while (written < maxLength
+                        && (read = content.read(buffer, 0, (int) Math.min(buffer.length, maxLength - written))) != -1) {
+                    ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                    while (chunk.hasRemaining()) {
+                        channel.write(chunk, offset + written + chunk.position());
+                    }
+                    written += read;
+                }
+            } catch (IOException e) {
+                if (written == 0) {
+                    throw e;
+                }
+            }
+            return written;
+        }
+    }
+
+    /**
+     * Renames a staged upload, replacing whatever is staged under the new name
+     */
+    public void move(String name, String newName) throws IOException {
+        Files.move(path(name), path(newName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public void delete(String name) throws IOException {
+        Files.deleteIfExists(path(name));
+    }
+
+    private Path path(String name) {
+        // file names are user input, so the staged file is named after their hash
+        return dir.resolve(ContentHashes.toHex(ContentHashes.newDigest().digest(name.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // already locked by another request in this jvm
+            return null;
+        }
+    }
+}
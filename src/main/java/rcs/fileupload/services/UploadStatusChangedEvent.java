@@ -0,0 +1,15 @@
+package rcs.fileupload.services;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import rcs.fileupload.models.FileUploadRecord;
+
+/**
+ * Published when an upload leaves the pending state
+ */
+@Getter
+@AllArgsConstructor
+public class UploadStatusChangedEvent {
+
+    private final FileUploadRecord record;
+}
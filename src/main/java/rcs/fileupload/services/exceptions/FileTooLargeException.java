@@ -0,0 +1,14 @@
+package rcs.fileupload.services.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+import java.io.IOException;
+
+@ResponseStatus(value = HttpStatus.PAYLOAD_TOO_LARGE)
+public class FileTooLargeException extends IOException {
+
+    public FileTooLargeException(long maxSize) {
+        super("File exceeds the maximum size of " + maxSize + " bytes");
+    }
+}
@@ -0,0 +1,12 @@
+package rcs.fileupload.services.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(value = HttpStatus.BAD_REQUEST)
+public class InvalidDeleteException extends RuntimeException {
+
+    public InvalidDeleteException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,12 @@
+package rcs.fileupload.services.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(value = HttpStatus.BAD_REQUEST)
+public class InvalidTransformationException extends RuntimeException {
+
+    public InvalidTransformationException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,12 @@
+package rcs.fileupload.services.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(value = HttpStatus.BAD_REQUEST)
+public class InvalidVariantException extends RuntimeException {
+
+    public InvalidVariantException(String size) {
+        super("Unknown image size " + size);
+    }
+}
@@ -0,0 +1,12 @@
+package rcs.fileupload.services.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(value = HttpStatus.CONFLICT)
+public class UploadOffsetConflictException extends RuntimeException {
+
+    public UploadOffsetConflictException(String name, long offset) {
+        super("Upload of " + name + " is not at offset " + offset + " or is being written to");
+    }
+}
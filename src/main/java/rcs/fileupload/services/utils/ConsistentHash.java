@@ -0,0 +1,37 @@
+package rcs.fileupload.services.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Maps keys to nodes so that adding or removing a node only moves the keys of that node.
+ * Every node is placed on the ring many times, which evens out the share of keys each one gets.
+ */
+public final class ConsistentHash<T> {
+
+    private final NavigableMap<Long, T> ring = new TreeMap<>();
+
+    public ConsistentHash(Collection<T> nodes, int replicas) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("At least one node is required");
+        }
+        for (T node : nodes) {
+            for (int i = 0; i < replicas; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    public T get(String key) {
+        Map.Entry<Long, T> owner = ring.ceilingEntry(hash(key));
+        return (owner == null ? ring.firstEntry() : owner).getValue();
+    }
+
+    private static long hash(String key) {
+        return ByteBuffer.wrap(ContentHashes.newDigest().digest(key.getBytes(StandardCharsets.UTF_8))).getLong();
+    }
+}
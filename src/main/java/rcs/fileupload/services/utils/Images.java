@@ -0,0 +1,125 @@
+package rcs.fileupload.services.utils;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+/**
+ * Decoding, scaling and encoding shared by image variants and transformations
+ */
+public final class Images {
+
+    public static final String jpeg = "image/jpeg";
+
+    private Images() { }
+
+    /**
+     * Decodes the image, or the given region of it, skipping pixels while decoding so that the result
+     * still has at least twice the given resolution
+     *
+     * @return null if the content isn't an image that can be decoded
+     */
+    public static BufferedImage read(InputStream content, Rectangle region, int longestSide) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(content)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                Rectangle source = new Rectangle(reader.getWidth(0), reader.getHeight(0));
+                if (region != null) {
+                    source = source.intersection(region);
+                    if (source.isEmpty()) {
+                        throw new IllegalArgumentException("The region is outside of the image");
+                    }
+                }
+                int subsampling = Math.max(1, Math.max(source.width, source.height) / (2 * longestSide));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(source);
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Halves the image until it is within twice the target, then scales it the rest of the way;
+     * bilinear steps of at most half keep the quality close to area averaging at a fraction of the cost.
+     * Without alpha, transparent pixels are flattened onto white.
+     */
+    public static BufferedImage scale(BufferedImage image, int targetWidth, int targetHeight, boolean alpha) {
+        BufferedImage scaled = image;
+        int width = image.getWidth();
+        int height = image.getHeight();
+        do {
+            width = Math.max(targetWidth, width / 2);
+            height = Math.max(targetHeight, height / 2);
+            BufferedImage step = new BufferedImage(
+                    width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = step.createGraphics();
+            try {
+                if (!alpha) {
+                    graphics.setColor(Color.WHITE);
+                    graphics.fillRect(0, 0, width, height);
+                }
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.drawImage(scaled, 0, 0, width, height, null);
+            } finally {
+                graphics.dispose();
+            }
+            scaled = step;
+        } while (width != targetWidth || height != targetHeight);
+        return scaled;
+    }
+
+    /**
+     * @param quality between 0 and 1, only used by jpeg
+     */
+    public static byte[] encode(BufferedImage image, String type, float quality) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByMIMEType(type).next();
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(encoded)) {
+            writer.setOutput(output);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (jpeg.equals(type) && param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return encoded.toByteArray();
+    }
+
+    public static boolean canRead(String type) {
+        return type != null && ImageIO.getImageReadersByMIMEType(type).hasNext();
+    }
+
+    public static boolean canWrite(String type) {
+        return type != null && ImageIO.getImageWritersByMIMEType(type).hasNext();
+    }
+
+    public static boolean hasAlpha(String type) {
+        // jpeg and bmp writers reject images with an alpha channel
+        return !jpeg.equals(type) && !"image/bmp".equals(type);
+    }
+}
@@ -0,0 +1,72 @@
+package rcs.fileupload.services.utils;
+
+import rcs.fileupload.services.exceptions.FileTooLargeException;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+/**
+ * Measures the size and sha-256 of content as it is read, failing once it grows past maxSize
+ */
+public class MeteredInputStream extends FilterInputStream {
+
+    private final long maxSize;
+    private final MessageDigest digest = ContentHashes.newDigest();
+    private long size;
+
+    public MeteredInputStream(InputStream in, long maxSize) {
+        super(in);
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+            count(1);
+            digest.update((byte) b);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        if (read > 0) {
+            count(read);
+            digest.update(b, off, read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // skipped bytes would be missing from the hash
+        throw new IOException("skip is not supported");
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the hex sha-256 of everything read; only call once the content has been read to the end
+     */
+    public String getContentHash() {
+        return ContentHashes.toHex(digest.digest());
+    }
+
+    private void count(int read) throws FileTooLargeException {
+        size += read;
+        if (size > maxSize) {
+            throw new FileTooLargeException(maxSize);
+        }
+    }
+}
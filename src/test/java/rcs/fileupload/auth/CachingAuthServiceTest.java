@@ -0,0 +1,148 @@
+package rcs.fileupload.auth;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.client.ResourceAccessException;
+import rcs.auth.api.AuthService;
+import rcs.auth.api.models.AuthenticatedUser;
+import rcs.auth.api.models.LoginCredentials;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.*;
+
+public class CachingAuthServiceTest {
+
+    private AuthService authService;
+    private CachingAuthService target;
+
+    @Before
+    public void setup() {
+        authService = mock(AuthService.class);
+        target = newTarget(Duration.ofMinutes(1), Duration.ofMinutes(1));
+    }
+
+    @Test
+    public void testAuthenticateIsCached() {
+        // Arrange
+        AuthenticatedUser user = new AuthenticatedUser("user", Set.of("USER"));
+        when(authService.authenticate("token")).thenReturn(Optional.of(user));
+
+        // Act
+        Optional<AuthenticatedUser> first = target.authenticate("token");
+        Optional<AuthenticatedUser> second = target.authenticate("token");
+
+        // Assert
+        assertThat(first).contains(user);
+        assertThat(second).contains(user);
+        verify(authService, times(1)).authenticate("token");
+    }
+
+    @Test
+    public void testRejectedTokenIsCached() {
+        // Arrange
+        when(authService.authenticate("token")).thenReturn(Optional.empty());
+
+        // Act
+        target.authenticate("token");
+        Optional<AuthenticatedUser> actual = target.authenticate("token");
+
+        // Assert
+        assertThat(actual).isEmpty();
+        verify(authService, times(1)).authenticate("token");
+    }
+
+    @Test
+    public void testRejectedTokenExpiresSooner() {
+        // Arrange
+        target = newTarget(Duration.ofMinutes(1), Duration.ZERO);
+        when(authService.authenticate("token")).thenReturn(Optional.empty());
+
+        // Act
+        target.authenticate("token");
+        target.authenticate("token");
+
+        // Assert
+        verify(authService, times(2)).authenticate("token");
+    }
+
+    @Test
+    public void testFailureIsNotCached() {
+        // Arrange
+        AuthenticatedUser user = new AuthenticatedUser("user", Set.of("USER"));
+        when(authService.authenticate("token"))
+                .thenThrow(new ResourceAccessException("timeout"))
+                .thenReturn(Optional.of(user));
+
+        // Act & Assert
+        assertThrows(ResourceAccessException.class, () -> target.authenticate("token"));
+        assertThat(target.authenticate("token")).contains(user);
+    }
+
+    @Test
+    public void testConcurrentRequestsShareCall() throws Exception {
+        // Arrange
+        AuthenticatedUser user = new AuthenticatedUser("user", Set.of("USER"));
+        CountDownLatch authenticating = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(authService.authenticate("token")).thenAnswer(invocation -> {
+            authenticating.countDown();
+            release.await();
+            return Optional.of(user);
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        // Act
+        try {
+            Future<Optional<AuthenticatedUser>> leader = executor.submit(() -> target.authenticate("token"));
+            authenticating.await();
+            List<Future<Optional<AuthenticatedUser>>> followers = IntStream.range(0, 3)
+                    .mapToObj(i -> executor.submit(() -> target.authenticate("token")))
+                    .collect(Collectors.toList());
+            Thread.sleep(100);
+            release.countDown();
+            assertThat(leader.get()).contains(user);
+            for (Future<Optional<AuthenticatedUser>> follower : followers) {
+                assertThat(follower.get()).contains(user);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Assert
+        verify(authService, times(1)).authenticate("token");
+    }
+
+    @Test
+    public void testDeleteInvalidates() {
+        // Arrange
+        LoginCredentials credentials = mock(LoginCredentials.class);
+        when(authService.authenticate("token"))
+                .thenReturn(Optional.of(new AuthenticatedUser("user", Set.of("USER"))))
+                .thenReturn(Optional.empty());
+        target.authenticate("token");
+
+        // Act
+        target.delete(credentials, "token");
+
+        // Assert
+        verify(authService).delete(credentials, "token");
+        assertThat(target.authenticate("token")).isEmpty();
+    }
+
+    private CachingAuthService newTarget(Duration ttl, Duration negativeTtl) {
+        return new CachingAuthService(authService, ttl, negativeTtl, 100, new SimpleMeterRegistry());
+    }
+}
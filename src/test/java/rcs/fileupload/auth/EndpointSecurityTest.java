@@ -119,4 +119,39 @@ public class EndpointSecurityTest {
         // Assert
         assertThat(actual).isFalse();
     }
+
+    @Test
+    public void testIsUploaderOwnsUpload() {
+        assertThat(isUploader("username")).isTrue();
+    }
+
+    @Test
+    public void testIsUploaderSomeoneElsesUpload() {
+        assertThat(isUploader("someone-else")).isFalse();
+    }
+
+    private boolean isUploader(String owner) {
+        ServletRequest request = mock(ServletRequest.class);
+        when(authUtils.tryGetLoggedInUser(request))
+                .thenReturn(Optional.of(new AuthenticatedUser("username", null)));
+        when(repository.findById("name"))
+                .thenReturn(Optional.of(new FileUploadRecord(null, null, owner, null, null, null)));
+
+        return target.isUploader(request, "name");
+    }
+
+    @Test
+    public void testIsUploaderNoSuchUpload() {
+        // Arrange
+        ServletRequest request = mock(ServletRequest.class);
+        when(authUtils.tryGetLoggedInUser(request))
+                .thenReturn(Optional.of(new AuthenticatedUser("username", null)));
+        when(repository.findById("name")).thenReturn(Optional.empty());
+
+        // Act
+        boolean actual = target.isUploader(request, "name");
+
+        // Assert
+        assertThat(actual).isFalse();
+    }
 }
@@ -0,0 +1,150 @@
+package rcs.fileupload.benchmarks;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpMethod;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockServletContext;
+import org.springframework.security.config.annotation.web.builders.HttpSecurity;
+import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
+import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
+import org.springframework.security.web.authentication.www.BasicAuthenticationFilter;
+import org.springframework.web.context.support.AnnotationConfigWebApplicationContext;
+import rcs.auth.api.AuthService;
+import rcs.auth.api.AuthenticationFilter;
+import rcs.auth.api.RequestAuthenticationService;
+import rcs.fileupload.auth.EndpointSecurity;
+import rcs.fileupload.config.WebSecurityConfig;
+
+import javax.servlet.Filter;
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Compares the work done by the security filter chain for an anonymous GET /api/files/{name}:
+ * - secured: the request runs through the whole chain, like it did when public reads were only permitAll
+ * - ignored: the request matches the empty chain of WebSecurityConfig
+ * - none: no security filter at all, the cost of the mock request and response alone
+ *
+ * Not part of the unit test run; run with: mvn test -Dtest=SecurityFilterChainBenchmark
+ */
+public class SecurityFilterChainBenchmark {
+
+    private static final long warmupNanos = 1_000_000_000L;
+    private static final long measureNanos = 3_000_000_000L;
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private AnnotationConfigWebApplicationContext secured;
+    private AnnotationConfigWebApplicationContext ignored;
+
+    @After
+    public void cleanup() {
+        secured.close();
+        ignored.close();
+    }
+
+    @Test
+    public void run() throws Exception {
+        // per-request debug logging would dominate both
+        ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+        secured = newContext(SecuredReadsConfig.class);
+        ignored = newContext(WebSecurityConfig.class);
+
+        System.out.printf("%-8s %12s %12s %14s%n", "chain", "ops/s", "ns/op", "bytes/op");
+        report("secured", measure(secured.getBean("springSecurityFilterChain", Filter.class)));
+        report("ignored", measure(ignored.getBean("springSecurityFilterChain", Filter.class)));
+        report("none", measure((request, response, chain) -> chain.doFilter(request, response)));
+    }
+
+    private long[] measure(Filter chain) throws IOException, ServletException {
+        runFor(chain, warmupNanos);
+        long threadId = Thread.currentThread().getId();
+        long allocatedStart = threads.getThreadAllocatedBytes(threadId);
+        long wallStart = System.nanoTime();
+        long ops = runFor(chain, measureNanos);
+        return new long[] {
+                ops, System.nanoTime() - wallStart, threads.getThreadAllocatedBytes(threadId) - allocatedStart };
+    }
+
+    private static long runFor(Filter chain, long nanos) throws IOException, ServletException {
+        long ops = 0;
+        long deadline = System.nanoTime() + nanos;
+        while (System.nanoTime() < deadline) {
+            MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/files/image.png");
+            chain.doFilter(request, new MockHttpServletResponse(), new MockFilterChain());
+            ops++;
+        }
+        return ops;
+    }
+
+    private static void report(String chain, long[] result) {
+        long ops = result[0];
+        System.out.printf("%-8s %12.0f %12.0f %14.0f%n",
+                chain,
+                ops / (result[1] / 1e9),
+                result[1] / (double) ops,
+                result[2] / (double) ops);
+    }
+
+    private static AnnotationConfigWebApplicationContext newContext(Class<?> securityConfig) {
+        AnnotationConfigWebApplicationContext context = new AnnotationConfigWebApplicationContext();
+        context.setServletContext(new MockServletContext());
+        context.register(Beans.class, securityConfig);
+        context.refresh();
+        return context;
+    }
+
+    @Configuration
+    static class Beans {
+
+        @Bean
+        public EndpointSecurity endpointSecurity() {
+            return mock(EndpointSecurity.class);
+        }
+
+        @Bean
+        public AuthenticationFilter authenticationFilter() {
+            return new AuthenticationFilter(new RequestAuthenticationService(mock(AuthService.class)));
+        }
+    }
+
+    /**
+     * How public reads were secured before they were ignored
+     */
+    @EnableWebSecurity
+    static class SecuredReadsConfig extends WebSecurityConfigurerAdapter {
+
+        private final AuthenticationFilter authenticationFilter;
+
+        SecuredReadsConfig(AuthenticationFilter authenticationFilter) {
+            this.authenticationFilter = authenticationFilter;
+        }
+
+        @Override
+        protected void configure(HttpSecurity http) throws Exception {
+            http.csrf()
+                    .disable()
+                    .exceptionHandling()
+                    .and()
+                    .authorizeRequests()
+                    .antMatchers(HttpMethod.GET, "/api/files/{name}")
+                    .permitAll()
+                    .and()
+                    .addFilterBefore(authenticationFilter, BasicAuthenticationFilter.class)
+                    .formLogin()
+                    .disable();
+        }
+    }
+}
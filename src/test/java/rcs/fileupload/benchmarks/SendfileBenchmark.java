@@ -0,0 +1,143 @@
+package rcs.fileupload.benchmarks;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ * Compares the two ways a local file reaches the socket on a download:
+ * - heap copy: what Spring's ResourceHttpMessageConverter does (read into a byte[], write to the stream)
+ * - transferTo: what Tomcat does for sendfile responses (FileChannel.transferTo into the socket channel)
+ *
+ * Not part of the unit test run; run with: mvn test -Dtest=SendfileBenchmark
+ */
+public class SendfileBenchmark {
+
+    private static final int[] sizes = { 1024, 100 * 1024, 5 * 1024 * 1024 };
+    private static final long warmupNanos = 1_000_000_000L;
+    private static final long measureNanos = 3_000_000_000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private ServerSocketChannel server;
+    private Thread drain;
+    private SocketChannel client;
+
+    @Before
+    public void setup() throws IOException {
+        server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        drain = new Thread(() -> {
+            try (SocketChannel accepted = server.accept()) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+                while (accepted.read(buffer) != -1) {
+                    buffer.clear();
+                }
+            } catch (IOException ignored) {
+                // closed at the end of the run
+            }
+        });
+        drain.start();
+        client = SocketChannel.open(server.getLocalAddress());
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        client.close();
+        drain.join();
+        server.close();
+    }
+
+    @Test
+    public void run() throws IOException {
+        System.out.printf("%-8s %-11s %12s %12s %14s%n", "size", "path", "ops/s", "MB/s", "cpu us/op");
+        for (int size : sizes) {
+            File file = newFile(size);
+            report(size, "heap copy", measure(() -> heapCopy(file)), size);
+            report(size, "transferTo", measure(() -> transferTo(file)), size);
+        }
+    }
+
+    private void heapCopy(File file) throws IOException {
+        OutputStream out = Channels.newOutputStream(client);
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[8192]; // StreamUtils.BUFFER_SIZE
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    private void transferTo(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long position = 0;
+            long size = channel.size();
+            while (position < size) {
+                position += channel.transferTo(position, size - position, client);
+            }
+        }
+    }
+
+    private long[] measure(Download download) throws IOException {
+        runFor(download, warmupNanos);
+        long cpuStart = threads.getCurrentThreadCpuTime();
+        long wallStart = System.nanoTime();
+        long ops = runFor(download, measureNanos);
+        return new long[] { ops, System.nanoTime() - wallStart, threads.getCurrentThreadCpuTime() - cpuStart };
+    }
+
+    private static long runFor(Download download, long nanos) throws IOException {
+        long ops = 0;
+        long deadline = System.nanoTime() + nanos;
+        while (System.nanoTime() < deadline) {
+            download.run();
+            ops++;
+        }
+        return ops;
+    }
+
+    private static void report(int size, String path, long[] result, int bytes) {
+        long ops = result[0];
+        double seconds = result[1] / 1e9;
+        System.out.printf("%-8s %-11s %12.0f %12.1f %14.1f%n",
+                size / 1024 + "KB",
+                path,
+                ops / seconds,
+                ops * (double) bytes / seconds / (1024 * 1024),
+                result[2] / 1e3 / ops);
+    }
+
+    private File newFile(int size) throws IOException {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        File file = folder.newFile(size + ".bin");
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    private interface Download {
+        void run() throws IOException;
+    }
+}
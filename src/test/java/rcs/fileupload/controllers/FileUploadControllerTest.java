@@ -1,53 +1,146 @@
 package rcs.fileupload.controllers;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import rcs.fileupload.models.FileDeleteSummary;
 import rcs.fileupload.models.FileUploadRecord;
+import rcs.fileupload.models.FileUploadRecordsFilter;
+import rcs.fileupload.models.FileUploadRecordsPage;
+import rcs.fileupload.models.FileUploadResult;
 import rcs.fileupload.services.FileUploadService;
+import rcs.fileupload.services.ImageTransformService;
+import rcs.fileupload.services.ImageTransformation;
+import rcs.fileupload.services.MeteredResource;
+import rcs.fileupload.services.StagedUpload;
+import rcs.fileupload.services.exceptions.FileNotFoundException;
+import rcs.fileupload.services.exceptions.InvalidDeleteException;
+import rcs.fileupload.services.exceptions.InvalidTransformationException;
+import rcs.fileupload.services.exceptions.InvalidUploadException;
 import junitparams.JUnitParamsRunner;
 import junitparams.Parameters;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.springframework.core.io.ByteArrayResource;
 import org.springframework.core.io.Resource;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.web.multipart.MultipartFile;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.util.unit.DataSize;
 import rcs.auth.api.AuthUtils;
-import rcs.auth.api.AuthenticatedHttpServletRequest;
 import rcs.auth.api.models.AuthenticatedUser;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertThrows;
 import static org.mockito.Mockito.*;
 
 @RunWith(JUnitParamsRunner.class)
 public class FileUploadControllerTest {
 
     private FileUploadService service;
+    private ImageTransformService imageTransformService;
     private AuthUtils authUtils;
     private FileUploadController target;
 
     @Before
     public void setup() {
         service = mock(FileUploadService.class);
+        imageTransformService = mock(ImageTransformService.class);
         authUtils = mock(AuthUtils.class);
-        target = new FileUploadController(service, authUtils);
+        when(service.getFileKey(anyString(), any(), isNull())).thenAnswer(invocation -> invocation.getArgument(0));
+        target = new FileUploadController(
+                service, imageTransformService, authUtils, new ObjectMapper().findAndRegisterModules(), DataSize.ofBytes(1000), DataSize.ofBytes(1000), 2, 2);
     }
 
     @Test
     public void testGetListOfFiles() {
         // Arrange
         List<FileUploadRecord> expected = List.of(mock(FileUploadRecord.class), mock(FileUploadRecord.class));
-        when(service.getFiles()).thenReturn(expected);
+        when(service.getFiles(any(), eq("cursor"), eq(2)))
+                .thenReturn(new FileUploadRecordsPage(expected, "next"));
 
         // Act
-        ResponseEntity<List<FileUploadRecord>> actual = target.getFiles();
+        ResponseEntity<List<FileUploadRecord>> actual = target.getFiles(null, null, null, "cursor", 2);
 
         // Assert
         assertThat(actual.getStatusCodeValue()).isEqualTo(200);
         assertThat(actual.getBody()).usingFieldByFieldElementComparator().isEqualTo(expected);
+        assertThat(actual.getHeaders().getFirst(FileUploadController.nextCursorHeader)).isEqualTo("next");
+    }
+
+    @Test
+    public void testGetLastPageOfFiles() {
+        // Arrange
+        when(service.getFiles(any(), isNull(), eq(100)))
+                .thenReturn(new FileUploadRecordsPage(List.of(mock(FileUploadRecord.class)), null));
+
+        // Act
+        ResponseEntity<List<FileUploadRecord>> actual = target.getFiles(
+                "username", "image/png", FileUploadRecord.UploadStatus.succeeded, null, 100);
+
+        // Assert
+        assertThat(actual.getStatusCodeValue()).isEqualTo(200);
+        assertThat(actual.getHeaders().containsKey(FileUploadController.nextCursorHeader)).isFalse();
+    }
+
+    @Test
+    public void testExportFiles() throws IOException {
+        // Arrange
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        when(service.streamFiles(any(FileUploadRecordsFilter.class))).thenReturn(Stream.of(
+                new FileUploadRecord("a.png", "image/png", "username", null, FileUploadRecord.UploadStatus.succeeded, "url/a.png"),
+                new FileUploadRecord("b.png", "image/png", "username", null, FileUploadRecord.UploadStatus.failed, null)));
+
+        // Act
+        target.exportFiles("username", null, null, response);
+
+        // Assert
+        assertThat(response.getContentType()).isEqualTo(FileUploadController.ndjson);
+        assertThat(response.getContentAsString().split("\n"))
+                .hasSize(2)
+                .allSatisfy(line -> assertThat(line).startsWith("{\"name\":"));
+        assertThat(response.getContentAsString()).endsWith("\n");
+    }
+
+    @Test
+    public void testGetFileClosesResourceWhenRequestCompletes() throws IOException {
+        // Arrange
+        String filename = "filename.jpg";
+        Resource mockResource = mock(Resource.class, withSettings().extraInterfaces(Closeable.class));
+        when(mockResource.getFilename()).thenReturn(filename);
+        when(service.getFile(filename)).thenReturn(mockResource);
+        when(service.getFileRecord(filename)).thenReturn(Optional.empty());
+        ServletWebRequest request = getRequest(filename);
+        ServletRequestAttributes attributes = new ServletRequestAttributes(request.getRequest());
+        RequestContextHolder.setRequestAttributes(attributes);
+
+        // Act
+        try {
+            target.getFile(filename, null, null, null, null, null, null, request);
+            verify((Closeable) mockResource, never()).close();
+            attributes.requestCompleted();
+        } finally {
+            RequestContextHolder.resetRequestAttributes();
+        }
+
+        // Assert
+        verify((Closeable) mockResource).close();
     }
 
     @Test
@@ -57,13 +150,240 @@ public class FileUploadControllerTest {
         Resource mockResource = mock(Resource.class);
         when(mockResource.getFilename()).thenReturn(filename);
         when(service.getFile(filename)).thenReturn(mockResource);
+        when(service.getFileRecord(filename)).thenReturn(Optional.empty());
+
+        // Act
+        ResponseEntity<Resource> actual = target.getFile(filename, null, null, null, null, null, null, getRequest(filename));
+
+        // Assert
+        assertThat(actual.getStatusCodeValue()).isEqualTo(200);
+        assertThat(actual.getHeaders().getContentType()).isEqualTo(MediaType.IMAGE_JPEG);
+    }
+
+    @Test
+    public void testGetFileSetsValidators() throws IOException {
+        // Arrange
+        String filename = "filename.jpg";
+        LocalDateTime dateUploaded = LocalDateTime.of(2021, 1, 1, 10, 0);
+        Resource mockResource = mock(Resource.class);
+        when(mockResource.getFilename()).thenReturn(filename);
+        when(service.getFile(filename)).thenReturn(mockResource);
+        when(service.getFileRecord(filename)).thenReturn(Optional.of(recordWithHash(filename, dateUploaded, "abc123")));
+
+        ServletWebRequest request = getRequest(filename);
+
+        // Act
+        ResponseEntity<Resource> actual = target.getFile(filename, null, null, null, null, null, null, request);
+
+        // Assert
+        assertThat(actual.getStatusCodeValue()).isEqualTo(200);
+        MockHttpServletResponse response = (MockHttpServletResponse) request.getResponse();
+        assertThat(response.getHeader("ETag")).isEqualTo("\"abc123\"");
+        assertThat(response.getDateHeader("Last-Modified"))
+                .isEqualTo(dateUploaded.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+    }
+
+    @Test
+    public void testGetFileOfPendingUploadHasNoValidators() throws IOException {
+        // Arrange
+        String filename = "filename.jpg";
+        Resource mockResource = mock(Resource.class);
+        when(mockResource.getFilename()).thenReturn(filename);
+        when(service.getFile(filename)).thenReturn(mockResource);
+        FileUploadRecord pending = recordWithHash(filename, LocalDateTime.of(2021, 1, 1, 10, 0), "abc123");
+        pending.setUploadStatus(FileUploadRecord.UploadStatus.pending);
+        when(service.getFileRecord(filename)).thenReturn(Optional.of(pending));
+
+        ServletWebRequest request = getRequest(filename);
+
+        // Act
+        ResponseEntity<Resource> actual = target.getFile(filename, null, null, null, null, null, null, request);
+
+        // Assert
+        assertThat(actual.getStatusCodeValue()).isEqualTo(200);
+        MockHttpServletResponse response = (MockHttpServletResponse) request.getResponse();
+        assertThat(response.getHeader("ETag")).isNull();
+        assertThat(response.getHeader("Last-Modified")).isNull();
+        verify(service, times(1)).getFileRecord(filename);
+    }
+
+    @Test
+    public void testGetFileVariant() throws IOException {
+        // Arrange
+        String filename = "filename.jpg";
+        Resource mockResource = mock(Resource.class);
+        when(mockResource.getFilename()).thenReturn(filename + "~thumbnail");
+        FileUploadRecord record = recordWithHash(filename, LocalDateTime.of(2021, 1, 1, 10, 0), "abc123");
+        when(service.getFileRecord(filename)).thenReturn(Optional.of(record));
+        when(service.getFileKey(filename, Optional.of(record), "thumbnail")).thenReturn(filename + "~thumbnail");
+        when(service.getFile(filename + "~thumbnail")).thenReturn(mockResource);
+
+        ServletWebRequest request = getRequest(filename);
 
         // Act
-        ResponseEntity<Resource> actual = target.getFile(filename);
+        ResponseEntity<Resource> actual = target.getFile(filename, "thumbnail", null, null, null, null, null, request);
 
         // Assert
         assertThat(actual.getStatusCodeValue()).isEqualTo(200);
         assertThat(actual.getHeaders().getContentType()).isEqualTo(MediaType.IMAGE_JPEG);
+        assertThat(((MockHttpServletResponse) request.getResponse()).getHeader("ETag")).isEqualTo("\"abc123-thumbnail\"");
+    }
+
+    @Test
+    public void testGetTransformedFile() throws IOException {
+        // Arrange
+        String filename = "filename.jpg";
+        FileUploadRecord record = recordWithHash(filename, LocalDateTime.of(2021, 1, 1, 10, 0), "abc123");
+        ImageTransformation transformation = new ImageTransformation(null, 100, null, "image/png", null);
+        Resource transformed = new ByteArrayResource("png".getBytes());
+        when(service.getFileRecord(filename)).thenReturn(Optional.of(record));
+        when(imageTransformService.getTransformation("image/jpeg", 100, null, null, "png", null))
+                .thenReturn(Optional.of(transformation));
+        when(imageTransformService.transform(record, transformation)).thenReturn(transformed);
+
+        ServletWebRequest request = getRequest(filename);
+
+        // Act
+        ResponseEntity<Resource> actual = target.getFile(filename, null, 100, null, null, "png", null, request);
+
+        // Assert
+        assertThat(actual.getStatusCodeValue()).isEqualTo(200);
+        assertThat(actual.getHeaders().getContentType()).isEqualTo(MediaType.IMAGE_PNG);
+        assertThat(actual.getBody()).isEqualTo(transformed);
+        assertThat(((MockHttpServletResponse) request.getResponse()).getHeader("ETag"))
+                .isEqualTo("\"abc123-" + transformation.getId() + "\"");
+        verify(service, never()).getFile(anyString());
+    }
+
+    @Test
+    public void testGetTransformedFileWithSize() {
+        // Arrange
+        String filename = "filename.jpg";
+        FileUploadRecord record = recordWithHash(filename, LocalDateTime.of(2021, 1, 1, 10, 0), "abc123");
+        when(service.getFileRecord(filename)).thenReturn(Optional.of(record));
+        when(imageTransformService.getTransformation("image/jpeg", 100, null, null, null, null))
+                .thenReturn(Optional.of(new ImageTransformation(null, 100, null, "image/jpeg", 85)));
+
+        // Act & Assert
+        assertThrows(
+                InvalidTransformationException.class,
+                () -> target.getFile(filename, "thumbnail", 100, null, null, null, null, getRequest(filename)));
+    }
+
+    @Test
+    public void testGetLocalFileWithSendfile() throws IOException {
+        // Arrange
+        String filename = "filename.jpg";
+        File file = File.createTempFile("sendfile", ".jpg");
+        file.deleteOnExit();
+
+        Resource mockResource = mock(Resource.class);
+        when(mockResource.getFilename()).thenReturn(filename);
+        when(mockResource.isFile()).thenReturn(true);
+        when(mockResource.getFile()).thenReturn(file);
+        when(service.getFile(filename)).thenReturn(mockResource);
+        when(service.getFileRecord(filename)).thenReturn(Optional.empty());
+
+        ServletWebRequest request = getRequest(filename);
+        request.getRequest().setAttribute("org.apache.tomcat.sendfile.support", true);
+
+        // Act
+        ResponseEntity<Resource> actual = target.getFile(filename, null, null, null, null, null, null, request);
+
+        // Assert
+        assertThat(actual.getStatusCodeValue()).isEqualTo(200);
+        assertThat(actual.getBody()).isNull();
+        assertThat(request.getRequest().getAttribute("org.apache.tomcat.sendfile.filename"))
+                .isEqualTo(file.getAbsolutePath());
+    }
+
+    @Test
+    public void testGetLocalFileWithSendfileReportsServedBytes() throws IOException {
+        // Arrange
+        String filename = "filename.jpg";
+        File file = File.createTempFile("sendfile", ".jpg");
+        file.deleteOnExit();
+        Files.write(file.toPath(), "content".getBytes());
+
+        MeteredResource mockResource = mock(MeteredResource.class);
+        when(mockResource.getFilename()).thenReturn(filename);
+        when(mockResource.isFile()).thenReturn(true);
+        when(mockResource.getFile()).thenReturn(file);
+        when(service.getFile(filename)).thenReturn(mockResource);
+        when(service.getFileRecord(filename)).thenReturn(Optional.empty());
+
+        ServletWebRequest get = getRequest(filename);
+        get.getRequest().setAttribute("org.apache.tomcat.sendfile.support", true);
+        ServletWebRequest head = new ServletWebRequest(
+                new MockHttpServletRequest("HEAD", "/api/files/" + filename),
+                new MockHttpServletResponse());
+        head.getRequest().setAttribute("org.apache.tomcat.sendfile.support", true);
+
+        // Act
+        target.getFile(filename, null, null, null, null, null, null, get);
+        target.getFile(filename, null, null, null, null, null, null, head);
+
+        // Assert
+        verify(mockResource, times(1)).served(7);
+    }
+
+    @Test
+    public void testGetFileRedirect() throws IOException {
+        // Arrange
+        String filename = "filename.jpg";
+        URL url = new URL("https://bucket.s3.amazonaws.com/filename.jpg?X-Amz-Signature=signature");
+        when(service.getFileRecord(filename))
+                .thenReturn(Optional.of(recordWithHash(filename, LocalDateTime.of(2021, 1, 1, 10, 0), "abc123")));
+        when(service.getFileRedirectUrl(filename)).thenReturn(Optional.of(url));
+
+        // Act
+        ResponseEntity<Resource> actual = target.getFile(filename, null, null, null, null, null, null, getRequest(filename));
+
+        // Assert
+        assertThat(actual.getStatusCodeValue()).isEqualTo(302);
+        assertThat(actual.getHeaders().getLocation().toString()).isEqualTo(url.toString());
+        verify(service, never()).getFile(filename);
+    }
+
+    @Test
+    public void testGetFileRedirectWhenFileDoesNotExist() throws IOException {
+        // Arrange
+        String filename = "filename.jpg";
+        when(service.getFileRecord(filename)).thenReturn(Optional.empty());
+        when(service.getFileRedirectUrl(filename))
+                .thenReturn(Optional.of(new URL("https://bucket.s3.amazonaws.com/filename.jpg")));
+
+        // Act & Assert
+        assertThrows(
+                FileNotFoundException.class,
+                () -> target.getFile(filename, null, null, null, null, null, null, getRequest(filename)));
+    }
+
+    private Object[] notModifiedConditions() {
+        return new Object[] {
+                new Object[] { "If-None-Match", "\"abc123\"" },
+                new Object[] { "If-Modified-Since", "Fri, 01 Jan 2100 00:00:00 GMT" }
+        };
+    }
+
+    @Test
+    @Parameters(method = "notModifiedConditions")
+    public void testGetFileNotModified(String header, String value) throws IOException {
+        // Arrange
+        String filename = "filename.jpg";
+        when(service.getFileRecord(filename))
+                .thenReturn(Optional.of(recordWithHash(filename, LocalDateTime.of(2021, 1, 1, 10, 0), "abc123")));
+
+        ServletWebRequest request = getRequest(filename);
+        ((MockHttpServletRequest) request.getRequest()).addHeader(header, value);
+
+        // Act
+        ResponseEntity<Resource> actual = target.getFile(filename, null, null, null, null, null, null, request);
+
+        // Assert
+        assertThat(actual).isNull();
+        assertThat(((MockHttpServletResponse) request.getResponse()).getStatus()).isEqualTo(304);
+        verify(service, never()).getFile(filename);
     }
 
     @Test
@@ -74,25 +394,29 @@ public class FileUploadControllerTest {
     public void testUploadFile(
             FileUploadRecord.UploadStatus recordStatus,
             String url,
-            int expectedHttpStatus) {
+            int expectedHttpStatus) throws IOException {
 
         // Arrange
-        MultipartFile file = mock(MultipartFile.class);
         url = url.equals("null") ? null : url;
 
         AuthenticatedUser user = mock(AuthenticatedUser.class);
-        AuthenticatedHttpServletRequest mockRequest = mock(AuthenticatedHttpServletRequest.class);
-        when(authUtils.tryGetLoggedInUser(mockRequest))
+        MockHttpServletRequest request = multipartRequest("file", "image.jpg", "content");
+        when(authUtils.tryGetLoggedInUser(request))
                 .thenReturn(Optional.of(user));
 
         FileUploadRecord record = mock(FileUploadRecord.class);
         when(record.getUploadStatus()).thenReturn(recordStatus);
         when(record.getUrl()).thenReturn(url);
 
-        when(service.uploadFile(eq(user), eq(file), any())).thenReturn(record);
+        ArgumentCaptor<InputStream> content = ArgumentCaptor.forClass(InputStream.class);
+        when(service.uploadFile(eq(user), eq("image.jpg"), eq("image/jpeg"), content.capture(), any()))
+                .thenAnswer(invocation -> {
+                    assertThat(content.getValue()).hasContent("content");
+                    return record;
+                });
 
         // Act
-        ResponseEntity<FileUploadRecord> actual = target.uploadFile(file, mockRequest);
+        ResponseEntity<FileUploadRecord> actual = target.uploadFile(request);
 
         // Assert
         assertThat(actual.getStatusCodeValue()).isEqualTo(expectedHttpStatus);
@@ -101,6 +425,209 @@ public class FileUploadControllerTest {
                 .isEqualTo(url);
     }
 
+    @Test
+    public void testUploadFileStoredAsynchronously() throws IOException {
+        // Arrange
+        AuthenticatedUser user = mock(AuthenticatedUser.class);
+        MockHttpServletRequest request = multipartRequest("file", "image.jpg", "content");
+        request.setContextPath("/rcs.fileupload");
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+        when(authUtils.tryGetLoggedInUser(request))
+                .thenReturn(Optional.of(user));
+
+        FileUploadRecord record = new FileUploadRecord(
+                "image.jpg", "image/jpeg", "username", null, FileUploadRecord.UploadStatus.pending, null);
+        when(service.uploadFile(eq(user), eq("image.jpg"), eq("image/jpeg"), any(), any())).thenReturn(record);
+
+        // Act
+        ResponseEntity<FileUploadRecord> actual = target.uploadFile(request);
+
+        // Assert
+        assertThat(actual.getStatusCodeValue()).isEqualTo(202);
+        assertThat(actual.getHeaders().getLocation())
+                .hasToString("http://localhost/rcs.fileupload/api/files/image.jpg/record");
+
+        RequestContextHolder.resetRequestAttributes();
+    }
+
+    @Test
+    public void testUploadFileWithoutFilePart() throws IOException {
+        // Arrange
+        MockHttpServletRequest request = multipartRequest("other", "image.jpg", "content");
+        when(authUtils.tryGetLoggedInUser(request))
+                .thenReturn(Optional.of(mock(AuthenticatedUser.class)));
+
+        // Act & Assert
+        assertThrows(
+                InvalidUploadException.class,
+                () -> target.uploadFile(request));
+        verifyNoInteractions(service);
+    }
+
+    @Test
+    public void testUploadFileRequestTooLarge() throws IOException {
+        // Arrange
+        MockHttpServletRequest request = multipartRequest("file", "image.jpg", "x".repeat(1000));
+        when(authUtils.tryGetLoggedInUser(request))
+                .thenReturn(Optional.of(mock(AuthenticatedUser.class)));
+
+        // Act
+        ResponseEntity<FileUploadRecord> actual = target.uploadFile(request);
+
+        // Assert
+        assertThat(actual.getStatusCodeValue()).isEqualTo(413);
+        verifyNoInteractions(service);
+    }
+
+    @Test
+    public void testUploadFileChunkedRequestTooLarge() throws IOException {
+        // Arrange
+        MockHttpServletRequest request = withoutLength(multipartRequest("other", "image.jpg", "x".repeat(1000)));
+        when(authUtils.tryGetLoggedInUser(request))
+                .thenReturn(Optional.of(mock(AuthenticatedUser.class)));
+
+        // Act
+        ResponseEntity<FileUploadRecord> actual = target.uploadFile(request);
+
+        // Assert
+        assertThat(actual.getStatusCodeValue()).isEqualTo(413);
+        verifyNoInteractions(service);
+    }
+
+    @Test
+    public void testUploadFileUnauthorized() throws IOException {
+        // Arrange
+        MockHttpServletRequest request = multipartRequest("file", "image.jpg", "content");
+        when(authUtils.tryGetLoggedInUser(request))
+                .thenReturn(Optional.empty());
+
+        // Act
+        ResponseEntity<FileUploadRecord> actual = target.uploadFile(request);
+
+        // Assert
+        assertThat(actual.getStatusCodeValue()).isEqualTo(401);
+        verifyNoInteractions(service);
+    }
+
+    @Test
+    public void testUploadFiles() throws IOException {
+        // Arrange
+        AuthenticatedUser user = mock(AuthenticatedUser.class);
+        MockHttpServletRequest request = batchRequest("file", "a.jpg", "b.jpg");
+        when(authUtils.tryGetLoggedInUser(request))
+                .thenReturn(Optional.of(user));
+
+        when(service.stageBatchFile(anyString(), eq("image/jpeg"), any())).thenAnswer(invocation -> {
+            String name = invocation.getArgument(0);
+            assertThat((InputStream) invocation.getArgument(2)).hasContent("content of " + name);
+            return new StagedUpload(name, "image/jpeg", "key-" + name, 14, "hash");
+        });
+        List<FileUploadResult> expected = List.of(
+                new FileUploadResult("a.jpg", 201, null, mock(FileUploadRecord.class)),
+                new FileUploadResult("b.jpg", 409, "taken", null));
+        when(service.uploadFiles(eq(user), any(), any())).thenReturn(expected);
+
+        // Act
+        ResponseEntity<List<FileUploadResult>> actual = target.uploadFiles(request);
+
+        // Assert
+        assertThat(actual.getStatusCodeValue()).isEqualTo(200);
+        assertThat(actual.getBody()).isEqualTo(expected);
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<StagedUpload>> staged = ArgumentCaptor.forClass(List.class);
+        verify(service).uploadFiles(eq(user), staged.capture(), any());
+        assertThat(staged.getValue()).extracting(StagedUpload::getName).containsExactly("a.jpg", "b.jpg");
+        verify(service).discardStaged(staged.getValue());
+    }
+
+    @Test
+    public void testUploadFilesTooMany() throws IOException {
+        // Arrange
+        MockHttpServletRequest request = batchRequest("file", "a.jpg", "b.jpg", "c.jpg");
+        when(authUtils.tryGetLoggedInUser(request))
+                .thenReturn(Optional.of(mock(AuthenticatedUser.class)));
+        when(service.stageBatchFile(anyString(), any(), any())).thenAnswer(invocation ->
+                new StagedUpload(invocation.getArgument(0), "image/jpeg", "key", 14, "hash"));
+
+        // Act & Assert
+        assertThrows(
+                InvalidUploadException.class,
+                () -> target.uploadFiles(request));
+        verify(service, times(2)).stageBatchFile(anyString(), any(), any());
+        verify(service, never()).uploadFiles(any(), any(), any());
+        verify(service).discardStaged(argThat(staged -> staged.size() == 2));
+    }
+
+    @Test
+    public void testUploadFilesRequestTooLarge() throws IOException {
+        // Arrange
+        target = new FileUploadController(
+                service, imageTransformService, authUtils, new ObjectMapper(), DataSize.ofBytes(1000), DataSize.ofBytes(100), 2, 2);
+        MockHttpServletRequest request = batchRequest("file", "a.jpg", "b.jpg");
+        when(authUtils.tryGetLoggedInUser(request))
+                .thenReturn(Optional.of(mock(AuthenticatedUser.class)));
+
+        // Act
+        ResponseEntity<List<FileUploadResult>> actual = target.uploadFiles(request);
+
+        // Assert
+        assertThat(actual.getStatusCodeValue()).isEqualTo(413);
+        verifyNoInteractions(service);
+    }
+
+    @Test
+    public void testUploadFilesChunkedRequestTooLarge() throws IOException {
+        // Arrange
+        target = new FileUploadController(
+                service, imageTransformService, authUtils, new ObjectMapper(), DataSize.ofBytes(1000), DataSize.ofBytes(100), 2, 2);
+        MockHttpServletRequest request = withoutLength(batchRequest("file", "a.jpg", "b.jpg"));
+        when(authUtils.tryGetLoggedInUser(request))
+                .thenReturn(Optional.of(mock(AuthenticatedUser.class)));
+        when(service.stageBatchFile(anyString(), any(), any())).thenAnswer(invocation -> {
+            invocation.getArgument(2, InputStream.class).readAllBytes();
+            return new StagedUpload(invocation.getArgument(0), "image/jpeg", "key", 14, "hash");
+        });
+
+        // Act
+        ResponseEntity<List<FileUploadResult>> actual = target.uploadFiles(request);
+
+        // Assert
+        assertThat(actual.getStatusCodeValue()).isEqualTo(413);
+        verify(service, never()).uploadFiles(any(), any(), any());
+        verify(service).discardStaged(any());
+    }
+
+    @Test
+    public void testUploadFilesWithoutFileParts() throws IOException {
+        // Arrange
+        MockHttpServletRequest request = batchRequest("other", "a.jpg");
+        when(authUtils.tryGetLoggedInUser(request))
+                .thenReturn(Optional.of(mock(AuthenticatedUser.class)));
+
+        // Act & Assert
+        assertThrows(
+                InvalidUploadException.class,
+                () -> target.uploadFiles(request));
+        verify(service, never()).stageBatchFile(any(), any(), any());
+        verify(service, never()).uploadFiles(any(), any(), any());
+    }
+
+    @Test
+    public void testUploadFilesUnauthorized() throws IOException {
+        // Arrange
+        MockHttpServletRequest request = batchRequest("file", "a.jpg");
+        when(authUtils.tryGetLoggedInUser(request))
+                .thenReturn(Optional.empty());
+
+        // Act
+        ResponseEntity<List<FileUploadResult>> actual = target.uploadFiles(request);
+
+        // Assert
+        assertThat(actual.getStatusCodeValue()).isEqualTo(401);
+        verifyNoInteractions(service);
+    }
+
     @Test
     public void testDeleteFile() throws IOException {
         // Arrange
@@ -113,4 +640,175 @@ public class FileUploadControllerTest {
         assertThat(actual.getStatusCodeValue()).isEqualTo(204);
         verify(service).deleteFile(name);
     }
+
+    @Test
+    @Parameters({
+            "false | username",
+            "true | null"
+    })
+    public void testDeleteFiles(boolean admin, String expectedOwner) {
+        // Arrange
+        expectedOwner = expectedOwner.equals("null") ? null : expectedOwner;
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/api/files/delete");
+        AuthenticatedUser user = mock(AuthenticatedUser.class);
+        when(user.getUsername()).thenReturn("username");
+        when(authUtils.tryGetLoggedInUser(request)).thenReturn(Optional.of(user));
+        when(authUtils.isAdmin(user)).thenReturn(admin);
+        List<FileUploadResult> expected = List.of(new FileUploadResult("a.jpg", 204, null, null));
+        when(service.deleteFiles(List.of("a.jpg"), expectedOwner)).thenReturn(expected);
+
+        // Act
+        ResponseEntity<List<FileUploadResult>> actual = target.deleteFiles(List.of("a.jpg"), request);
+
+        // Assert
+        assertThat(actual.getStatusCodeValue()).isEqualTo(200);
+        assertThat(actual.getBody()).isEqualTo(expected);
+    }
+
+    @Test
+    public void testDeleteFilesTooMany() {
+        // Arrange
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/api/files/delete");
+        when(authUtils.tryGetLoggedInUser(request)).thenReturn(Optional.of(mock(AuthenticatedUser.class)));
+
+        // Act & Assert
+        assertThrows(
+                InvalidDeleteException.class,
+                () -> target.deleteFiles(List.of("a.jpg", "b.jpg", "c.jpg"), request));
+        verifyNoInteractions(service);
+    }
+
+    @Test
+    public void testDeleteFilesUnauthorized() {
+        // Arrange
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/api/files/delete");
+        when(authUtils.tryGetLoggedInUser(request)).thenReturn(Optional.empty());
+
+        // Act
+        ResponseEntity<List<FileUploadResult>> actual = target.deleteFiles(List.of("a.jpg"), request);
+
+        // Assert
+        assertThat(actual.getStatusCodeValue()).isEqualTo(401);
+        verifyNoInteractions(service);
+    }
+
+    @Test
+    @Parameters({
+            "false | null | null | 200 | username | null",
+            "false | username | img/ | 200 | username | img/",
+            "false | other | null | 403 | null | null",
+            "true | other | null | 200 | other | null",
+            "true | null | img/ | 200 | null | img/"
+    })
+    public void testDeleteFilesOf(
+            boolean admin,
+            String username,
+            String prefix,
+            int expectedHttpStatus,
+            String expectedUsername,
+            String expectedPrefix) {
+
+        // Arrange
+        username = username.equals("null") ? null : username;
+        prefix = prefix.equals("null") ? null : prefix;
+        expectedUsername = expectedUsername.equals("null") ? null : expectedUsername;
+        expectedPrefix = expectedPrefix.equals("null") ? null : expectedPrefix;
+
+        MockHttpServletRequest request = new MockHttpServletRequest("DELETE", "/api/files");
+        AuthenticatedUser user = mock(AuthenticatedUser.class);
+        when(user.getUsername()).thenReturn("username");
+        when(authUtils.tryGetLoggedInUser(request)).thenReturn(Optional.of(user));
+        when(authUtils.isAdmin(user)).thenReturn(admin);
+        when(service.deleteFilesOf(any(), any(), anyInt())).thenReturn(new FileDeleteSummary(0, List.of(), false));
+
+        // Act
+        ResponseEntity<FileDeleteSummary> actual = target.deleteFilesOf(username, prefix, request);
+
+        // Assert
+        assertThat(actual.getStatusCodeValue()).isEqualTo(expectedHttpStatus);
+        if (expectedHttpStatus == 200) {
+            verify(service).deleteFilesOf(expectedUsername, expectedPrefix, 2);
+        } else {
+            verifyNoInteractions(service);
+        }
+    }
+
+    @Test
+    public void testDeleteFilesOfEveryoneIsRejected() {
+        // Arrange
+        MockHttpServletRequest request = new MockHttpServletRequest("DELETE", "/api/files");
+        AuthenticatedUser user = mock(AuthenticatedUser.class);
+        when(authUtils.tryGetLoggedInUser(request)).thenReturn(Optional.of(user));
+        when(authUtils.isAdmin(user)).thenReturn(true);
+
+        // Act & Assert
+        assertThrows(
+                InvalidDeleteException.class,
+                () -> target.deleteFilesOf(null, "", request));
+        verifyNoInteractions(service);
+    }
+
+    private static ServletWebRequest getRequest(String filename) {
+        return new ServletWebRequest(
+                new MockHttpServletRequest("GET", "/api/files/" + filename),
+                new MockHttpServletResponse());
+    }
+
+    private static MockHttpServletRequest multipartRequest(String partName, String filename, String content) {
+        String boundary = "boundary";
+        String body = "--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"description\"\r\n\r\n"
+                + "an image\r\n"
+                + "--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"" + partName + "\"; filename=\"" + filename + "\"\r\n"
+                + "Content-Type: image/jpeg\r\n\r\n"
+                + content + "\r\n"
+                + "--" + boundary + "--\r\n";
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/api/files");
+        request.setContentType("multipart/form-data; boundary=" + boundary);
+        request.setContent(body.getBytes());
+        return request;
+    }
+
+    private static MockHttpServletRequest batchRequest(String partName, String... filenames) {
+        String boundary = "boundary";
+        StringBuilder body = new StringBuilder();
+        for (String filename : filenames) {
+            body.append("--").append(boundary).append("\r\n")
+                    .append("Content-Disposition: form-data; name=\"").append(partName)
+                    .append("\"; filename=\"").append(filename).append("\"\r\n")
+                    .append("Content-Type: image/jpeg\r\n\r\n")
+                    .append("content of ").append(filename).append("\r\n");
+        }
+        body.append("--").append(boundary).append("--\r\n");
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/api/files/batch");
+        request.setContentType("multipart/form-data; boundary=" + boundary);
+        request.setContent(body.toString().getBytes());
+        return request;
+    }
+
+    /**
+     * A chunked request, whose length is only known once it has been read
+     */
+    private static MockHttpServletRequest withoutLength(MockHttpServletRequest request) {
+        MockHttpServletRequest chunked = new MockHttpServletRequest("POST", request.getRequestURI()) {
+            @Override
+            public int getContentLength() {
+                return -1;
+            }
+
+            @Override
+            public long getContentLengthLong() {
+                return -1;
+            }
+        };
+        chunked.setContentType(request.getContentType());
+        chunked.setContent(request.getContentAsByteArray());
+        return chunked;
+    }
+
+    private static FileUploadRecord recordWithHash(String filename, LocalDateTime dateUploaded, String hash) {
+        return new FileUploadRecord(
+                filename, "image/jpeg", "username", dateUploaded, FileUploadRecord.UploadStatus.succeeded, 10L, hash, null, null, null, null);
+    }
 }
\ No newline at end of file
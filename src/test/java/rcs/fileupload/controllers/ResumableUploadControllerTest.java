@@ -0,0 +1,148 @@
+package rcs.fileupload.controllers;
+
+import rcs.fileupload.models.FileUploadRecord;
+import rcs.fileupload.services.FileUploadService;
+import rcs.fileupload.services.exceptions.FileNotFoundException;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import rcs.auth.api.AuthUtils;
+import rcs.auth.api.models.AuthenticatedUser;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.*;
+
+public class ResumableUploadControllerTest {
+
+    private FileUploadService service;
+    private AuthUtils authUtils;
+    private ResumableUploadController target;
+
+    @Before
+    public void setup() {
+        service = mock(FileUploadService.class);
+        authUtils = mock(AuthUtils.class);
+        target = new ResumableUploadController(service, authUtils);
+    }
+
+    @Test
+    public void testCreateUpload() throws IOException {
+        // Arrange
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/api/uploads");
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+        AuthenticatedUser user = mock(AuthenticatedUser.class);
+        when(authUtils.tryGetLoggedInUser(request)).thenReturn(Optional.of(user));
+
+        FileUploadRecord record = uploadRecord(FileUploadRecord.UploadStatus.pending, 0L, null);
+        when(service.createUpload(eq(user), eq("video.mp4"), eq("video/mp4"), eq(100L), any(LocalDateTime.class)))
+                .thenReturn(record);
+
+        // Act
+        ResponseEntity<FileUploadRecord> actual = target.createUpload("video.mp4", "video/mp4", 100, request);
+
+        // Assert
+        assertThat(actual.getStatusCodeValue()).isEqualTo(201);
+        assertThat(actual.getHeaders().getLocation()).hasToString("http://localhost/api/uploads/video.mp4");
+        assertThat(actual.getHeaders().getFirst(ResumableUploadController.uploadOffsetHeader)).isEqualTo("0");
+        assertThat(actual.getBody()).isEqualTo(record);
+
+        RequestContextHolder.resetRequestAttributes();
+    }
+
+    @Test
+    public void testCreateUploadUnauthorized() throws IOException {
+        // Arrange
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        when(authUtils.tryGetLoggedInUser(request)).thenReturn(Optional.empty());
+
+        // Act
+        ResponseEntity<FileUploadRecord> actual = target.createUpload("video.mp4", null, 100, request);
+
+        // Assert
+        assertThat(actual.getStatusCodeValue()).isEqualTo(401);
+        verifyNoInteractions(service);
+    }
+
+    @Test
+    public void testGetUploadOffset() throws IOException {
+        // Arrange
+        when(service.getUpload("video.mp4"))
+                .thenReturn(Optional.of(uploadRecord(FileUploadRecord.UploadStatus.pending, 40L, null)));
+
+        // Act
+        ResponseEntity<Void> actual = target.getUploadOffset("video.mp4");
+
+        // Assert
+        assertThat(actual.getStatusCodeValue()).isEqualTo(200);
+        assertThat(actual.getHeaders().getFirst(ResumableUploadController.uploadOffsetHeader)).isEqualTo("40");
+        assertThat(actual.getHeaders().getFirst(ResumableUploadController.uploadLengthHeader)).isEqualTo("100");
+        assertThat(actual.getHeaders().getCacheControl()).isEqualTo("no-store");
+    }
+
+    @Test
+    public void testGetUploadOffsetNotFound() throws IOException {
+        // Arrange
+        when(service.getUpload("video.mp4")).thenReturn(Optional.empty());
+
+        // Act & Assert
+        assertThrows(
+                FileNotFoundException.class,
+                () -> target.getUploadOffset("video.mp4"));
+    }
+
+    @Test
+    public void testAppendToUpload() throws IOException {
+        // Arrange
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setContent(new byte[40]);
+        when(service.appendToUpload(eq("video.mp4"), eq(0L), eq(40L), any()))
+                .thenReturn(uploadRecord(FileUploadRecord.UploadStatus.pending, 40L, null));
+
+        // Act
+        ResponseEntity<FileUploadRecord> actual = target.appendToUpload("video.mp4", 0, 40, request);
+
+        // Assert
+        assertThat(actual.getStatusCodeValue()).isEqualTo(200);
+        assertThat(actual.getHeaders().getFirst(ResumableUploadController.uploadOffsetHeader)).isEqualTo("40");
+    }
+
+    @Test
+    public void testAppendLastChunk() throws IOException {
+        // Arrange
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setContent(new byte[60]);
+        when(service.appendToUpload(eq("video.mp4"), eq(40L), eq(60L), any()))
+                .thenReturn(uploadRecord(FileUploadRecord.UploadStatus.succeeded, 100L, "url/video.mp4"));
+
+        // Act
+        ResponseEntity<FileUploadRecord> actual = target.appendToUpload("video.mp4", 40, 60, request);
+
+        // Assert
+        assertThat(actual.getStatusCodeValue()).isEqualTo(201);
+        assertThat(actual.getHeaders().getLocation()).hasToString("url/video.mp4");
+        assertThat(actual.getHeaders().getFirst(ResumableUploadController.uploadOffsetHeader)).isEqualTo("100");
+    }
+
+    @Test
+    public void testCancelUpload() throws IOException {
+        // Act
+        ResponseEntity<Void> actual = target.cancelUpload("video.mp4");
+
+        // Assert
+        assertThat(actual.getStatusCodeValue()).isEqualTo(204);
+        verify(service).cancelUpload("video.mp4");
+    }
+
+    private static FileUploadRecord uploadRecord(FileUploadRecord.UploadStatus status, long uploadOffset, String url) {
+        return new FileUploadRecord(
+                "video.mp4", "video/mp4", "username", null, status, 100L, null, uploadOffset, null, null, url);
+    }
+}
@@ -0,0 +1,173 @@
+package rcs.fileupload.controllers;
+
+import rcs.fileupload.models.FileUploadRecord;
+import rcs.fileupload.services.FileUploadService;
+import rcs.fileupload.services.UploadStatusChangedEvent;
+import rcs.fileupload.services.exceptions.FileNotFoundException;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+
+public class UploadStatusControllerTest {
+
+    private FileUploadService service;
+    private UploadStatusController target;
+    private MockMvc mockMvc;
+
+    @Before
+    public void setup() {
+        service = mock(FileUploadService.class);
+        target = new UploadStatusController(service, Duration.ofMinutes(1), 100, 10);
+        mockMvc = MockMvcBuilders.standaloneSetup(target).build();
+    }
+
+    @Test
+    public void testGetRecord() throws FileNotFoundException {
+        // Arrange
+        FileUploadRecord record = record(FileUploadRecord.UploadStatus.pending);
+        when(service.getFileRecordWithUrl("image.jpg")).thenReturn(Optional.of(record));
+
+        // Act
+        ResponseEntity<FileUploadRecord> actual = target.getRecord("image.jpg");
+
+        // Assert
+        assertThat(actual.getStatusCodeValue()).isEqualTo(200);
+        assertThat(actual.getHeaders().getCacheControl()).isEqualTo("no-cache");
+        assertThat(actual.getBody()).isEqualTo(record);
+    }
+
+    @Test
+    public void testGetRecordNotFound() {
+        // Arrange
+        when(service.getFileRecordWithUrl("image.jpg")).thenReturn(Optional.empty());
+
+        // Act & Assert
+        assertThrows(
+                FileNotFoundException.class,
+                () -> target.getRecord("image.jpg"));
+    }
+
+    @Test
+    public void testStreamStatusUntilUploadCompletes() throws Exception {
+        // Arrange
+        when(service.getFileRecordWithUrl("image.jpg")).thenReturn(Optional.of(record(FileUploadRecord.UploadStatus.pending)));
+
+        // Act
+        MvcResult result = mockMvc.perform(get("/api/files/image.jpg/events")).andReturn();
+        String initial = result.getResponse().getContentAsString();
+        target.onStatusChanged(new UploadStatusChangedEvent(record(FileUploadRecord.UploadStatus.succeeded)));
+
+        // Assert
+        assertThat(result.getRequest().isAsyncStarted()).isTrue();
+        assertThat(initial).startsWith("event:status\ndata:").contains("\"uploadStatus\":\"pending\"");
+        assertThat(result.getResponse().getContentAsString())
+                .startsWith(initial)
+                .contains("\"uploadStatus\":\"succeeded\"");
+    }
+
+    @Test
+    public void testStreamStatusOfCompletedUpload() throws Exception {
+        // Arrange
+        when(service.getFileRecordWithUrl("image.jpg")).thenReturn(Optional.of(record(FileUploadRecord.UploadStatus.failed)));
+
+        // Act
+        MvcResult result = mockMvc.perform(get("/api/files/image.jpg/events")).andReturn();
+
+        // Assert
+        assertThat(result.getResponse().getContentAsString()).contains("\"uploadStatus\":\"failed\"");
+        assertThat(result.getAsyncResult(1000)).isNull();
+    }
+
+    @Test
+    public void testStreamStatusUntilUploadCompletesElsewhere() throws Exception {
+        // Arrange
+        when(service.getFileRecordWithUrl("image.jpg")).thenReturn(Optional.of(record(FileUploadRecord.UploadStatus.pending)));
+        when(service.getFileRecords(Set.of("image.jpg"))).thenReturn(List.of(record(FileUploadRecord.UploadStatus.succeeded)));
+
+        // Act
+        MvcResult result = mockMvc.perform(get("/api/files/image.jpg/events")).andReturn();
+        target.pollSubscribed();
+
+        // Assert
+        assertThat(result.getResponse().getContentAsString()).contains("\"uploadStatus\":\"succeeded\"");
+        assertThat(result.getAsyncResult(1000)).isNull();
+    }
+
+    @Test
+    public void testPollWhileStillPending() throws Exception {
+        // Arrange
+        when(service.getFileRecordWithUrl("image.jpg")).thenReturn(Optional.of(record(FileUploadRecord.UploadStatus.pending)));
+        when(service.getFileRecords(Set.of("image.jpg"))).thenReturn(List.of(record(FileUploadRecord.UploadStatus.pending)));
+
+        // Act
+        MvcResult result = mockMvc.perform(get("/api/files/image.jpg/events")).andReturn();
+        String initial = result.getResponse().getContentAsString();
+        target.pollSubscribed();
+
+        // Assert
+        assertThat(result.getResponse().getContentAsString()).isEqualTo(initial);
+    }
+
+    @Test
+    public void testStreamStatusLimitsSubscribersPerUpload() throws Exception {
+        // Arrange
+        target = new UploadStatusController(service, Duration.ofMinutes(1), 100, 1);
+        mockMvc = MockMvcBuilders.standaloneSetup(target).build();
+        when(service.getFileRecordWithUrl(anyString())).thenAnswer(invocation -> Optional.of(new FileUploadRecord(
+                invocation.getArgument(0), "image/jpeg", "username", null, FileUploadRecord.UploadStatus.pending, null)));
+
+        // Act
+        MvcResult first = mockMvc.perform(get("/api/files/image.jpg/events")).andReturn();
+        MvcResult second = mockMvc.perform(get("/api/files/image.jpg/events")).andReturn();
+        MvcResult other = mockMvc.perform(get("/api/files/video.mp4/events")).andReturn();
+        target.onStatusChanged(new UploadStatusChangedEvent(record(FileUploadRecord.UploadStatus.succeeded)));
+        MvcResult afterCompletion = mockMvc.perform(get("/api/files/image.jpg/events")).andReturn();
+
+        // Assert
+        assertThat(first.getRequest().isAsyncStarted()).isTrue();
+        assertThat(second.getResponse().getStatus()).isEqualTo(503);
+        assertThat(other.getRequest().isAsyncStarted()).isTrue();
+        assertThat(afterCompletion.getRequest().isAsyncStarted()).isTrue();
+    }
+
+    @Test
+    public void testStreamStatusLimitsSubscribers() throws Exception {
+        // Arrange
+        target = new UploadStatusController(service, Duration.ofMinutes(1), 1, 10);
+        mockMvc = MockMvcBuilders.standaloneSetup(target).build();
+        when(service.getFileRecordWithUrl(anyString())).thenAnswer(invocation -> Optional.of(new FileUploadRecord(
+                invocation.getArgument(0), "image/jpeg", "username", null, FileUploadRecord.UploadStatus.pending, null)));
+
+        // Act
+        MvcResult first = mockMvc.perform(get("/api/files/image.jpg/events")).andReturn();
+        MvcResult other = mockMvc.perform(get("/api/files/video.mp4/events")).andReturn();
+
+        // Assert
+        assertThat(first.getRequest().isAsyncStarted()).isTrue();
+        assertThat(other.getResponse().getStatus()).isEqualTo(503);
+        verify(service, never()).getFileRecordWithUrl("video.mp4");
+    }
+
+    @Test
+    public void testStatusChangeWithoutSubscribers() {
+        // Act & Assert, nothing to send to
+        target.onStatusChanged(new UploadStatusChangedEvent(record(FileUploadRecord.UploadStatus.succeeded)));
+    }
+
+    private static FileUploadRecord record(FileUploadRecord.UploadStatus status) {
+        return new FileUploadRecord("image.jpg", "image/jpeg", "username", null, status, null);
+    }
+}
@@ -0,0 +1,59 @@
+package rcs.fileupload.controllers.utils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.ServletServerHttpResponse;
+import org.springframework.mock.web.MockHttpServletResponse;
+import rcs.fileupload.services.FileStorageService;
+import rcs.fileupload.services.MemoryCachedStorageService;
+import rcs.fileupload.services.OffHeapCache;
+import rcs.fileupload.services.OffHeapResource;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class OffHeapResourceHttpMessageConverterTest {
+
+    private OffHeapResource resource;
+    private OffHeapResourceHttpMessageConverter target;
+
+    @Before
+    public void setup() throws IOException {
+        FileStorageService storage = mock(FileStorageService.class);
+        when(storage.load("image.png")).thenReturn(new ByteArrayResource("content".getBytes()));
+        MemoryCachedStorageService cached = new MemoryCachedStorageService(
+                storage,
+                new OffHeapCache(1024 * 1024, 1024, new SimpleMeterRegistry()));
+        resource = (OffHeapResource) cached.load("image.png");
+        target = new OffHeapResourceHttpMessageConverter();
+    }
+
+    @Test
+    public void testCanWrite() {
+        // Act & Assert
+        assertThat(target.canWrite(OffHeapResource.class, MediaType.IMAGE_PNG)).isTrue();
+        assertThat(target.canWrite(Resource.class, MediaType.IMAGE_PNG)).isFalse();
+        assertThat(target.canRead(OffHeapResource.class, MediaType.IMAGE_PNG)).isFalse();
+    }
+
+    @Test
+    public void testWrite() throws IOException {
+        // Arrange
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // Act
+        target.write(resource, MediaType.IMAGE_PNG, new ServletServerHttpResponse(response));
+
+        // Assert
+        assertThat(response.getContentAsString()).isEqualTo("content");
+        assertThat(response.getContentLengthLong()).isEqualTo(7);
+        assertThat(response.getContentType()).isEqualTo("image/png");
+    }
+}
@@ -0,0 +1,40 @@
+package rcs.fileupload.controllers.utils;
+
+import junitparams.JUnitParamsRunner;
+import junitparams.Parameters;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(JUnitParamsRunner.class)
+public class PublicReadHeadersFilterTest {
+
+    @Test
+    @Parameters({
+            "GET | true",
+            "HEAD | true",
+            "POST | false"
+    })
+    public void testSetsSecurityHeaders(String method, boolean expected) throws ServletException, IOException {
+        // Arrange
+        MockHttpServletRequest request = new MockHttpServletRequest(method, "/api/files/image.html");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        MockFilterChain chain = new MockFilterChain();
+
+        // Act
+        new PublicReadHeadersFilter().doFilter(request, response, chain);
+
+        // Assert
+        assertThat(chain.getRequest()).isSameAs(request);
+        assertThat(response.getHeader("X-Content-Type-Options")).isEqualTo(expected ? "nosniff" : null);
+        assertThat(response.getHeader("X-Frame-Options")).isEqualTo(expected ? "DENY" : null);
+        assertThat(response.getHeader("Cache-Control")).isNull();
+    }
+}
@@ -0,0 +1,140 @@
+package rcs.fileupload.controllers.utils;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.io.Resource;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SendfileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setup() throws IOException {
+        file = folder.newFile("image.png");
+        Files.write(file.toPath(), new byte[1000]);
+    }
+
+    @Test
+    public void testNotSupported() {
+        // Arrange
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/files/image.png");
+
+        // Act
+        Optional<ResponseEntity<Resource>> actual = Sendfile.tryPrepare(request, file, MediaType.IMAGE_PNG);
+
+        // Assert
+        assertThat(actual).isEmpty();
+        assertThat(request.getAttribute(Sendfile.filenameAttribute)).isNull();
+    }
+
+    @Test
+    public void testWholeFile() {
+        // Arrange
+        MockHttpServletRequest request = supportedRequest("GET");
+
+        // Act
+        ResponseEntity<Resource> actual = Sendfile.tryPrepare(request, file, MediaType.IMAGE_PNG).get();
+
+        // Assert
+        assertThat(actual.getStatusCodeValue()).isEqualTo(200);
+        assertThat(actual.getBody()).isNull();
+        assertThat(actual.getHeaders().getContentLength()).isEqualTo(1000);
+        assertThat(actual.getHeaders().getContentType()).isEqualTo(MediaType.IMAGE_PNG);
+        assertThat(request.getAttribute(Sendfile.filenameAttribute)).isEqualTo(file.getAbsolutePath());
+        assertThat(request.getAttribute(Sendfile.startAttribute)).isEqualTo(0L);
+        assertThat(request.getAttribute(Sendfile.endAttribute)).isEqualTo(1000L);
+    }
+
+    @Test
+    public void testSingleRange() {
+        // Arrange
+        MockHttpServletRequest request = supportedRequest("GET");
+        request.addHeader("Range", "bytes=100-199");
+
+        // Act
+        ResponseEntity<Resource> actual = Sendfile.tryPrepare(request, file, MediaType.IMAGE_PNG).get();
+
+        // Assert
+        assertThat(actual.getStatusCodeValue()).isEqualTo(206);
+        assertThat(actual.getHeaders().getContentLength()).isEqualTo(100);
+        assertThat(actual.getHeaders().getFirst("Content-Range")).isEqualTo("bytes 100-199/1000");
+        assertThat(request.getAttribute(Sendfile.startAttribute)).isEqualTo(100L);
+        assertThat(request.getAttribute(Sendfile.endAttribute)).isEqualTo(200L);
+    }
+
+    @Test
+    public void testSuffixRange() {
+        // Arrange
+        MockHttpServletRequest request = supportedRequest("GET");
+        request.addHeader("Range", "bytes=-10");
+
+        // Act
+        ResponseEntity<Resource> actual = Sendfile.tryPrepare(request, file, MediaType.IMAGE_PNG).get();
+
+        // Assert
+        assertThat(actual.getHeaders().getFirst("Content-Range")).isEqualTo("bytes 990-999/1000");
+        assertThat(request.getAttribute(Sendfile.startAttribute)).isEqualTo(990L);
+        assertThat(request.getAttribute(Sendfile.endAttribute)).isEqualTo(1000L);
+    }
+
+    @Test
+    public void testMultipleRangesFallBack() {
+        // Arrange
+        MockHttpServletRequest request = supportedRequest("GET");
+        request.addHeader("Range", "bytes=0-9,20-29");
+
+        // Act
+        Optional<ResponseEntity<Resource>> actual = Sendfile.tryPrepare(request, file, MediaType.IMAGE_PNG);
+
+        // Assert
+        assertThat(actual).isEmpty();
+        assertThat(request.getAttribute(Sendfile.filenameAttribute)).isNull();
+    }
+
+    @Test
+    public void testUnsatisfiableRangeFallsBack() {
+        // Arrange
+        MockHttpServletRequest request = supportedRequest("GET");
+        request.addHeader("Range", "bytes=5000-");
+
+        // Act
+        Optional<ResponseEntity<Resource>> actual = Sendfile.tryPrepare(request, file, MediaType.IMAGE_PNG);
+
+        // Assert
+        assertThat(actual).isEmpty();
+    }
+
+    @Test
+    public void testHeadSendsNoBody() {
+        // Arrange
+        MockHttpServletRequest request = supportedRequest("HEAD");
+
+        // Act
+        ResponseEntity<Resource> actual = Sendfile.tryPrepare(request, file, MediaType.IMAGE_PNG).get();
+
+        // Assert
+        assertThat(actual.getHeaders().getContentLength()).isEqualTo(1000);
+        assertThat(request.getAttribute(Sendfile.filenameAttribute)).isNull();
+    }
+
+    private static MockHttpServletRequest supportedRequest(String method) {
+        MockHttpServletRequest request = new MockHttpServletRequest(method, "/api/files/image.png");
+        request.setAttribute(Sendfile.supportAttribute, true);
+        return request;
+    }
+}
@@ -0,0 +1,188 @@
+package rcs.fileupload.repositories;
+
+import rcs.fileupload.models.BlobRecord;
+import rcs.fileupload.testutils.InMemoryMongoRepositoryTestBase;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BlobRecordsRepositoryImplTestInMemory extends InMemoryMongoRepositoryTestBase {
+
+    private MongoTemplate mongoTemplate;
+    private BlobRecordsRepositoryImpl target;
+
+    @Before
+    public void setup() {
+        mongoTemplate = getMongoTemplate();
+        target = new BlobRecordsRepositoryImpl(mongoTemplate);
+        target.ensureIndexes();
+    }
+
+    @Test
+    public void testAcquireCountsReferences() {
+        // Act
+        BlobRecord first = target.acquire("hash", 10).get();
+        target.markStored("hash");
+        BlobRecord second = target.acquire("hash", 10).get();
+
+        // Assert
+        assertThat(first.getRefCount()).isEqualTo(1);
+        assertThat(first.getStatus()).isEqualTo(BlobRecord.BlobStatus.pending);
+        assertThat(second.getRefCount()).isEqualTo(2);
+        assertThat(second.getStatus()).isEqualTo(BlobRecord.BlobStatus.stored);
+        assertThat(second.getSize()).isEqualTo(10);
+    }
+
+    @Test
+    public void testAcquireWhileDeleting() {
+        // Arrange
+        mongoTemplate.save(new BlobRecord("hash", 10L, 0, BlobRecord.BlobStatus.deleting, LocalDateTime.now()));
+
+        // Act
+        Optional<BlobRecord> actual = target.acquire("hash", 10);
+
+        // Assert
+        assertThat(actual).isEmpty();
+        assertThat(mongoTemplate.findById("hash", BlobRecord.class).getRefCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testRelease() {
+        // Arrange
+        target.acquire("hash", 10);
+        target.acquire("hash", 10);
+
+        // Act
+        BlobRecord actual = target.release("hash");
+
+        // Assert
+        assertThat(actual.getRefCount()).isEqualTo(1);
+        assertThat(target.release("missing")).isNull();
+    }
+
+    @Test
+    public void testMarkDeletingOnlyUnreferenced() {
+        // Arrange
+        target.acquire("referenced", 10);
+        target.acquire("released", 10);
+        target.release("released");
+
+        // Act & Assert
+        assertThat(target.markDeleting("referenced", null)).isFalse();
+        assertThat(target.markDeleting("released", null)).isTrue();
+        assertThat(target.markDeleting("released", null)).isFalse();
+        assertThat(mongoTemplate.findById("released", BlobRecord.class).getStatus()).isEqualTo(BlobRecord.BlobStatus.deleting);
+    }
+
+    @Test
+    public void testMarkDeletingWithoutRecordBlocksAcquire() {
+        // Act
+        boolean actual = target.markDeleting("orphan", null);
+
+        // Assert
+        assertThat(actual).isTrue();
+        assertThat(target.acquire("orphan", 10)).isEmpty();
+
+        target.deleteIfDeleting("orphan");
+        assertThat(target.acquire("orphan", 10)).isPresent();
+    }
+
+    @Test
+    public void testMarkDeletingTakesOverStaleDeletions() {
+        // Arrange
+        LocalDateTime now = LocalDateTime.now();
+        mongoTemplate.save(new BlobRecord("stale", 10L, 0, BlobRecord.BlobStatus.deleting, now.minusHours(2)));
+        mongoTemplate.save(new BlobRecord("recent", 10L, 0, BlobRecord.BlobStatus.deleting, now));
+
+        // Act & Assert
+        assertThat(target.findStaleDeleting(now.minusHours(1)))
+                .extracting(BlobRecord::getHash)
+                .containsExactly("stale");
+        assertThat(target.markDeleting("stale", now.minusHours(1))).isTrue();
+        assertThat(target.markDeleting("recent", now.minusHours(1))).isFalse();
+    }
+
+    @Test
+    public void testDeleteIfDeleting() {
+        // Arrange
+        target.acquire("hash", 10);
+
+        // Act
+        target.deleteIfDeleting("hash");
+
+        // Assert
+        assertThat(mongoTemplate.findById("hash", BlobRecord.class)).isNotNull();
+    }
+
+    @Test
+    public void testFindReferenced() {
+        // Arrange
+        allowCollectionScans(); // the assertion reads every record
+        target.acquire("referenced", 10);
+        target.acquire("released", 10);
+        target.release("released");
+        target.markDeleting("deleting", null);
+
+        // Act
+        Set<String> actual = target.findReferenced(List.of("referenced", "released", "deleting", "missing"));
+
+        // Assert
+        assertThat(actual).containsExactly("referenced");
+        assertThat(mongoTemplate.findAll(BlobRecord.class).stream().map(BlobRecord::getHash).collect(Collectors.toSet()))
+                .containsExactlyInAnyOrder("referenced", "released", "deleting");
+    }
+
+    @Test
+    public void testFindStaleReferenced() {
+        // Arrange
+        LocalDateTime now = LocalDateTime.now();
+        mongoTemplate.save(new BlobRecord("stale", 10L, 1, BlobRecord.BlobStatus.stored, now.minusHours(2)));
+        mongoTemplate.save(new BlobRecord("recent", 10L, 1, BlobRecord.BlobStatus.stored, now));
+        mongoTemplate.save(new BlobRecord("released", 10L, 0, BlobRecord.BlobStatus.stored, now.minusHours(2)));
+        mongoTemplate.save(new BlobRecord("deleting", 10L, 1, BlobRecord.BlobStatus.deleting, now.minusHours(2)));
+
+        // Act
+        List<BlobRecord> actual = target.findStaleReferenced(
+                List.of("stale", "recent", "released", "deleting"), now.minusHours(1));
+
+        // Assert
+        assertThat(actual).extracting(BlobRecord::getHash).containsExactly("stale");
+    }
+
+    @Test
+    public void testMarkUnreferenced() {
+        // Arrange
+        LocalDateTime modified = LocalDateTime.of(2021, 1, 1, 10, 0);
+        mongoTemplate.save(new BlobRecord("hash", 10L, 2, BlobRecord.BlobStatus.stored, modified));
+
+        // Act
+        boolean actual = target.markUnreferenced("hash", modified);
+
+        // Assert
+        assertThat(actual).isTrue();
+        assertThat(mongoTemplate.findById("hash", BlobRecord.class).getRefCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testMarkUnreferencedAfterAcquire() {
+        // Arrange
+        LocalDateTime modified = LocalDateTime.of(2021, 1, 1, 10, 0);
+        mongoTemplate.save(new BlobRecord("hash", 10L, 1, BlobRecord.BlobStatus.stored, modified));
+        target.acquire("hash", 10);
+
+        // Act
+        boolean actual = target.markUnreferenced("hash", modified);
+
+        // Assert
+        assertThat(actual).isFalse();
+        assertThat(mongoTemplate.findById("hash", BlobRecord.class).getRefCount()).isEqualTo(2);
+    }
+}
@@ -0,0 +1,140 @@
+package rcs.fileupload.repositories;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.mapping.event.AfterDeleteEvent;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import rcs.fileupload.models.FileUploadRecord;
+import rcs.fileupload.testutils.InMemoryMongoRepositoryTestBase;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FileUploadRecordsCacheTestInMemory extends InMemoryMongoRepositoryTestBase {
+
+    private MongoTemplate mongoTemplate;
+    private FileUploadRecordsCache target;
+
+    @Before
+    public void setup() {
+        mongoTemplate = getMongoTemplate();
+        target = new FileUploadRecordsCache(mongoTemplate, 100, Duration.ofMinutes(1), false, new SimpleMeterRegistry());
+    }
+
+    @Test
+    public void testFindByIdIsCached() {
+        // Arrange
+        mongoTemplate.save(record("image.png", "userA"));
+        target.findById("image.png");
+        mongoTemplate.save(record("image.png", "userB"));
+
+        // Act
+        Optional<FileUploadRecord> actual = target.findById("image.png");
+
+        // Assert
+        assertThat(actual).map(FileUploadRecord::getUsername).contains("userA");
+    }
+
+    @Test
+    public void testFindByIdMissingIsNotCached() {
+        // Arrange
+        target.findById("image.png");
+        mongoTemplate.save(record("image.png", "userA"));
+
+        // Act
+        Optional<FileUploadRecord> actual = target.findById("image.png");
+
+        // Assert
+        assertThat(actual).map(FileUploadRecord::getUsername).contains("userA");
+    }
+
+    @Test
+    public void testFindByIdReturnsCopies() {
+        // Arrange
+        FileUploadRecord record = record("image.png", "userA");
+        record.setVariants(List.of("thumbnail"));
+        mongoTemplate.save(record);
+
+        // Act
+        FileUploadRecord first = target.findById("image.png").get();
+        first.setUrl("url");
+        first.getVariants().clear();
+        FileUploadRecord second = target.findById("image.png").get();
+
+        // Assert
+        assertThat(second.getUrl()).isNull();
+        assertThat(second.getVariants()).containsExactly("thumbnail");
+    }
+
+    @Test
+    public void testSaveInvalidates() {
+        // Arrange
+        mongoTemplate.save(record("image.png", "userA"));
+        target.findById("image.png");
+        FileUploadRecord replaced = record("image.png", "userB");
+        mongoTemplate.save(replaced);
+
+        // Act
+        target.onAfterSave(new AfterSaveEvent<>(replaced, new Document(), "fileUploadRecord"));
+
+        // Assert
+        assertThat(target.findById("image.png")).map(FileUploadRecord::getUsername).contains("userB");
+    }
+
+    @Test
+    public void testDeleteByIdInvalidates() {
+        // Arrange
+        mongoTemplate.save(record("image.png", "userA"));
+        target.findById("image.png");
+        mongoTemplate.remove(record("image.png", "userA"));
+
+        // Act
+        target.onAfterDelete(new AfterDeleteEvent<>(
+                new Document("_id", "image.png"), FileUploadRecord.class, "fileUploadRecord"));
+
+        // Assert
+        assertThat(target.findById("image.png")).isEmpty();
+        assertThat(target.getIfPresent("image.png")).isEmpty();
+    }
+
+    @Test
+    public void testDeleteByNamesInvalidatesThem() {
+        // Arrange
+        mongoTemplate.save(record("a.png", "userA"));
+        mongoTemplate.save(record("b.png", "userA"));
+        target.findById("a.png");
+        target.findById("b.png");
+
+        // Act
+        target.onAfterDelete(new AfterDeleteEvent<>(
+                new Document("_id", new Document("$in", List.of("a.png"))), FileUploadRecord.class, "fileUploadRecord"));
+
+        // Assert
+        assertThat(target.getIfPresent("a.png")).isEmpty();
+        assertThat(target.getIfPresent("b.png")).isPresent();
+    }
+
+    @Test
+    public void testDeleteByQueryInvalidatesAll() {
+        // Arrange
+        mongoTemplate.save(record("image.png", "userA"));
+        target.findById("image.png");
+
+        // Act
+        target.onAfterDelete(new AfterDeleteEvent<>(
+                new Document("username", "userA"), FileUploadRecord.class, "fileUploadRecord"));
+
+        // Assert
+        assertThat(target.getIfPresent("image.png")).isEmpty();
+    }
+
+    private static FileUploadRecord record(String name, String username) {
+        return new FileUploadRecord(name, "image/png", username, null, FileUploadRecord.UploadStatus.succeeded, null);
+    }
+}
@@ -1,15 +1,29 @@
 package rcs.fileupload.repositories;
 
 import rcs.fileupload.models.FileUploadRecord;
+import rcs.fileupload.models.FileUploadRecordsCursor;
+import rcs.fileupload.models.FileUploadRecordsFilter;
 import rcs.fileupload.testutils.InMemoryMongoRepositoryTestBase;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import junitparams.JUnitParamsRunner;
 import junitparams.Parameters;
+import org.bson.Document;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.data.mongodb.core.MongoTemplate;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -22,62 +36,494 @@ public class FileUploadRecordsRepositoryImplTestInMemory extends InMemoryMongoRe
     @Before
     public void setup() {
         mongoTemplate = getMongoTemplate();
-        target = new FileUploadRecordsRepositoryImpl(mongoTemplate);
+        target = new FileUploadRecordsRepositoryImpl(
+                mongoTemplate,
+                new FileUploadRecordsCache(mongoTemplate, 100, Duration.ofMinutes(1), false, new SimpleMeterRegistry()),
+                new FileUploadRecordsWriteBatcher(mongoTemplate, false, 100, Duration.ZERO, new SimpleMeterRegistry()));
+        target.ensureIndexes();
     }
 
     @Test
-    public void testUpdateStatus() {
+    @Parameters({
+            "4 | 4",
+            "2 | 3"
+    })
+    public void testUpdateUploadOffsetOnlyMovesForward(long uploadOffset, long expected) {
         // Arrange
-        FileUploadRecord existing = new FileUploadRecord(
-                "image.png",
-                "image/png",
-                "userId",
-                LocalDateTime.now(),
-                FileUploadRecord.UploadStatus.pending,
-                null);
+        mongoTemplate.save(new FileUploadRecord(
+                "video.mp4", "video/mp4", "userId", null, FileUploadRecord.UploadStatus.pending, 10L, null, 3L, null, null, null));
 
-        mongoTemplate.save(existing);
+        // Act
+        target.updateUploadOffset("video.mp4", uploadOffset);
+
+        // Assert
+        assertThat(mongoTemplate.findById("video.mp4", FileUploadRecord.class).getUploadOffset()).isEqualTo(expected);
+    }
+
+    @Test
+    public void testUpdatesInvalidateCachedRecord() {
+        // Arrange
+        FileUploadRecord upload = new FileUploadRecord(
+                "image.png", "image/png", "userId", LocalDateTime.of(2021, 1, 1, 10, 0), FileUploadRecord.UploadStatus.pending, null);
+        mongoTemplate.save(upload);
+        target.findCachedById("image.png");
+
+        // Act
+        target.updateStatusIfPending(upload, FileUploadRecord.UploadStatus.succeeded, 7, "hash");
+
+        // Assert
+        assertThat(target.findCachedById("image.png").get().getUploadStatus())
+                .isEqualTo(FileUploadRecord.UploadStatus.succeeded);
+        assertThat(target.findCachedById("image.png").get().getSize()).isEqualTo(7);
+    }
+
+    @Test
+    public void testFindPageWalksAllRecordsInOrder() {
+        // Arrange
+        LocalDateTime date = LocalDateTime.of(2021, 1, 1, 10, 0);
+        List.of(
+                new FileUploadRecord("a.png", "image/png", "userA", date, FileUploadRecord.UploadStatus.succeeded, null),
+                new FileUploadRecord("b.png", "image/png", "userA", date, FileUploadRecord.UploadStatus.succeeded, null),
+                new FileUploadRecord("c.png", "image/png", "userB", date.plusMinutes(1), FileUploadRecord.UploadStatus.failed, null),
+                new FileUploadRecord("d.png", "image/png", "userA", date.minusMinutes(1), FileUploadRecord.UploadStatus.succeeded, null))
+                .forEach(mongoTemplate::save);
 
         // Act
-        FileUploadRecord updated = target.updateStatus(existing.getName(), FileUploadRecord.UploadStatus.succeeded);
+        List<FileUploadRecord> firstPage = target.findPage(FileUploadRecordsFilter.none, null, 2);
+        List<FileUploadRecord> secondPage = target.findPage(
+                FileUploadRecordsFilter.none, FileUploadRecordsCursor.after(firstPage.get(1)), 2);
+        List<FileUploadRecord> lastPage = target.findPage(
+                FileUploadRecordsFilter.none, FileUploadRecordsCursor.after(secondPage.get(1)), 2);
 
         // Assert
-        assertThat(updated).usingRecursiveComparison()
-                .isEqualTo(withStatus(existing, FileUploadRecord.UploadStatus.succeeded));
+        assertThat(firstPage).extracting(FileUploadRecord::getName).containsExactly("c.png", "b.png");
+        assertThat(secondPage).extracting(FileUploadRecord::getName).containsExactly("a.png", "d.png");
+        assertThat(lastPage).isEmpty();
+    }
+
+    @Test
+    public void testFindPageWithFilter() {
+        // Arrange
+        LocalDateTime date = LocalDateTime.of(2021, 1, 1, 10, 0);
+        List.of(
+                new FileUploadRecord("a.png", "image/png", "userA", date, FileUploadRecord.UploadStatus.succeeded, null),
+                new FileUploadRecord("b.jpg", "image/jpeg", "userA", date, FileUploadRecord.UploadStatus.succeeded, null),
+                new FileUploadRecord("c.png", "image/png", "userA", date, FileUploadRecord.UploadStatus.failed, null),
+                new FileUploadRecord("d.png", "image/png", "userB", date, FileUploadRecord.UploadStatus.succeeded, null))
+                .forEach(mongoTemplate::save);
+
+        FileUploadRecordsFilter filter = new FileUploadRecordsFilter(
+                "userA", "image/png", FileUploadRecord.UploadStatus.succeeded);
+
+        // Act
+        List<FileUploadRecord> actual = target.findPage(filter, null, 10);
+
+        // Assert
+        assertThat(actual).extracting(FileUploadRecord::getName).containsExactly("a.png");
+    }
+
+    @Test
+    public void testStreamAll() {
+        // Arrange
+        LocalDateTime date = LocalDateTime.of(2021, 1, 1, 10, 0);
+        List.of(
+                new FileUploadRecord("a.png", "image/png", "userA", date, FileUploadRecord.UploadStatus.succeeded, null),
+                new FileUploadRecord("b.png", "image/png", "userB", date, FileUploadRecord.UploadStatus.succeeded, null),
+                new FileUploadRecord("c.png", "image/png", "userA", date.plusMinutes(1), FileUploadRecord.UploadStatus.failed, null))
+                .forEach(mongoTemplate::save);
+
+        // Act
+        List<String> actual;
+        try (Stream<FileUploadRecord> records = target.streamAll(new FileUploadRecordsFilter("userA", null, null))) {
+            actual = records.map(FileUploadRecord::getName).collect(Collectors.toList());
+        }
+
+        // Assert
+        assertThat(actual).containsExactly("c.png", "a.png");
     }
 
     @Test
     @Parameters({
-            "failed | false",
-            "succeeded | true",
-            "pending | true"
+            "userA | null | a.png;a(1).png;b.png",
+            "userA | a( | a(1).png",
+            "null | a | a.png;a(1).png;ab.png"
     })
-    public void testExistsByNameAndIsPendingOrSucceeded(FileUploadRecord.UploadStatus status, boolean expectedResult) {
+    public void testStreamByOwner(String username, String prefix, String expected) {
         // Arrange
+        username = username.equals("null") ? null : username;
+        prefix = prefix.equals("null") ? null : prefix;
+        LocalDateTime date = LocalDateTime.of(2021, 1, 1, 10, 0);
+        List.of(
+                new FileUploadRecord("a.png", "image/png", "userA", date, FileUploadRecord.UploadStatus.succeeded, null),
+                new FileUploadRecord("a(1).png", "image/png", "userA", date, FileUploadRecord.UploadStatus.failed, null),
+                new FileUploadRecord("b.png", "image/png", "userA", date, FileUploadRecord.UploadStatus.pending, null),
+                new FileUploadRecord("ab.png", "image/png", "userB", date, FileUploadRecord.UploadStatus.succeeded, null),
+                new FileUploadRecord("ba.png", "image/png", "userB", date, FileUploadRecord.UploadStatus.succeeded, null))
+                .forEach(mongoTemplate::save);
+
+        // Act
+        List<String> actual;
+        try (Stream<FileUploadRecord> records = target.streamByOwner(username, prefix)) {
+            actual = records.map(FileUploadRecord::getName).collect(Collectors.toList());
+        }
+
+        // Assert
+        assertThat(actual).containsExactlyInAnyOrder(expected.split(";"));
+    }
+
+    @Test
+    public void testStreamStalePending() {
+        // Arrange
+        LocalDateTime now = LocalDateTime.of(2021, 1, 2, 10, 0);
+        List.of(
+                new FileUploadRecord("stale.png", "image/png", "userA", now.minusHours(2), FileUploadRecord.UploadStatus.pending, null),
+                new FileUploadRecord("recent.png", "image/png", "userA", now.minusMinutes(5), FileUploadRecord.UploadStatus.pending, null),
+                new FileUploadRecord("failed.png", "image/png", "userA", now.minusHours(2), FileUploadRecord.UploadStatus.failed, null),
+                new FileUploadRecord("resumable.mp4", "video/mp4", "userA", now.minusHours(2), FileUploadRecord.UploadStatus.pending, 10L, null, 3L, null, null, null),
+                new FileUploadRecord("abandoned.mp4", "video/mp4", "userA", now.minusDays(2), FileUploadRecord.UploadStatus.pending, 10L, null, 3L, null, null, null))
+                .forEach(mongoTemplate::save);
+
+        // Act
+        List<String> actual;
+        try (Stream<FileUploadRecord> records = target.streamStalePending(now.minusHours(1), now.minusDays(1))) {
+            actual = records.map(FileUploadRecord::getName).collect(Collectors.toList());
+        }
+
+        // Assert
+        assertThat(actual).containsExactlyInAnyOrder("stale.png", "abandoned.mp4");
+    }
+
+    @Test
+    @Parameters({
+            "pending | 0 | true",
+            "succeeded | 0 | false",
+            "pending | 1 | false"
+    })
+    public void testExpirePending(FileUploadRecord.UploadStatus currentStatus, long minutesLater, boolean expectedResult) {
+        // Arrange
+        LocalDateTime date = LocalDateTime.of(2021, 1, 1, 10, 0);
+        FileUploadRecord stale = new FileUploadRecord("image.png", "image/png", "userA", date, FileUploadRecord.UploadStatus.pending, null);
+        mongoTemplate.save(new FileUploadRecord(
+                "image.png", "image/png", "userA", date.plusMinutes(minutesLater), currentStatus, null));
+
+        // Act
+        boolean actual = target.expirePending(stale);
+
+        // Assert
+        assertThat(actual).isEqualTo(expectedResult);
+        assertThat(mongoTemplate.findById("image.png", FileUploadRecord.class).getUploadStatus())
+                .isEqualTo(expectedResult ? FileUploadRecord.UploadStatus.failed : currentStatus);
+    }
+
+    @Test
+    @Parameters({
+            "succeeded | 0 | true",
+            "pending | 0 | false",
+            "succeeded | 1 | false"
+    })
+    public void testFailIfSucceeded(FileUploadRecord.UploadStatus currentStatus, long minutesLater, boolean expectedResult) {
+        // Arrange
+        LocalDateTime date = LocalDateTime.of(2021, 1, 1, 10, 0);
+        FileUploadRecord promoted = new FileUploadRecord("image.png", "image/png", "userA", date, FileUploadRecord.UploadStatus.succeeded, null);
+        mongoTemplate.save(new FileUploadRecord(
+                "image.png", "image/png", "userA", date.plusMinutes(minutesLater), currentStatus, null));
+
+        // Act
+        boolean actual = target.failIfSucceeded(promoted);
+
+        // Assert
+        assertThat(actual).isEqualTo(expectedResult);
+        assertThat(mongoTemplate.findById("image.png", FileUploadRecord.class).getUploadStatus())
+                .isEqualTo(expectedResult ? FileUploadRecord.UploadStatus.failed : currentStatus);
+    }
+
+    @Test
+    public void testCompleteIfPendingOnlyOnce() {
+        // Arrange
+        LocalDateTime date = LocalDateTime.of(2021, 1, 1, 10, 0);
+        FileUploadRecord upload = new FileUploadRecord("video.mp4", "video/mp4", "userA", date, FileUploadRecord.UploadStatus.pending, null);
+        mongoTemplate.save(upload);
+
+        // Act
+        FileUploadRecord first = target.completeIfPending(upload, "hash");
+        FileUploadRecord second = target.completeIfPending(upload, "hash");
+
+        // Assert
+        assertThat(first.getContentHash()).isEqualTo("hash");
+        assertThat(second).isNull();
+    }
+
+    @Test
+    @Parameters({
+            "pending | 4 | null | true",
+            "succeeded | 7 | hash | false",
+            "pending | 7 | hash | false",
+            "pending | -1 | null | false"
+    })
+    public void testDeleteIfReceiving(
+            FileUploadRecord.UploadStatus currentStatus,
+            long uploadOffset,
+            String contentHash,
+            boolean expectedResult) {
+        // Arrange
+        LocalDateTime date = LocalDateTime.of(2021, 1, 1, 10, 0);
+        FileUploadRecord upload = new FileUploadRecord("video.mp4", "video/mp4", "userA", date, currentStatus, null);
+        upload.setUploadOffset(uploadOffset < 0 ? null : uploadOffset);
+        upload.setContentHash("null".equals(contentHash) ? null : contentHash);
+        mongoTemplate.save(upload);
+
+        // Act
+        boolean actual = target.deleteIfReceiving(upload);
+
+        // Assert
+        assertThat(actual).isEqualTo(expectedResult);
+        assertThat(mongoTemplate.findById("video.mp4", FileUploadRecord.class) == null).isEqualTo(expectedResult);
+    }
+
+    @Test
+    @Parameters({
+            "pending | 0 | true",
+            "succeeded | 0 | false",
+            "pending | 1 | false"
+    })
+    public void testUpdateStatusIfPending(FileUploadRecord.UploadStatus currentStatus, long minutesLater, boolean expectedResult) {
+        // Arrange
+        LocalDateTime date = LocalDateTime.of(2021, 1, 1, 10, 0);
+        FileUploadRecord upload = new FileUploadRecord("image.png", "image/png", "userA", date, FileUploadRecord.UploadStatus.pending, null);
+        mongoTemplate.save(new FileUploadRecord(
+                "image.png", "image/png", "userA", date.plusMinutes(minutesLater), currentStatus, null));
+
+        // Act
+        FileUploadRecord actual = target.updateStatusIfPending(upload, FileUploadRecord.UploadStatus.succeeded, 7, "hash");
+
+        // Assert
+        assertThat(actual != null).isEqualTo(expectedResult);
+        FileUploadRecord stored = mongoTemplate.findById("image.png", FileUploadRecord.class);
+        assertThat(stored.getUploadStatus()).isEqualTo(expectedResult ? FileUploadRecord.UploadStatus.succeeded : currentStatus);
+        assertThat(stored.getSize()).isEqualTo(expectedResult ? 7L : null);
+    }
+
+    @Test
+    public void testReserveNewName() {
+        // Arrange
+        FileUploadRecord upload = new FileUploadRecord(
+                "image.png", "image/png", "userA", LocalDateTime.of(2021, 1, 1, 10, 0), FileUploadRecord.UploadStatus.pending, null);
+
+        // Act
+        boolean actual = target.reserve(upload);
+
+        // Assert
+        assertThat(actual).isTrue();
+        assertThat(mongoTemplate.findById("image.png", FileUploadRecord.class))
+                .usingRecursiveComparison()
+                .isEqualTo(upload);
+    }
+
+    @Test
+    @Parameters({
+            "pending | false",
+            "succeeded | false",
+            "failed | true"
+    })
+    public void testReserveTakenName(FileUploadRecord.UploadStatus currentStatus, boolean expectedResult) {
+        // Arrange
+        LocalDateTime date = LocalDateTime.of(2021, 1, 1, 10, 0);
         FileUploadRecord existing = new FileUploadRecord(
-                "image.png",
-                "image/png",
-                "userId",
-                LocalDateTime.now(),
-                status,
-                null);
+                "image.png", "image/png", "userA", date, currentStatus, 7L, "hash", null, null, null, null);
+        mongoTemplate.save(existing);
+        target.findCachedById("image.png");
+        FileUploadRecord upload = new FileUploadRecord(
+                "image.png", "image/jpeg", "userB", date.plusMinutes(1), FileUploadRecord.UploadStatus.pending, null);
+
+        // Act
+        boolean actual = target.reserve(upload);
 
+        // Assert
+        assertThat(actual).isEqualTo(expectedResult);
+        assertThat(mongoTemplate.findById("image.png", FileUploadRecord.class))
+                .usingRecursiveComparison()
+                .isEqualTo(expectedResult ? upload : existing);
+        assertThat(target.findCachedById("image.png").get().getUsername()).isEqualTo(expectedResult ? "userB" : "userA");
+    }
+
+    @Test
+    public void testReserveNameFreedBehindTheCache() {
+        // Arrange
+        LocalDateTime date = LocalDateTime.of(2021, 1, 1, 10, 0);
+        FileUploadRecord existing = new FileUploadRecord(
+                "image.png", "image/png", "userA", date, FileUploadRecord.UploadStatus.succeeded, null);
         mongoTemplate.save(existing);
+        target.findCachedById("image.png");
+        // deleted by another instance, without a change stream to tell this one
+        mongoTemplate.getCollection(mongoTemplate.getCollectionName(FileUploadRecord.class))
+                .deleteOne(new Document("_id", "image.png"));
+        FileUploadRecord upload = new FileUploadRecord(
+                "image.png", "image/jpeg", "userB", date.plusMinutes(1), FileUploadRecord.UploadStatus.pending, null);
+
+        // Act
+        boolean actual = target.reserve(upload);
+
+        // Assert
+        assertThat(actual).isTrue();
+        assertThat(mongoTemplate.findById("image.png", FileUploadRecord.class).getUsername()).isEqualTo("userB");
+    }
+
+    @Test
+    public void testReserveConcurrently() throws Exception {
+        // Arrange
+        int uploads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(uploads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Boolean>> reserved = new ArrayList<>();
+        for (int i = 0; i < uploads; i++) {
+            FileUploadRecord upload = new FileUploadRecord(
+                    "image.png", "image/png", "user" + i, LocalDateTime.now(), FileUploadRecord.UploadStatus.pending, null);
+            reserved.add(executor.submit(() -> {
+                start.await();
+                return target.reserve(upload);
+            }));
+        }
+
+        // Act
+        start.countDown();
+        long actual = 0;
+        for (Future<Boolean> future : reserved) {
+            actual += future.get() ? 1 : 0;
+        }
+        executor.shutdown();
+
+        // Assert
+        assertThat(actual).isEqualTo(1);
+    }
+
+    @Test
+    public void testReserveAll() {
+        // Arrange
+        LocalDateTime date = LocalDateTime.of(2021, 1, 1, 10, 0);
+        mongoTemplate.save(new FileUploadRecord("taken.png", "image/png", "userA", date, FileUploadRecord.UploadStatus.succeeded, null));
+        mongoTemplate.save(new FileUploadRecord("failed.png", "image/png", "userA", date, FileUploadRecord.UploadStatus.failed, null));
+        List<FileUploadRecord> uploads = Stream.of("new.png", "taken.png", "failed.png")
+                .map(name -> new FileUploadRecord(name, "image/png", "userB", date.plusMinutes(1), FileUploadRecord.UploadStatus.pending, null))
+                .collect(Collectors.toList());
 
         // Act
-        boolean actual = target.isPendingOrSucceeded(existing.getName());
+        List<Boolean> actual = target.reserveAll(uploads);
+
+        // Assert
+        assertThat(actual).containsExactly(true, false, true);
+        assertThat(Stream.of("new.png", "taken.png", "failed.png").map(name -> mongoTemplate.findById(name, FileUploadRecord.class)))
+                .extracting(FileUploadRecord::getUsername)
+                .containsExactly("userB", "userA", "userB");
+    }
+
+    @Test
+    public void testUpdateStatusIfPendingInBulk() {
+        // Arrange
+        LocalDateTime date = LocalDateTime.of(2021, 1, 1, 10, 0);
+        FileUploadRecord pending = new FileUploadRecord("a.png", "image/png", "userA", date, FileUploadRecord.UploadStatus.pending, null);
+        FileUploadRecord expired = new FileUploadRecord("b.png", "image/png", "userA", date, FileUploadRecord.UploadStatus.failed, null);
+        mongoTemplate.save(pending);
+        mongoTemplate.save(expired);
+        List<FileUploadRecord> updated = Stream.of(pending, expired)
+                .map(record -> new FileUploadRecord(
+                        record.getName(), "image/png", "userA", date, FileUploadRecord.UploadStatus.succeeded, 7L, "hash", null, null, "blob", null))
+                .collect(Collectors.toList());
+
+        // Act
+        List<FileUploadRecord> actual = target.updateStatusIfPending(updated);
+
+        // Assert
+        assertThat(actual).containsExactly(updated.get(0), null);
+        assertThat(mongoTemplate.findById("a.png", FileUploadRecord.class))
+                .usingRecursiveComparison()
+                .isEqualTo(updated.get(0));
+        assertThat(mongoTemplate.findById("b.png", FileUploadRecord.class).getUploadStatus())
+                .isEqualTo(FileUploadRecord.UploadStatus.failed);
+    }
+
+    @Test
+    public void testDeleteAllByNames() {
+        // Arrange
+        LocalDateTime date = LocalDateTime.of(2021, 1, 1, 10, 0);
+        List.of(
+                new FileUploadRecord("a.png", "image/png", "userA", date, FileUploadRecord.UploadStatus.succeeded, null),
+                new FileUploadRecord("b.png", "image/png", "userB", date, FileUploadRecord.UploadStatus.succeeded, null),
+                new FileUploadRecord("c.png", "image/png", "userA", date, FileUploadRecord.UploadStatus.succeeded, null))
+                .forEach(mongoTemplate::save);
+        target.findCachedById("a.png");
+
+        // Act
+        long actual = target.deleteAllByNames(List.of("a.png", "b.png"), "userA");
+
+        // Assert
+        assertThat(actual).isEqualTo(1);
+        assertThat(target.findCachedById("a.png")).isEmpty();
+        assertThat(mongoTemplate.findById("b.png", FileUploadRecord.class)).isNotNull();
+        assertThat(mongoTemplate.findById("c.png", FileUploadRecord.class)).isNotNull();
+    }
+
+    @Test
+    public void testFindLiveNames() {
+        // Arrange
+        List.of(
+                new FileUploadRecord("a.png", "image/png", "userA", null, FileUploadRecord.UploadStatus.succeeded, null),
+                new FileUploadRecord("b.png", "image/png", "userA", null, FileUploadRecord.UploadStatus.pending, null),
+                new FileUploadRecord("c.png", "image/png", "userA", null, FileUploadRecord.UploadStatus.failed, null),
+                new FileUploadRecord("d.png", "image/png", "userA", null, FileUploadRecord.UploadStatus.succeeded, null))
+                .forEach(mongoTemplate::save);
+
+        // Act
+        Set<String> actual = target.findLiveNames(List.of("a.png", "b.png", "c.png", "e.png"));
+
+        // Assert
+        assertThat(actual).containsExactlyInAnyOrder("a.png", "b.png");
+    }
+
+    @Test
+    public void testFindBlobsInUse() {
+        // Arrange
+        FileUploadRecord first = new FileUploadRecord("a.png", "image/png", "userA", null, FileUploadRecord.UploadStatus.succeeded, null);
+        first.setBlob("blob~a");
+        FileUploadRecord second = new FileUploadRecord("b.png", "image/png", "userA", null, FileUploadRecord.UploadStatus.succeeded, null);
+        second.setBlob("blob~a");
+        FileUploadRecord third = new FileUploadRecord("c.png", "image/png", "userA", null, FileUploadRecord.UploadStatus.succeeded, null);
+        third.setBlob("blob~c");
+        List.of(first, second, third).forEach(mongoTemplate::save);
+
+        // Act
+        Set<String> actual = target.findBlobsInUse(List.of("blob~a", "blob~b"));
+
+        // Assert
+        assertThat(actual).containsExactly("blob~a");
+    }
+
+    @Test
+    @Parameters({
+            "succeeded | 0 | true",
+            "pending | 0 | false",
+            "succeeded | 1 | false"
+    })
+    public void testUpdateVariants(FileUploadRecord.UploadStatus currentStatus, long minutesLater, boolean expectedResult) {
+        // Arrange
+        LocalDateTime date = LocalDateTime.of(2021, 1, 1, 10, 0);
+        mongoTemplate.save(new FileUploadRecord(
+                "image.png", "image/png", "userA", date.plusMinutes(minutesLater), currentStatus, null));
+
+        // Act
+        boolean actual = target.updateVariants("image.png", date, List.of("medium", "thumbnail"));
 
         // Assert
         assertThat(actual).isEqualTo(expectedResult);
+        assertThat(mongoTemplate.findById("image.png", FileUploadRecord.class).getVariants())
+                .isEqualTo(expectedResult ? List.of("medium", "thumbnail") : null);
     }
 
-    private FileUploadRecord withStatus(FileUploadRecord record, FileUploadRecord.UploadStatus uploadStatus) {
-        return new FileUploadRecord(
-                record.getName(),
-                record.getType(),
-                record.getUsername(),
-                record.getDateUploaded(),
-                uploadStatus,
-                record.getUrl());
+    @Test
+    public void testEnsureIndexes() {
+        // Act
+        target.ensureIndexes();
+
+        // Assert
+        assertThat(mongoTemplate.indexOps(FileUploadRecord.class).getIndexInfo()).hasSize(6);
     }
 }
\ No newline at end of file
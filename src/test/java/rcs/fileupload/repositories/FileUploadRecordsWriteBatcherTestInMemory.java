@@ -0,0 +1,187 @@
+package rcs.fileupload.repositories;
+
+import rcs.fileupload.models.FileUploadRecord;
+import rcs.fileupload.testutils.InMemoryMongoRepositoryTestBase;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FileUploadRecordsWriteBatcherTestInMemory extends InMemoryMongoRepositoryTestBase {
+
+    private static final LocalDateTime date = LocalDateTime.of(2021, 1, 1, 10, 0);
+
+    private MongoTemplate mongoTemplate;
+    private MeterRegistry meterRegistry;
+    private FileUploadRecordsWriteBatcher target;
+
+    @After
+    public void stopBatcher() throws InterruptedException {
+        target.stop();
+    }
+
+    @Test
+    public void testReservationsAreBatched() throws Exception {
+        // Arrange
+        start(100, Duration.ofMillis(200));
+        List<Callable<Boolean>> reservations = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            FileUploadRecord record = pending("image" + i + ".png");
+            reservations.add(() -> target.reserve(claimable(record.getName()), record));
+        }
+
+        // Act
+        List<Boolean> actual = runConcurrently(reservations);
+
+        // Assert
+        assertThat(actual).containsOnly(true);
+        assertThat(mongoTemplate.count(new Query(Criteria.where(FileUploadRecord.Fields.name).in(names(20))), FileUploadRecord.class))
+                .isEqualTo(20);
+        assertThat(meterRegistry.summary("fileupload.records.batch.size").count()).isLessThan(20);
+    }
+
+    @Test
+    public void testDuplicateReservationsInOneBatch() throws Exception {
+        // Arrange
+        start(100, Duration.ofMillis(200));
+        mongoTemplate.save(new FileUploadRecord("failed.png", "image/png", "userA", date, FileUploadRecord.UploadStatus.failed, null));
+        List<Callable<Boolean>> reservations = List.of(
+                () -> target.reserve(claimable("image.png"), pending("image.png")),
+                () -> target.reserve(claimable("image.png"), pending("image.png")),
+                () -> target.reserve(claimable("failed.png"), pending("failed.png")));
+
+        // Act
+        List<Boolean> actual = runConcurrently(reservations);
+
+        // Assert
+        assertThat(actual.subList(0, 2)).containsExactlyInAnyOrder(true, false);
+        assertThat(actual.get(2)).isTrue();
+        assertThat(mongoTemplate.findById("failed.png", FileUploadRecord.class).getUploadStatus())
+                .isEqualTo(FileUploadRecord.UploadStatus.pending);
+    }
+
+    @Test
+    public void testStatusUpdatesThatDontMatch() throws Exception {
+        // Arrange
+        start(100, Duration.ofMillis(200));
+        mongoTemplate.save(pending("pending.png"));
+        mongoTemplate.save(new FileUploadRecord("expired.png", "image/png", "userA", date, FileUploadRecord.UploadStatus.failed, null));
+        List<Callable<FileUploadRecord>> updates = List.of(
+                () -> succeed("pending.png"),
+                () -> succeed("expired.png"));
+
+        // Act
+        List<FileUploadRecord> actual = runConcurrently(updates);
+
+        // Assert
+        assertThat(actual.get(0).getUploadStatus()).isEqualTo(FileUploadRecord.UploadStatus.succeeded);
+        assertThat(actual.get(1)).isNull();
+        assertThat(mongoTemplate.findById("pending.png", FileUploadRecord.class).getUploadStatus())
+                .isEqualTo(FileUploadRecord.UploadStatus.succeeded);
+        assertThat(mongoTemplate.findById("expired.png", FileUploadRecord.class).getUploadStatus())
+                .isEqualTo(FileUploadRecord.UploadStatus.failed);
+    }
+
+    @Test
+    public void testFullBatchIsWrittenWithoutDelay() throws Exception {
+        // Arrange
+        start(2, Duration.ofMinutes(1));
+        List<Callable<Boolean>> reservations = List.of(
+                () -> target.reserve(claimable("a.png"), pending("a.png")),
+                () -> target.reserve(claimable("b.png"), pending("b.png")));
+
+        // Act
+        List<Boolean> actual = runConcurrently(reservations);
+
+        // Assert
+        assertThat(actual).containsExactly(true, true);
+        assertThat(meterRegistry.summary("fileupload.records.batch.size").max()).isEqualTo(2);
+    }
+
+    @Test
+    public void testWritesDirectlyWhenDisabled() {
+        // Arrange
+        mongoTemplate = getMongoTemplate();
+        meterRegistry = new SimpleMeterRegistry();
+        target = new FileUploadRecordsWriteBatcher(mongoTemplate, false, 100, Duration.ofMinutes(1), meterRegistry);
+        target.start();
+
+        // Act
+        boolean actual = target.reserve(claimable("image.png"), pending("image.png"));
+
+        // Assert
+        assertThat(actual).isTrue();
+        assertThat(mongoTemplate.findById("image.png", FileUploadRecord.class)).isNotNull();
+    }
+
+    private void start(int maxSize, Duration maxDelay) {
+        mongoTemplate = getMongoTemplate();
+        meterRegistry = new SimpleMeterRegistry();
+        target = new FileUploadRecordsWriteBatcher(mongoTemplate, true, maxSize, maxDelay, meterRegistry);
+        target.start();
+    }
+
+    private FileUploadRecord succeed(String name) {
+        FileUploadRecord record = pending(name);
+        record.setUploadStatus(FileUploadRecord.UploadStatus.succeeded);
+        return target.updateFirst(
+                Query.query(Criteria.where(FileUploadRecord.Fields.name).is(name))
+                        .addCriteria(Criteria.where(FileUploadRecord.Fields.uploadStatus).is(FileUploadRecord.UploadStatus.pending)),
+                Update.update(FileUploadRecord.Fields.uploadStatus, FileUploadRecord.UploadStatus.succeeded),
+                record);
+    }
+
+    private static Query claimable(String name) {
+        return Query.query(Criteria.where(FileUploadRecord.Fields.name).is(name))
+                .addCriteria(Criteria.where(FileUploadRecord.Fields.uploadStatus)
+                        .nin(FileUploadRecord.UploadStatus.pending, FileUploadRecord.UploadStatus.succeeded));
+    }
+
+    private static FileUploadRecord pending(String name) {
+        return new FileUploadRecord(name, "image/png", "userA", date, FileUploadRecord.UploadStatus.pending, null);
+    }
+
+    private static List<String> names(int count) {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            names.add("image" + i + ".png");
+        }
+        return names;
+    }
+
+    private static <T> List<T> runConcurrently(List<Callable<T>> tasks) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<T>> futures = new ArrayList<>();
+        for (Callable<T> task : tasks) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                return task.call();
+            }));
+        }
+        start.countDown();
+        List<T> results = new ArrayList<>();
+        for (Future<T> future : futures) {
+            results.add(future.get(10, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+        return results;
+    }
+}
@@ -0,0 +1,141 @@
+package rcs.fileupload.services;
+
+import rcs.fileupload.models.BlobRecord;
+import rcs.fileupload.repositories.BlobRecordsRepository;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.*;
+
+public class BlobStoreTest {
+
+    private static final String hash = "ed7002b439e9ac845f22357d822bac1444730fbdb6016d3ec9432297b9ec9f73";
+    private static final String key = "blob~" + hash;
+
+    private BlobRecordsRepository repository;
+    private FileStorageService storage;
+    private File content;
+    private BlobStore target;
+
+    @Before
+    public void setup() {
+        repository = mock(BlobRecordsRepository.class);
+        storage = mock(FileStorageService.class);
+        content = new File("content");
+        target = new BlobStore(repository, storage);
+    }
+
+    @Test
+    public void testStoreNewContent() throws IOException {
+        // Arrange
+        when(repository.acquire(eq(hash), anyLong())).thenReturn(Optional.of(blob(1, BlobRecord.BlobStatus.pending)));
+
+        // Act
+        String actual = target.store(hash, content, "image/png");
+
+        // Assert
+        assertThat(actual).isEqualTo(key);
+        verify(storage).save(key, content, "image/png");
+        verify(repository).markStored(hash);
+    }
+
+    @Test
+    public void testStoreDuplicateContent() throws IOException {
+        // Arrange
+        when(repository.acquire(eq(hash), anyLong())).thenReturn(Optional.of(blob(2, BlobRecord.BlobStatus.stored)));
+
+        // Act
+        String actual = target.store(hash, content, "image/png");
+
+        // Assert
+        assertThat(actual).isEqualTo(key);
+        verifyNoInteractions(storage);
+    }
+
+    @Test
+    public void testStoreWaitsForDeletion() throws IOException {
+        // Arrange
+        when(repository.acquire(eq(hash), anyLong()))
+                .thenReturn(Optional.empty())
+                .thenReturn(Optional.of(blob(1, BlobRecord.BlobStatus.pending)));
+
+        // Act
+        target.store(hash, content, "image/png");
+
+        // Assert
+        verify(repository, times(2)).acquire(eq(hash), anyLong());
+        verify(storage).save(key, content, "image/png");
+    }
+
+    @Test
+    public void testStoreReleasesWhenStorageFails() throws IOException {
+        // Arrange
+        when(repository.acquire(eq(hash), anyLong())).thenReturn(Optional.of(blob(1, BlobRecord.BlobStatus.pending)));
+        doThrow(IOException.class).when(storage).save(key, content, "image/png");
+        when(repository.release(hash)).thenReturn(blob(0, BlobRecord.BlobStatus.pending));
+        when(repository.markDeleting(hash, null)).thenReturn(true);
+
+        // Act & Assert
+        assertThrows(IOException.class, () -> target.store(hash, content, "image/png"));
+        verify(repository, never()).markStored(hash);
+        verify(storage).delete(key);
+        verify(repository).deleteIfDeleting(hash);
+    }
+
+    @Test
+    public void testReleaseStillReferenced() throws IOException {
+        // Arrange
+        when(repository.release(hash)).thenReturn(blob(1, BlobRecord.BlobStatus.stored));
+
+        // Act
+        target.release(key);
+
+        // Assert
+        verify(repository, never()).markDeleting(anyString(), any());
+        verify(storage, never()).delete(anyString());
+    }
+
+    @Test
+    public void testReleaseLastReference() throws IOException {
+        // Arrange
+        when(repository.release(hash)).thenReturn(blob(0, BlobRecord.BlobStatus.stored));
+        when(repository.markDeleting(hash, null)).thenReturn(true);
+
+        // Act
+        target.release(key);
+
+        // Assert
+        verify(storage).delete(key);
+        verify(repository).deleteIfDeleting(hash);
+    }
+
+    @Test
+    public void testDeleteUnreferencedWhenReferencedMeanwhile() throws IOException {
+        // Arrange
+        when(repository.markDeleting(hash, null)).thenReturn(false);
+
+        // Act
+        boolean actual = target.deleteUnreferenced(hash, null);
+
+        // Assert
+        assertThat(actual).isFalse();
+        verifyNoInteractions(storage);
+    }
+
+    @Test
+    public void testGetHash() {
+        assertThat(BlobStore.getHash(key)).contains(hash);
+        assertThat(BlobStore.getHash("blob~image.png")).isEmpty();
+        assertThat(BlobStore.getHash("image.png")).isEmpty();
+    }
+
+    private static BlobRecord blob(int refCount, BlobRecord.BlobStatus status) {
+        return new BlobRecord(hash, 7L, refCount, status, null);
+    }
+}
@@ -1,20 +1,47 @@
 package rcs.fileupload.services;
 
+import rcs.fileupload.models.FileDeleteSummary;
 import rcs.fileupload.models.FileUploadRecord;
+import rcs.fileupload.models.FileUploadRecordsCursor;
+import rcs.fileupload.models.FileUploadRecordsFilter;
+import rcs.fileupload.models.FileUploadRecordsPage;
+import rcs.fileupload.models.FileUploadResult;
 import rcs.fileupload.repositories.FileUploadRecordsRepository;
+import rcs.fileupload.services.exceptions.FileNotFoundException;
+import rcs.fileupload.services.exceptions.FileTooLargeException;
 import rcs.fileupload.services.exceptions.FileWithNameAlreadyExistsException;
+import rcs.fileupload.services.exceptions.InvalidCursorException;
+import rcs.fileupload.services.exceptions.InvalidUploadException;
+import rcs.fileupload.services.exceptions.InvalidVariantException;
+import rcs.fileupload.services.exceptions.UploadOffsetConflictException;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InOrder;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.core.io.Resource;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.core.task.TaskExecutor;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
-import org.springframework.web.multipart.MultipartFile;
+import org.springframework.util.unit.DataSize;
 import rcs.auth.api.models.AuthenticatedUser;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.assertThrows;
@@ -25,15 +52,26 @@ public class FileUploadServiceTest {
 
     private FileUploadRecordsRepository fileUploadRecordsRepository;
     private FileStorageService fileStorageService;
+    private UploadStaging uploadStaging;
+    private ImageVariantService imageVariantService;
+    private BlobStore blobStore;
+    private ApplicationEventPublisher eventPublisher;
     private String baseUrl;
     private FileUploadService target;
 
     @Before
     public void setup() {
         fileUploadRecordsRepository = mock(FileUploadRecordsRepository.class);
+        when(fileUploadRecordsRepository.reserve(any(FileUploadRecord.class))).thenReturn(true);
         fileStorageService = mock(FileStorageService.class);
+        uploadStaging = mock(UploadStaging.class);
+        when(uploadStaging.getMaxUploadLength()).thenReturn(100L);
+        imageVariantService = mock(ImageVariantService.class);
+        when(imageVariantService.getSizes()).thenReturn(Set.of("thumbnail", "medium"));
+        blobStore = mock(BlobStore.class);
+        eventPublisher = mock(ApplicationEventPublisher.class);
         baseUrl = "https//rcs.fileupload.com";
-        target = new FileUploadService(fileUploadRecordsRepository, fileStorageService, baseUrl);
+        target = newTarget(new SyncTaskExecutor(), false, false);
     }
 
     @Test
@@ -48,10 +86,10 @@ public class FileUploadServiceTest {
                 new FileUploadRecord("image2.jpg", "image/jpeg", "username", date2, FileUploadRecord.UploadStatus.pending, null),
                 new FileUploadRecord("image2.jpg", "image/jpeg", "username", date3, FileUploadRecord.UploadStatus.failed, null));
 
-        when(fileUploadRecordsRepository.findAll()).thenReturn(repositoryResponse);
+        when(fileUploadRecordsRepository.findPage(FileUploadRecordsFilter.none, null, 11)).thenReturn(repositoryResponse);
 
         // Act
-        List<FileUploadRecord> actual = target.getFiles();
+        FileUploadRecordsPage actual = target.getFiles(FileUploadRecordsFilter.none, null, 10);
 
         // Assert
         List<FileUploadRecord> expected = List.of(
@@ -59,7 +97,100 @@ public class FileUploadServiceTest {
                 new FileUploadRecord("image2.jpg", "image/jpeg", "username", date2, FileUploadRecord.UploadStatus.pending, null),
                 new FileUploadRecord("image2.jpg", "image/jpeg", "username", date3, FileUploadRecord.UploadStatus.failed, null));
 
-        assertThat(actual).usingFieldByFieldElementComparator().isEqualTo(expected);
+        assertThat(actual.getRecords()).usingFieldByFieldElementComparator().isEqualTo(expected);
+        assertThat(actual.getNextCursor()).isNull();
+    }
+
+    @Test
+    public void testGetFilesHasNextPage() {
+        // Arrange
+        LocalDateTime date = LocalDateTime.of(2021, 1, 1, 10, 30, 15);
+        FileUploadRecordsCursor after = new FileUploadRecordsCursor(date, "image3.jpg");
+        FileUploadRecordsFilter filter = new FileUploadRecordsFilter("username", null, null);
+
+        List<FileUploadRecord> repositoryResponse = List.of(
+                new FileUploadRecord("image2.jpg", "image/jpeg", "username", date, FileUploadRecord.UploadStatus.succeeded, null),
+                new FileUploadRecord("image1.jpg", "image/jpeg", "username", date, FileUploadRecord.UploadStatus.succeeded, null));
+
+        when(fileUploadRecordsRepository.findPage(eq(filter), any(FileUploadRecordsCursor.class), eq(2)))
+                .thenReturn(repositoryResponse);
+
+        // Act
+        FileUploadRecordsPage actual = target.getFiles(filter, after.encode(), 1);
+
+        // Assert
+        assertThat(actual.getRecords()).extracting(FileUploadRecord::getName).containsExactly("image2.jpg");
+
+        FileUploadRecordsCursor next = FileUploadRecordsCursor.tryDecode(actual.getNextCursor()).get();
+        assertThat(next.getDateUploaded()).isEqualTo(date);
+        assertThat(next.getName()).isEqualTo("image2.jpg");
+    }
+
+    @Test
+    public void testGetFilesPageSizeIsBounded() {
+        // Arrange
+        when(fileUploadRecordsRepository.findPage(any(), any(), anyInt())).thenReturn(List.of());
+
+        // Act
+        target.getFiles(FileUploadRecordsFilter.none, null, Integer.MAX_VALUE);
+
+        // Assert
+        verify(fileUploadRecordsRepository).findPage(FileUploadRecordsFilter.none, null, FileUploadService.maxPageSize + 1);
+    }
+
+    @Test
+    public void testGetFilesInvalidCursor() {
+        // Act & Assert
+        assertThrows(
+                InvalidCursorException.class,
+                () -> target.getFiles(FileUploadRecordsFilter.none, "not a cursor", 10));
+    }
+
+    @Test
+    public void testStreamFiles() {
+        // Arrange
+        when(fileUploadRecordsRepository.streamAll(FileUploadRecordsFilter.none)).thenReturn(Stream.of(
+                new FileUploadRecord("image1.jpg", "image/jpeg", "username", null, FileUploadRecord.UploadStatus.succeeded, null),
+                new FileUploadRecord("image2.jpg", "image/jpeg", "username", null, FileUploadRecord.UploadStatus.failed, null)));
+
+        // Act
+        List<FileUploadRecord> actual = target.streamFiles(FileUploadRecordsFilter.none).collect(Collectors.toList());
+
+        // Assert
+        assertThat(actual).extracting(FileUploadRecord::getUrl)
+                .containsExactly(baseUrl + "/fileupload/api/files/image1.jpg", null);
+    }
+
+    @Test
+    public void testGetFileRecord() {
+        // Arrange
+        FileUploadRecord expected = mock(FileUploadRecord.class);
+        when(fileUploadRecordsRepository.findCachedById("image-name")).thenReturn(Optional.of(expected));
+
+        // Act
+        Optional<FileUploadRecord> actual = target.getFileRecord("image-name");
+
+        // Assert
+        assertThat(actual).containsSame(expected);
+    }
+
+    @Test
+    public void testGetFileRecordWithUrl() {
+        // Arrange
+        FileUploadRecord succeeded = new FileUploadRecord(
+                "image.png", "image/png", "username", null, FileUploadRecord.UploadStatus.succeeded, null);
+        FileUploadRecord pending = new FileUploadRecord(
+                "video.mp4", "video/mp4", "username", null, FileUploadRecord.UploadStatus.pending, null);
+        when(fileUploadRecordsRepository.findCachedById("image.png")).thenReturn(Optional.of(succeeded));
+        when(fileUploadRecordsRepository.findCachedById("video.mp4")).thenReturn(Optional.of(pending));
+
+        // Act
+        Optional<FileUploadRecord> actualSucceeded = target.getFileRecordWithUrl("image.png");
+        Optional<FileUploadRecord> actualPending = target.getFileRecordWithUrl("video.mp4");
+
+        // Assert
+        assertThat(actualSucceeded).map(FileUploadRecord::getUrl).contains(baseUrl + "/fileupload/api/files/image.png");
+        assertThat(actualPending).map(FileUploadRecord::getUrl).isEmpty();
     }
 
     @Test
@@ -86,25 +217,239 @@ public class FileUploadServiceTest {
         AuthenticatedUser user = mock(AuthenticatedUser.class);
         when(user.getUsername()).thenReturn(username);
 
-        MultipartFile file = mock(MultipartFile.class);
-        when(file.getContentType()).thenReturn(type);
-        when(file.getOriginalFilename()).thenReturn(filename);
+        InputStream content = new ByteArrayInputStream("content".getBytes());
+        doAnswer(invocation -> invocation.getArgument(1, InputStream.class).readAllBytes())
+                .when(uploadStaging).stage(eq(filename), any(InputStream.class));
+        File staged = new File("staged");
+        when(uploadStaging.get(filename)).thenReturn(staged);
 
+        String hash = "ed7002b439e9ac845f22357d822bac1444730fbdb6016d3ec9432297b9ec9f73";
         FileUploadRecord repositoryResponse = new FileUploadRecord(
-                filename, type, username, timestamp, FileUploadRecord.UploadStatus.succeeded, null);
-        when(fileUploadRecordsRepository.updateStatus(filename, FileUploadRecord.UploadStatus.succeeded))
+                filename, type, username, timestamp, FileUploadRecord.UploadStatus.succeeded, 7L, hash, null, null, null, null);
+        when(fileUploadRecordsRepository.updateStatusIfPending(
+                any(FileUploadRecord.class), eq(FileUploadRecord.UploadStatus.succeeded), eq(7L), eq(hash)))
                 .thenReturn(repositoryResponse);
 
         // Act
-        FileUploadRecord actual = target.uploadFile(user, file, timestamp);
+        FileUploadRecord actual = target.uploadFile(user, filename, type, content, timestamp);
 
         // Assert
-        FileUploadRecord expected = withUrl(repositoryResponse, baseUrl + "/fileupload/api/files/" + filename);
-        assertThat(actual).usingRecursiveComparison().isEqualTo(expected);
+        assertThat(actual.getUrl()).isEqualTo(baseUrl + "/fileupload/api/files/" + filename);
+
+        InOrder inOrder = inOrder(fileUploadRecordsRepository, uploadStaging, fileStorageService);
+        ArgumentCaptor<FileUploadRecord> pendingRecord = ArgumentCaptor.forClass(FileUploadRecord.class);
+        inOrder.verify(fileUploadRecordsRepository).reserve(pendingRecord.capture());
+        inOrder.verify(uploadStaging).stage(eq(filename), any(InputStream.class));
+        inOrder.verify(fileUploadRecordsRepository).updateStatusIfPending(
+                pendingRecord.getValue(), FileUploadRecord.UploadStatus.succeeded, 7, hash);
+        inOrder.verify(fileStorageService).save(filename, staged, type);
+        inOrder.verify(uploadStaging).delete(filename);
+
+        assertThat(pendingRecord.getValue().getUploadStatus()).isEqualTo(FileUploadRecord.UploadStatus.pending);
 
-        InOrder inOrder = inOrder(fileUploadRecordsRepository, fileStorageService);
-        inOrder.verify(fileStorageService).save(file);
-        inOrder.verify(fileUploadRecordsRepository).updateStatus(filename, FileUploadRecord.UploadStatus.succeeded);
+        ArgumentCaptor<UploadStatusChangedEvent> event = ArgumentCaptor.forClass(UploadStatusChangedEvent.class);
+        verify(eventPublisher).publishEvent(event.capture());
+        assertThat(event.getValue().getRecord()).isEqualTo(actual);
+    }
+
+    @Test
+    public void testUploadFileAsync() throws IOException {
+        // Arrange
+        List<Runnable> queued = new ArrayList<>();
+        target = newTarget(queued::add, true, false);
+
+        AuthenticatedUser user = mock(AuthenticatedUser.class);
+        when(user.getUsername()).thenReturn("username");
+
+        doAnswer(invocation -> invocation.getArgument(1, InputStream.class).readAllBytes())
+                .when(uploadStaging).stage(eq("filename"), any(InputStream.class));
+        File staged = new File("staged");
+        when(uploadStaging.get("filename")).thenReturn(staged);
+
+        String hash = "ed7002b439e9ac845f22357d822bac1444730fbdb6016d3ec9432297b9ec9f73";
+        FileUploadRecord pending = new FileUploadRecord(
+                "filename", "image/jpeg", "username", null, FileUploadRecord.UploadStatus.pending, 7L, hash, null, null, null, null);
+        when(fileUploadRecordsRepository.updateStatusIfPending(
+                any(FileUploadRecord.class), eq(FileUploadRecord.UploadStatus.pending), eq(7L), eq(hash)))
+                .thenReturn(pending);
+        FileUploadRecord succeeded = new FileUploadRecord(
+                "filename", "image/jpeg", "username", null, FileUploadRecord.UploadStatus.succeeded, 7L, hash, null, null, null, null);
+        when(fileUploadRecordsRepository.updateStatusIfPending(pending, FileUploadRecord.UploadStatus.succeeded, 7, hash))
+                .thenReturn(succeeded);
+
+        // Act
+        FileUploadRecord actual = target.uploadFile(
+                user, "filename", "image/jpeg", new ByteArrayInputStream("content".getBytes()), LocalDateTime.now());
+
+        // Assert
+        assertThat(actual).isEqualTo(pending);
+        assertThat(actual.getUrl()).isNull();
+        verifyNoInteractions(fileStorageService, eventPublisher);
+        assertThat(queued).hasSize(1);
+
+        // the worker stores the staged file and publishes the final status
+        queued.get(0).run();
+
+        InOrder inOrder = inOrder(fileStorageService, uploadStaging, fileUploadRecordsRepository, eventPublisher);
+        inOrder.verify(fileUploadRecordsRepository).updateStatusIfPending(pending, FileUploadRecord.UploadStatus.succeeded, 7, hash);
+        inOrder.verify(fileStorageService).save("filename", staged, "image/jpeg");
+        inOrder.verify(uploadStaging).delete("filename");
+        inOrder.verify(eventPublisher).publishEvent(any(UploadStatusChangedEvent.class));
+        assertThat(succeeded.getUrl()).isEqualTo(baseUrl + "/fileupload/api/files/filename");
+    }
+
+    @Test
+    public void testUploadFileAsyncExpiredBeforeStored() throws IOException {
+        // Arrange
+        List<Runnable> queued = new ArrayList<>();
+        target = newTarget(queued::add, true, false);
+
+        AuthenticatedUser user = mock(AuthenticatedUser.class);
+        doAnswer(invocation -> invocation.getArgument(1, InputStream.class).readAllBytes())
+                .when(uploadStaging).stage(eq("filename"), any(InputStream.class));
+
+        String hash = "ed7002b439e9ac845f22357d822bac1444730fbdb6016d3ec9432297b9ec9f73";
+        FileUploadRecord pending = new FileUploadRecord(
+                "filename", "image/jpeg", "username", null, FileUploadRecord.UploadStatus.pending, 7L, hash, null, null, null, null);
+        when(fileUploadRecordsRepository.updateStatusIfPending(
+                any(FileUploadRecord.class), eq(FileUploadRecord.UploadStatus.pending), eq(7L), eq(hash)))
+                .thenReturn(pending);
+        // the reconciler expired it while it was queued
+        when(fileUploadRecordsRepository.updateStatusIfPending(pending, FileUploadRecord.UploadStatus.succeeded, 7, hash))
+                .thenReturn(null);
+
+        target.uploadFile(user, "filename", "image/jpeg", new ByteArrayInputStream("content".getBytes()), LocalDateTime.now());
+
+        // Act
+        queued.get(0).run();
+
+        // Assert
+        verifyNoInteractions(fileStorageService, eventPublisher);
+        verify(uploadStaging).delete("filename");
+    }
+
+    @Test
+    public void testUploadFileAsyncWhenWorkersAreSaturated() throws IOException {
+        // Arrange
+        // the caller runs the task, as the executor's rejection policy has it do when the queue is full
+        target = newTarget(Runnable::run, true, false);
+
+        AuthenticatedUser user = mock(AuthenticatedUser.class);
+        when(user.getUsername()).thenReturn("username");
+
+        doAnswer(invocation -> invocation.getArgument(1, InputStream.class).readAllBytes())
+                .when(uploadStaging).stage(eq("filename"), any(InputStream.class));
+        when(uploadStaging.get("filename")).thenReturn(new File("staged"));
+
+        String hash = "ed7002b439e9ac845f22357d822bac1444730fbdb6016d3ec9432297b9ec9f73";
+        FileUploadRecord pending = new FileUploadRecord(
+                "filename", "image/jpeg", "username", null, FileUploadRecord.UploadStatus.pending, 7L, hash, null, null, null, null);
+        when(fileUploadRecordsRepository.updateStatusIfPending(
+                any(FileUploadRecord.class), eq(FileUploadRecord.UploadStatus.pending), eq(7L), eq(hash)))
+                .thenReturn(pending);
+        FileUploadRecord succeeded = new FileUploadRecord(
+                "filename", "image/jpeg", "username", null, FileUploadRecord.UploadStatus.succeeded, 7L, hash, null, null, null, null);
+        when(fileUploadRecordsRepository.updateStatusIfPending(pending, FileUploadRecord.UploadStatus.succeeded, 7, hash))
+                .thenReturn(succeeded);
+
+        // Act
+        FileUploadRecord actual = target.uploadFile(
+                user, "filename", "image/jpeg", new ByteArrayInputStream("content".getBytes()), LocalDateTime.now());
+
+        // Assert
+        assertThat(actual).isEqualTo(succeeded);
+        assertThat(actual.getUrl()).isEqualTo(baseUrl + "/fileupload/api/files/filename");
+    }
+
+    @Test
+    public void testUploadFileAsyncWhenStagingFails() throws IOException {
+        // Arrange
+        List<Runnable> queued = new ArrayList<>();
+        target = newTarget(queued::add, true, false);
+
+        AuthenticatedUser user = mock(AuthenticatedUser.class);
+        doThrow(IOException.class).when(uploadStaging).stage(eq("filename"), any(InputStream.class));
+
+        FileUploadRecord failed = new FileUploadRecord(
+                "filename", "image/jpeg", "username", null, FileUploadRecord.UploadStatus.failed, null);
+        when(fileUploadRecordsRepository.updateStatusIfPending(
+                any(FileUploadRecord.class), eq(FileUploadRecord.UploadStatus.failed)))
+                .thenReturn(failed);
+
+        // Act
+        FileUploadRecord actual = target.uploadFile(
+                user, "filename", "image/jpeg", new ByteArrayInputStream("content".getBytes()), LocalDateTime.now());
+
+        // Assert
+        assertThat(actual).isEqualTo(failed);
+        assertThat(queued).isEmpty();
+        verifyNoInteractions(fileStorageService);
+    }
+
+    @Test
+    public void testUploadFileContentAddressed() throws IOException {
+        // Arrange
+        target = newTarget(new SyncTaskExecutor(), false, true);
+
+        AuthenticatedUser user = mock(AuthenticatedUser.class);
+        when(user.getUsername()).thenReturn("username");
+
+        doAnswer(invocation -> invocation.getArgument(1, InputStream.class).readAllBytes())
+                .when(uploadStaging).stage(eq("filename"), any(InputStream.class));
+        File staged = new File("staged");
+        when(uploadStaging.get("filename")).thenReturn(staged);
+
+        String hash = "ed7002b439e9ac845f22357d822bac1444730fbdb6016d3ec9432297b9ec9f73";
+        FileUploadRecord pending = new FileUploadRecord(
+                "filename", "image/jpeg", "username", null, FileUploadRecord.UploadStatus.pending, 7L, hash, null, null, null, null);
+        when(fileUploadRecordsRepository.updateStatusIfPending(
+                any(FileUploadRecord.class), eq(FileUploadRecord.UploadStatus.pending), eq(7L), eq(hash)))
+                .thenReturn(pending);
+        when(blobStore.store(hash, staged, "image/jpeg")).thenReturn("blob~" + hash);
+        FileUploadRecord succeeded = new FileUploadRecord(
+                "filename", "image/jpeg", "username", null, FileUploadRecord.UploadStatus.succeeded, 7L, hash, null, null, "blob~" + hash, null);
+        when(fileUploadRecordsRepository.updateStatusIfPending(anyList()))
+                .thenReturn(Collections.singletonList(succeeded));
+
+        // Act
+        FileUploadRecord actual = target.uploadFile(
+                user, "filename", "image/jpeg", new ByteArrayInputStream("content".getBytes()), LocalDateTime.now());
+
+        // Assert
+        assertThat(actual).isEqualTo(succeeded);
+        assertThat(actual.getUrl()).isEqualTo(baseUrl + "/fileupload/api/files/filename");
+        verifyNoInteractions(fileStorageService);
+        verify(uploadStaging).delete("filename");
+        verify(eventPublisher).publishEvent(any(UploadStatusChangedEvent.class));
+    }
+
+    @Test
+    public void testUploadFileContentAddressedDeletedWhileStoring() throws IOException {
+        // Arrange
+        target = newTarget(new SyncTaskExecutor(), false, true);
+
+        AuthenticatedUser user = mock(AuthenticatedUser.class);
+        doAnswer(invocation -> invocation.getArgument(1, InputStream.class).readAllBytes())
+                .when(uploadStaging).stage(eq("filename"), any(InputStream.class));
+        File staged = new File("staged");
+        when(uploadStaging.get("filename")).thenReturn(staged);
+
+        String hash = "ed7002b439e9ac845f22357d822bac1444730fbdb6016d3ec9432297b9ec9f73";
+        FileUploadRecord pending = new FileUploadRecord(
+                "filename", "image/jpeg", "username", null, FileUploadRecord.UploadStatus.pending, 7L, hash, null, null, null, null);
+        when(fileUploadRecordsRepository.updateStatusIfPending(
+                any(FileUploadRecord.class), eq(FileUploadRecord.UploadStatus.pending), eq(7L), eq(hash)))
+                .thenReturn(pending);
+        when(blobStore.store(hash, staged, "image/jpeg")).thenReturn("blob~" + hash);
+        when(fileUploadRecordsRepository.updateStatusIfPending(anyList()))
+                .thenReturn(Collections.singletonList(null));
+
+        // Act
+        target.uploadFile(user, "filename", "image/jpeg", new ByteArrayInputStream("content".getBytes()), LocalDateTime.now());
+
+        // Assert
+        verify(blobStore).release("blob~" + hash);
+        verifyNoInteractions(eventPublisher);
     }
 
     @Test
@@ -118,49 +463,560 @@ public class FileUploadServiceTest {
         AuthenticatedUser user = mock(AuthenticatedUser.class);
         when(user.getUsername()).thenReturn(username);
 
-        MultipartFile file = mock(MultipartFile.class);
-        when(file.getContentType()).thenReturn(type);
-        when(file.getOriginalFilename()).thenReturn(filename);
-
-        FileUploadRecord repositoryResponse = new FileUploadRecord(filename, type, username, timestamp, FileUploadRecord.UploadStatus.failed, null);
-        when(fileUploadRecordsRepository.updateStatus(filename, FileUploadRecord.UploadStatus.failed))
+        FileUploadRecord repositoryResponse = new FileUploadRecord(filename, type, username, timestamp, FileUploadRecord.UploadStatus.succeeded, null);
+        when(fileUploadRecordsRepository.updateStatusIfPending(
+                any(FileUploadRecord.class), eq(FileUploadRecord.UploadStatus.succeeded), anyLong(), anyString()))
                 .thenReturn(repositoryResponse);
+        File staged = new File("staged");
+        when(uploadStaging.get(filename)).thenReturn(staged);
 
-        doThrow(IOException.class).when(fileStorageService).save(file);
+        doThrow(IOException.class).when(fileStorageService).save(filename, staged, type);
 
         // Act
-        FileUploadRecord actual = target.uploadFile(user, file, timestamp);
+        FileUploadRecord actual = target.uploadFile(
+                user, filename, type, new ByteArrayInputStream("content".getBytes()), timestamp);
 
         // Assert
-        assertThat(actual).usingRecursiveComparison().isEqualTo(repositoryResponse);
+        assertThat(actual.getUploadStatus()).isEqualTo(FileUploadRecord.UploadStatus.failed);
+
+        InOrder inOrder = inOrder(fileUploadRecordsRepository, fileStorageService, uploadStaging);
+        inOrder.verify(fileStorageService).save(filename, staged, type);
+        inOrder.verify(fileUploadRecordsRepository).failIfSucceeded(repositoryResponse);
+        inOrder.verify(uploadStaging).delete(filename);
+    }
+
+    @Test
+    public void testUploadFileExpiredWhileReceiving() throws IOException {
+        // Arrange
+        AuthenticatedUser user = mock(AuthenticatedUser.class);
+        doAnswer(invocation -> invocation.getArgument(1, InputStream.class).readAllBytes())
+                .when(uploadStaging).stage(eq("filename"), any(InputStream.class));
+
+        // Act
+        FileUploadRecord actual = target.uploadFile(
+                user, "filename", "image/jpeg", new ByteArrayInputStream("content".getBytes()), LocalDateTime.now());
+
+        // Assert
+        assertThat(actual.getUploadStatus()).isEqualTo(FileUploadRecord.UploadStatus.failed);
+        assertThat(actual.getUrl()).isNull();
+        verifyNoInteractions(fileStorageService, eventPublisher);
+        verify(uploadStaging).delete("filename");
+    }
+
+    @Test
+    public void testUploadFileTooLarge() throws IOException {
+        // Arrange
+        AuthenticatedUser user = mock(AuthenticatedUser.class);
+        doAnswer(invocation -> invocation.getArgument(1, InputStream.class).readAllBytes())
+                .when(uploadStaging).stage(eq("filename"), any(InputStream.class));
+
+        // Act & Assert
+        assertThrows(
+                FileTooLargeException.class,
+                () -> target.uploadFile(
+                        user,
+                        "filename",
+                        "image/jpeg",
+                        new ByteArrayInputStream("more than ten bytes".getBytes()),
+                        LocalDateTime.now()));
+        verify(fileUploadRecordsRepository)
+                .updateStatusIfPending(any(FileUploadRecord.class), eq(FileUploadRecord.UploadStatus.failed));
+    }
+
+    @Test
+    public void testUploadFileWithVariantName() {
+        // Arrange
+        AuthenticatedUser user = mock(AuthenticatedUser.class);
+        when(imageVariantService.getOriginalName("image.png~thumbnail")).thenReturn(Optional.of("image.png"));
+
+        // Act & Assert
+        assertThrows(
+                InvalidUploadException.class,
+                () -> target.uploadFile(
+                        user, "image.png~thumbnail", "image/png", new ByteArrayInputStream(new byte[0]), LocalDateTime.now()));
+        verifyNoInteractions(fileStorageService);
+    }
+
+    @Test
+    public void testUploadFileWithBlobName() {
+        // Arrange
+        AuthenticatedUser user = mock(AuthenticatedUser.class);
 
-        InOrder inOrder = inOrder(fileUploadRecordsRepository, fileStorageService);
-        inOrder.verify(fileStorageService).save(file);
-        inOrder.verify(fileUploadRecordsRepository).updateStatus(filename, FileUploadRecord.UploadStatus.failed);
+        // Act & Assert
+        assertThrows(
+                InvalidUploadException.class,
+                () -> target.uploadFile(
+                        user, "blob~image.png", "image/png", new ByteArrayInputStream(new byte[0]), LocalDateTime.now()));
+        verifyNoInteractions(fileStorageService);
+    }
+
+    @Test
+    public void testUploadFileWithPathName() {
+        // Arrange
+        AuthenticatedUser user = mock(AuthenticatedUser.class);
+
+        // Act & Assert
+        assertThrows(
+                InvalidUploadException.class,
+                () -> target.uploadFile(
+                        user, "../image.png", "image/png", new ByteArrayInputStream(new byte[0]), LocalDateTime.now()));
+        verifyNoInteractions(fileStorageService, fileUploadRecordsRepository);
     }
 
     @Test
     public void testUploadFileAlreadyExists() {
         // Arrange
-        String username = "username";
-        String filename = "filename";
+        AuthenticatedUser user = mock(AuthenticatedUser.class);
+        when(fileUploadRecordsRepository.reserve(any(FileUploadRecord.class))).thenReturn(false);
+
+        // Act & Assert
+        assertThrows(
+                FileWithNameAlreadyExistsException.class,
+                () -> target.uploadFile(
+                        user, "filename", "image/jpeg", new ByteArrayInputStream(new byte[0]), LocalDateTime.now()));
+        verifyNoInteractions(fileStorageService);
+    }
+
+    @Test
+    public void testUploadFiles() throws IOException {
+        // Arrange
+        AuthenticatedUser user = mock(AuthenticatedUser.class);
+        when(user.getUsername()).thenReturn("username");
+        when(imageVariantService.getOriginalName("a.png~thumbnail")).thenReturn(Optional.of("a.png"));
+        List<StagedUpload> files = List.of(
+                new StagedUpload("big.jpg", "image/jpeg", null, 11, null),
+                new StagedUpload("a.png~thumbnail", "image/png", "key-thumbnail", 7, "hash"),
+                new StagedUpload("taken.jpg", "image/jpeg", "key-taken", 7, "hash"),
+                new StagedUpload("a.jpg", "image/jpeg", "key-a", 7, "hash"),
+                new StagedUpload("b.jpg", "image/jpeg", "key-b", 7, "hash"));
+
+        when(fileUploadRecordsRepository.reserveAll(anyList())).thenAnswer(invocation ->
+                invocation.<List<FileUploadRecord>>getArgument(0).stream()
+                        .map(record -> !record.getName().equals("taken.jpg"))
+                        .collect(Collectors.toList()));
+        // b.jpg expires while it is stored
+        when(fileUploadRecordsRepository.updateStatusIfPending(anyList())).thenAnswer(invocation ->
+                invocation.<List<FileUploadRecord>>getArgument(0).stream()
+                        .map(record -> record.getName().equals("b.jpg") ? null : record)
+                        .collect(Collectors.toList()));
+
+        // Act
+        List<FileUploadResult> actual = target.uploadFiles(user, files, LocalDateTime.now());
+
+        // Assert
+        assertThat(actual).extracting(FileUploadResult::getName)
+                .containsExactly("big.jpg", "a.png~thumbnail", "taken.jpg", "a.jpg", "b.jpg");
+        assertThat(actual).extracting(FileUploadResult::getStatus)
+                .containsExactly(413, 400, 409, 201, 500);
+        assertThat(actual.get(3).getRecord().getUrl()).isEqualTo(baseUrl + "/fileupload/api/files/a.jpg");
+        assertThat(actual.get(4).getRecord().getUploadStatus()).isEqualTo(FileUploadRecord.UploadStatus.failed);
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<FileUploadRecord>> reserved = ArgumentCaptor.forClass(List.class);
+        verify(fileUploadRecordsRepository).reserveAll(reserved.capture());
+        assertThat(reserved.getValue()).extracting(FileUploadRecord::getName).containsExactly("taken.jpg", "a.jpg", "b.jpg");
+        verify(uploadStaging).move("key-a", "a.jpg");
+        verify(uploadStaging).move("key-b", "b.jpg");
+        verify(uploadStaging, never()).move(eq("key-taken"), any());
+        verify(fileStorageService, times(2)).save(anyString(), nullable(File.class), eq("image/jpeg"));
+        verify(fileUploadRecordsRepository, times(1)).updateStatusIfPending(anyList());
+        verify(eventPublisher, times(1)).publishEvent(any(UploadStatusChangedEvent.class));
+    }
+
+    @Test
+    public void testUploadFilesAsync() throws IOException {
+        // Arrange
+        List<Runnable> queued = new ArrayList<>();
+        target = newTarget(queued::add, true, false);
+
+        AuthenticatedUser user = mock(AuthenticatedUser.class);
+        when(fileUploadRecordsRepository.reserveAll(anyList())).thenReturn(List.of(true, true));
+        List<StagedUpload> files = List.of(
+                new StagedUpload("a.jpg", "image/jpeg", "key-a", 7, "hash"),
+                new StagedUpload("b.jpg", "image/jpeg", "key-b", 7, "hash"));
+
+        // Act
+        List<FileUploadResult> actual = target.uploadFiles(user, files, LocalDateTime.now());
+
+        // Assert
+        assertThat(actual).extracting(FileUploadResult::getStatus).containsExactly(202, 202);
+        assertThat(queued).hasSize(2);
+        verifyNoInteractions(fileStorageService, eventPublisher);
+        verify(fileUploadRecordsRepository, never()).updateStatusIfPending(anyList());
+    }
+
+    @Test
+    public void testUploadFilesWhenMovingFails() throws IOException {
+        // Arrange
+        AuthenticatedUser user = mock(AuthenticatedUser.class);
+        when(fileUploadRecordsRepository.reserveAll(anyList())).thenReturn(List.of(true));
+        doThrow(IOException.class).when(uploadStaging).move("key-a", "a.jpg");
+        List<StagedUpload> files = List.of(new StagedUpload("a.jpg", "image/jpeg", "key-a", 7, "hash"));
+
+        // Act
+        List<FileUploadResult> actual = target.uploadFiles(user, files, LocalDateTime.now());
+
+        // Assert
+        assertThat(actual).extracting(FileUploadResult::getStatus).containsExactly(500);
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<FileUploadRecord>> failed = ArgumentCaptor.forClass(List.class);
+        verify(fileUploadRecordsRepository).updateStatusIfPending(failed.capture());
+        assertThat(failed.getValue()).extracting(FileUploadRecord::getUploadStatus)
+                .containsExactly(FileUploadRecord.UploadStatus.failed);
+        verifyNoInteractions(fileStorageService);
+    }
+
+    @Test
+    public void testStageBatchFileTooLarge() throws IOException {
+        // Arrange
+        doAnswer(invocation -> invocation.getArgument(1, InputStream.class).readAllBytes())
+                .when(uploadStaging).stage(anyString(), any(InputStream.class));
+
+        // Act
+        StagedUpload actual = target.stageBatchFile(
+                "filename", "image/jpeg", new ByteArrayInputStream("more than ten bytes".getBytes()));
+
+        // Assert
+        assertThat(actual.getKey()).isNull();
+        assertThat(actual.getName()).isEqualTo("filename");
+    }
+
+    @Test
+    public void testCreateUpload() throws IOException {
+        // Arrange
+        AuthenticatedUser user = mock(AuthenticatedUser.class);
+        when(user.getUsername()).thenReturn("username");
         LocalDateTime timestamp = LocalDateTime.now();
-        String type = "image/jpeg";
 
+        // Act
+        FileUploadRecord actual = target.createUpload(user, "video.mp4", "video/mp4", 100, timestamp);
+
+        // Assert
+        assertThat(actual.getUploadStatus()).isEqualTo(FileUploadRecord.UploadStatus.pending);
+        assertThat(actual.getSize()).isEqualTo(100L);
+        assertThat(actual.getUploadOffset()).isEqualTo(0L);
+        assertThat(actual.getUrl()).isNull();
+
+        InOrder inOrder = inOrder(uploadStaging, fileUploadRecordsRepository);
+        inOrder.verify(fileUploadRecordsRepository).reserve(actual);
+        inOrder.verify(uploadStaging).create("video.mp4");
+    }
+
+    @Test
+    public void testCreateUploadWhenStagingFails() throws IOException {
+        // Arrange
         AuthenticatedUser user = mock(AuthenticatedUser.class);
-        when(user.getUsername()).thenReturn(username);
+        doThrow(IOException.class).when(uploadStaging).create("video.mp4");
 
-        MultipartFile file = mock(MultipartFile.class);
-        when(file.getContentType()).thenReturn(type);
-        when(file.getOriginalFilename()).thenReturn(filename);
+        // Act & Assert
+        assertThrows(
+                IOException.class,
+                () -> target.createUpload(user, "video.mp4", "video/mp4", 10, LocalDateTime.now()));
+        verify(fileUploadRecordsRepository)
+                .updateStatusIfPending(any(FileUploadRecord.class), eq(FileUploadRecord.UploadStatus.failed));
+    }
 
-        when(fileUploadRecordsRepository.isPendingOrSucceeded(filename))
-                .thenReturn(true);
+    @Test
+    public void testCreateUploadTooLong() {
+        // Arrange
+        AuthenticatedUser user = mock(AuthenticatedUser.class);
+
+        // Act & Assert
+        assertThrows(
+                InvalidUploadException.class,
+                () -> target.createUpload(user, "video.mp4", "video/mp4", 101, LocalDateTime.now()));
+    }
+
+    @Test
+    public void testCreateUploadAlreadyExists() throws IOException {
+        // Arrange
+        AuthenticatedUser user = mock(AuthenticatedUser.class);
+        when(fileUploadRecordsRepository.reserve(any(FileUploadRecord.class))).thenReturn(false);
 
         // Act & Assert
         assertThrows(
                 FileWithNameAlreadyExistsException.class,
-                () -> target.uploadFile(user, file, timestamp));
+                () -> target.createUpload(user, "video.mp4", "video/mp4", 10, LocalDateTime.now()));
+        verify(uploadStaging, never()).create("video.mp4");
+    }
+
+    @Test
+    public void testGetUploadOffsetIsReadFromStaging() throws IOException {
+        // Arrange
+        when(fileUploadRecordsRepository.findById("video.mp4")).thenReturn(Optional.of(uploadRecord("video.mp4", 10, 0)));
+        when(uploadStaging.length("video.mp4")).thenReturn(6L);
+
+        // Act
+        Optional<FileUploadRecord> actual = target.getUpload("video.mp4");
+
+        // Assert
+        assertThat(actual).get().extracting(FileUploadRecord::getUploadOffset).isEqualTo(6L);
+    }
+
+    @Test
+    public void testGetUploadWhenStagedContentIsGone() throws IOException {
+        // Arrange
+        when(fileUploadRecordsRepository.findById("video.mp4")).thenReturn(Optional.of(uploadRecord("video.mp4", 10, 10)));
+        when(uploadStaging.length("video.mp4")).thenThrow(new NoSuchFileException("video.mp4"));
+
+        // Act
+        Optional<FileUploadRecord> actual = target.getUpload("video.mp4");
+
+        // Assert
+        assertThat(actual).isEmpty();
+    }
+
+    @Test
+    public void testGetUploadOfOneShotUpload() throws IOException {
+        // Arrange
+        when(fileUploadRecordsRepository.findById("image.png")).thenReturn(Optional.of(
+                new FileUploadRecord("image.png", "image/png", "username", null, FileUploadRecord.UploadStatus.pending, null)));
+
+        // Act
+        Optional<FileUploadRecord> actual = target.getUpload("image.png");
+
+        // Assert
+        assertThat(actual).isEmpty();
+    }
+
+    @Test
+    public void testAppendToUpload() throws IOException {
+        // Arrange
+        InputStream chunk = new ByteArrayInputStream("cont".getBytes());
+        when(fileUploadRecordsRepository.findById("video.mp4")).thenReturn(Optional.of(uploadRecord("video.mp4", 7, 0)));
+        when(uploadStaging.length("video.mp4")).thenReturn(0L);
+        when(uploadStaging.append("video.mp4", 0, chunk, 4)).thenReturn(4L);
+
+        // Act
+        FileUploadRecord actual = target.appendToUpload("video.mp4", 0, 4, chunk);
+
+        // Assert
+        assertThat(actual.getUploadOffset()).isEqualTo(4L);
+        assertThat(actual.getUploadStatus()).isEqualTo(FileUploadRecord.UploadStatus.pending);
+        verify(fileUploadRecordsRepository).updateUploadOffset("video.mp4", 4);
+        verifyNoInteractions(fileStorageService);
+    }
+
+    @Test
+    public void testAppendLastChunkCompletesUpload() throws IOException {
+        // Arrange
+        File staged = File.createTempFile("staged", null);
+        staged.deleteOnExit();
+        Files.writeString(staged.toPath(), "content");
+
+        InputStream chunk = new ByteArrayInputStream("ent".getBytes());
+        when(fileUploadRecordsRepository.findById("video.mp4")).thenReturn(Optional.of(uploadRecord("video.mp4", 7, 4)));
+        when(uploadStaging.length("video.mp4")).thenReturn(4L);
+        when(uploadStaging.append("video.mp4", 4, chunk, 3)).thenReturn(3L);
+        when(uploadStaging.get("video.mp4")).thenReturn(staged);
+
+        String hash = "ed7002b439e9ac845f22357d822bac1444730fbdb6016d3ec9432297b9ec9f73";
+        FileUploadRecord received = uploadRecord("video.mp4", 7, 7);
+        when(fileUploadRecordsRepository.completeIfPending(any(FileUploadRecord.class), eq(hash)))
+                .thenReturn(received);
+        FileUploadRecord completed = uploadRecord("video.mp4", 7, 7);
+        completed.setUploadStatus(FileUploadRecord.UploadStatus.succeeded);
+        when(fileUploadRecordsRepository.updateStatusIfPending(
+                eq(received), eq(FileUploadRecord.UploadStatus.succeeded), eq(7L), any()))
+                .thenReturn(completed);
+
+        // Act
+        FileUploadRecord actual = target.appendToUpload("video.mp4", 4, 3, chunk);
+
+        // Assert
+        assertThat(actual.getUrl()).isEqualTo(baseUrl + "/fileupload/api/files/video.mp4");
+
+        InOrder inOrder = inOrder(fileStorageService, uploadStaging, fileUploadRecordsRepository);
+        inOrder.verify(fileUploadRecordsRepository).completeIfPending(any(FileUploadRecord.class), eq(hash));
+        inOrder.verify(fileUploadRecordsRepository)
+                .updateStatusIfPending(eq(received), eq(FileUploadRecord.UploadStatus.succeeded), eq(7L), any());
+        inOrder.verify(fileStorageService).save("video.mp4", staged, "video/mp4");
+        inOrder.verify(uploadStaging).delete("video.mp4");
+    }
+
+    @Test
+    public void testAppendLastChunkWhenAlreadyCompleted() throws IOException {
+        // Arrange
+        File staged = File.createTempFile("staged", null);
+        staged.deleteOnExit();
+        Files.writeString(staged.toPath(), "content");
+
+        InputStream chunk = new ByteArrayInputStream(new byte[0]);
+        when(fileUploadRecordsRepository.findById("video.mp4")).thenReturn(Optional.of(uploadRecord("video.mp4", 7, 7)));
+        when(uploadStaging.length("video.mp4")).thenReturn(7L);
+        when(uploadStaging.get("video.mp4")).thenReturn(staged);
+        when(fileUploadRecordsRepository.completeIfPending(any(FileUploadRecord.class), anyString())).thenReturn(null);
+
+        // Act
+        FileUploadRecord actual = target.appendToUpload("video.mp4", 7, 0, chunk);
+
+        // Assert
+        assertThat(actual.getUploadStatus()).isEqualTo(FileUploadRecord.UploadStatus.pending);
+        verifyNoInteractions(fileStorageService);
+        verify(uploadStaging, never()).delete("video.mp4");
+    }
+
+    @Test
+    public void testAppendToUploadAtWrongOffset() throws IOException {
+        // Arrange
+        when(fileUploadRecordsRepository.findById("video.mp4")).thenReturn(Optional.of(uploadRecord("video.mp4", 7, 0)));
+        when(uploadStaging.length("video.mp4")).thenReturn(4L);
+
+        // Act & Assert
+        assertThrows(
+                UploadOffsetConflictException.class,
+                () -> target.appendToUpload("video.mp4", 0, 4, new ByteArrayInputStream("cont".getBytes())));
+        verify(uploadStaging, never()).append(any(), anyLong(), any(), anyLong());
+    }
+
+    @Test
+    public void testAppendChunkPastUploadLength() throws IOException {
+        // Arrange
+        when(fileUploadRecordsRepository.findById("video.mp4")).thenReturn(Optional.of(uploadRecord("video.mp4", 7, 4)));
+        when(uploadStaging.length("video.mp4")).thenReturn(4L);
+
+        // Act & Assert
+        assertThrows(
+                InvalidUploadException.class,
+                () -> target.appendToUpload("video.mp4", 4, 4, new ByteArrayInputStream("tent".getBytes())));
+    }
+
+    @Test
+    public void testCancelUpload() throws IOException {
+        // Arrange
+        FileUploadRecord upload = uploadRecord("video.mp4", 7, 4);
+        when(fileUploadRecordsRepository.findById("video.mp4")).thenReturn(Optional.of(upload));
+        when(fileUploadRecordsRepository.deleteIfReceiving(upload)).thenReturn(true);
+
+        // Act
+        target.cancelUpload("video.mp4");
+
+        // Assert
+        InOrder inOrder = inOrder(fileUploadRecordsRepository, uploadStaging);
+        inOrder.verify(fileUploadRecordsRepository).deleteIfReceiving(upload);
+        inOrder.verify(uploadStaging).delete("video.mp4");
+        verify(fileUploadRecordsRepository, never()).deleteById(anyString());
+    }
+
+    @Test
+    public void testCancelSucceededUpload() throws IOException {
+        // Arrange
+        FileUploadRecord upload = uploadRecord("video.mp4", 7, 7);
+        upload.setUploadStatus(FileUploadRecord.UploadStatus.succeeded);
+        when(fileUploadRecordsRepository.findById("video.mp4")).thenReturn(Optional.of(upload));
+
+        // Act & Assert
+        assertThrows(FileNotFoundException.class, () -> target.cancelUpload("video.mp4"));
+        verify(fileUploadRecordsRepository, never()).deleteIfReceiving(any());
+        verify(fileUploadRecordsRepository, never()).deleteById(anyString());
+        verifyNoInteractions(uploadStaging);
+    }
+
+    @Test
+    public void testCancelNonResumableUpload() throws IOException {
+        // Arrange
+        when(fileUploadRecordsRepository.findById("video.mp4"))
+                .thenReturn(Optional.of(new FileUploadRecord(
+                        "video.mp4", "video/mp4", "username", null, FileUploadRecord.UploadStatus.pending, null)));
+
+        // Act & Assert
+        assertThrows(FileNotFoundException.class, () -> target.cancelUpload("video.mp4"));
+        verify(fileUploadRecordsRepository, never()).deleteIfReceiving(any());
+        verifyNoInteractions(uploadStaging);
+    }
+
+    @Test
+    public void testCancelUploadCompletedInTheMeantime() throws IOException {
+        // Arrange
+        FileUploadRecord upload = uploadRecord("video.mp4", 7, 7);
+        when(fileUploadRecordsRepository.findById("video.mp4")).thenReturn(Optional.of(upload));
+        when(fileUploadRecordsRepository.deleteIfReceiving(upload)).thenReturn(false);
+
+        // Act & Assert
+        assertThrows(FileNotFoundException.class, () -> target.cancelUpload("video.mp4"));
+        verifyNoInteractions(uploadStaging);
+    }
+
+    @Test
+    public void testGetFileKeyOfVariant() {
+        // Act
+        String actual = target.getFileKey("image.png", Optional.of(recordWithVariants("thumbnail")), "thumbnail");
+
+        // Assert
+        assertThat(actual).isEqualTo("image.png~thumbnail");
+    }
+
+    @Test
+    public void testGetFileKeyOfVariantNotGenerated() {
+        // Act
+        String actual = target.getFileKey("image.png", Optional.of(recordWithVariants("thumbnail")), "medium");
+
+        // Assert
+        assertThat(actual).isEqualTo("image.png");
+    }
+
+    @Test
+    public void testGetFileKeyOfOriginal() {
+        // Act
+        String actual = target.getFileKey("image.png", Optional.empty(), null);
+
+        // Assert
+        assertThat(actual).isEqualTo("image.png");
+    }
+
+    @Test
+    public void testGetFileKeyOfContentAddressedUpload() {
+        // Arrange
+        FileUploadRecord record = recordWithVariants("thumbnail");
+        record.setBlob("blob~hash");
+
+        // Act & Assert
+        assertThat(target.getFileKey("image.png", Optional.of(record), null)).isEqualTo("blob~hash");
+        assertThat(target.getFileKey("image.png", Optional.of(record), "medium")).isEqualTo("blob~hash");
+        assertThat(target.getFileKey("image.png", Optional.of(record), "thumbnail")).isEqualTo("image.png~thumbnail");
+    }
+
+    @Test
+    public void testGetFileKeyWithUnknownSize() {
+        // Act & Assert
+        assertThrows(
+                InvalidVariantException.class,
+                () -> target.getFileKey("image.png", Optional.empty(), "huge"));
+    }
+
+    @Test
+    public void testDeleteFileWithVariants() throws IOException {
+        // Arrange
+        FileUploadRecord record = new FileUploadRecord(
+                "image.png", "image/png", "username", null, FileUploadRecord.UploadStatus.succeeded, null);
+        when(fileUploadRecordsRepository.findById("image.png")).thenReturn(Optional.of(record));
+
+        // Act
+        target.deleteFile("image.png");
+
+        // Assert
+        verify(fileStorageService).delete("image.png");
+        verify(imageVariantService).deleteVariants(record);
+        verify(fileUploadRecordsRepository).deleteById("image.png");
+    }
+
+    @Test
+    public void testDeleteContentAddressedFile() throws IOException {
+        // Arrange
+        FileUploadRecord record = new FileUploadRecord(
+                "image.png", "image/png", "username", null, FileUploadRecord.UploadStatus.succeeded, null);
+        record.setBlob("blob~hash");
+        when(fileUploadRecordsRepository.findById("image.png")).thenReturn(Optional.of(record));
+
+        // Act
+        target.deleteFile("image.png");
+
+        // Assert
+        InOrder inOrder = inOrder(fileUploadRecordsRepository, blobStore);
+        inOrder.verify(fileUploadRecordsRepository).deleteById("image.png");
+        inOrder.verify(blobStore).release("blob~hash");
+        verify(fileStorageService, never()).delete(anyString());
     }
 
     @Test
@@ -176,13 +1032,106 @@ public class FileUploadServiceTest {
         verify(fileUploadRecordsRepository).deleteById(name);
     }
 
-    private static FileUploadRecord withUrl(FileUploadRecord record, String url) {
+    @Test
+    public void testDeleteFiles() throws IOException {
+        // Arrange
+        FileUploadRecord own = new FileUploadRecord(
+                "own.png", "image/png", "userA", null, FileUploadRecord.UploadStatus.succeeded, null);
+        FileUploadRecord shared = new FileUploadRecord(
+                "shared.png", "image/png", "userA", null, FileUploadRecord.UploadStatus.succeeded, null);
+        shared.setBlob("blob~hash");
+        FileUploadRecord stuck = new FileUploadRecord(
+                "stuck.png", "image/png", "userA", null, FileUploadRecord.UploadStatus.succeeded, null);
+        FileUploadRecord others = new FileUploadRecord(
+                "others.png", "image/png", "userB", null, FileUploadRecord.UploadStatus.succeeded, null);
+        List<String> names = List.of("own.png", "shared.png", "stuck.png", "others.png", "missing.png");
+        when(fileUploadRecordsRepository.findAllById(names)).thenReturn(List.of(own, shared, stuck, others));
+        when(fileStorageService.deleteAll(List.of("own.png", "stuck.png"))).thenReturn(Set.of("stuck.png"));
+
+        // Act
+        List<FileUploadResult> actual = target.deleteFiles(names, "userA");
+
+        // Assert
+        assertThat(actual).extracting(FileUploadResult::getName).containsExactlyElementsOf(names);
+        assertThat(actual).extracting(FileUploadResult::getStatus).containsExactly(204, 204, 500, 403, 404);
+
+        InOrder inOrder = inOrder(fileStorageService, imageVariantService, fileUploadRecordsRepository, blobStore);
+        inOrder.verify(fileStorageService).deleteAll(List.of("own.png", "stuck.png"));
+        inOrder.verify(imageVariantService).deleteVariants(List.of(own, shared));
+        inOrder.verify(fileUploadRecordsRepository).deleteAllByNames(Set.of("own.png", "shared.png"), "userA");
+        inOrder.verify(blobStore).release("blob~hash");
+        verify(fileStorageService, never()).delete(anyString());
+    }
+
+    @Test
+    public void testDeleteFilesOfInBatches() {
+        // Arrange
+        List<FileUploadRecord> records = IntStream.range(0, 1500)
+                .mapToObj(i -> new FileUploadRecord(
+                        "image" + i + ".png", "image/png", "userA", null, FileUploadRecord.UploadStatus.succeeded, null))
+                .collect(Collectors.toList());
+        when(fileUploadRecordsRepository.streamByOwner("userA", "image")).thenReturn(records.stream());
+        when(fileStorageService.deleteAll(any())).thenReturn(Set.of());
+
+        // Act
+        FileDeleteSummary actual = target.deleteFilesOf("userA", "image", 1500);
+
+        // Assert
+        assertThat(actual.getDeleted()).isEqualTo(1500);
+        assertThat(actual.getFailed()).isEmpty();
+        assertThat(actual.isMore()).isFalse();
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Set<String>> deleted = ArgumentCaptor.forClass(Set.class);
+        verify(fileUploadRecordsRepository, times(2)).deleteAllByNames(deleted.capture(), eq("userA"));
+        assertThat(deleted.getAllValues()).extracting(Set::size).containsExactly(1000, 500);
+        verify(fileStorageService, times(2)).deleteAll(any());
+    }
+
+    @Test
+    public void testDeleteFilesOfUpToLimit() {
+        // Arrange
+        List<FileUploadRecord> records = IntStream.range(0, 10)
+                .mapToObj(i -> new FileUploadRecord(
+                        "image" + i + ".png", "image/png", "userA", null, FileUploadRecord.UploadStatus.succeeded, null))
+                .collect(Collectors.toList());
+        when(fileUploadRecordsRepository.streamByOwner("userA", null)).thenReturn(records.stream());
+        when(fileStorageService.deleteAll(any())).thenReturn(Set.of("image1.png"));
+
+        // Act
+        FileDeleteSummary actual = target.deleteFilesOf("userA", null, 4);
+
+        // Assert
+        assertThat(actual.getDeleted()).isEqualTo(3);
+        assertThat(actual.getFailed()).containsExactly("image1.png");
+        assertThat(actual.isMore()).isTrue();
+        verify(fileUploadRecordsRepository).deleteAllByNames(Set.of("image0.png", "image2.png", "image3.png"), "userA");
+    }
+
+    private FileUploadService newTarget(TaskExecutor uploadExecutor, boolean async, boolean contentAddressed) {
+        return new FileUploadService(
+                fileUploadRecordsRepository,
+                fileStorageService,
+                uploadStaging,
+                imageVariantService,
+                blobStore,
+                uploadExecutor,
+                eventPublisher,
+                async,
+                contentAddressed,
+                DataSize.ofBytes(10),
+                baseUrl);
+    }
+
+    private static FileUploadRecord recordWithVariants(String... variants) {
+        FileUploadRecord record = new FileUploadRecord(
+                "image.png", "image/png", "username", null, FileUploadRecord.UploadStatus.succeeded, null);
+        record.setVariants(List.of(variants));
+        return record;
+    }
+
+    private static FileUploadRecord uploadRecord(String filename, long size, long uploadOffset) {
         return new FileUploadRecord(
-                record.getName(),
-                record.getType(),
-                record.getUsername(),
-                record.getDateUploaded(),
-                record.getUploadStatus(),
-                url);
-    }
-}
\ No newline at end of file
+                filename, "video/mp4", "username", null, FileUploadRecord.UploadStatus.pending, size, null, uploadOffset, null, null, null);
+    }
+}
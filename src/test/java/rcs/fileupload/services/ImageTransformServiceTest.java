@@ -0,0 +1,248 @@
+package rcs.fileupload.services;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import rcs.fileupload.models.FileUploadRecord;
+import rcs.fileupload.services.exceptions.InvalidTransformationException;
+import junitparams.JUnitParamsRunner;
+import junitparams.Parameters;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.*;
+
+@RunWith(JUnitParamsRunner.class)
+public class ImageTransformServiceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileStorageService storage;
+    private MeterRegistry meterRegistry;
+    private ImageTransformService target;
+
+    @Before
+    public void setup() throws IOException {
+        storage = mock(FileStorageService.class);
+        meterRegistry = new SimpleMeterRegistry();
+        target = new ImageTransformService(
+                storage, new TransformCache(folder.getRoot().toPath(), 1024 * 1024), meterRegistry, 1000, 1);
+    }
+
+    private Object[] transformations() {
+        return new Object[] {
+                new Object[] { 200, null, null, 200, 100 },
+                new Object[] { null, 50, null, 100, 50 },
+                new Object[] { 200, 50, null, 100, 50 },
+                new Object[] { 1000, 1000, null, 1000, 500 },
+                new Object[] { null, null, "100,100,300,200", 300, 200 },
+                new Object[] { 150, null, "100,100,300,200", 150, 100 },
+                new Object[] { null, null, "900,400,500,500", 100, 100 }
+        };
+    }
+
+    @Test
+    @Parameters(method = "transformations")
+    public void testTransform(Integer width, Integer height, String crop, int expectedWidth, int expectedHeight)
+            throws IOException {
+        // Arrange
+        when(storage.load("image.png")).thenReturn(image(1000, 500, "png"));
+        ImageTransformation transformation = target.getTransformation("image/png", width, height, crop, null, null).get();
+
+        // Act
+        BufferedImage actual = ImageIO.read(target.transform(record("image.png", "image/png"), transformation).getInputStream());
+
+        // Assert
+        assertThat(actual.getWidth()).isEqualTo(expectedWidth);
+        assertThat(actual.getHeight()).isEqualTo(expectedHeight);
+    }
+
+    @Test
+    public void testTransformFormat() throws IOException {
+        // Arrange
+        when(storage.load("image.png")).thenReturn(image(100, 100, "png"));
+        ImageTransformation transformation = target.getTransformation("image/png", null, null, null, "jpg", 50).get();
+
+        // Act
+        Resource actual = target.transform(record("image.png", "image/png"), transformation);
+
+        // Assert
+        assertThat(transformation.getType()).isEqualTo("image/jpeg");
+        assertThat(target.getTransformation("image/png", null, null, null, "JPG", 50).get().getKey())
+                .isEqualTo(transformation.getKey());
+        byte[] content = actual.getInputStream().readAllBytes();
+        assertThat(content[0]).isEqualTo((byte) 0xFF);
+        assertThat(content[1]).isEqualTo((byte) 0xD8);
+    }
+
+    @Test
+    public void testTransformIsCached() throws IOException {
+        // Arrange
+        when(storage.load("image.png")).thenReturn(image(400, 200, "png"));
+        FileUploadRecord record = record("image.png", "image/png");
+
+        // Act
+        byte[] first = target.transform(record, target.getTransformation("image/png", 100, null, null, null, null).get())
+                .getInputStream().readAllBytes();
+        byte[] second = target.transform(record, target.getTransformation("image/png", 100, null, null, "png", 20).get())
+                .getInputStream().readAllBytes();
+
+        // Assert
+        assertThat(second).isEqualTo(first);
+        verify(storage, times(1)).load("image.png");
+        assertThat(meterRegistry.counter("fileupload.transform.cache", "result", "hit").count()).isEqualTo(1);
+        assertThat(meterRegistry.counter("fileupload.transform.cache", "result", "miss").count()).isEqualTo(1);
+        assertThat(meterRegistry.timer("fileupload.transform.cpu").count()).isEqualTo(1);
+    }
+
+    @Test
+    public void testTransformCoalescesConcurrentRequests() throws Exception {
+        // Arrange
+        byte[] content = image(400, 200, "png").getByteArray();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(storage.load("image.png")).thenAnswer(invocation -> {
+            loading.countDown();
+            release.await();
+            return new ByteArrayResource(content);
+        });
+        FileUploadRecord record = record("image.png", "image/png");
+        ImageTransformation transformation = target.getTransformation("image/png", 100, null, null, null, null).get();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        // Act
+        List<Future<byte[]>> results;
+        try {
+            Future<byte[]> leader = executor.submit(() -> target.transform(record, transformation).getInputStream().readAllBytes());
+            loading.await();
+            List<Future<byte[]>> followers = IntStream.range(0, 3)
+                    .mapToObj(i -> executor.submit(() -> target.transform(record, transformation).getInputStream().readAllBytes()))
+                    .collect(Collectors.toList());
+            while (meterRegistry.counter("fileupload.transform.cache", "result", "coalesced").count() < 3) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            results = List.of(leader, followers.get(0), followers.get(1), followers.get(2));
+            for (Future<byte[]> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Assert
+        verify(storage, times(1)).load("image.png");
+        byte[] expected = results.get(0).get();
+        for (Future<byte[]> result : results) {
+            assertThat(result.get()).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    public void testTransformLimitsConcurrentDecodes() throws Exception {
+        // Arrange
+        byte[] content = image(400, 200, "png").getByteArray();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(storage.load("image.png")).thenAnswer(invocation -> {
+            loading.countDown();
+            release.await();
+            return new ByteArrayResource(content);
+        });
+        FileUploadRecord record = record("image.png", "image/png");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        // Act & Assert
+        try {
+            Future<Resource> first = executor.submit(
+                    () -> target.transform(record, target.getTransformation("image/png", 100, null, null, null, null).get()));
+            loading.await();
+            Future<Resource> second = executor.submit(
+                    () -> target.transform(record, target.getTransformation("image/png", 50, null, null, null, null).get()));
+            // the second decode waits for the first one's turn
+            verify(storage, after(200).times(1)).load("image.png");
+            release.countDown();
+            first.get();
+            second.get();
+            verify(storage, times(2)).load("image.png");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testTransformWhenContentIsNotAnImage() throws IOException {
+        // Arrange
+        when(storage.load("image.png")).thenReturn(new ByteArrayResource("not an image".getBytes()));
+        ImageTransformation transformation = target.getTransformation("image/png", 100, null, null, null, null).get();
+
+        // Act & Assert
+        assertThrows(
+                InvalidTransformationException.class,
+                () -> target.transform(record("image.png", "image/png"), transformation));
+    }
+
+    @Test
+    public void testNoTransformation() {
+        // Act
+        Optional<ImageTransformation> actual = target.getTransformation("image/png", null, null, null, null, null);
+
+        // Assert
+        assertThat(actual).isEmpty();
+    }
+
+    private Object[] invalidTransformations() {
+        return new Object[] {
+                new Object[] { 0, null, null, null, null },
+                new Object[] { 1001, null, null, null, null },
+                new Object[] { null, null, "1,2,3", null, null },
+                new Object[] { null, null, "1,2,0,4", null, null },
+                new Object[] { null, null, "a,b,c,d", null, null },
+                new Object[] { null, null, null, "webp", null },
+                new Object[] { null, null, null, "jpeg", 0 },
+                new Object[] { null, null, null, "jpeg", 101 }
+        };
+    }
+
+    @Test
+    @Parameters(method = "invalidTransformations")
+    public void testInvalidTransformation(Integer width, Integer height, String crop, String format, Integer quality) {
+        // Act & Assert
+        assertThrows(
+                InvalidTransformationException.class,
+                () -> target.getTransformation("image/png", width, height, crop, format, quality));
+    }
+
+    private static FileUploadRecord record(String name, String type) {
+        FileUploadRecord record = new FileUploadRecord(name, type, "username", null, FileUploadRecord.UploadStatus.succeeded, null);
+        record.setContentHash("hash");
+        return record;
+    }
+
+    private static ByteArrayResource image(int width, int height, String format) throws IOException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), format, encoded);
+        return new ByteArrayResource(encoded.toByteArray());
+    }
+}
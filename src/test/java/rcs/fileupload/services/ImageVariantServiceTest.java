@@ -0,0 +1,185 @@
+package rcs.fileupload.services;
+
+import rcs.fileupload.models.FileUploadRecord;
+import rcs.fileupload.repositories.FileUploadRecordsRepository;
+import junitparams.JUnitParamsRunner;
+import junitparams.Parameters;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+@RunWith(JUnitParamsRunner.class)
+public class ImageVariantServiceTest {
+
+    private FileUploadRecordsRepository repository;
+    private FileStorageService storage;
+    private TaskExecutor executor;
+    private ImageVariantService target;
+
+    @Before
+    public void setup() {
+        repository = mock(FileUploadRecordsRepository.class);
+        storage = mock(FileStorageService.class);
+        executor = mock(TaskExecutor.class);
+        target = new ImageVariantService(
+                repository, storage, executor, Map.of("thumbnail", 200, "medium", 800, "large", 1600));
+    }
+
+    @Test
+    public void testGenerate() throws IOException {
+        // Arrange
+        FileUploadRecord record = succeeded("image.png", "image/png");
+        when(storage.load("image.png")).thenReturn(new ByteArrayResource(encode(1000, 500, "png")));
+        when(repository.updateVariants(eq("image.png"), eq(record.getDateUploaded()), anyList())).thenReturn(true);
+
+        Map<String, BufferedImage> saved = new HashMap<>();
+        doAnswer(invocation -> saved.put(invocation.getArgument(0), ImageIO.read(invocation.getArgument(1, InputStream.class))))
+                .when(storage).save(anyString(), any(InputStream.class), eq("image/png"));
+
+        // Act
+        target.generate(record);
+
+        // Assert
+        assertThat(saved).containsOnlyKeys("image.png~medium", "image.png~thumbnail");
+        assertThat(saved.get("image.png~medium").getWidth()).isEqualTo(800);
+        assertThat(saved.get("image.png~medium").getHeight()).isEqualTo(400);
+        assertThat(saved.get("image.png~thumbnail").getWidth()).isEqualTo(200);
+        assertThat(saved.get("image.png~thumbnail").getHeight()).isEqualTo(100);
+        verify(repository).updateVariants("image.png", record.getDateUploaded(), List.of("medium", "thumbnail"));
+        verify(storage, never()).delete(anyString());
+    }
+
+    @Test
+    public void testGenerateWhenUploadWasDeletedMeanwhile() throws IOException {
+        // Arrange
+        FileUploadRecord record = succeeded("image.jpg", "image/jpeg");
+        when(storage.load("image.jpg")).thenReturn(new ByteArrayResource(encode(300, 300, "jpg")));
+        when(repository.updateVariants(anyString(), any(), anyList())).thenReturn(false);
+
+        // Act
+        target.generate(record);
+
+        // Assert
+        verify(storage).save(eq("image.jpg~thumbnail"), any(InputStream.class), eq("image/jpeg"));
+        verify(storage).delete("image.jpg~thumbnail");
+    }
+
+    @Test
+    public void testGenerateWhenContentIsNotAnImage() throws IOException {
+        // Arrange
+        when(storage.load("image.png")).thenReturn(new ByteArrayResource("not an image".getBytes()));
+
+        // Act
+        target.generate(succeeded("image.png", "image/png"));
+
+        // Assert
+        verify(storage, never()).save(anyString(), any(InputStream.class), anyString());
+        verify(repository, never()).updateVariants(anyString(), any(), anyList());
+    }
+
+    @Test
+    @Parameters({
+            "succeeded | image/png | true",
+            "succeeded | image/jpeg | true",
+            "succeeded | application/pdf | false",
+            "pending | image/png | false",
+            "failed | image/png | false"
+    })
+    public void testOnStatusChanged(FileUploadRecord.UploadStatus status, String type, boolean expectedQueued) {
+        // Arrange
+        FileUploadRecord record = new FileUploadRecord("image", type, "username", null, status, null);
+
+        // Act
+        target.onStatusChanged(new UploadStatusChangedEvent(record));
+
+        // Assert
+        verify(executor, times(expectedQueued ? 1 : 0)).execute(any(Runnable.class));
+    }
+
+    @Test
+    public void testOnStatusChangedWhenWorkersAreSaturated() {
+        // Arrange
+        doThrow(TaskRejectedException.class).when(executor).execute(any(Runnable.class));
+
+        // Act
+        target.onStatusChanged(new UploadStatusChangedEvent(succeeded("image.png", "image/png")));
+
+        // Assert
+        verify(executor).execute(any(Runnable.class));
+    }
+
+    @Test
+    @Parameters({
+            "image.png~thumbnail | image.png",
+            "a~b.png~large | a~b.png",
+            "image.png~huge | ",
+            "~thumbnail | ",
+            "image.png | "
+    })
+    public void testGetOriginalName(String key, String expected) {
+        // Act
+        Optional<String> actual = target.getOriginalName(key);
+
+        // Assert
+        assertThat(actual).isEqualTo(expected.isEmpty() ? Optional.empty() : Optional.of(expected));
+    }
+
+    @Test
+    public void testDeleteVariants() throws IOException {
+        // Arrange
+        FileUploadRecord record = succeeded("image.png", "image/png");
+        record.setVariants(List.of("medium", "thumbnail"));
+        doThrow(RuntimeException.class).when(storage).delete("image.png~medium");
+
+        // Act
+        target.deleteVariants(record);
+
+        // Assert
+        verify(storage).delete("image.png~medium");
+        verify(storage).delete("image.png~thumbnail");
+    }
+
+    @Test
+    public void testDeleteVariantsOfManyUploads() {
+        // Arrange
+        FileUploadRecord withVariants = succeeded("a.png", "image/png");
+        withVariants.setVariants(List.of("medium", "thumbnail"));
+        FileUploadRecord withoutVariants = succeeded("b.png", "image/png");
+        when(storage.deleteAll(any())).thenReturn(Set.of("a.png~medium"));
+
+        // Act
+        target.deleteVariants(List.of(withVariants, withoutVariants));
+
+        // Assert
+        verify(storage).deleteAll(List.of("a.png~medium", "a.png~thumbnail"));
+    }
+
+    private static FileUploadRecord succeeded(String name, String type) {
+        return new FileUploadRecord(
+                name, type, "username", LocalDateTime.of(2021, 1, 1, 10, 0), FileUploadRecord.UploadStatus.succeeded, null);
+    }
+
+    private static byte[] encode(int width, int height, String format) throws IOException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), format, encoded);
+        return encoded.toByteArray();
+    }
+}
@@ -4,14 +4,22 @@ import rcs.fileupload.services.exceptions.FileNotFoundException;
 import rcs.fileupload.services.utils.FileFactory;
 import junitparams.JUnitParamsRunner;
 import junitparams.Parameters;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.core.io.Resource;
-import org.springframework.web.multipart.MultipartFile;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.assertThrows;
@@ -28,24 +36,99 @@ public class LocalStorageServiceTest {
     public void setup() {
         storageDir = "C:\\test-storage-dir";
         mockFileFactory = mock(FileFactory.class);
-        target = new LocalStorageService(storageDir, mockFileFactory);
+        target = new LocalStorageService(List.of(storageDir), 0, mockFileFactory);
     }
 
     @Test
     public void save() throws IOException {
         // Arrange
-        MultipartFile file = mock(MultipartFile.class);
-        String filename = "filename.gif";
-        when(file.getOriginalFilename()).thenReturn(filename);
-        File mockFile = mock(File.class);
-        when(mockFileFactory.newFile(storageDir + "/" + filename))
-                .thenReturn(mockFile);
+        File stored = File.createTempFile("stored", ".gif");
+        stored.deleteOnExit();
+        when(mockFileFactory.newFile(storageDir + "/filename.gif")).thenReturn(stored);
+
+        // Act
+        target.save("filename.gif", new ByteArrayInputStream("content".getBytes()), "image/gif");
+
+        // Assert
+        assertThat(stored).hasContent("content");
+    }
+
+    @Test
+    public void saveKeepsPreviousFileWhenFails() throws IOException {
+        // Arrange
+        Path dir = Files.createTempDirectory("storage");
+        File stored = dir.resolve("filename.gif").toFile();
+        Files.writeString(stored.toPath(), "previous");
+        when(mockFileFactory.newFile(storageDir + "/filename.gif")).thenReturn(stored);
+        InputStream failing = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("connection reset");
+            }
+        };
+
+        // Act & Assert
+        assertThrows(
+                IOException.class,
+                () -> target.save("filename.gif", failing, "image/gif"));
+        assertThat(stored).hasContent("previous");
+        assertThat(dir.toFile().list()).containsExactly("filename.gif");
+    }
+
+    @Test
+    public void saveMovesCompleteFile() throws IOException {
+        // Arrange
+        File staged = File.createTempFile("staged", null);
+        File stored = new File(staged.getParentFile(), staged.getName() + ".gif");
+        stored.deleteOnExit();
+        when(mockFileFactory.newFile(storageDir + "/filename.gif")).thenReturn(stored);
 
         // Act
-        target.save(file);
+        target.save("filename.gif", staged, "image/gif");
 
         // Assert
-        verify(file).transferTo(mockFile);
+        assertThat(staged).doesNotExist();
+        assertThat(stored).exists();
+    }
+
+    @Test
+    public void saveMovesFileFromAnotherDirectory() throws IOException {
+        // Arrange
+        Path staging = Files.createTempDirectory("staging");
+        Path dir = Files.createTempDirectory("storage");
+        Path staged = Files.writeString(staging.resolve("staged"), "content");
+        File stored = dir.resolve("filename.gif").toFile();
+        Files.writeString(stored.toPath(), "previous");
+        when(mockFileFactory.newFile(storageDir + "/filename.gif")).thenReturn(stored);
+
+        // Act
+        target.save("filename.gif", staged.toFile(), "image/gif");
+
+        // Assert
+        assertThat(staged).doesNotExist();
+        assertThat(stored).hasContent("content");
+        assertThat(dir.toFile().list()).containsExactly("filename.gif");
+    }
+
+    @Test
+    public void saveCopiesFileFromAnotherFilesystem() throws IOException {
+        // Arrange
+        Path shm = Path.of("/dev/shm");
+        Path dir = Files.createTempDirectory("storage");
+        // only runs where a tmpfs is mounted apart from the temp dir, so the rename can't be atomic
+        Assume.assumeTrue(Files.isWritable(shm) && !Files.getFileStore(shm).equals(Files.getFileStore(dir)));
+        Path staged = Files.writeString(Files.createTempFile(shm, "staged", null), "content");
+        File stored = dir.resolve("filename.gif").toFile();
+        Files.writeString(stored.toPath(), "previous");
+        when(mockFileFactory.newFile(storageDir + "/filename.gif")).thenReturn(stored);
+
+        // Act
+        target.save("filename.gif", staged.toFile(), "image/gif");
+
+        // Assert
+        assertThat(staged).doesNotExist();
+        assertThat(stored).hasContent("content");
+        assertThat(dir.toFile().list()).containsExactly("filename.gif");
     }
 
     @Test
@@ -85,6 +168,43 @@ public class LocalStorageServiceTest {
                 () -> target.delete(filename));
     }
 
+    @Test
+    public void testDeleteAll() {
+        // Arrange
+        File deleted = mock(File.class);
+        when(mockFileFactory.newFile(storageDir + "/a.gif")).thenReturn(deleted);
+        when(deleted.delete()).thenReturn(true);
+        File kept = mock(File.class);
+        when(mockFileFactory.newFile(storageDir + "/b.gif")).thenReturn(kept);
+        when(kept.delete()).thenReturn(false);
+        when(kept.exists()).thenReturn(true);
+
+        // Act
+        Set<String> actual = target.deleteAll(List.of("a.gif", "b.gif"));
+
+        // Assert
+        assertThat(actual).containsExactly("b.gif");
+        verify(deleted).delete();
+    }
+
+    @Test
+    public void testDeleteAllWhenAFileThrows() {
+        // Arrange
+        File broken = mock(File.class);
+        when(mockFileFactory.newFile(storageDir + "/a.gif")).thenReturn(broken);
+        when(broken.delete()).thenThrow(SecurityException.class);
+        File deleted = mock(File.class);
+        when(mockFileFactory.newFile(storageDir + "/b.gif")).thenReturn(deleted);
+        when(deleted.delete()).thenReturn(true);
+
+        // Act
+        Set<String> actual = target.deleteAll(List.of("a.gif", "b.gif"));
+
+        // Assert
+        assertThat(actual).containsExactly("a.gif");
+        verify(deleted).delete();
+    }
+
     @Test
     public void testLoadHappyPath() throws IOException {
         // Arrange
@@ -113,4 +233,112 @@ public class LocalStorageServiceTest {
                 FileNotFoundException.class,
                 () -> target.load(filename));
     }
+
+    @Test
+    public void testList() throws IOException {
+        // Arrange
+        Path dir = Files.createTempDirectory("storage");
+        Files.writeString(dir.resolve("a.gif"), "a");
+        Files.writeString(dir.resolve(".123.partial"), "being saved");
+        Files.createDirectory(dir.resolve("subdir"));
+        target = new LocalStorageService(List.of(dir.toString()), 0, mockFileFactory);
+
+        // Act
+        List<String> actual;
+        try (Stream<StoredFile> files = target.list()) {
+            actual = files.map(StoredFile::getName).collect(Collectors.toList());
+        }
+
+        // Assert
+        assertThat(actual).containsExactly("a.gif");
+    }
+
+    @Test
+    public void testSaveIsSharded() throws IOException {
+        // Arrange
+        Path dir = Files.createTempDirectory("storage");
+        target = new LocalStorageService(List.of(dir.toString()), 2, File::new);
+
+        // Act
+        target.save("filename.gif", new ByteArrayInputStream("content".getBytes()), "image/gif");
+
+        // Assert
+        // sha-256 of filename.gif starts with 819c
+        assertThat(dir.resolve("81/9c/filename.gif")).hasContent("content");
+        assertThat(target.load("filename.gif").getFile().toPath()).isEqualTo(dir.resolve("81/9c/filename.gif"));
+        try (Stream<StoredFile> files = target.list()) {
+            assertThat(files.map(StoredFile::getName)).containsExactly("filename.gif");
+        }
+    }
+
+    @Test
+    @Parameters({
+            "../escaped.gif",
+            "dir/nested.gif",
+            "..",
+            "."
+    })
+    public void testSaveRejectsPaths(String filename) throws IOException {
+        // Arrange
+        Path parent = Files.createTempDirectory("storage");
+        Path dir = Files.createDirectory(parent.resolve("root"));
+        target = new LocalStorageService(List.of(dir.toString()), 0, File::new);
+
+        // Act & Assert
+        assertThrows(
+                IOException.class,
+                () -> target.save(filename, new ByteArrayInputStream("content".getBytes()), "image/gif"));
+        assertThrows(
+                FileNotFoundException.class,
+                () -> target.load(filename));
+        try (Stream<Path> files = Files.walk(parent)) {
+            assertThat(files.filter(Files::isRegularFile)).isEmpty();
+        }
+    }
+
+    @Test
+    public void testSaveSpreadsFilesAcrossDirectories() throws IOException {
+        // Arrange
+        List<Path> dirs = List.of(
+                Files.createTempDirectory("disk1"), Files.createTempDirectory("disk2"), Files.createTempDirectory("disk3"));
+        target = new LocalStorageService(dirs.stream().map(Path::toString).collect(Collectors.toList()), 1, File::new);
+
+        // Act
+        for (int i = 0; i < 300; i++) {
+            target.save("file" + i, new ByteArrayInputStream(new byte[0]), "image/gif");
+        }
+
+        // Assert
+        for (Path dir : dirs) {
+            try (Stream<Path> files = Files.walk(dir)) {
+                assertThat(files.filter(Files::isRegularFile).count()).isBetween(30L, 170L);
+            }
+        }
+        try (Stream<StoredFile> files = target.list()) {
+            assertThat(files.count()).isEqualTo(300);
+        }
+    }
+
+    @Test
+    public void testAddingDirectoryKeepsExistingFilesReachable() throws IOException {
+        // Arrange
+        Path legacy = Files.createTempDirectory("disk1");
+        new LocalStorageService(List.of(legacy.toString()), 0, File::new)
+                .save("flat.gif", new ByteArrayInputStream("flat".getBytes()), "image/gif");
+        LocalStorageService oneDisk = new LocalStorageService(List.of(legacy.toString()), 2, File::new);
+        for (int i = 0; i < 20; i++) {
+            oneDisk.save("file" + i, new ByteArrayInputStream(("content" + i).getBytes()), "image/gif");
+        }
+        Path added = Files.createTempDirectory("disk2");
+        target = new LocalStorageService(List.of(legacy.toString(), added.toString()), 2, File::new);
+
+        // Act & Assert
+        assertThat(target.load("flat.gif").getInputStream()).hasContent("flat");
+        for (int i = 0; i < 20; i++) {
+            assertThat(target.load("file" + i).getInputStream()).hasContent("content" + i);
+        }
+
+        target.delete("flat.gif");
+        assertThrows(FileNotFoundException.class, () -> target.load("flat.gif"));
+    }
 }
@@ -0,0 +1,289 @@
+package rcs.fileupload.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+import rcs.fileupload.services.exceptions.FileNotFoundException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.*;
+
+public class MemoryCachedStorageServiceTest {
+
+    private FileStorageService storage;
+    private MemoryCachedStorageService target;
+
+    @Before
+    public void setup() {
+        storage = mock(FileStorageService.class);
+        target = new MemoryCachedStorageService(
+                storage,
+                new OffHeapCache(64 * OffHeapCache.pageSize, 1024, new SimpleMeterRegistry()));
+    }
+
+    @Test
+    public void testLoadKeepsContentInMemory() throws IOException {
+        // Arrange
+        when(storage.load("image.png")).thenReturn(new ByteArrayResource("content".getBytes()));
+
+        // Act
+        String first = read(target.load("image.png"));
+        Resource second = target.load("image.png");
+
+        // Assert
+        assertThat(first).isEqualTo("content");
+        assertThat(second).isInstanceOf(OffHeapResource.class);
+        assertThat(second.getFilename()).isEqualTo("image.png");
+        assertThat(second.contentLength()).isEqualTo(7);
+        assertThat(read(second)).isEqualTo("content");
+        verify(storage, times(1)).load("image.png");
+    }
+
+    @Test
+    public void testLoadWritesToChannel() throws IOException {
+        // Arrange
+        when(storage.load("image.png")).thenReturn(new ByteArrayResource("content".getBytes()));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // Act
+        ((OffHeapResource) target.load("image.png")).writeTo(Channels.newChannel(out));
+
+        // Assert
+        assertThat(out.toString()).isEqualTo("content");
+    }
+
+    @Test
+    public void testLoadStreamsLargeFiles() throws IOException {
+        // Arrange
+        ByteArrayResource large = new ByteArrayResource(new byte[2048]);
+        when(storage.load("video.mp4")).thenReturn(large);
+
+        // Act
+        Resource actual = target.load("video.mp4");
+        target.load("video.mp4");
+
+        // Assert
+        assertThat(actual).isSameAs(large);
+        verify(storage, times(2)).load("video.mp4");
+    }
+
+    @Test
+    public void testLoadNotFound() throws IOException {
+        // Arrange
+        when(storage.load("image.png")).thenThrow(new FileNotFoundException("image.png"));
+
+        // Act & Assert
+        assertThrows(FileNotFoundException.class, () -> target.load("image.png"));
+    }
+
+    @Test
+    public void testLoadAfterNotFoundKeepsContentInMemory() throws IOException {
+        // Arrange
+        when(storage.load("image.png"))
+                .thenThrow(new FileNotFoundException("image.png"))
+                .thenReturn(new ByteArrayResource("content".getBytes()));
+        assertThrows(FileNotFoundException.class, () -> target.load("image.png"));
+
+        // Act
+        target.load("image.png");
+        Resource actual = target.load("image.png");
+
+        // Assert
+        assertThat(actual).isInstanceOf(OffHeapResource.class);
+        assertThat(read(actual)).isEqualTo("content");
+        verify(storage, times(2)).load("image.png");
+    }
+
+    @Test
+    public void testConcurrentMissesShareLoad() throws Exception {
+        // Arrange
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(storage.load("image.png")).thenAnswer(invocation -> {
+            loading.countDown();
+            release.await();
+            return new ByteArrayResource("content".getBytes());
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        // Act
+        try {
+            Future<String> leader = executor.submit(() -> read(target.load("image.png")));
+            loading.await();
+            List<Future<String>> followers = IntStream.range(0, 3)
+                    .mapToObj(i -> executor.submit(() -> read(target.load("image.png"))))
+                    .collect(Collectors.toList());
+            // let the followers join the load; any that come late find the cached copy instead
+            Thread.sleep(100);
+            release.countDown();
+            assertThat(leader.get()).isEqualTo("content");
+            for (Future<String> follower : followers) {
+                assertThat(follower.get()).isEqualTo("content");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Assert
+        verify(storage, times(1)).load("image.png");
+    }
+
+    @Test
+    public void testSaveInvalidates() throws IOException {
+        // Arrange
+        when(storage.load("image.png"))
+                .thenReturn(new ByteArrayResource("old".getBytes()))
+                .thenReturn(new ByteArrayResource("new".getBytes()));
+        target.load("image.png");
+
+        // Act
+        target.save("image.png", new ByteArrayInputStream("new".getBytes()), "image/png");
+
+        // Assert
+        verify(storage).save(eq("image.png"), any(InputStream.class), eq("image/png"));
+        assertThat(read(target.load("image.png"))).isEqualTo("new");
+    }
+
+    @Test
+    public void testSaveFileInvalidates() throws IOException {
+        // Arrange
+        when(storage.load("image.png"))
+                .thenReturn(new ByteArrayResource("old".getBytes()))
+                .thenReturn(new ByteArrayResource("new".getBytes()));
+        target.load("image.png");
+        File file = new File("image.png");
+
+        // Act
+        target.save("image.png", file, "image/png");
+
+        // Assert
+        verify(storage).save("image.png", file, "image/png");
+        assertThat(read(target.load("image.png"))).isEqualTo("new");
+    }
+
+    @Test
+    public void testDeleteInvalidates() throws IOException {
+        // Arrange
+        when(storage.load("image.png"))
+                .thenReturn(new ByteArrayResource("content".getBytes()))
+                .thenThrow(new FileNotFoundException("image.png"));
+        target.load("image.png");
+
+        // Act
+        target.delete("image.png");
+
+        // Assert
+        verify(storage).delete("image.png");
+        assertThrows(FileNotFoundException.class, () -> target.load("image.png"));
+    }
+
+    @Test
+    public void testDeleteAllInvalidates() throws IOException {
+        // Arrange
+        when(storage.load("image.png"))
+                .thenReturn(new ByteArrayResource("content".getBytes()))
+                .thenThrow(new FileNotFoundException("image.png"));
+        when(storage.deleteAll(List.of("image.png"))).thenReturn(Set.of());
+        target.load("image.png");
+
+        // Act
+        Set<String> actual = target.deleteAll(List.of("image.png"));
+
+        // Assert
+        assertThat(actual).isEmpty();
+        assertThrows(FileNotFoundException.class, () -> target.load("image.png"));
+    }
+
+    @Test
+    public void testEvictedWhileServedFallsBackToStorage() throws IOException {
+        // Arrange
+        when(storage.load("image.png"))
+                .thenReturn(new ByteArrayResource("content".getBytes()))
+                .thenReturn(new ByteArrayResource("reloaded".getBytes()));
+        Resource served = target.load("image.png");
+
+        // Act
+        target.delete("image.png");
+
+        // Assert
+        assertThat(read(served)).isEqualTo("reloaded");
+    }
+
+    @Test
+    public void testEvictedBeforeServedTakesLengthFromStorage() throws IOException {
+        // Arrange
+        when(storage.load("image.png"))
+                .thenReturn(new ByteArrayResource("content".getBytes()))
+                .thenReturn(new ByteArrayResource("reloaded".getBytes()));
+        Resource served = target.load("image.png");
+        target.delete("image.png");
+
+        // Act
+        long length = served.contentLength();
+        String content = read(served);
+
+        // Assert
+        assertThat(length).isEqualTo(8);
+        assertThat(content).isEqualTo("reloaded");
+        assertThat(read(served)).isEqualTo("reloaded");
+        verify(storage, times(2)).load("image.png");
+    }
+
+    @Test
+    public void testEvictedAfterLengthReportedFailsOnChangedContent() throws IOException {
+        // Arrange
+        when(storage.load("image.png"))
+                .thenReturn(new ByteArrayResource("content".getBytes()))
+                .thenReturn(new ByteArrayResource("reloaded".getBytes()));
+        Resource served = target.load("image.png");
+        long length = served.contentLength();
+
+        // Act
+        target.delete("image.png");
+
+        // Assert
+        assertThat(length).isEqualTo(7);
+        assertThrows(IOException.class, () -> read(served));
+    }
+
+    @Test
+    public void testSaveWhileLoadingDoesNotKeepStaleContent() throws IOException {
+        // Arrange
+        when(storage.load("image.png"))
+                .thenAnswer(invocation -> {
+                    target.save("image.png", new ByteArrayInputStream("new".getBytes()), "image/png");
+                    return new ByteArrayResource("old".getBytes());
+                })
+                .thenReturn(new ByteArrayResource("new".getBytes()));
+
+        // Act
+        target.load("image.png");
+
+        // Assert
+        assertThat(read(target.load("image.png"))).isEqualTo("new");
+    }
+
+    private static String read(Resource resource) throws IOException {
+        try (InputStream content = resource.getInputStream()) {
+            return new String(content.readAllBytes());
+        }
+    }
+}
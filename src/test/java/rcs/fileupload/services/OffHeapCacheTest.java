@@ -0,0 +1,128 @@
+package rcs.fileupload.services;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertThrows;
+
+public class OffHeapCacheTest {
+
+    private MeterRegistry meterRegistry;
+    private OffHeapCache target;
+
+    @Before
+    public void setup() {
+        meterRegistry = new SimpleMeterRegistry();
+        target = new OffHeapCache(64 * OffHeapCache.pageSize, 2 * OffHeapCache.pageSize, meterRegistry);
+    }
+
+    @Test
+    public void testPutAndGet() throws IOException {
+        // Arrange
+        byte[] content = content(OffHeapCache.pageSize + 100);
+
+        // Act
+        boolean cached = target.put("image.png", new ByteArrayInputStream(content), content.length);
+        Optional<OffHeapCache.Entry> actual = target.get("image.png");
+
+        // Assert
+        assertThat(cached).isTrue();
+        assertThat(actual).isPresent();
+        assertThat(actual.get().getLength()).isEqualTo(content.length);
+        assertThat(read(actual.get())).isEqualTo(content);
+        assertThat(actual.get().getBuffers()[0].isDirect()).isTrue();
+        assertThat(actual.get().getBuffers()[0].isReadOnly()).isTrue();
+        actual.get().release();
+    }
+
+    @Test
+    public void testGetMissing() {
+        // Act & Assert
+        assertThat(target.get("image.png")).isEmpty();
+    }
+
+    @Test
+    public void testPutTooLarge() throws IOException {
+        // Arrange
+        byte[] content = content(2 * OffHeapCache.pageSize + 1);
+
+        // Act
+        boolean cached = target.put("image.png", new ByteArrayInputStream(content), content.length);
+
+        // Assert
+        assertThat(cached).isFalse();
+        assertThat(target.get("image.png")).isEmpty();
+        assertThat(target.getAllocated()).isZero();
+    }
+
+    @Test
+    public void testPutShortContent() {
+        // Act & Assert
+        assertThrows(IOException.class, () -> target.put("image.png", new ByteArrayInputStream(content(10)), 20));
+        assertThat(target.get("image.png")).isEmpty();
+    }
+
+    @Test
+    public void testInvalidateKeepsPagesOfReaders() throws IOException {
+        // Arrange
+        byte[] content = content(100);
+        target.put("image.png", new ByteArrayInputStream(content), content.length);
+        OffHeapCache.Entry reading = target.get("image.png").get();
+
+        // Act
+        target.invalidate("image.png");
+        // would reuse the page of the invalidated entry if it had been freed
+        target.put("other.png", new ByteArrayInputStream(content(100, (byte) 7)), 100);
+
+        // Assert
+        assertThat(target.get("image.png")).isEmpty();
+        assertThat(read(reading)).isEqualTo(content);
+        reading.release();
+        assertThat(reading.retain()).isFalse();
+    }
+
+    @Test
+    public void testMemoryIsBounded() throws IOException {
+        // Act
+        for (int i = 0; i < 1000; i++) {
+            target.put("image" + i + ".png", new ByteArrayInputStream(content(100)), 100);
+        }
+
+        // Assert
+        assertThat(target.getAllocated()).isLessThanOrEqualTo(66 * OffHeapCache.pageSize);
+        assertThat(meterRegistry.get("fileupload.storage.memory.allocated").gauge().value())
+                .isEqualTo(target.getAllocated());
+        assertThat(meterRegistry.get("cache.evictions").functionCounter().count()).isGreaterThan(0);
+    }
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) i;
+        }
+        return content;
+    }
+
+    private static byte[] content(int length, byte value) {
+        byte[] content = new byte[length];
+        Arrays.fill(content, value);
+        return content;
+    }
+
+    private static byte[] read(OffHeapCache.Entry entry) {
+        ByteBuffer content = ByteBuffer.allocate(entry.getLength());
+        for (ByteBuffer buffer : entry.getBuffers()) {
+            content.put(buffer);
+        }
+        return content.array();
+    }
+}
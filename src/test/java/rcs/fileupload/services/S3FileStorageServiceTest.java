@@ -1,20 +1,40 @@
 package rcs.fileupload.services;
 
+import com.amazonaws.HttpMethod;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import rcs.fileupload.services.exceptions.FileNotFoundException;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.springframework.core.io.Resource;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
-import org.springframework.web.multipart.MultipartFile;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.assertThrows;
@@ -37,26 +57,65 @@ public class S3FileStorageServiceTest {
     @Test
     public void testSave() throws IOException {
         // Arrange
-        MultipartFile file = mock(MultipartFile.class);
         String filename = "filename";
-        InputStream mockInputStream = mock(InputStream.class);
+        InputStream content = new ByteArrayInputStream(new byte[1024]);
 
-        when(file.getOriginalFilename()).thenReturn(filename);
-        when(file.getInputStream()).thenReturn(mockInputStream);
+        ArgumentCaptor<PutObjectRequest> captor = ArgumentCaptor.forClass(PutObjectRequest.class);
+        when(s3client.putObject(captor.capture())).thenAnswer(invocation -> {
+            // the content is staged to a file of known length
+            assertThat(captor.getValue().getFile()).hasSize(1024);
+            return null;
+        });
 
         // Act
-        target.save(file);
+        target.save(filename, content, "image/png");
 
         // Assert
-        ArgumentCaptor<PutObjectRequest> captor = ArgumentCaptor.forClass(PutObjectRequest.class);
-
-        verify(s3client).putObject(captor.capture());
-
         PutObjectRequest value = captor.getValue();
         assertThat(value.getBucketName()).isEqualTo(bucket);
         assertThat(value.getKey()).isEqualTo(filename);
-        assertThat(value.getInputStream()).isEqualTo(mockInputStream);
-        assertThat(value.getMetadata()).isEqualTo(S3FileStorageService.defaultObjectMetadata);
+        assertThat(value.getMetadata().getContentLength()).isEqualTo(1024L);
+        assertThat(value.getMetadata().getContentType()).isEqualTo("image/png");
+        assertThat(value.getCannedAcl()).isEqualTo(CannedAccessControlList.PublicRead);
+
+        // staged copy is cleaned up
+        assertThat(value.getFile()).doesNotExist();
+    }
+
+    @Test
+    public void testSaveCompleteFile() throws IOException {
+        testSaveCompleteFile(false);
+    }
+
+    @Test
+    public void testSaveCompleteFileAboveMultipartThreshold() throws IOException {
+        testSaveCompleteFile(true);
+    }
+
+    private void testSaveCompleteFile(boolean multipart) throws IOException {
+        // Arrange
+        S3MultipartUploader uploader = mock(S3MultipartUploader.class);
+        target = new S3FileStorageService(s3client, bucket, S3FileStorageService.DownloadMode.stream, null, uploader);
+
+        File content = File.createTempFile("staged", null);
+        content.deleteOnExit();
+        when(uploader.accepts(0)).thenReturn(multipart);
+
+        // Act
+        target.save("filename", content, "video/mp4");
+
+        // Assert
+        ArgumentCaptor<PutObjectRequest> captor = ArgumentCaptor.forClass(PutObjectRequest.class);
+        if (multipart) {
+            verify(uploader).upload(captor.capture());
+        } else {
+            verify(s3client).putObject(captor.capture());
+        }
+
+        PutObjectRequest value = captor.getValue();
+        assertThat(value.getKey()).isEqualTo("filename");
+        assertThat(value.getFile()).isEqualTo(content);
+        assertThat(value.getMetadata().getContentType()).isEqualTo("video/mp4");
         assertThat(value.getCannedAcl()).isEqualTo(CannedAccessControlList.PublicRead);
     }
 
@@ -72,34 +131,203 @@ public class S3FileStorageServiceTest {
         verify(s3client).deleteObject(bucket, filename);
     }
 
+    @Test
+    public void testDeleteAllInBatches() {
+        // Arrange
+        List<String> filenames = IntStream.range(0, 2500).mapToObj(i -> "file" + i).collect(Collectors.toList());
+        MultiObjectDeleteException.DeleteError error = new MultiObjectDeleteException.DeleteError();
+        error.setKey("file1200");
+        ArgumentCaptor<DeleteObjectsRequest> captor = ArgumentCaptor.forClass(DeleteObjectsRequest.class);
+        when(s3client.deleteObjects(captor.capture()))
+                .thenReturn(null)
+                .thenThrow(new MultiObjectDeleteException(List.of(error), List.of()))
+                .thenReturn(null);
+
+        // Act
+        Set<String> actual = target.deleteAll(filenames);
+
+        // Assert
+        assertThat(actual).containsExactly("file1200");
+        assertThat(captor.getAllValues())
+                .extracting(request -> request.getKeys().size())
+                .containsExactly(1000, 1000, 500);
+        assertThat(captor.getAllValues()).allSatisfy(request -> {
+            assertThat(request.getBucketName()).isEqualTo(bucket);
+            assertThat(request.getQuiet()).isTrue();
+        });
+        verify(s3client, never()).deleteObject(anyString(), anyString());
+    }
+
+    @Test
+    public void testDeleteAllWhenRequestFails() {
+        // Arrange
+        when(s3client.deleteObjects(any(DeleteObjectsRequest.class))).thenThrow(new AmazonS3Exception("unavailable"));
+
+        // Act
+        Set<String> actual = target.deleteAll(List.of("a.gif", "b.gif"));
+
+        // Assert
+        assertThat(actual).containsExactlyInAnyOrder("a.gif", "b.gif");
+    }
+
+    @Test
+    public void testListFollowsPages() {
+        // Arrange
+        ObjectListing first = objectListing(true, "a.gif", "b.gif");
+        ObjectListing second = objectListing(false, "c.gif");
+        when(s3client.listObjects(any(ListObjectsRequest.class))).thenReturn(first);
+        when(s3client.listNextBatchOfObjects(first)).thenReturn(second);
+
+        // Act
+        List<String> actual = target.list().map(StoredFile::getName).collect(Collectors.toList());
+
+        // Assert
+        assertThat(actual).containsExactly("a.gif", "b.gif", "c.gif");
+    }
+
     @Test
     public void testLoadHappyPath() throws IOException {
         // Arrange
         String filename = "filename";
-        URL url = new URL("https://www.s3.com/" + bucket + "/" + filename);
-
-        when(s3client.doesObjectExist(bucket, filename)).thenReturn(true);
-        when(s3client.getUrl(bucket, filename)).thenReturn(url);
+        S3Object object = s3Object(filename, "content");
+        when(s3client.getObject(bucket, filename)).thenReturn(object);
 
         // Act
         Resource resource = target.load(filename);
 
         // Assert
-        assertThat(resource.getURL()).isEqualTo(url);
+        assertThat(resource.getFilename()).isEqualTo(filename);
+        assertThat(resource.contentLength()).isEqualTo(7);
+        assertThat(resource.getInputStream().readAllBytes()).isEqualTo("content".getBytes());
+        verify(s3client, times(1)).getObject(bucket, filename);
+        verify(s3client, never()).doesObjectExist(any(), any());
     }
 
     @Test
-    public void testLoadWhenFileDoesNotExist() throws IOException {
+    public void testLoadReopensForSecondRead() throws IOException {
         // Arrange
         String filename = "filename";
-        URL url = new URL("https://www.s3.com/" + bucket + "/" + filename);
+        when(s3client.getObject(bucket, filename)).thenReturn(s3Object(filename, "content"));
+        when(s3client.getObject(any(GetObjectRequest.class))).thenReturn(s3Object(filename, "tent"));
 
-        when(s3client.doesObjectExist(bucket, filename)).thenReturn(false);
-        when(s3client.getUrl(bucket, filename)).thenReturn(url);
+        Resource resource = target.load(filename);
+        resource.getInputStream().close();
+
+        // Act
+        byte[] actual;
+        try (InputStream content = resource.getInputStream()) {
+            content.skip(3);
+            actual = content.readAllBytes();
+        }
+
+        // Assert
+        assertThat(actual).isEqualTo("tent".getBytes());
+        ArgumentCaptor<GetObjectRequest> captor = ArgumentCaptor.forClass(GetObjectRequest.class);
+        verify(s3client).getObject(captor.capture());
+        assertThat(captor.getValue().getKey()).isEqualTo(filename);
+        assertThat(captor.getValue().getRange()[0]).isEqualTo(3);
+    }
+
+    @Test
+    public void testLoadAbortsContentNotRead() throws IOException {
+        // Arrange
+        String filename = "filename";
+        HttpRequestBase get = mock(HttpRequestBase.class);
+        S3Object object = s3Object(filename, "content");
+        object.setObjectContent(new S3ObjectInputStream(new ByteArrayInputStream("content".getBytes()), get));
+        when(s3client.getObject(bucket, filename)).thenReturn(object);
+
+        S3ObjectResource resource = (S3ObjectResource) target.load(filename);
+
+        // Act
+        resource.close();
+
+        // Assert
+        verify(get).abort();
+    }
+
+    @Test
+    public void testLoadAbortsContentPartlyRead() throws IOException {
+        // Arrange
+        String filename = "filename";
+        HttpRequestBase get = mock(HttpRequestBase.class);
+        S3Object object = s3Object(filename, "content");
+        object.setObjectContent(new S3ObjectInputStream(new ByteArrayInputStream("content".getBytes()), get));
+        when(s3client.getObject(bucket, filename)).thenReturn(object);
+
+        S3ObjectResource resource = (S3ObjectResource) target.load(filename);
+
+        // Act
+        try (InputStream content = resource.getInputStream()) {
+            content.read();
+        }
+        resource.close();
+
+        // Assert
+        verify(get, times(1)).abort();
+    }
+
+    @Test
+    public void testLoadWhenFileDoesNotExist() {
+        // Arrange
+        String filename = "filename";
+        AmazonS3Exception notFound = new AmazonS3Exception("Not Found");
+        notFound.setStatusCode(404);
+
+        when(s3client.getObject(bucket, filename)).thenThrow(notFound);
 
         // Act & Assert
         assertThrows(
                 FileNotFoundException.class,
                 () ->  target.load(filename));
     }
+
+    @Test
+    public void testNoRedirectUrlInStreamMode() {
+        // Act
+        Optional<URL> actual = target.getRedirectUrl("filename");
+
+        // Assert
+        assertThat(actual).isEmpty();
+    }
+
+    @Test
+    public void testRedirectUrlInRedirectMode() throws IOException {
+        // Arrange
+        String filename = "filename";
+        URL url = new URL("https://www.s3.com/" + bucket + "/" + filename + "?X-Amz-Signature=signature");
+        target = new S3FileStorageService(
+                s3client, bucket, S3FileStorageService.DownloadMode.redirect, Duration.ofMinutes(5), null);
+
+        when(s3client.generatePresignedUrl(eq(bucket), eq(filename), any(Date.class), eq(HttpMethod.GET)))
+                .thenReturn(url);
+
+        // Act
+        Optional<URL> actual = target.getRedirectUrl(filename);
+
+        // Assert
+        assertThat(actual).contains(url);
+    }
+
+    private static S3Object s3Object(String key, String content) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(content.length());
+        S3Object object = new S3Object();
+        object.setKey(key);
+        object.setObjectMetadata(metadata);
+        object.setObjectContent(new ByteArrayInputStream(content.getBytes()));
+        return object;
+    }
+
+    private static ObjectListing objectListing(boolean truncated, String... keys) {
+        ObjectListing listing = new ObjectListing();
+        listing.setTruncated(truncated);
+        for (String key : keys) {
+            S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setKey(key);
+            summary.setLastModified(new Date());
+            listing.getObjectSummaries().add(summary);
+        }
+        return listing;
+    }
 }
@@ -0,0 +1,74 @@
+package rcs.fileupload.services;
+
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.Upload;
+import junitparams.JUnitParamsRunner;
+import junitparams.Parameters;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.*;
+
+@RunWith(JUnitParamsRunner.class)
+public class S3MultipartUploaderTest {
+
+    private TransferManager transferManager;
+    private S3MultipartUploader target;
+
+    @Before
+    public void setup() {
+        transferManager = mock(TransferManager.class);
+        target = new S3MultipartUploader(transferManager, 1000, 1);
+    }
+
+    @Test
+    @Parameters({
+            "999 | false",
+            "1000 | true",
+            "5000 | true"
+    })
+    public void testAccepts(long contentLength, boolean expected) {
+        // Act
+        boolean actual = target.accepts(contentLength);
+
+        // Assert
+        assertThat(actual).isEqualTo(expected);
+    }
+
+    @Test
+    public void testUploadWaitsForCompletion() throws Exception {
+        // Arrange
+        PutObjectRequest request = new PutObjectRequest("bucket", "key", new File("staged"));
+        Upload upload = mock(Upload.class);
+        when(transferManager.upload(request)).thenReturn(upload);
+
+        // Act
+        target.upload(request);
+        target.upload(request); // the permit was released
+
+        // Assert
+        verify(upload, times(2)).waitForCompletion();
+    }
+
+    @Test
+    public void testUploadInterrupted() throws Exception {
+        // Arrange
+        PutObjectRequest request = new PutObjectRequest("bucket", "key", new File("staged"));
+        Upload upload = mock(Upload.class);
+        when(transferManager.upload(request)).thenReturn(upload);
+        doThrow(InterruptedException.class).when(upload).waitForCompletion();
+
+        // Act & Assert
+        assertThrows(
+                InterruptedIOException.class,
+                () -> target.upload(request));
+        assertThat(Thread.interrupted()).isTrue();
+    }
+}
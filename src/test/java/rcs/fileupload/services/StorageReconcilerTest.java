@@ -0,0 +1,229 @@
+package rcs.fileupload.services;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import rcs.fileupload.models.BlobRecord;
+import rcs.fileupload.models.FileUploadRecord;
+import rcs.fileupload.repositories.BlobRecordsRepository;
+import rcs.fileupload.repositories.FileUploadRecordsRepository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+public class StorageReconcilerTest {
+
+    private FileUploadRecordsRepository repository;
+    private BlobRecordsRepository blobRepository;
+    private BlobStore blobStore;
+    private FileStorageService storage;
+    private UploadStaging staging;
+    private ImageVariantService imageVariantService;
+    private MeterRegistry meterRegistry;
+    private StorageReconciler target;
+
+    @Before
+    public void setup() {
+        repository = mock(FileUploadRecordsRepository.class);
+        blobRepository = mock(BlobRecordsRepository.class);
+        blobStore = mock(BlobStore.class);
+        storage = mock(FileStorageService.class);
+        staging = mock(UploadStaging.class);
+        imageVariantService = mock(ImageVariantService.class);
+        meterRegistry = new SimpleMeterRegistry();
+        target = new StorageReconciler(
+                repository, blobRepository, blobStore, storage, staging, imageVariantService, meterRegistry, Duration.ofHours(1), Duration.ofHours(24), Duration.ofHours(1));
+    }
+
+    @After
+    public void teardown() {
+        target.shutdown();
+    }
+
+    @Test
+    public void testExpireStalePending() throws IOException {
+        // Arrange
+        FileUploadRecord stale = record("stale.png");
+        FileUploadRecord finishedMeanwhile = record("finished.png");
+        when(repository.streamStalePending(any(), any())).thenReturn(Stream.of(stale, finishedMeanwhile));
+        when(repository.expirePending(stale)).thenReturn(true);
+        when(repository.expirePending(finishedMeanwhile)).thenReturn(false);
+
+        // Act
+        target.expireStalePending();
+
+        // Assert
+        verifyStaleCutoffs();
+        verify(staging, times(1)).delete(anyString());
+        assertThat(meterRegistry.counter("fileupload.reconciler.expired").count()).isEqualTo(1);
+    }
+
+    @Test
+    public void testDeleteOrphansInPages() throws IOException {
+        // Arrange
+        Instant old = Instant.now().minus(Duration.ofDays(1));
+        List<StoredFile> stored = IntStream.range(0, 1500)
+                .mapToObj(i -> new StoredFile("file" + i, old))
+                .collect(Collectors.toList());
+        stored.add(new StoredFile("just-written", Instant.now()));
+        when(storage.list()).thenReturn(stored.stream());
+
+        // every name is live except file7 and file1234
+        when(repository.findLiveNames(anyCollection())).thenAnswer(invocation -> {
+            List<String> names = List.copyOf(invocation.getArgument(0));
+            return names.stream()
+                    .filter(name -> !Set.of("file7", "file1234").contains(name))
+                    .collect(Collectors.toSet());
+        });
+
+        // Act
+        target.deleteOrphans();
+
+        // Assert
+        // one lookup per page, and one right before each delete
+        verify(repository, times(4)).findLiveNames(anyCollection());
+        verify(storage).delete("file7");
+        verify(storage).delete("file1234");
+        verify(storage, never()).delete("just-written");
+        verify(storage, times(2)).delete(anyString());
+        assertThat(meterRegistry.counter("fileupload.reconciler.orphans").count()).isEqualTo(2);
+    }
+
+    @Test
+    public void testDeleteOrphansKeepsVariantsOfLiveUploads() throws IOException {
+        // Arrange
+        Instant old = Instant.now().minus(Duration.ofDays(1));
+        when(storage.list()).thenReturn(Stream.of(
+                new StoredFile("live.png", old),
+                new StoredFile("live.png~thumbnail", old),
+                new StoredFile("deleted.png~thumbnail", old)));
+        when(imageVariantService.getOriginalName(anyString())).thenReturn(Optional.empty());
+        when(imageVariantService.getOriginalName("live.png~thumbnail")).thenReturn(Optional.of("live.png"));
+        when(imageVariantService.getOriginalName("deleted.png~thumbnail")).thenReturn(Optional.of("deleted.png"));
+        when(repository.findLiveNames(Set.of("live.png", "deleted.png"))).thenReturn(Set.of("live.png"));
+
+        // Act
+        target.deleteOrphans();
+
+        // Assert
+        verify(storage).delete("deleted.png~thumbnail");
+        verify(storage, times(1)).delete(anyString());
+    }
+
+    @Test
+    public void testDeleteOrphansKeepsFilesOfNamesClaimedDuringThePass() throws IOException {
+        // Arrange
+        Instant old = Instant.now().minus(Duration.ofDays(1));
+        when(storage.list()).thenReturn(Stream.of(new StoredFile("image.png", old)));
+        when(imageVariantService.getOriginalName(anyString())).thenReturn(Optional.empty());
+        when(repository.findLiveNames(Set.of("image.png"))).thenReturn(Set.of(), Set.of("image.png"));
+
+        // Act
+        target.deleteOrphans();
+
+        // Assert
+        verify(repository, times(2)).findLiveNames(Set.of("image.png"));
+        verify(storage, never()).delete(anyString());
+        assertThat(meterRegistry.counter("fileupload.reconciler.orphans").count()).isEqualTo(0);
+    }
+
+    @Test
+    public void testDeleteOrphansDeletesUnreferencedBlobs() throws IOException {
+        // Arrange
+        String referenced = "a".repeat(64);
+        String unreferenced = "b".repeat(64);
+        String interrupted = "c".repeat(64);
+        Instant old = Instant.now().minus(Duration.ofDays(1));
+        when(storage.list()).thenReturn(Stream.of(
+                new StoredFile(BlobStore.getKey(referenced), old),
+                new StoredFile(BlobStore.getKey(unreferenced), old)));
+        when(blobRepository.findReferenced(List.of(referenced, unreferenced))).thenReturn(Set.of(referenced));
+        when(blobRepository.findStaleDeleting(any()))
+                .thenReturn(List.of(new BlobRecord(interrupted, 10L, 0, BlobRecord.BlobStatus.deleting, null)));
+        when(blobStore.deleteUnreferenced(anyString(), any())).thenReturn(true);
+
+        // Act
+        target.deleteOrphans();
+
+        // Assert
+        verify(blobRepository).findStaleDeleting(argThat(cutoff -> isAbout(cutoff, LocalDateTime.now().minusHours(1))));
+        verify(blobStore).deleteUnreferenced(eq(unreferenced), argThat(cutoff -> isAbout(cutoff, LocalDateTime.now().minusHours(1))));
+        verify(blobStore).deleteUnreferenced(eq(interrupted), any());
+        verify(blobStore, times(2)).deleteUnreferenced(anyString(), any());
+        verify(storage, never()).delete(anyString());
+        assertThat(meterRegistry.counter("fileupload.reconciler.orphans").count()).isEqualTo(2);
+    }
+
+    @Test
+    public void testDeleteOrphansDropsLeakedBlobReferences() throws IOException {
+        // Arrange
+        String inUse = "a".repeat(64);
+        String leaked = "b".repeat(64);
+        String acquiredMeanwhile = "c".repeat(64);
+        LocalDateTime modified = LocalDateTime.now().minusDays(1);
+        Instant old = Instant.now().minus(Duration.ofDays(1));
+        when(storage.list()).thenReturn(Stream.of(inUse, leaked, acquiredMeanwhile)
+                .map(hash -> new StoredFile(BlobStore.getKey(hash), old)));
+        when(blobRepository.findReferenced(any())).thenReturn(Set.of(inUse, leaked, acquiredMeanwhile));
+        when(blobRepository.findStaleReferenced(any(), any())).thenReturn(Stream.of(inUse, leaked, acquiredMeanwhile)
+                .map(hash -> new BlobRecord(hash, 10L, 1, BlobRecord.BlobStatus.stored, modified))
+                .collect(Collectors.toList()));
+        when(repository.findBlobsInUse(any())).thenReturn(Set.of(BlobStore.getKey(inUse)));
+        when(blobRepository.markUnreferenced(leaked, modified)).thenReturn(true);
+        when(blobRepository.markUnreferenced(acquiredMeanwhile, modified)).thenReturn(false);
+        when(blobStore.deleteUnreferenced(anyString(), any())).thenReturn(true);
+
+        // Act
+        target.deleteOrphans();
+
+        // Assert
+        verify(blobRepository).findStaleReferenced(any(), argThat(cutoff -> isAbout(cutoff, LocalDateTime.now().minusHours(1))));
+        verify(blobRepository, never()).markUnreferenced(eq(inUse), any());
+        verify(blobStore).deleteUnreferenced(eq(leaked), any());
+        verify(blobStore, times(1)).deleteUnreferenced(anyString(), any());
+    }
+
+    @Test
+    public void testReconcileKeepsGoingWhenAPassFails() throws IOException {
+        // Arrange
+        when(storage.list()).thenThrow(IOException.class);
+        when(repository.streamStalePending(any(), any())).thenReturn(Stream.of(record("stale.png")));
+        when(repository.expirePending(any())).thenReturn(true);
+
+        // Act
+        target.reconcile();
+
+        // Assert
+        verify(staging).delete("stale.png");
+        assertThat(meterRegistry.counter("fileupload.reconciler.failures").count()).isEqualTo(1);
+        assertThat(meterRegistry.timer("fileupload.reconciler.duration", "pass", "orphans").count()).isEqualTo(1);
+        assertThat(meterRegistry.timer("fileupload.reconciler.duration", "pass", "pending").count()).isEqualTo(1);
+    }
+
+    private void verifyStaleCutoffs() {
+        verify(repository).streamStalePending(
+                argThat(cutoff -> isAbout(cutoff, LocalDateTime.now().minusHours(1))),
+                argThat(cutoff -> isAbout(cutoff, LocalDateTime.now().minusHours(24))));
+    }
+
+    private static boolean isAbout(LocalDateTime actual, LocalDateTime expected) {
+        return Duration.between(actual, expected).abs().compareTo(Duration.ofMinutes(1)) < 0;
+    }
+
+    private static FileUploadRecord record(String name) {
+        return new FileUploadRecord(name, "image/png", "username", LocalDateTime.now().minusDays(1), FileUploadRecord.UploadStatus.pending, null);
+    }
+}
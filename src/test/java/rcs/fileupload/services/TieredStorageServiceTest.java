@@ -0,0 +1,254 @@
+package rcs.fileupload.services;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import rcs.fileupload.services.exceptions.FileNotFoundException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.*;
+
+public class TieredStorageServiceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileStorageService remote;
+    private MeterRegistry meterRegistry;
+    private TieredStorageService target;
+
+    @Before
+    public void setup() throws IOException {
+        remote = mock(FileStorageService.class);
+        meterRegistry = new SimpleMeterRegistry();
+        target = newTarget(1024 * 1024, 1024, false);
+    }
+
+    @After
+    public void teardown() {
+        target.close();
+    }
+
+    @Test
+    public void testLoadKeepsLocalCopy() throws IOException {
+        // Arrange
+        when(remote.load("image.png")).thenReturn(new ByteArrayResource("content".getBytes()));
+
+        // Act
+        String first = read(target.load("image.png"));
+        Resource second = target.load("image.png");
+
+        // Assert
+        assertThat(first).isEqualTo("content");
+        assertThat(read(second)).isEqualTo("content");
+        assertThat(second.isFile()).isTrue();
+        assertThat(second.getFilename()).isEqualTo("image.png");
+        verify(remote, times(1)).load("image.png");
+        assertThat(meterRegistry.counter("fileupload.storage.served.bytes", "tier", "remote").count()).isEqualTo(7);
+        assertThat(meterRegistry.counter("fileupload.storage.served.bytes", "tier", "local").count()).isEqualTo(7);
+    }
+
+    @Test
+    public void testLoadNotFound() throws IOException {
+        // Arrange
+        when(remote.load("image.png")).thenThrow(new FileNotFoundException("image.png"));
+
+        // Act & Assert
+        assertThrows(FileNotFoundException.class, () -> target.load("image.png"));
+        assertThrows(FileNotFoundException.class, () -> target.load("image.png"));
+        verify(remote, times(2)).load("image.png");
+    }
+
+    @Test
+    public void testLoadStreamsLargeObjects() throws IOException {
+        // Arrange
+        ByteArrayResource large = new ByteArrayResource(new byte[2048]);
+        when(remote.load("video.mp4")).thenReturn(large);
+
+        // Act
+        Resource actual = target.load("video.mp4");
+        target.load("video.mp4");
+
+        // Assert
+        assertThat(actual.contentLength()).isEqualTo(2048);
+        assertThat(actual.isFile()).isFalse();
+        assertThat(read(actual)).hasSize(2048);
+        verify(remote, times(2)).load("video.mp4");
+        assertThat(meterRegistry.counter("fileupload.storage.served.bytes", "tier", "remote").count()).isEqualTo(2048);
+    }
+
+    @Test
+    public void testLoadCountsOnlyBytesRead() throws IOException {
+        // Arrange
+        when(remote.load("image.png")).thenReturn(new ByteArrayResource("content".getBytes()));
+        target.load("image.png");
+
+        // Act
+        target.load("image.png");
+        try (InputStream content = target.load("image.png").getInputStream()) {
+            content.skip(3);
+            content.read(new byte[2]);
+        }
+
+        // Assert
+        assertThat(meterRegistry.counter("fileupload.storage.served.bytes", "tier", "remote").count()).isEqualTo(0);
+        assertThat(meterRegistry.counter("fileupload.storage.served.bytes", "tier", "local").count()).isEqualTo(2);
+    }
+
+    @Test
+    public void testConcurrentMissesShareDownload() throws Exception {
+        // Arrange
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(remote.load("image.png")).thenAnswer(invocation -> {
+            loading.countDown();
+            release.await();
+            return new ByteArrayResource("content".getBytes());
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        // Act
+        List<Future<String>> results;
+        try {
+            Future<String> leader = executor.submit(() -> read(target.load("image.png")));
+            loading.await();
+            List<Future<String>> followers = IntStream.range(0, 3)
+                    .mapToObj(i -> executor.submit(() -> read(target.load("image.png"))))
+                    .collect(Collectors.toList());
+            // let the followers join the download; any that come late find the local copy instead
+            Thread.sleep(100);
+            release.countDown();
+            results = List.of(leader, followers.get(0), followers.get(1), followers.get(2));
+            for (Future<String> result : results) {
+                assertThat(result.get()).isEqualTo("content");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Assert
+        verify(remote, times(1)).load("image.png");
+    }
+
+    @Test
+    public void testSaveWritesThroughWithoutKeepingLocalCopy() throws IOException {
+        // Arrange
+        File content = folder.newFile("upload");
+        Files.writeString(content.toPath(), "content");
+        when(remote.load("image.png")).thenReturn(new ByteArrayResource("content".getBytes()));
+
+        // Act
+        target.save("image.png", new ByteArrayInputStream("content".getBytes()), "image/png");
+        target.save("video.mp4", content, "video/mp4");
+
+        // Assert
+        verify(remote).save(eq("image.png"), any(File.class), eq("image/png"));
+        verify(remote).save("video.mp4", content, "video/mp4");
+        assertThat(folder.getRoot().list()).containsExactly("upload");
+        assertThat(read(target.load("image.png"))).isEqualTo("content");
+        verify(remote).load("image.png");
+    }
+
+    @Test
+    public void testSaveWritesThroughAndKeepsLocalCopy() throws IOException {
+        // Arrange
+        target.close();
+        target = newTarget(1024 * 1024, 1024, true);
+
+        // Act
+        target.save("image.png", new ByteArrayInputStream("content".getBytes()), "image/png");
+
+        // Assert
+        verify(remote).save(eq("image.png"), any(File.class), eq("image/png"));
+        assertThat(read(target.load("image.png"))).isEqualTo("content");
+        verify(remote, never()).load(anyString());
+    }
+
+    @Test
+    public void testSaveFailureKeepsNothing() throws IOException {
+        // Arrange
+        doThrow(IOException.class).when(remote).save(eq("image.png"), any(File.class), eq("image/png"));
+        when(remote.load("image.png")).thenThrow(new FileNotFoundException("image.png"));
+
+        // Act & Assert
+        assertThrows(
+                IOException.class,
+                () -> target.save("image.png", new ByteArrayInputStream("content".getBytes()), "image/png"));
+        assertThrows(FileNotFoundException.class, () -> target.load("image.png"));
+        assertThat(folder.getRoot().listFiles()).isEmpty();
+    }
+
+    @Test
+    public void testDeleteDropsLocalCopy() throws IOException {
+        // Arrange
+        target.close();
+        target = newTarget(1024 * 1024, 1024, true);
+        target.save("image.png", new ByteArrayInputStream("content".getBytes()), "image/png");
+        when(remote.load("image.png")).thenThrow(new FileNotFoundException("image.png"));
+
+        // Act
+        target.delete("image.png");
+
+        // Assert
+        verify(remote).delete("image.png");
+        assertThrows(FileNotFoundException.class, () -> target.load("image.png"));
+    }
+
+    @Test
+    public void testFrequentlyReadObjectsSurviveOneOffReads() throws IOException {
+        // Arrange
+        target.close();
+        meterRegistry = new SimpleMeterRegistry();
+        target = newTarget(16 * 1024, 1024, false);
+        when(remote.load(anyString())).thenAnswer(invocation -> new ByteArrayResource(new byte[1024]));
+        // access frequencies are only tracked once the cache has filled up
+        for (int i = 0; i < 16; i++) {
+            target.load("warmup" + i + ".png");
+        }
+        for (int i = 0; i < 10; i++) {
+            target.load("hot.png");
+        }
+
+        // Act
+        for (int i = 0; i < 200; i++) {
+            target.load("cold" + i + ".png");
+        }
+        target.load("hot.png");
+
+        // Assert
+        verify(remote, times(1)).load("hot.png");
+        assertThat(meterRegistry.get("cache.evictions").functionCounter().count()).isGreaterThan(0);
+    }
+
+    private TieredStorageService newTarget(long maxSize, long maxObjectSize, boolean keepOnWrite) throws IOException {
+        return new TieredStorageService(
+                remote, folder.getRoot().toPath(), maxSize, maxObjectSize, keepOnWrite, Duration.ZERO, meterRegistry);
+    }
+
+    private static String read(Resource resource) throws IOException {
+        try (InputStream content = resource.getInputStream()) {
+            return new String(content.readAllBytes());
+        }
+    }
+}
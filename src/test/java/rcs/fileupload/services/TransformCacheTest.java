@@ -0,0 +1,101 @@
+package rcs.fileupload.services;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TransformCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPutAndOpen() throws IOException {
+        // Arrange
+        TransformCache target = new TransformCache(folder.getRoot().toPath(), 100);
+
+        // Act
+        target.put("a", "content".getBytes());
+
+        // Assert
+        assertThat(read(target.open("a"))).isEqualTo("content");
+        assertThat(target.open("b")).isEmpty();
+        assertThat(target.size()).isEqualTo(7);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws IOException {
+        // Arrange
+        TransformCache target = new TransformCache(folder.getRoot().toPath(), 10);
+        target.put("a", "aaaa".getBytes());
+        target.put("b", "bbbb".getBytes());
+        target.open("a").get().close();
+
+        // Act
+        target.put("c", "cccc".getBytes());
+
+        // Assert
+        assertThat(target.open("b")).isEmpty();
+        assertThat(read(target.open("a"))).isEqualTo("aaaa");
+        assertThat(read(target.open("c"))).isEqualTo("cccc");
+        assertThat(target.size()).isEqualTo(8);
+        try (var files = Files.list(folder.getRoot().toPath())) {
+            assertThat(files.count()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    public void testOpenedEntryStaysReadableAfterEviction() throws IOException {
+        // Arrange
+        TransformCache target = new TransformCache(folder.getRoot().toPath(), 4);
+        target.put("a", "aaaa".getBytes());
+
+        // Act
+        try (InputStream opened = target.open("a").get()) {
+            target.put("b", "bbbb".getBytes());
+
+            // Assert
+            assertThat(target.open("a")).isEmpty();
+            assertThat(new String(opened.readAllBytes())).isEqualTo("aaaa");
+        }
+    }
+
+    @Test
+    public void testSkipsContentLargerThanTheCache() throws IOException {
+        // Arrange
+        TransformCache target = new TransformCache(folder.getRoot().toPath(), 4);
+
+        // Act
+        target.put("a", "too large".getBytes());
+
+        // Assert
+        assertThat(target.open("a")).isEmpty();
+        assertThat(target.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testClearsLeftoversOnStartup() throws IOException {
+        // Arrange
+        Path leftover = folder.newFile("leftover").toPath();
+
+        // Act
+        new TransformCache(folder.getRoot().toPath(), 4);
+
+        // Assert
+        assertThat(leftover).doesNotExist();
+    }
+
+    private static String read(Optional<InputStream> content) throws IOException {
+        try (InputStream opened = content.get()) {
+            return new String(opened.readAllBytes());
+        }
+    }
+}
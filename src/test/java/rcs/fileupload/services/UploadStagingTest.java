@@ -0,0 +1,119 @@
+package rcs.fileupload.services;
+
+import rcs.fileupload.services.exceptions.UploadOffsetConflictException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertThrows;
+
+public class UploadStagingTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private UploadStaging target;
+
+    @Before
+    public void setup() {
+        target = new UploadStaging(folder.getRoot().toPath().resolve("uploads"), 100);
+    }
+
+    @Test
+    public void testAppendChunks() throws IOException {
+        // Arrange
+        target.create("../video.mp4");
+
+        // Act
+        long first = target.append("../video.mp4", 0, new ByteArrayInputStream("cont".getBytes()), 4);
+        long second = target.append("../video.mp4", 4, new ByteArrayInputStream("ent".getBytes()), 3);
+
+        // Assert
+        assertThat(first).isEqualTo(4);
+        assertThat(second).isEqualTo(3);
+        assertThat(target.length("../video.mp4")).isEqualTo(7);
+        assertThat(target.get("../video.mp4").getParentFile()).isEqualTo(folder.getRoot().toPath().resolve("uploads").toFile());
+        assertThat(Files.readString(target.get("../video.mp4").toPath())).isEqualTo("content");
+    }
+
+    @Test
+    public void testAppendReadsAtMostMaxLength() throws IOException {
+        // Arrange
+        target.create("video.mp4");
+
+        // Act
+        long actual = target.append("video.mp4", 0, new ByteArrayInputStream("content".getBytes()), 4);
+
+        // Assert
+        assertThat(actual).isEqualTo(4);
+        assertThat(Files.readString(target.get("video.mp4").toPath())).isEqualTo("cont");
+    }
+
+    @Test
+    public void testAppendAtWrongOffset() throws IOException {
+        // Arrange
+        target.create("video.mp4");
+        target.append("video.mp4", 0, new ByteArrayInputStream("cont".getBytes()), 4);
+
+        // Act & Assert
+        assertThrows(
+                UploadOffsetConflictException.class,
+                () -> target.append("video.mp4", 0, new ByteArrayInputStream("cont".getBytes()), 4));
+        assertThat(target.length("video.mp4")).isEqualTo(4);
+    }
+
+    @Test
+    public void testAppendKeepsBytesReceivedBeforeConnectionDropped() throws IOException {
+        // Arrange
+        target.create("video.mp4");
+        InputStream dropped = new InputStream() {
+            private int remaining = 3;
+
+            @Override
+            public int read() throws IOException {
+                if (remaining == 0) {
+                    throw new IOException("connection reset");
+                }
+                remaining--;
+                return 'x';
+            }
+        };
+
+        // Act
+        long actual = target.append("video.mp4", 0, dropped, 10);
+
+        // Assert
+        assertThat(actual).isEqualTo(3);
+        assertThat(target.length("video.mp4")).isEqualTo(3);
+    }
+
+    @Test
+    public void testStage() throws IOException {
+        // Act
+        target.stage("video.mp4", new ByteArrayInputStream("content".getBytes()));
+        target.stage("video.mp4", new ByteArrayInputStream("new content".getBytes()));
+
+        // Assert
+        assertThat(Files.readString(target.get("video.mp4").toPath())).isEqualTo("new content");
+    }
+
+    @Test
+    public void testDelete() throws IOException {
+        // Arrange
+        target.create("video.mp4");
+
+        // Act
+        target.delete("video.mp4");
+        target.delete("video.mp4");
+
+        // Assert
+        assertThat(target.get("video.mp4")).doesNotExist();
+    }
+}
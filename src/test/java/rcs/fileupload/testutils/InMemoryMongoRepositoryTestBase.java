@@ -1,5 +1,9 @@
 package rcs.fileupload.testutils;
 
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
 import de.bwaldvogel.mongo.MongoServer;
 import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
 import org.junit.After;
@@ -7,24 +11,55 @@ import org.junit.Before;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.SimpleMongoClientDatabaseFactory;
 
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Fails a test that sends a query no index can serve, see {@link QueryPlanVerifier}.
+ * Tests that mean to read a whole collection call {@link #allowCollectionScans()}.
+ */
 public class InMemoryMongoRepositoryTestBase {
 
     private MongoServer server;
+    private MongoClient client;
     private MongoTemplate mongoTemplate;
+    private QueryPlanVerifier queryPlanVerifier;
+    private boolean collectionScansAllowed;
 
     @Before
     public final void setupMongo() {
         server = new MongoServer(new MemoryBackend());
-        String connectionString = server.getLocalAddress().getHostString() + "/test";
-        mongoTemplate = new MongoTemplate(new SimpleMongoClientDatabaseFactory(connectionString));
+        InetSocketAddress address = server.bind();
+        queryPlanVerifier = new QueryPlanVerifier();
+        client = MongoClients.create(MongoClientSettings.builder()
+                .applyConnectionString(new ConnectionString(
+                        "mongodb://" + address.getHostString() + ":" + address.getPort()))
+                .addCommandListener(queryPlanVerifier)
+                .build());
+        mongoTemplate = new MongoTemplate(new SimpleMongoClientDatabaseFactory(client, "test"));
+        collectionScansAllowed = false;
     }
 
     @After
     public void cleanup() {
-        server.shutdown();
+        try {
+            if (!collectionScansAllowed) {
+                List<String> scans = queryPlanVerifier.findCollectionScans(mongoTemplate.getDb());
+                assertThat(scans).as("queries that scan the whole collection").isEmpty();
+            }
+        } finally {
+            client.close();
+            server.shutdown();
+        }
     }
 
     protected MongoTemplate getMongoTemplate() {
         return mongoTemplate;
     }
+
+    protected void allowCollectionScans() {
+        collectionScansAllowed = true;
+    }
 }
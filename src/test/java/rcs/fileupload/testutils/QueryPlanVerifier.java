@@ -0,0 +1,151 @@
+package rcs.fileupload.testutils;
+
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Records the queries sent to the database, and tells which of them no index can serve, i.e. which would
+ * scan the whole collection. The in-memory server has no query planner, so this applies the planner's basic
+ * rule instead: an index is usable if it starts with a field the query filters on, or if its keys start with
+ * the sort. Each branch of an $or must be usable by itself.
+ */
+public class QueryPlanVerifier implements CommandListener {
+
+    private final List<RecordedQuery> queries = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public void commandStarted(CommandStartedEvent event) {
+        BsonDocument command = event.getCommand();
+        String name = event.getCommandName();
+        switch (name) {
+            case "find":
+                record(command, name, command.getDocument("filter", new BsonDocument()), command.getDocument("sort", new BsonDocument()));
+                break;
+            case "count":
+                // without a filter the count is read from the collection metadata, e.g. estimatedDocumentCount
+                if (!command.getDocument("query", new BsonDocument()).isEmpty()) {
+                    record(command, name, command.getDocument("query"), new BsonDocument());
+                }
+                break;
+            case "distinct":
+                record(command, name, command.getDocument("query", new BsonDocument()), new BsonDocument());
+                break;
+            case "findAndModify":
+            case "findandmodify":
+                record(command, name, command.getDocument("query", new BsonDocument()), command.getDocument("sort", new BsonDocument()));
+                break;
+            case "update":
+                command.getArray("updates", new BsonArray()).forEach(update ->
+                        record(command, name, update.asDocument().getDocument("q"), new BsonDocument()));
+                break;
+            case "delete":
+                command.getArray("deletes", new BsonArray()).forEach(delete ->
+                        record(command, name, delete.asDocument().getDocument("q"), new BsonDocument()));
+                break;
+            case "aggregate":
+                command.getArray("pipeline", new BsonArray()).stream()
+                        .map(BsonValue::asDocument)
+                        .filter(stage -> stage.containsKey("$match"))
+                        .findFirst()
+                        .ifPresent(stage -> record(command, name, stage.getDocument("$match"), new BsonDocument()));
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * @return a description of every query recorded so far that would scan its whole collection
+     */
+    public List<String> findCollectionScans(MongoDatabase database) {
+        Map<String, List<List<String>>> indexes = new HashMap<>();
+        List<RecordedQuery> recorded;
+        synchronized (queries) {
+            recorded = new ArrayList<>(queries);
+        }
+        return recorded.stream()
+                .filter(query -> !usesIndex(
+                        query.filter,
+                        query.sort,
+                        indexes.computeIfAbsent(query.collection, collection -> indexKeys(database, collection))))
+                .map(query -> query.command + " on " + query.collection + " with filter " + query.filter.toJson()
+                        + " and sort " + query.sort.toJson())
+                .collect(Collectors.toList());
+    }
+
+    public void clear() {
+        queries.clear();
+    }
+
+    private void record(BsonDocument command, String name, BsonDocument filter, BsonDocument sort) {
+        String collection = command.get(command.getFirstKey()).isString()
+                ? command.getString(command.getFirstKey()).getValue()
+                : name;
+        if (collection.startsWith("system.")) {
+            return;
+        }
+        queries.add(new RecordedQuery(name, collection, filter.clone(), sort.clone()));
+    }
+
+    private static boolean usesIndex(BsonDocument filter, BsonDocument sort, List<List<String>> indexes) {
+        if (!sort.isEmpty() && indexes.stream().anyMatch(index -> startsWith(index, List.copyOf(sort.keySet())))) {
+            return true;
+        }
+        Set<String> fields = filterFields(filter);
+        if (indexes.stream().anyMatch(index -> fields.contains(index.get(0)))) {
+            return true;
+        }
+        BsonArray or = filter.getArray("$or", null);
+        return or != null && !or.isEmpty()
+                && or.stream().allMatch(branch -> usesIndex(branch.asDocument(), new BsonDocument(), indexes));
+    }
+
+    private static Set<String> filterFields(BsonDocument filter) {
+        Set<String> fields = filter.keySet().stream()
+                .filter(key -> !key.startsWith("$"))
+                .collect(Collectors.toSet());
+        filter.getArray("$and", new BsonArray()).forEach(clause -> fields.addAll(filterFields(clause.asDocument())));
+        return fields;
+    }
+
+    private static boolean startsWith(List<String> index, List<String> keys) {
+        return index.size() >= keys.size() && index.subList(0, keys.size()).equals(keys);
+    }
+
+    private static List<List<String>> indexKeys(MongoDatabase database, String collection) {
+        List<List<String>> keys = new ArrayList<>();
+        keys.add(List.of("_id"));
+        for (Document index : database.getCollection(collection).listIndexes()) {
+            keys.add(new ArrayList<>(index.get("key", Document.class).keySet()));
+        }
+        return keys;
+    }
+
+    private static class RecordedQuery {
+
+        private final String command;
+        private final String collection;
+        private final BsonDocument filter;
+        private final BsonDocument sort;
+
+        RecordedQuery(String command, String collection, BsonDocument filter, BsonDocument sort) {
+            this.command = command;
+            this.collection = collection;
+            this.filter = filter;
+            this.sort = sort;
+        }
+    }
+}